@@ -0,0 +1,209 @@
+package memorymonitoring.agent;
+
+import java.lang.classfile.ClassModel;
+import java.lang.classfile.CodeElement;
+import java.lang.classfile.CodeModel;
+import java.lang.classfile.Instruction;
+import java.lang.classfile.MethodModel;
+import java.lang.classfile.Opcode;
+import java.lang.classfile.constantpool.ConstantDynamicEntry;
+import java.lang.classfile.constantpool.IntegerEntry;
+import java.lang.classfile.instruction.ArrayLoadInstruction;
+import java.lang.classfile.instruction.ArrayStoreInstruction;
+import java.lang.classfile.instruction.ConstantInstruction;
+import java.lang.classfile.instruction.FieldInstruction;
+import java.lang.classfile.instruction.InvokeInstruction;
+import java.lang.classfile.instruction.LineNumber;
+import java.lang.constant.ClassDesc;
+import java.lang.constant.ConstantDescs;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The access sites of instrumented classes: the instructions that access fields or arrays, directly (getfield, iaload, ...),
+ * in bulk (System#arraycopy, Arrays#fill, ...) or reflectively (Field#get, Array#set, VarHandle#set, ...). Field instructions
+ * that are never checked, because they access immutable fields or read final fields after their initialization (see
+ * {@link Exemptions#isUnchecked}), are not sites.
+ * <p>
+ * The sites of a class are numbered in the order in which they occur in its original class file. Each class reserves a
+ * range of site ids, so that a site id identifies a site across all classes. Site ids start at 1, or at the first site id
+ * given to the instrumenter; 0 means an unknown site (like TraceFormat#UNKNOWN_SITE).
+ */
+final class AccessSites {
+
+    /**
+     * An access site.
+     * @param bci the offset of the instruction in the original code of the method
+     * @param line the source line of the instruction, or -1 if unknown
+     * @param kind what the instruction does, e.g. getfield, iastore or System.arraycopy
+     */
+    record Site(String methodName, String methodType, int bci, int line, String kind) {}
+
+    private static final ClassDesc CD_SYSTEM = ClassDesc.of("java.lang", "System");
+    private static final ClassDesc CD_ARRAYS = ClassDesc.of("java.util", "Arrays");
+    private static final ClassDesc CD_REFLECT_FIELD = ClassDesc.of("java.lang.reflect", "Field");
+    private static final ClassDesc CD_REFLECT_ARRAY = ClassDesc.of("java.lang.reflect", "Array");
+
+    private static final Set<String> REFLECT_FIELD_ACCESSORS = Set.of(
+            "get", "getBoolean", "getByte", "getChar", "getDouble", "getFloat", "getInt", "getLong", "getShort",
+            "set", "setBoolean", "setByte", "setChar", "setDouble", "setFloat", "setInt", "setLong", "setShort");
+
+    private final AtomicInteger nextSiteId;
+    // TODO classes are identified by name only, classes with the same name in different class loaders will share site ids.
+    private final ConcurrentHashMap<String, Integer> firstSiteIds = new ConcurrentHashMap<>();
+
+    /**
+     * @param firstSiteId the id of the first site, so that classes that are instrumented separately (e.g. the artifacts that
+     *                    the instrumenter instruments ahead of time) can be given distinct site ids
+     */
+    AccessSites(int firstSiteId) {
+        this.nextSiteId = new AtomicInteger(firstSiteId);
+    }
+
+    /**
+     * Reserve the site ids of a class, if not reserved yet.
+     * @param className the internal name of the class
+     * @param siteCount the number of access sites of the class
+     * @return the id of the first site of the class
+     */
+    int reserve(String className, int siteCount) {
+        return firstSiteIds.computeIfAbsent(className, _ -> nextSiteId.getAndAdd(siteCount));
+    }
+
+    /**
+     * The access sites of a class, in the order in which they occur in the class file.
+     * @param loader the class loader through which the class files of the classes whose fields are accessed can be found
+     */
+    static List<Site> of(ClassLoader loader, ClassModel classModel) {
+        Exemptions exemptions = Exemptions.withInherited(loader, classModel);
+        List<Site> sites = new ArrayList<>();
+        for (MethodModel method : classModel.methods()) {
+            Optional<CodeModel> code = method.code();
+            if (code.isEmpty()) continue;
+
+            Walker walker = new Walker(loader, classModel, exemptions, method);
+            for (CodeElement codeElement : code.get()) {
+                walker.accept(codeElement).ifPresent(kind -> sites.add(new Site(method.methodName().stringValue(),
+                        method.methodType().stringValue(), walker.bci(), walker.line(), kind)));
+            }
+        }
+        return sites;
+    }
+
+    /** Tracks the offset and source line while walking over the original code of a method. */
+    static final class Walker {
+        private final ClassLoader loader;
+        private final String className;
+        private final Exemptions thisExemptions;
+        private final MethodModel method;
+        private final Exemptions.ThisReceiver thisReceiver = new Exemptions.ThisReceiver();
+        private int bci = 0;
+        private int nextBci = 0;
+        private int line = -1;
+
+        /**
+         * @param thisExemptions the exemptions of the class, with those it inherits, see {@link Exemptions#withInherited}
+         */
+        Walker(ClassLoader loader, ClassModel classModel, Exemptions thisExemptions, MethodModel method) {
+            this.loader = loader;
+            this.className = classModel.thisClass().asInternalName();
+            this.thisExemptions = thisExemptions;
+            this.method = method;
+        }
+
+        /**
+         * Advance over an element of the code.
+         * @return the kind of the access site, if the element is one
+         */
+        Optional<String> accept(CodeElement codeElement) {
+            boolean receiverIsThis = thisReceiver.isOnTop();
+            thisReceiver.accept(codeElement);
+            if (codeElement instanceof LineNumber lineNumber) {
+                line = lineNumber.line();
+            }
+            if (codeElement instanceof Instruction instruction) {
+                bci = nextBci;
+                nextBci += instruction.sizeInBytes();
+            }
+            if (codeElement instanceof FieldInstruction instruction) {
+                // like FieldUsageTransformer decides which field instructions it checks.
+                String owningClassName = instruction.owner().asInternalName();
+                boolean ownField = owningClassName.equals(className);
+                Exemptions exemptions = ownField ? thisExemptions : Exemptions.of(loader, owningClassName);
+                if (exemptions.isUnchecked(instruction, ownField, method, receiverIsThis)) return Optional.empty();
+            }
+            return kind(codeElement);
+        }
+
+        /** The offset of the last instruction that was accepted. */
+        int bci() {
+            return bci;
+        }
+
+        /** The source line of the last instruction that was accepted. */
+        int line() {
+            return line;
+        }
+    }
+
+    /**
+     * Whether the element accesses fields or arrays. Unless it is exempted from the checks (see {@link Walker#accept}), it
+     * is an access site.
+     */
+    static boolean isAccess(CodeElement codeElement) {
+        return kind(codeElement).isPresent();
+    }
+
+    /**
+     * The site id that {@link SiteProfilingTransformer} loads before an access site, if the element loads one.
+     * Later transformers use these markers to find out which site an access instruction is.
+     */
+    static OptionalInt siteIdOf(CodeElement codeElement) {
+        if (codeElement instanceof ConstantInstruction.LoadConstantInstruction loadConstant
+                && loadConstant.constantEntry() instanceof ConstantDynamicEntry dynamicConstant
+                && dynamicConstant.bootstrap().bootstrapMethod().asSymbol().equals(RuntimeApiHelper.SITE_BOOTSTRAP)
+                && dynamicConstant.bootstrap().arguments().getFirst() instanceof IntegerEntry siteId) {
+            return OptionalInt.of(siteId.intValue());
+        }
+        return OptionalInt.empty();
+    }
+
+    private static Optional<String> kind(CodeElement codeElement) {
+        return switch (codeElement) {
+            case FieldInstruction instruction -> Optional.of(mnemonic(instruction.opcode()));
+            case ArrayLoadInstruction instruction -> Optional.of(mnemonic(instruction.opcode()));
+            case ArrayStoreInstruction instruction -> Optional.of(mnemonic(instruction.opcode()));
+            case InvokeInstruction instruction -> invocationKind(instruction);
+            default -> Optional.empty();
+        };
+    }
+
+    private static Optional<String> invocationKind(InvokeInstruction instruction) {
+        String name = instruction.name().stringValue();
+        ClassDesc owner = instruction.owner().asSymbol();
+        boolean isStatic = instruction.opcode() == Opcode.INVOKESTATIC;
+
+        if (isStatic && owner.equals(CD_SYSTEM) && name.equals("arraycopy")) return Optional.of("System.arraycopy");
+        if (isStatic && owner.equals(CD_REFLECT_ARRAY) && (name.startsWith("get") || name.startsWith("set"))) return Optional.of("Array." + name);
+        if (!BulkArrayOperations.accessedRanges(instruction).isEmpty()) {
+            return Optional.of(owner.equals(CD_ARRAYS) ? "Arrays." + name : name);
+        }
+        if (!isStatic && owner.equals(CD_REFLECT_FIELD) && REFLECT_FIELD_ACCESSORS.contains(name)) return Optional.of("Field." + name);
+        if (!isStatic && owner.equals(ConstantDescs.CD_VarHandle)
+                && Arrays.stream(VarHandle.AccessMode.values()).anyMatch(accessMode -> accessMode.methodName().equals(name))) {
+            return Optional.of("VarHandle." + name);
+        }
+        return Optional.empty();
+    }
+
+    private static String mnemonic(Opcode opcode) {
+        return opcode.name().toLowerCase();
+    }
+}
@@ -1,19 +1,23 @@
 package memorymonitoring.agent;
 
+import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.Instrumentation;
 
 public class Agent {
 
-    // TODO allow invoker to specify of which classes monitoring should be enabled, through agentArgs?
-
     // Called when JVM starts (java -javaagent:...)
     public static void premain(String agentArgs, Instrumentation inst) {
         try {
             System.out.println("Agent loaded at startup.");
-            inst.addTransformer(new FieldUsageTransformer());
-            inst.addTransformer(new ArrayUsageTransformer());
-            inst.addTransformer(new InitializerTransformer());
-            inst.addTransformer(new NewArrayTransformer());
+            ClassInstrumenter instrumenter = ClassInstrumenter.of(agentArgs);
+            // The runtime picks up the options when it is initialised, which happens after premain.
+            instrumenter.runtimeProperties().forEach(System::setProperty);
+
+            // Retransformation capable, so that hot sites can be de-instrumented later on.
+            for (ClassFileTransformer transformer : instrumenter.transformers()) {
+                inst.addTransformer(transformer, true);
+            }
+            instrumenter.deinstrumentation().start(inst);
         } catch (Throwable ex) {
             ex.printStackTrace();
         }
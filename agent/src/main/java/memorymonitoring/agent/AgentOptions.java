@@ -0,0 +1,106 @@
+package memorymonitoring.agent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Options passed to the agent, as a comma-separated list of key=value pairs: {@code -javaagent:agent.jar=mode=races}.
+ * @param mode what the instrumented code is monitored for
+ * @param traceDirectory directory to record a binary trace of all accesses and grants to, or null to log them as text
+ * @param offHeapArrays whether the permissions to arrays are kept in an off-heap table
+ * @param profileTop the number of hottest and most violating access sites to print at exit, or 0 to not print the profile
+ * @param deinstrumentThreshold the number of violation-free executions after which an access site is no longer checked,
+ *                              or 0 to keep checking all sites
+ * @param includedPackages the packages of which the classes are instrumented, see {@link InstrumentedClasses}, or empty
+ *                         for the default
+ * @param statisticsFile file to publish the statistics of the runtime to while the program runs, or null to not publish them
+ * @param monitoredAccesses the kinds of accesses that are monitored
+ */
+record AgentOptions(Mode mode, String traceDirectory, boolean offHeapArrays, int profileTop, long deinstrumentThreshold,
+                    List<String> includedPackages, String statisticsFile, MonitoredAccesses monitoredAccesses) {
+
+    enum Mode {
+        /** Check accesses against the permissions granted to the accessing thread. */
+        PERMISSIONS,
+        /** Detect data races using happens-before (FastTrack). */
+        RACES;
+    }
+
+    // Must match memorymonitoring.runtime.RaceDetector#MODE_PROPERTY.
+    static final String MODE_PROPERTY = "memorymonitoring.mode";
+    // Must match memorymonitoring.runtime.TraceRecorder#TRACE_PROPERTY.
+    static final String TRACE_PROPERTY = "memorymonitoring.trace";
+    // Must match memorymonitoring.runtime.OffHeapArrayPermissions#ARRAYS_PROPERTY.
+    static final String ARRAYS_PROPERTY = "memorymonitoring.arrays";
+    // Must match memorymonitoring.runtime.SiteProfiler#PROFILE_PROPERTY.
+    static final String PROFILE_PROPERTY = "memorymonitoring.profile";
+    // Must match memorymonitoring.runtime.Statistics#STATISTICS_PROPERTY.
+    static final String STATISTICS_PROPERTY = "memorymonitoring.statistics";
+    // Must match memorymonitoring.runtime.MonitoredAccesses#MONITOR_PROPERTY.
+    static final String MONITOR_PROPERTY = "memorymonitoring.monitor";
+
+    static AgentOptions parse(String agentArgs) {
+        Mode mode = Mode.PERMISSIONS;
+        String traceDirectory = null;
+        boolean offHeapArrays = false;
+        int profileTop = 0;
+        long deinstrumentThreshold = 0;
+        List<String> includedPackages = new ArrayList<>();
+        String statisticsFile = null;
+        List<String> monitoredKinds = new ArrayList<>();
+
+        if (agentArgs != null && !agentArgs.isBlank()) {
+            for (String option : agentArgs.split(",")) {
+                int separator = option.indexOf('=');
+                if (separator < 0) {
+                    throw new IllegalArgumentException("Agent option must be of the form key=value, got: " + option);
+                }
+                String key = option.substring(0, separator).strip();
+                String value = option.substring(separator + 1).strip();
+                switch (key) {
+                    case "mode" -> mode = Mode.valueOf(value.toUpperCase());
+                    case "trace" -> traceDirectory = value;
+                    case "arrays" -> offHeapArrays = switch (value) {
+                        case "heap" -> false;
+                        case "offheap" -> true;
+                        default -> throw new IllegalArgumentException("Agent option arrays must be heap or offheap, got: " + value);
+                    };
+                    case "profile" -> {
+                        profileTop = Integer.parseInt(value);
+                        if (profileTop <= 0) {
+                            throw new IllegalArgumentException("Agent option profile must be a positive number of sites, got: " + value);
+                        }
+                    }
+                    case "deinstrument" -> {
+                        deinstrumentThreshold = Long.parseLong(value);
+                        if (deinstrumentThreshold <= 0) {
+                            throw new IllegalArgumentException("Agent option deinstrument must be a positive number of executions, got: " + value);
+                        }
+                    }
+                    case "include" -> includedPackages.add(value);
+                    case "stats" -> statisticsFile = value;
+                    case "monitor" -> monitoredKinds.add(value);
+                    default -> throw new IllegalArgumentException("Unknown agent option: " + key);
+                }
+            }
+        }
+
+        MonitoredAccesses monitoredAccesses = MonitoredAccesses.of(monitoredKinds);
+        // The race detector needs the reads of volatile fields, instance or static, for the happens-before edges they create.
+        if (mode == Mode.RACES && !monitoredAccesses.isAll()) {
+            throw new IllegalArgumentException("Agent option monitor must be all in mode races, got: " + String.join(",", monitoredKinds));
+        }
+        // Nor may a site that accesses a volatile field stop reporting its accesses, however often it ran without a race.
+        if (mode == Mode.RACES && deinstrumentThreshold > 0) {
+            throw new IllegalArgumentException("Agent option deinstrument cannot be used in mode races");
+        }
+
+        return new AgentOptions(mode, traceDirectory, offHeapArrays, profileTop, deinstrumentThreshold, List.copyOf(includedPackages), statisticsFile,
+                monitoredAccesses);
+    }
+
+    /** Whether the executions of the access sites are counted, which both printing the profile and de-instrumentation need. */
+    boolean profileSites() {
+        return profileTop > 0 || deinstrumentThreshold > 0;
+    }
+}
@@ -16,10 +16,19 @@ import java.lang.constant.MethodTypeDesc;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.security.ProtectionDomain;
+import java.util.List;
 import static memorymonitoring.agent.RuntimeApiHelper.*;
 
 final class ArrayUsageTransformer implements ClassFileTransformer {
 
+    private final MonitoredAccesses monitored;
+    private final Deinstrumentation deinstrumentation;
+
+    ArrayUsageTransformer(MonitoredAccesses monitored, Deinstrumentation deinstrumentation) {
+        this.monitored = monitored;
+        this.deinstrumentation = deinstrumentation;
+    }
+
     @Override
     public byte[] transform(Module           module,
                             ClassLoader      loader,
@@ -29,18 +38,17 @@ final class ArrayUsageTransformer implements ClassFileTransformer {
                             byte[]           classfileBuffer)
             throws IllegalClassFormatException {
 
-        // TODO make configurable (via commandline arg?)
-        if (!className.startsWith("memorymonitoring/example")) {
+        if (!InstrumentedClasses.contains(className)) {
             return null;
         }
 
         ClassFile classFile = ClassFile.of();
         ClassModel classModel = classFile.parse(classfileBuffer);
 
-        return classFile.transformClass(classModel, ClassTransform.transformingMethodBodies(
+        return classFile.transformClass(classModel, ClassTransform.transformingMethodBodies(deinstrumentation.skippingUncheckedSites(
                 (CodeBuilder codeBuilder, CodeElement codeElement) -> {
 
-                    if (codeElement instanceof ArrayLoadInstruction arrayLoadInstruction) {
+                    if (codeElement instanceof ArrayLoadInstruction arrayLoadInstruction && monitored.arrayAccess(false)) {
                         // aXload: [..., arr, index] -> [..., element]
 
                         // Stack:
@@ -93,20 +101,22 @@ final class ArrayUsageTransformer implements ClassFileTransformer {
                         codeBuilder.astore(srcArr);
                         // [...]
 
-                        codeBuilder.aload(srcArr);
-                        // [..., srcArr]
-                        codeBuilder.iload(srcPos);
-                        // [..., srcArr, srcPos]
-                        codeBuilder.dup();
-                        // [..., srcArr, srcPos, srcPos]
-                        codeBuilder.iload(length);
-                        // [..., srcArr, srcPos, srcPos, length];
-                        codeBuilder.iadd();
-                        // [..., srcArr, srcPos, indexTo];
-                        readAccess(codeBuilder);
-                        // [..., srcArr, srcPos, indexTo, Access.READ];
-                        invokeLogArrayAccess_range(codeBuilder);
-                        // [...]
+                        if (monitored.arrayAccess(false)) {
+                            codeBuilder.aload(srcArr);
+                            // [..., srcArr]
+                            codeBuilder.iload(srcPos);
+                            // [..., srcArr, srcPos]
+                            codeBuilder.dup();
+                            // [..., srcArr, srcPos, srcPos]
+                            codeBuilder.iload(length);
+                            // [..., srcArr, srcPos, srcPos, length];
+                            codeBuilder.iadd();
+                            // [..., srcArr, srcPos, indexTo];
+                            readAccess(codeBuilder);
+                            // [..., srcArr, srcPos, indexTo, Access.READ];
+                            invokeLogArrayAccess_range(codeBuilder);
+                            // [...]
+                        }
 
                         codeBuilder.aload(destArr);
                         // [..., destArr]
@@ -134,10 +144,17 @@ final class ArrayUsageTransformer implements ClassFileTransformer {
                         // [...]
                     }
 
+                    else if (codeElement instanceof InvokeInstruction invokeInstruction
+                            && BulkArrayOperations.accessedRanges(invokeInstruction).stream().anyMatch(range -> monitored.arrayAccess(range.write()))) {
+                        genLogBulkArrayAccess(codeBuilder, invokeInstruction, monitored);
+                        codeBuilder.with(codeElement);
+                    }
+
                     else if (codeElement instanceof InvokeInstruction invokeInstruction
                             && invokeInstruction.owner().matches(CD_ARRAY)
                             && !invokeInstruction.isInterface()
-                            && invokeInstruction.opcode() == Opcode.INVOKESTATIC) {
+                            && invokeInstruction.opcode() == Opcode.INVOKESTATIC
+                            && monitored.arrayAccess(invokeInstruction.name().stringValue().startsWith("set"))) {
                         handleJavaLangReflectArrayInvocation(codeBuilder, invokeInstruction);
                         codeBuilder.with(codeElement);
                     }
@@ -147,7 +164,7 @@ final class ArrayUsageTransformer implements ClassFileTransformer {
                         codeBuilder.with(codeElement);
                     }
                 }
-        ));
+        )));
     }
 
     private static boolean isInvokeSystemArrayCopy(InvokeInstruction invokeInstruction) {
@@ -164,6 +181,54 @@ final class ArrayUsageTransformer implements ClassFileTransformer {
 
     private static final ClassDesc CD_ARRAY = ClassDesc.of("java.lang.reflect", "Array");
 
+    private static void genLogBulkArrayAccess(CodeBuilder codeBuilder, InvokeInstruction invokeInstruction, MonitoredAccesses monitored) {
+        // One range check per accessed array, instead of one check per element.
+        // Only the accesses that are monitored are checked, e.g. only the written array if reads are not monitored.
+
+        // Operand stack:
+        // [..., operand1, ..., operandN]
+        List<ClassDesc> operands = BulkArrayOperations.operandTypes(invokeInstruction);
+        int[] slots = new int[operands.size()];
+        for (int i = operands.size() - 1; i >= 0; i--) {
+            TypeKind typeKind = TypeKind.from(operands.get(i));
+            slots[i] = codeBuilder.allocateLocal(typeKind);
+            codeBuilder.storeLocal(typeKind, slots[i]);
+        }
+        // [...]
+        for (BulkArrayOperations.ArrayRange range : BulkArrayOperations.accessedRanges(invokeInstruction)) {
+            if (!monitored.arrayAccess(range.write())) continue;
+
+            codeBuilder.aload(slots[range.array()]);
+            // [..., arr]
+            if (range.to() >= 0) {
+                if (range.from() >= 0) {
+                    codeBuilder.iload(slots[range.from()]);
+                } else {
+                    codeBuilder.iconst_0();
+                }
+                // [..., arr, indexFrom]
+                codeBuilder.iload(slots[range.to()]);
+                // [..., arr, indexFrom, indexTo]
+            }
+            if (range.write()) {
+                writeAccess(codeBuilder);
+            } else {
+                readAccess(codeBuilder);
+            }
+            // [..., arr, (indexFrom, indexTo,) access]
+            if (range.to() >= 0) {
+                invokeLogBulkArrayAccess(codeBuilder);
+            } else {
+                invokeLogArrayAccessWholeArray(codeBuilder);
+            }
+            // [...]
+        }
+        for (int i = 0; i < operands.size(); i++) {
+            codeBuilder.loadLocal(TypeKind.from(operands.get(i)), slots[i]);
+        }
+        // [..., operand1, ..., operandN]
+    }
+
     private static void handleJavaLangReflectArrayInvocation(CodeBuilder codeBuilder, InvokeInstruction invokeInstruction) {
         if (invokeInstruction.name().equalsString("get") && invokeInstruction.typeSymbol().equals(MTD_ARRAY_GET)) {
             genGetReadAccess(codeBuilder);
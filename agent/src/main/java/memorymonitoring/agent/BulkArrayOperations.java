@@ -0,0 +1,100 @@
+package memorymonitoring.agent;
+
+import java.lang.classfile.Opcode;
+import java.lang.classfile.instruction.InvokeInstruction;
+import java.lang.constant.ClassDesc;
+import java.lang.constant.ConstantDescs;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Invocations of methods that access (a range of) an array at once: the bulk methods of java.util.Arrays, and clone on arrays.
+ * <p>
+ * {@link ArrayUsageTransformer} checks the accessed ranges once per invocation, {@link NewArrayTransformer} grants WRITE
+ * permission to the arrays which are copied by these methods, like it does for arrays created with newarray.
+ */
+final class BulkArrayOperations {
+
+    private static final ClassDesc CD_ARRAYS = ClassDesc.of("java.util", "Arrays");
+
+    private BulkArrayOperations() {
+    }
+
+    /**
+     * A range of an array operand that is accessed by a bulk operation.
+     * The operands of an invocation are the receiver (if any) followed by the arguments.
+     * @param array the operand index of the array
+     * @param from the operand index of the start of the range (inclusive), or -1 if the range starts at 0
+     * @param to the operand index of the end of the range (exclusive), or -1 if the range ends at the length of the array
+     * @param write whether the elements in the range are written, or only read
+     */
+    record ArrayRange(int array, int from, int to, boolean write) {
+
+        static ArrayRange whole(int array, boolean write) {
+            return new ArrayRange(array, -1, -1, write);
+        }
+    }
+
+    /**
+     * The ranges of arrays that an invocation accesses.
+     * @return the ranges, or an empty list if the invocation is not a supported bulk operation
+     */
+    static List<ArrayRange> accessedRanges(InvokeInstruction invokeInstruction) {
+        if (isArrayClone(invokeInstruction)) {
+            return List.of(ArrayRange.whole(0, false));
+        }
+        if (invokeInstruction.opcode() != Opcode.INVOKESTATIC || !invokeInstruction.owner().matches(CD_ARRAYS)) {
+            return List.of();
+        }
+
+        List<ClassDesc> parameters = invokeInstruction.typeSymbol().parameterList();
+        if (parameters.isEmpty() || !parameters.get(0).isArray()) return List.of();
+        int count = parameters.size();
+        boolean hasRange = count >= 3 && parameters.get(1).equals(ConstantDescs.CD_int) && parameters.get(2).equals(ConstantDescs.CD_int);
+
+        return switch (invokeInstruction.name().stringValue()) {
+            // fill(a, val), fill(a, from, to, val)
+            case "fill" -> List.of(count == 4 ? new ArrayRange(0, 1, 2, true) : ArrayRange.whole(0, true));
+            // sort(a), sort(a, cmp), sort(a, from, to), sort(a, from, to, cmp)
+            case "sort", "parallelSort" -> List.of(hasRange ? new ArrayRange(0, 1, 2, true) : ArrayRange.whole(0, true));
+            // copyOf(a, newLength), copyOf(a, newLength, newType): the copied range is clamped to the length of a.
+            case "copyOf" -> List.of(new ArrayRange(0, -1, 1, false));
+            // copyOfRange(a, from, to), copyOfRange(a, from, to, newType)
+            case "copyOfRange" -> List.of(new ArrayRange(0, 1, 2, false));
+            // equals(a, b), equals(a, b, cmp), equals(a, aFrom, aTo, b, bFrom, bTo), equals(a, aFrom, aTo, b, bFrom, bTo, cmp)
+            case "equals" -> hasRange
+                    ? List.of(new ArrayRange(0, 1, 2, false), new ArrayRange(3, 4, 5, false))
+                    : List.of(ArrayRange.whole(0, false), ArrayRange.whole(1, false));
+            // hashCode(a)
+            case "hashCode" -> count == 1 ? List.of(ArrayRange.whole(0, false)) : List.of();
+            default -> List.of();
+        };
+    }
+
+    /** Whether the invocation returns a new array, which is a copy of (part of) an array. */
+    static boolean returnsArrayCopy(InvokeInstruction invokeInstruction) {
+        if (isArrayClone(invokeInstruction)) return true;
+        return invokeInstruction.opcode() == Opcode.INVOKESTATIC
+                && invokeInstruction.owner().matches(CD_ARRAYS)
+                && (invokeInstruction.name().equalsString("copyOf") || invokeInstruction.name().equalsString("copyOfRange"))
+                && invokeInstruction.typeSymbol().returnType().isArray();
+    }
+
+    /** The types of the operands of the invocation: the receiver (if any) followed by the arguments. */
+    static List<ClassDesc> operandTypes(InvokeInstruction invokeInstruction) {
+        List<ClassDesc> operands = new ArrayList<>();
+        if (invokeInstruction.opcode() != Opcode.INVOKESTATIC) {
+            operands.add(invokeInstruction.owner().asSymbol());
+        }
+        operands.addAll(invokeInstruction.typeSymbol().parameterList());
+        return operands;
+    }
+
+    private static boolean isArrayClone(InvokeInstruction invokeInstruction) {
+        // javac uses the array type as the owner of clone invocations on arrays.
+        return invokeInstruction.opcode() == Opcode.INVOKEVIRTUAL
+                && invokeInstruction.owner().asSymbol().isArray()
+                && invokeInstruction.name().equalsString("clone")
+                && invokeInstruction.typeSymbol().parameterCount() == 0;
+    }
+}
@@ -0,0 +1,35 @@
+package memorymonitoring.agent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.classfile.ClassFile;
+import java.lang.classfile.ClassModel;
+import java.util.Optional;
+
+/**
+ * Reads the class files of classes other than the class being transformed, e.g. to find out how the fields of a class
+ * that is referred to are instrumented.
+ */
+final class ClassFiles {
+
+    private ClassFiles() {
+    }
+
+    /**
+     * Parse the class file of a class, without loading the class.
+     * @param loader the class loader of the class that refers to the other class
+     * @param className the internal name of the other class
+     * @return the parsed class file, or empty if the class file can not be found
+     */
+    static Optional<ClassModel> parse(ClassLoader loader, String className) {
+        if (loader == null) return Optional.empty();
+
+        try (InputStream classFile = loader.getResourceAsStream(className + ".class")) {
+            if (classFile == null) return Optional.empty();
+            return Optional.of(ClassFile.of().parse(classFile.readAllBytes()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package memorymonitoring.agent;
+
+import java.lang.classfile.ClassFile;
+import java.lang.classfile.ClassModel;
+import java.lang.classfile.FieldModel;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.lang.reflect.AccessFlag;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The transformations of the agent, in the order in which the agent registers them. Used by {@link Agent} to instrument
+ * classes when they are loaded, and by the instrumenter module to instrument classes ahead of time.
+ * <p>
+ * Instances are thread-safe, so classes can be instrumented in parallel.
+ */
+public final class ClassInstrumenter {
+
+    /**
+     * A field of an instrumented class of which the accesses are monitored.
+     * @param className the internal name of the declaring class
+     * @param shadowIndex the index of the field in the shadow permissions of the declaring class, or -1 if the
+     *                    permissions to the field are not stored in the objects themselves
+     */
+    public record MonitoredField(String className, String fieldName, boolean isStatic, int shadowIndex) {}
+
+    /**
+     * An instruction of an instrumented class that accesses fields or arrays, see {@link AccessSites}.
+     * @param id the id of the site, which the profiler reports the site by
+     * @param className the internal name of the class that contains the instruction
+     * @param bci the offset of the instruction in the original code of the method
+     * @param line the source line of the instruction, or -1 if unknown
+     * @param kind what the instruction does, e.g. getfield, iastore or System.arraycopy
+     */
+    public record AccessSite(int id, String className, String methodName, String methodType, int bci, int line, String kind) {}
+
+    private final AgentOptions options;
+    private final AccessSites accessSites;
+    private final Deinstrumentation deinstrumentation;
+    private final List<ClassFileTransformer> transformers;
+
+    private ClassInstrumenter(AgentOptions options, AccessSites accessSites, Deinstrumentation deinstrumentation, List<ClassFileTransformer> transformers) {
+        this.options = options;
+        this.accessSites = accessSites;
+        this.deinstrumentation = deinstrumentation;
+        this.transformers = transformers;
+    }
+
+    /**
+     * Create the transformations for the given options.
+     * @param agentArgs the options, in the same format as passed to the agent, see {@link AgentOptions#parse(String)}
+     */
+    public static ClassInstrumenter of(String agentArgs) {
+        return of(AgentOptions.parse(agentArgs), 1);
+    }
+
+    /**
+     * Create the transformations to instrument classes ahead of time. Rejects the options that only the agent supports.
+     * @param agentArgs the options, in the same format as passed to the agent, see {@link AgentOptions#parse(String)}
+     * @param firstSiteId the id of the first access site, so that artifacts that are instrumented separately can be given
+     *                    distinct site ids
+     */
+    public static ClassInstrumenter aheadOfTime(String agentArgs, int firstSiteId) {
+        AgentOptions options = AgentOptions.parse(agentArgs);
+        if (options.deinstrumentThreshold() > 0) {
+            throw new IllegalArgumentException("Agent option deinstrument can only be used with the agent, classes instrumented ahead of time are never de-instrumented");
+        }
+        if (firstSiteId <= 0) {
+            throw new IllegalArgumentException("The first site id must be positive, got: " + firstSiteId);
+        }
+        return of(options, firstSiteId);
+    }
+
+    private static ClassInstrumenter of(AgentOptions options, int firstSiteId) {
+        InstrumentedClasses.include(options.includedPackages());
+
+        // Accesses that pass the inline check are not logged, recorded nor counted, so only check inline if none of that is needed.
+        boolean checkShadowPermissions = options.mode() == AgentOptions.Mode.PERMISSIONS && options.traceDirectory() == null
+                && options.statisticsFile() == null;
+        MonitoredAccesses monitored = options.monitoredAccesses();
+        AccessSites accessSites = new AccessSites(firstSiteId);
+        Deinstrumentation deinstrumentation = new Deinstrumentation(options.deinstrumentThreshold());
+        List<ClassFileTransformer> transformers = new ArrayList<>();
+        if (options.profileSites()) {
+            // first, so that the sites are those of the original class file.
+            transformers.add(new SiteProfilingTransformer(accessSites, monitored, deinstrumentation));
+        }
+        if (monitored.fields()) {
+            transformers.add(new FieldUsageTransformer(checkShadowPermissions, monitored, deinstrumentation));
+        }
+        if (monitored.arrays()) {
+            transformers.add(new ArrayUsageTransformer(monitored, deinstrumentation));
+        }
+        transformers.add(new HandleUsageTransformer(monitored, deinstrumentation));
+        switch (options.mode()) {
+            case PERMISSIONS -> {
+                // No permissions are granted to the kinds of memory that are not monitored.
+                if (monitored.fields()) {
+                    transformers.add(new InitializerTransformer(checkShadowPermissions, monitored));
+                }
+                if (monitored.arrays()) {
+                    transformers.add(new NewArrayTransformer());
+                }
+            }
+            case RACES -> transformers.add(new SynchronizationTransformer());
+        }
+        transformers.add(new TaskSubmissionTransformer());
+
+        return new ClassInstrumenter(options, accessSites, deinstrumentation, List.copyOf(transformers));
+    }
+
+    List<ClassFileTransformer> transformers() {
+        return transformers;
+    }
+
+    /**
+     * The same instrumenter with only one of its transformations, e.g. to measure the cost of that transformation alone.
+     * @param transformerName the simple class name of the transformer, e.g. FieldUsageTransformer
+     * @throws IllegalArgumentException if the instrumenter has no such transformer
+     */
+    public ClassInstrumenter restrictedTo(String transformerName) {
+        List<ClassFileTransformer> restricted = transformers.stream()
+                .filter(transformer -> transformer.getClass().getSimpleName().equals(transformerName))
+                .toList();
+        if (restricted.isEmpty()) {
+            throw new IllegalArgumentException("No transformer " + transformerName + " in mode " + options.mode().name().toLowerCase());
+        }
+        return new ClassInstrumenter(options, accessSites, deinstrumentation, restricted);
+    }
+
+    /** Whether the executions of the access sites are counted, which makes the instrumented code refer to the sites by their ids. */
+    public boolean profilesSites() {
+        return options.profileSites();
+    }
+
+    /** The de-instrumentation of hot sites, which only the agent can start, because it retransforms loaded classes. */
+    Deinstrumentation deinstrumentation() {
+        return deinstrumentation;
+    }
+
+    /**
+     * The system properties through which the runtime picks up the options. The runtime must see the same options as the
+     * transformations, because the instrumented code depends on them.
+     */
+    public Map<String, String> runtimeProperties() {
+        Map<String, String> properties = new LinkedHashMap<>();
+        properties.put(AgentOptions.MODE_PROPERTY, options.mode().name().toLowerCase());
+        if (options.traceDirectory() != null) {
+            properties.put(AgentOptions.TRACE_PROPERTY, options.traceDirectory());
+        }
+        if (options.offHeapArrays()) {
+            properties.put(AgentOptions.ARRAYS_PROPERTY, "offheap");
+        }
+        if (options.profileSites()) {
+            // 0 counts the executions without printing the profile at exit.
+            properties.put(AgentOptions.PROFILE_PROPERTY, Integer.toString(options.profileTop()));
+        }
+        if (options.statisticsFile() != null) {
+            properties.put(AgentOptions.STATISTICS_PROPERTY, options.statisticsFile());
+        }
+        if (!options.monitoredAccesses().isAll()) {
+            properties.put(AgentOptions.MONITOR_PROPERTY, options.monitoredAccesses().optionValue());
+        }
+        return properties;
+    }
+
+    /**
+     * Apply all transformations to a class, like the JVM does when the class is loaded with the agent attached.
+     * @param loader the class loader through which the class files of other classes (e.g. superclasses) can be found
+     * @param className the internal name of the class
+     * @param classfileBuffer the original class file
+     * @return the instrumented class file, or null if the class is not instrumented
+     */
+    public byte[] instrument(ClassLoader loader, String className, byte[] classfileBuffer) throws IllegalClassFormatException {
+        byte[] current = classfileBuffer;
+        boolean transformed = false;
+        for (ClassFileTransformer transformer : transformers) {
+            byte[] result = transformer.transform(null, loader, className, null, null, current);
+            if (result != null) {
+                current = result;
+                transformed = true;
+            }
+        }
+        return transformed ? current : null;
+    }
+
+    /** The fields declared by a class of which the accesses are monitored, read from its original class file. */
+    public static List<MonitoredField> monitoredFields(byte[] classfileBuffer) {
+        ClassModel classModel = ClassFile.of().parse(classfileBuffer);
+        String className = classModel.thisClass().asInternalName();
+        Exemptions exemptions = Exemptions.of(classModel);
+        List<String> shadowLayout = ShadowFields.layout(classModel).orElse(List.of());
+
+        List<MonitoredField> fields = new ArrayList<>();
+        for (FieldModel field : classModel.fields()) {
+            String fieldName = field.fieldName().stringValue();
+            if (exemptions.isImmutable(fieldName)) continue;
+
+            boolean isStatic = field.flags().has(AccessFlag.STATIC);
+            fields.add(new MonitoredField(className, fieldName, isStatic, isStatic ? -1 : shadowLayout.indexOf(fieldName)));
+        }
+        return fields;
+    }
+
+    /**
+     * The number of access sites of a class, read from its original class file.
+     * @param loader the class loader through which the class files of other classes (e.g. superclasses) can be found
+     */
+    public static int countAccessSites(ClassLoader loader, byte[] classfileBuffer) {
+        return AccessSites.of(loader, ClassFile.of().parse(classfileBuffer)).size();
+    }
+
+    /**
+     * Reserve the site ids of a class before it is instrumented. Classes that are instrumented without reserving their
+     * site ids first get them in the order in which they are instrumented, reserving them in a fixed order makes the ids
+     * the same in every build.
+     */
+    public void reserveSiteIds(String className, int siteCount) {
+        accessSites.reserve(className, siteCount);
+    }
+
+    /**
+     * The access sites of a class with their ids, in the order in which they occur in its original class file.
+     * @param loader the class loader through which the class files of other classes (e.g. superclasses) can be found
+     */
+    public List<AccessSite> accessSites(ClassLoader loader, String className, byte[] classfileBuffer) {
+        List<AccessSites.Site> sites = AccessSites.of(loader, ClassFile.of().parse(classfileBuffer));
+        int siteId = accessSites.reserve(className, sites.size());
+        List<AccessSite> result = new ArrayList<>(sites.size());
+        for (AccessSites.Site site : sites) {
+            result.add(new AccessSite(siteId++, className, site.methodName(), site.methodType(), site.bci(), site.line(), site.kind()));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,163 @@
+package memorymonitoring.agent;
+
+import java.lang.classfile.CodeBuilder;
+import java.lang.classfile.CodeElement;
+import java.lang.classfile.CodeTransform;
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.LinkedHashSet;
+import java.util.OptionalInt;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Adaptive de-instrumentation: access sites that have been executed often without ever causing a violation are no longer
+ * checked.
+ * <p>
+ * The executions and violations of the sites are counted by memorymonitoring.runtime.SiteProfiler (see
+ * {@link SiteProfilingTransformer}). A daemon thread of the agent periodically asks the profiler for the sites that crossed
+ * the threshold without violations, and retransforms their classes: the transformers then leave these sites unchecked,
+ * see {@link #skippingUncheckedSites(CodeTransform)}. Every de-instrumented site is logged. A site is checked again after
+ * SiteProfiler#requestReinstrumentation, which the thread picks up the same way.
+ * <p>
+ * The agent does not link against the runtime, so the profiler is called reflectively.
+ */
+final class Deinstrumentation {
+
+    private static final Logger LOGGER = Logger.getLogger(Deinstrumentation.class.getName());
+
+    // TODO make configurable (via commandline arg?)
+    private static final long POLL_INTERVAL_MILLIS = 1000;
+
+    /** Deinstrumentation that never leaves a site unchecked. */
+    static final Deinstrumentation NONE = new Deinstrumentation(0);
+
+    private final long threshold;
+    private final Set<Integer> uncheckedSites = ConcurrentHashMap.newKeySet();
+
+    Deinstrumentation(long threshold) {
+        this.threshold = threshold;
+    }
+
+    boolean isEnabled() {
+        return threshold > 0;
+    }
+
+    boolean isUnchecked(int siteId) {
+        return uncheckedSites.contains(siteId);
+    }
+
+    /**
+     * Wrap the transformation that inserts the checks of a transformer, so that unchecked sites are copied as is.
+     * The site of an instruction is known from the marker that {@link SiteProfilingTransformer} put before it.
+     * A new wrapper is needed per transformed class.
+     */
+    CodeTransform skippingUncheckedSites(CodeTransform checks) {
+        if (!isEnabled()) return checks;
+
+        return new CodeTransform() {
+            private int siteId = 0;   // the site of the next access instruction, 0 if unknown
+
+            @Override
+            public void accept(CodeBuilder codeBuilder, CodeElement codeElement) {
+                OptionalInt marker = AccessSites.siteIdOf(codeElement);
+                if (marker.isPresent()) {
+                    siteId = marker.getAsInt();
+                    codeBuilder.with(codeElement);
+                } else if (AccessSites.isAccess(codeElement)) {
+                    boolean unchecked = isUnchecked(siteId);
+                    siteId = 0;
+                    if (unchecked) {
+                        codeBuilder.with(codeElement);
+                    } else {
+                        checks.accept(codeBuilder, codeElement);
+                    }
+                } else {
+                    checks.accept(codeBuilder, codeElement);
+                }
+            }
+        };
+    }
+
+    /** Start the daemon thread that de-instruments and re-instruments sites. */
+    void start(Instrumentation inst) {
+        if (!isEnabled()) return;
+        if (!inst.isRetransformClassesSupported()) {
+            LOGGER.warning("De-instrumentation is disabled: the JVM does not support retransformation of classes.");
+            return;
+        }
+
+        Thread.ofPlatform().daemon().name("memorymonitoring-deinstrumentation").start(() -> {
+            try {
+                Profiler profiler = Profiler.find();
+                while (true) {
+                    Thread.sleep(POLL_INTERVAL_MILLIS);
+                    poll(inst, profiler);
+                }
+            } catch (InterruptedException _) {
+                // exit.
+            } catch (Throwable ex) {
+                LOGGER.log(Level.SEVERE, "De-instrumentation stopped.", ex);
+            }
+        });
+    }
+
+    private void poll(Instrumentation inst, Profiler profiler) throws Throwable {
+        Set<Class<?>> classes = new LinkedHashSet<>();
+        for (int siteId : profiler.hotSites(threshold)) {
+            if (uncheckedSites.add(siteId)) {
+                classes.add(profiler.siteClass(siteId));
+                LOGGER.info(String.format("De-instrumented site %s: executed at least %d times without violations.", profiler.siteDescription(siteId), threshold));
+            }
+        }
+        for (int siteId : profiler.reinstrumentationRequests()) {
+            if (uncheckedSites.remove(siteId)) {
+                classes.add(profiler.siteClass(siteId));
+                LOGGER.info(String.format("Re-instrumented site %s.", profiler.siteDescription(siteId)));
+            }
+        }
+        if (!classes.isEmpty()) {
+            try {
+                inst.retransformClasses(classes.toArray(Class<?>[]::new));
+            } catch (UnmodifiableClassException e) {
+                LOGGER.log(Level.WARNING, "Could not retransform " + classes, e);
+            }
+        }
+    }
+
+    /** The methods of memorymonitoring.runtime.SiteProfiler that the agent calls. */
+    private record Profiler(MethodHandle hotSites, MethodHandle reinstrumentationRequests, MethodHandle siteClass, MethodHandle siteDescription) {
+
+        static Profiler find() throws ReflectiveOperationException {
+            Class<?> siteProfiler = ClassLoader.getSystemClassLoader().loadClass(RuntimeApiHelper.SITE_PROFILER_CLASSDESC.packageName()
+                    + "." + RuntimeApiHelper.SITE_PROFILER_CLASSDESC.displayName());
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            return new Profiler(
+                    lookup.findStatic(siteProfiler, "hotSites", MethodType.methodType(int[].class, long.class)),
+                    lookup.findStatic(siteProfiler, "reinstrumentationRequests", MethodType.methodType(int[].class)),
+                    lookup.findStatic(siteProfiler, "siteClass", MethodType.methodType(Class.class, int.class)),
+                    lookup.findStatic(siteProfiler, "siteDescription", MethodType.methodType(String.class, int.class)));
+        }
+
+        int[] hotSites(long threshold) throws Throwable {
+            return (int[]) hotSites.invokeExact(threshold);
+        }
+
+        int[] reinstrumentationRequests() throws Throwable {
+            return (int[]) reinstrumentationRequests.invokeExact();
+        }
+
+        Class<?> siteClass(int siteId) throws Throwable {
+            return (Class<?>) siteClass.invokeExact(siteId);
+        }
+
+        String siteDescription(int siteId) throws Throwable {
+            return (String) siteDescription.invokeExact(siteId);
+        }
+    }
+}
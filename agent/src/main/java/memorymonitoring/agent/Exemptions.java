@@ -0,0 +1,178 @@
+package memorymonitoring.agent;
+
+import java.lang.classfile.AttributedElement;
+import java.lang.classfile.Attributes;
+import java.lang.classfile.ClassModel;
+import java.lang.classfile.CodeElement;
+import java.lang.classfile.FieldModel;
+import java.lang.classfile.Instruction;
+import java.lang.classfile.MethodModel;
+import java.lang.classfile.TypeKind;
+import java.lang.classfile.attribute.RuntimeInvisibleAnnotationsAttribute;
+import java.lang.classfile.attribute.RuntimeVisibleAnnotationsAttribute;
+import java.lang.classfile.instruction.FieldInstruction;
+import java.lang.classfile.instruction.InvokeInstruction;
+import java.lang.classfile.instruction.LoadInstruction;
+import java.lang.constant.ClassDesc;
+import java.lang.constant.ConstantDescs;
+import java.lang.reflect.AccessFlag;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Fields that are exempted from (part of) the monitoring, declared with the annotations of memorymonitoring.runtime.annotation,
+ * or final.
+ * <p>
+ * A field is immutable if it is annotated with {@code @Immutable}, or if it is an instance field of a class annotated with
+ * {@code @Immutable}. A field is thread-confined if it is a mutable instance field annotated with {@code @ThreadConfined},
+ * or of a class annotated with {@code @ThreadConfined}. Final fields (including the fields of record components) can not
+ * be written after the initializer of their class, so reads of final fields are only monitored inside those initializers.
+ * @param immutableFields fields of which accesses are not monitored, and to which no permissions are granted
+ * @param confinedFields instance fields of which accesses only check that the accessing thread owns the object
+ * @param finalFields fields of which reads are not monitored outside of the initializers of their class
+ */
+record Exemptions(Set<String> immutableFields, Set<String> confinedFields, Set<String> finalFields) {
+
+    static final Exemptions NONE = new Exemptions(Set.of(), Set.of(), Set.of());
+
+    private static final String ANNOTATION_PACKAGE = RuntimeApiHelper.RUNTIME_PACKAGE + ".annotation";
+    private static final ClassDesc IMMUTABLE_CLASSDESC = ClassDesc.of(ANNOTATION_PACKAGE, "Immutable");
+    private static final ClassDesc THREAD_CONFINED_CLASSDESC = ClassDesc.of(ANNOTATION_PACKAGE, "ThreadConfined");
+
+    // TODO classes are identified by name only, classes with the same name in different class loaders will share exemptions.
+    private static final ConcurrentHashMap<String, Exemptions> exemptionsOfOtherClasses = new ConcurrentHashMap<>();
+
+    boolean isEmpty() {
+        return immutableFields.isEmpty() && confinedFields.isEmpty() && finalFields.isEmpty();
+    }
+
+    boolean isImmutable(String fieldName) {
+        return immutableFields.contains(fieldName);
+    }
+
+    boolean isConfined(String fieldName) {
+        return confinedFields.contains(fieldName);
+    }
+
+    boolean isFinal(String fieldName) {
+        return finalFields.contains(fieldName);
+    }
+
+    /**
+     * Whether a field instruction is not checked: it accesses an immutable field, or reads a final field outside of the
+     * initializer which writes it. Final fields can only be written by the initializers of their class, so reads outside of
+     * those can not conflict with a write. No permission is granted for these reads, see InitializerTransformer.
+     * <p>
+     * Instance fields are written by the constructors of the declaring class, static fields by its class initializer. A
+     * constructor only initializes the fields of this object, so it reads the final fields of other objects of its class
+     * (e.g. in a copy constructor) after their initialization.
+     * @param ownField whether the owning class of the field is the class that contains the instruction
+     * @param receiverIsThis whether the object of which a field is read is this, if the method is a constructor, see {@link ThisReceiver}
+     */
+    boolean isUnchecked(FieldInstruction instruction, boolean ownField, MethodModel method, boolean receiverIsThis) {
+        String fieldName = instruction.name().stringValue();
+        if (isImmutable(fieldName)) return true;
+        if (!isFinal(fieldName)) return false;
+        return switch (instruction.opcode()) {
+            case GETFIELD -> !(ownField && method.methodName().equalsString(ConstantDescs.INIT_NAME) && receiverIsThis);
+            case GETSTATIC -> !(ownField && method.methodName().equalsString(ConstantDescs.CLASS_INIT_NAME));
+            default -> false;
+        };
+    }
+
+    /**
+     * Tracks whether the value on top of the operand stack was loaded from local variable 0, which holds this in an instance
+     * method (javac never stores to it). Only the instruction that pushed the value is looked at, so e.g. the receiver of
+     * this.next.value is not this. The site markers of {@link SiteProfilingTransformer} between the load and the access
+     * are skipped.
+     */
+    static final class ThisReceiver {
+        private boolean onTop;
+
+        boolean isOnTop() {
+            return onTop;
+        }
+
+        void accept(CodeElement codeElement) {
+            if (!(codeElement instanceof Instruction instruction) || AccessSites.siteIdOf(codeElement).isPresent()
+                    || (instruction instanceof InvokeInstruction invoke && invoke.owner().matches(RuntimeApiHelper.SITE_PROFILER_CLASSDESC))) {
+                return;
+            }
+            onTop = instruction instanceof LoadInstruction load && load.slot() == 0 && load.typeKind() == TypeKind.REFERENCE;
+        }
+    }
+
+    /** Read the exemptions of the fields declared by a class from its annotations and access flags. */
+    static Exemptions of(ClassModel classModel) {
+        Set<ClassDesc> classAnnotations = annotations(classModel);
+        boolean immutableClass = classAnnotations.contains(IMMUTABLE_CLASSDESC);
+        boolean confinedClass = classAnnotations.contains(THREAD_CONFINED_CLASSDESC);
+
+        Set<String> immutableFields = new HashSet<>();
+        Set<String> confinedFields = new HashSet<>();
+        Set<String> finalFields = new HashSet<>();
+        for (FieldModel field : classModel.fields()) {
+            String fieldName = field.fieldName().stringValue();
+            boolean isStatic = field.flags().has(AccessFlag.STATIC);
+            Set<ClassDesc> fieldAnnotations = annotations(field);
+            if (fieldAnnotations.contains(IMMUTABLE_CLASSDESC) || (immutableClass && !isStatic)) {
+                immutableFields.add(fieldName);
+            } else if (!isStatic && (confinedClass || fieldAnnotations.contains(THREAD_CONFINED_CLASSDESC))) {
+                confinedFields.add(fieldName);
+            }
+            if (field.flags().has(AccessFlag.FINAL)) {
+                finalFields.add(fieldName);
+            }
+        }
+
+        if (immutableFields.isEmpty() && confinedFields.isEmpty() && finalFields.isEmpty()) return NONE;
+        return new Exemptions(Set.copyOf(immutableFields), Set.copyOf(confinedFields), Set.copyOf(finalFields));
+    }
+
+    /**
+     * Read the exemptions of another class, which may or may not be instrumented, from its class file.
+     * Includes the exemptions of the fields inherited from its superclasses, because field references may name a subclass
+     * of the class that actually declares the field.
+     * @param loader the class loader of the class that refers to the other class
+     * @param className the internal name of the other class
+     */
+    static Exemptions of(ClassLoader loader, String className) {
+        if (!InstrumentedClasses.contains(className)) return NONE;
+
+        // not computeIfAbsent, because the exemptions of the superclasses are cached recursively.
+        Exemptions exemptions = exemptionsOfOtherClasses.get(className);
+        if (exemptions == null) {
+            exemptions = ClassFiles.parse(loader, className).map(classModel -> withInherited(loader, classModel)).orElse(NONE);
+            exemptionsOfOtherClasses.putIfAbsent(className, exemptions);
+        }
+        return exemptions;
+    }
+
+    /** The exemptions of the fields declared by a class, and of the fields it inherits from its superclasses. */
+    static Exemptions withInherited(ClassLoader loader, ClassModel classModel) {
+        Exemptions declared = of(classModel);
+        Exemptions inherited = classModel.superclass().map(superclass -> of(loader, superclass.asInternalName())).orElse(NONE);
+        if (inherited.isEmpty()) return declared;
+
+        // fields declared by the class hide the fields of its superclasses.
+        Set<String> declaredFields = new HashSet<>();
+        classModel.fields().forEach(field -> declaredFields.add(field.fieldName().stringValue()));
+        Set<String> immutableFields = new HashSet<>(declared.immutableFields);
+        Set<String> confinedFields = new HashSet<>(declared.confinedFields);
+        Set<String> finalFields = new HashSet<>(declared.finalFields);
+        inherited.immutableFields.stream().filter(fieldName -> !declaredFields.contains(fieldName)).forEach(immutableFields::add);
+        inherited.confinedFields.stream().filter(fieldName -> !declaredFields.contains(fieldName)).forEach(confinedFields::add);
+        inherited.finalFields.stream().filter(fieldName -> !declaredFields.contains(fieldName)).forEach(finalFields::add);
+        return new Exemptions(Set.copyOf(immutableFields), Set.copyOf(confinedFields), Set.copyOf(finalFields));
+    }
+
+    private static Set<ClassDesc> annotations(AttributedElement element) {
+        Set<ClassDesc> annotations = new HashSet<>();
+        element.findAttribute(Attributes.runtimeVisibleAnnotations()).map(RuntimeVisibleAnnotationsAttribute::annotations)
+                .ifPresent(visible -> visible.forEach(annotation -> annotations.add(annotation.classSymbol())));
+        element.findAttribute(Attributes.runtimeInvisibleAnnotations()).map(RuntimeInvisibleAnnotationsAttribute::annotations)
+                .ifPresent(invisible -> invisible.forEach(annotation -> annotations.add(annotation.classSymbol())));
+        return annotations;
+    }
+}
@@ -5,6 +5,12 @@ import java.lang.classfile.ClassModel;
 import java.lang.classfile.ClassTransform;
 import java.lang.classfile.CodeBuilder;
 import java.lang.classfile.CodeElement;
+import java.lang.classfile.CodeModel;
+import java.lang.classfile.CodeTransform;
+import java.lang.classfile.Label;
+import java.lang.classfile.MethodBuilder;
+import java.lang.classfile.MethodElement;
+import java.lang.classfile.MethodModel;
 import java.lang.classfile.Opcode;
 import java.lang.classfile.TypeKind;
 import java.lang.classfile.constantpool.ClassEntry;
@@ -19,10 +25,28 @@ import java.lang.constant.MethodTypeDesc;
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.security.ProtectionDomain;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import static memorymonitoring.agent.RuntimeApiHelper.*;
 
 final class FieldUsageTransformer implements ClassFileTransformer {
 
+    private static final Logger LOGGER = Logger.getLogger(FieldUsageTransformer.class.getName());
+
+    // Whether accesses to fields with shadow permissions are checked inline, and only call into Permissions if that check fails.
+    private final boolean checkShadowPermissions;
+    private final MonitoredAccesses monitored;
+    private final Deinstrumentation deinstrumentation;
+
+    FieldUsageTransformer(boolean checkShadowPermissions, MonitoredAccesses monitored, Deinstrumentation deinstrumentation) {
+        this.checkShadowPermissions = checkShadowPermissions;
+        this.monitored = monitored;
+        this.deinstrumentation = deinstrumentation;
+    }
+
     @Override
     public byte[] transform(Module           module,
                             ClassLoader      loader,
@@ -32,171 +56,229 @@ final class FieldUsageTransformer implements ClassFileTransformer {
                             byte[]           classfileBuffer)
             throws IllegalClassFormatException {
 
-        // TODO make configurable (via commandline arg?)
-        if (!className.startsWith("memorymonitoring/example")) {
+        if (!InstrumentedClasses.contains(className)) {
             return null;
         }
 
         ClassFile classFile = ClassFile.of();
         ClassModel classModel = classFile.parse(classfileBuffer);
+        Optional<List<String>> thisShadowLayout = checkShadowPermissions ? ShadowFields.layout(classModel) : Optional.empty();
+        Exemptions thisExemptions = Exemptions.withInherited(loader, classModel);
+        Exemptions declaredExemptions = Exemptions.of(classModel);
+        if (!declaredExemptions.isEmpty() && LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine(String.format("Exempted fields of %s: immutable %s, thread-confined %s, final %s",
+                    classModel.thisClass().asSymbol().displayName(), declaredExemptions.immutableFields(), declaredExemptions.confinedFields(),
+                    declaredExemptions.finalFields()));
+        }
 
-        return classFile.transformClass(classModel, ClassTransform.transformingMethodBodies(
-                (CodeBuilder codeBuilder, CodeElement codeElement) -> {
-            if (codeElement instanceof FieldInstruction fieldInstruction) {
-                FieldRefEntry fieldRefEntry = fieldInstruction.field();
-                ClassEntry owningClass = fieldRefEntry.owner();
-                Utf8Entry fieldName = fieldRefEntry.name();
-                ClassDesc fieldType = fieldRefEntry.typeSymbol();
-
-                switch (fieldInstruction.opcode()) {
-                    case Opcode.GETFIELD:
-                        // getfield: [..., objectRef] -> [..., fieldValue]
-
-                        // Operand stack:
-                        // [..., objectRef]
-                        codeBuilder.dup();
-                        // [..., objectRef, objectRef]
-                        codeBuilder.ldc(owningClass.asSymbol());
-                        // [..., objectRef, objectRef, declaringClass]
-                        codeBuilder.ldc(fieldName.stringValue());
-                        // [..., objectRef, objectRef, declaringClass, fieldName]
-                        readAccess(codeBuilder);
-                        // [..., objectRef, objectRef, declaringClass, fieldName, Access.READ]
-                        invokeLogFieldAccess(codeBuilder);
-                        // [..., objectRef]
-                        codeBuilder.with(codeElement);
-                        // [..., fieldValue]
-                        break;
-                    case Opcode.PUTFIELD:
-                        // TODO inside construtor bodies before the super constructor call, should these putfield instructions be instrumented?
-                        // TODO probably not, because monitoring will always result in a violation --> test this hypothesis.
-                        // TODO consider alternative: have some way where we can have a wildcard permission for a class: write access for all instance fields of a newly created instance (after NEW instruction).
-
-                        // putfield: [..., objectRef, newValue] -> [...]
-
-                        // Operand stack
-                        // [..., objectRef, newValue]
-
-                        int localVariableTableSlot = -1;
-                        if (isPrimitiveLong(fieldType)) {
-                            localVariableTableSlot = codeBuilder.allocateLocal(TypeKind.LONG);
-                            codeBuilder.lstore(localVariableTableSlot);
-                        } else if (isPrimitiveDouble(fieldType)) {
-                            localVariableTableSlot = codeBuilder.allocateLocal(TypeKind.DOUBLE);
-                            codeBuilder.dstore(localVariableTableSlot);
-                        } else {
-                            codeBuilder.swap();
-                        }
-                        // [..., newValue, objectRef]
-                        codeBuilder.dup();
-                        // [..., newValue, objectRef, objectRef]
-                        codeBuilder.ldc(owningClass.asSymbol());
-                        // [..., newValue, objectRef, objectRef, declaringClass]
-                        codeBuilder.ldc(fieldName.stringValue());
-                        // [..., newValue, objectRef, objectRef, declaringClass, fieldName]
-                        writeAccess(codeBuilder);
-                        // [..., newValue, objectRef, objectRef, declaringClass, fieldName, Access.WRITE]
-                        invokeLogFieldAccess(codeBuilder);
-                        // [..., newValue, objectRef]
-                        if (isPrimitiveLong(fieldType)) {
-                            codeBuilder.lload(localVariableTableSlot);
-                        } else if (isPrimitiveDouble(fieldType)) {
-                            codeBuilder.dload(localVariableTableSlot);
-                        } else {
-                            codeBuilder.swap();
-                        }
-                        // [..., objectRef, newValue]
-                        codeBuilder.with(codeElement);
-                        // [...]
-                        break;
-                    case Opcode.GETSTATIC:
-                        // getstatic: [...] -> [..., fieldValue]
-
-                        // Stack:
-                        // [...]
-                        codeBuilder.ldc(owningClass.asSymbol());
-                        // [..., Owner.class]
-                        codeBuilder.ldc(owningClass.asSymbol());
-                        // [..., Owner.class, declaringClass]
-                        codeBuilder.ldc(fieldName.stringValue());
-                        // [..., Owner.class, declaringClass, fieldName]
-                        readAccess(codeBuilder);
-                        // [..., Owner.class, declaringClass, fieldName, Access.READ]
-                        invokeLogFieldAccess(codeBuilder);
-                        // [...]
+        // Instruments the body of a method, which determines whether reads of final fields are checked.
+        Function<MethodModel, CodeTransform> instrumentFieldAccesses = method -> {
+            Exemptions.ThisReceiver thisReceiver = new Exemptions.ThisReceiver();
+            return (CodeBuilder codeBuilder, CodeElement codeElement) -> {
+                boolean receiverIsThis = thisReceiver.isOnTop();
+                thisReceiver.accept(codeElement);
+                if (codeElement instanceof FieldInstruction fieldInstruction) {
+                    FieldRefEntry fieldRefEntry = fieldInstruction.field();
+                    ClassEntry owningClass = fieldRefEntry.owner();
+                    Utf8Entry fieldName = fieldRefEntry.name();
+                    ClassDesc fieldType = fieldRefEntry.typeSymbol();
+
+                    if (!monitored.fieldInstruction(fieldInstruction.opcode())) {
+                        // not monitored, see MonitoredAccesses.
                         codeBuilder.with(codeElement);
-                        // [..., fieldValue]
-                        break;
-                    case Opcode.PUTSTATIC:
-                        // putstatic: [..., newValue] -> [...]
-
-                        // Stack:
-                        // [..., newValue]
-                        codeBuilder.ldc(owningClass.asSymbol());
-                        // [..., newValue, Owner.class]
-                        codeBuilder.ldc(owningClass.asSymbol());
-                        // [..., newValue, Owner.class, declaringClass]
-                        codeBuilder.ldc(fieldName.stringValue());
-                        // [..., newValue, Owner.class, declaringClass, fieldName]
-                        writeAccess(codeBuilder);
-                        // [..., newValue, Owner.class, declaringClass, fieldName, Access.WRITE]
-                        invokeLogFieldAccess(codeBuilder);
-                        // [..., newValue]
+                        return;
+                    }
+                    String owningClassName = owningClass.asInternalName();
+                    Exemptions exemptions = owningClassName.equals(className) ? thisExemptions : Exemptions.of(loader, owningClassName);
+                    if (exemptions.isUnchecked(fieldInstruction, owningClassName.equals(className), method, receiverIsThis)) {
+                        // not monitored: an immutable field, or a final field read after its initialization, see Exemptions.
                         codeBuilder.with(codeElement);
-                        // [...]
-                        break;
-                }
-            }
+                        return;
+                    }
+
+                    // Index of the field in the shadow permissions of the owning class, or -1 if the field has none.
+                    int shadowIndex = -1;
+                    if (checkShadowPermissions) {
+                        Optional<List<String>> shadowLayout = owningClassName.equals(className)
+                                ? thisShadowLayout
+                                : ShadowFields.layout(loader, owningClassName);
+                        // fields inherited from a superclass are not looked up, they are checked by Permissions.
+                        shadowIndex = shadowLayout.map(layout -> layout.indexOf(fieldName.stringValue())).orElse(-1);
+                    }
+                    // For thread-confined fields, only the ownership of the object is checked inline.
+                    boolean confined = exemptions.isConfined(fieldName.stringValue());
+                    Label checked = codeBuilder.newLabel();
+
+                    switch (fieldInstruction.opcode()) {
+                        case Opcode.GETFIELD:
+                            // getfield: [..., objectRef] -> [..., fieldValue]
+
+                            // Operand stack:
+                            // [..., objectRef]
+                            if (shadowIndex >= 0) {
+                                genCheckShadowPermissions(codeBuilder, owningClass.asSymbol(), shadowIndex, confined, Opcode.GETFIELD, checked);
+                            }
+                            // [..., objectRef]
+                            codeBuilder.dup();
+                            // [..., objectRef, objectRef]
+                            codeBuilder.ldc(owningClass.asSymbol());
+                            // [..., objectRef, objectRef, declaringClass]
+                            codeBuilder.ldc(fieldName.stringValue());
+                            // [..., objectRef, objectRef, declaringClass, fieldName]
+                            readAccess(codeBuilder);
+                            // [..., objectRef, objectRef, declaringClass, fieldName, Access.READ]
+                            invokeLogFieldAccess(codeBuilder);
+                            // [..., objectRef]
+                            codeBuilder.labelBinding(checked);
+                            codeBuilder.with(codeElement);
+                            // [..., fieldValue]
+                            break;
+                        case Opcode.PUTFIELD:
+                            // TODO inside construtor bodies before the super constructor call, should these putfield instructions be instrumented?
+                            // TODO probably not, because monitoring will always result in a violation --> test this hypothesis.
+                            // TODO consider alternative: have some way where we can have a wildcard permission for a class: write access for all instance fields of a newly created instance (after NEW instruction).
+
+                            // putfield: [..., objectRef, newValue] -> [...]
 
-            else if (codeElement instanceof InvokeInstruction invokeInstruction
-                    && invokeInstruction.owner().matches(REFLECT_FIELD_CLASSDESC)) {
-
-                if (invokeInstruction.name().equalsString("get") && invokeInstruction.typeSymbol().equals(MTD_FIELD_GET)) {
-                    genMonitorFieldRead(codeBuilder);
-                } else if (invokeInstruction.name().equalsString("getBoolean") && invokeInstruction.typeSymbol().equals(MTD_FIELD_GET_BOOLEAN)) {
-                    genMonitorFieldRead(codeBuilder);
-                } else if (invokeInstruction.name().equalsString("getByte") && invokeInstruction.typeSymbol().equals(MTD_FIELD_GET_BYTE)) {
-                    genMonitorFieldRead(codeBuilder);
-                } else if (invokeInstruction.name().equalsString("getChar") && invokeInstruction.typeSymbol().equals(MTD_FIELD_GET_CHAR)) {
-                    genMonitorFieldRead(codeBuilder);
-                } else if (invokeInstruction.name().equalsString("getDouble") && invokeInstruction.typeSymbol().equals(MTD_FIELD_GET_DOUBLE)) {
-                    genMonitorFieldRead(codeBuilder);
-                } else if (invokeInstruction.name().equalsString("getFloat") && invokeInstruction.typeSymbol().equals(MTD_FIELD_GET_FLOAT)) {
-                    genMonitorFieldRead(codeBuilder);
-                } else if (invokeInstruction.name().equalsString("getInt") && invokeInstruction.typeSymbol().equals(MTD_FIELD_GET_INT)) {
-                    genMonitorFieldRead(codeBuilder);
-                } else if (invokeInstruction.name().equalsString("getLong") && invokeInstruction.typeSymbol().equals(MTD_FIELD_GET_LONG)) {
-                    genMonitorFieldRead(codeBuilder);
-                } else if (invokeInstruction.name().equalsString("getShort") && invokeInstruction.typeSymbol().equals(MTD_FIELD_GET_SHORT)) {
-                    genMonitorFieldRead(codeBuilder);
+                            // Operand stack
+                            // [..., objectRef, newValue]
+
+                            int localVariableTableSlot = -1;
+                            if (isPrimitiveLong(fieldType)) {
+                                localVariableTableSlot = codeBuilder.allocateLocal(TypeKind.LONG);
+                                codeBuilder.lstore(localVariableTableSlot);
+                            } else if (isPrimitiveDouble(fieldType)) {
+                                localVariableTableSlot = codeBuilder.allocateLocal(TypeKind.DOUBLE);
+                                codeBuilder.dstore(localVariableTableSlot);
+                            } else {
+                                codeBuilder.swap();
+                            }
+                            // [..., newValue, objectRef]
+                            if (shadowIndex >= 0) {
+                                genCheckShadowPermissions(codeBuilder, owningClass.asSymbol(), shadowIndex, confined, Opcode.PUTFIELD, checked);
+                            }
+                            // [..., newValue, objectRef]
+                            codeBuilder.dup();
+                            // [..., newValue, objectRef, objectRef]
+                            codeBuilder.ldc(owningClass.asSymbol());
+                            // [..., newValue, objectRef, objectRef, declaringClass]
+                            codeBuilder.ldc(fieldName.stringValue());
+                            // [..., newValue, objectRef, objectRef, declaringClass, fieldName]
+                            writeAccess(codeBuilder);
+                            // [..., newValue, objectRef, objectRef, declaringClass, fieldName, Access.WRITE]
+                            invokeLogFieldAccess(codeBuilder);
+                            // [..., newValue, objectRef]
+                            codeBuilder.labelBinding(checked);
+                            if (isPrimitiveLong(fieldType)) {
+                                codeBuilder.lload(localVariableTableSlot);
+                            } else if (isPrimitiveDouble(fieldType)) {
+                                codeBuilder.dload(localVariableTableSlot);
+                            } else {
+                                codeBuilder.swap();
+                            }
+                            // [..., objectRef, newValue]
+                            codeBuilder.with(codeElement);
+                            // [...]
+                            break;
+                        case Opcode.GETSTATIC:
+                            // getstatic: [...] -> [..., fieldValue]
+
+                            // Stack:
+                            // [...]
+                            codeBuilder.ldc(owningClass.asSymbol());
+                            // [..., Owner.class]
+                            codeBuilder.ldc(owningClass.asSymbol());
+                            // [..., Owner.class, declaringClass]
+                            codeBuilder.ldc(fieldName.stringValue());
+                            // [..., Owner.class, declaringClass, fieldName]
+                            readAccess(codeBuilder);
+                            // [..., Owner.class, declaringClass, fieldName, Access.READ]
+                            invokeLogFieldAccess(codeBuilder);
+                            // [...]
+                            codeBuilder.with(codeElement);
+                            // [..., fieldValue]
+                            break;
+                        case Opcode.PUTSTATIC:
+                            // putstatic: [..., newValue] -> [...]
+
+                            // Stack:
+                            // [..., newValue]
+                            codeBuilder.ldc(owningClass.asSymbol());
+                            // [..., newValue, Owner.class]
+                            codeBuilder.ldc(owningClass.asSymbol());
+                            // [..., newValue, Owner.class, declaringClass]
+                            codeBuilder.ldc(fieldName.stringValue());
+                            // [..., newValue, Owner.class, declaringClass, fieldName]
+                            writeAccess(codeBuilder);
+                            // [..., newValue, Owner.class, declaringClass, fieldName, Access.WRITE]
+                            invokeLogFieldAccess(codeBuilder);
+                            // [..., newValue]
+                            codeBuilder.with(codeElement);
+                            // [...]
+                            break;
+                    }
                 }
 
-                else if (invokeInstruction.name().equalsString("set") && invokeInstruction.typeSymbol().equals(MTD_FIELD_SET)) {
-                    genMonitorFieldWrite(codeBuilder, TypeKind.REFERENCE);
-                } else if (invokeInstruction.name().equalsString("setBoolean") && invokeInstruction.typeSymbol().equals(MTD_FIELD_SET_BOOLEAN)) {
-                    genMonitorFieldWrite(codeBuilder, TypeKind.BOOLEAN);
-                } else if (invokeInstruction.name().equalsString("setByte") && invokeInstruction.typeSymbol().equals(MTD_FIELD_SET_BYTE)) {
-                    genMonitorFieldWrite(codeBuilder, TypeKind.BYTE);
-                } else if (invokeInstruction.name().equalsString("setChar") && invokeInstruction.typeSymbol().equals(MTD_FIELD_SET_CHAR)) {
-                    genMonitorFieldWrite(codeBuilder, TypeKind.CHAR);
-                } else if (invokeInstruction.name().equalsString("setDouble") && invokeInstruction.typeSymbol().equals(MTD_FIELD_SET_DOUBLE)) {
-                    genMonitorFieldWrite(codeBuilder, TypeKind.DOUBLE);
-                } else if (invokeInstruction.name().equalsString("setFloat") && invokeInstruction.typeSymbol().equals(MTD_FIELD_SET_FLOAT)) {
-                    genMonitorFieldWrite(codeBuilder, TypeKind.FLOAT);
-                } else if (invokeInstruction.name().equalsString("setInt") && invokeInstruction.typeSymbol().equals(MTD_FIELD_SET_INT)) {
-                    genMonitorFieldWrite(codeBuilder, TypeKind.INT);
-                } else if (invokeInstruction.name().equalsString("setLong") && invokeInstruction.typeSymbol().equals(MTD_FIELD_SET_LONG)) {
-                    genMonitorFieldWrite(codeBuilder, TypeKind.LONG);
-                } else if (invokeInstruction.name().equalsString("setShort") && invokeInstruction.typeSymbol().equals(MTD_FIELD_SET_SHORT)) {
-                    genMonitorFieldWrite(codeBuilder, TypeKind.SHORT);
+                else if (codeElement instanceof InvokeInstruction invokeInstruction
+                        && invokeInstruction.owner().matches(REFLECT_FIELD_CLASSDESC)) {
+
+                    if (!monitored.reflectiveFieldAccess(invokeInstruction.name().stringValue().startsWith("set"))) {
+                        // not monitored, see MonitoredAccesses.
+                    } else if (invokeInstruction.name().equalsString("get") && invokeInstruction.typeSymbol().equals(MTD_FIELD_GET)) {
+                        genMonitorFieldRead(codeBuilder);
+                    } else if (invokeInstruction.name().equalsString("getBoolean") && invokeInstruction.typeSymbol().equals(MTD_FIELD_GET_BOOLEAN)) {
+                        genMonitorFieldRead(codeBuilder);
+                    } else if (invokeInstruction.name().equalsString("getByte") && invokeInstruction.typeSymbol().equals(MTD_FIELD_GET_BYTE)) {
+                        genMonitorFieldRead(codeBuilder);
+                    } else if (invokeInstruction.name().equalsString("getChar") && invokeInstruction.typeSymbol().equals(MTD_FIELD_GET_CHAR)) {
+                        genMonitorFieldRead(codeBuilder);
+                    } else if (invokeInstruction.name().equalsString("getDouble") && invokeInstruction.typeSymbol().equals(MTD_FIELD_GET_DOUBLE)) {
+                        genMonitorFieldRead(codeBuilder);
+                    } else if (invokeInstruction.name().equalsString("getFloat") && invokeInstruction.typeSymbol().equals(MTD_FIELD_GET_FLOAT)) {
+                        genMonitorFieldRead(codeBuilder);
+                    } else if (invokeInstruction.name().equalsString("getInt") && invokeInstruction.typeSymbol().equals(MTD_FIELD_GET_INT)) {
+                        genMonitorFieldRead(codeBuilder);
+                    } else if (invokeInstruction.name().equalsString("getLong") && invokeInstruction.typeSymbol().equals(MTD_FIELD_GET_LONG)) {
+                        genMonitorFieldRead(codeBuilder);
+                    } else if (invokeInstruction.name().equalsString("getShort") && invokeInstruction.typeSymbol().equals(MTD_FIELD_GET_SHORT)) {
+                        genMonitorFieldRead(codeBuilder);
+                    }
+
+                    else if (invokeInstruction.name().equalsString("set") && invokeInstruction.typeSymbol().equals(MTD_FIELD_SET)) {
+                        genMonitorFieldWrite(codeBuilder, TypeKind.REFERENCE);
+                    } else if (invokeInstruction.name().equalsString("setBoolean") && invokeInstruction.typeSymbol().equals(MTD_FIELD_SET_BOOLEAN)) {
+                        genMonitorFieldWrite(codeBuilder, TypeKind.BOOLEAN);
+                    } else if (invokeInstruction.name().equalsString("setByte") && invokeInstruction.typeSymbol().equals(MTD_FIELD_SET_BYTE)) {
+                        genMonitorFieldWrite(codeBuilder, TypeKind.BYTE);
+                    } else if (invokeInstruction.name().equalsString("setChar") && invokeInstruction.typeSymbol().equals(MTD_FIELD_SET_CHAR)) {
+                        genMonitorFieldWrite(codeBuilder, TypeKind.CHAR);
+                    } else if (invokeInstruction.name().equalsString("setDouble") && invokeInstruction.typeSymbol().equals(MTD_FIELD_SET_DOUBLE)) {
+                        genMonitorFieldWrite(codeBuilder, TypeKind.DOUBLE);
+                    } else if (invokeInstruction.name().equalsString("setFloat") && invokeInstruction.typeSymbol().equals(MTD_FIELD_SET_FLOAT)) {
+                        genMonitorFieldWrite(codeBuilder, TypeKind.FLOAT);
+                    } else if (invokeInstruction.name().equalsString("setInt") && invokeInstruction.typeSymbol().equals(MTD_FIELD_SET_INT)) {
+                        genMonitorFieldWrite(codeBuilder, TypeKind.INT);
+                    } else if (invokeInstruction.name().equalsString("setLong") && invokeInstruction.typeSymbol().equals(MTD_FIELD_SET_LONG)) {
+                        genMonitorFieldWrite(codeBuilder, TypeKind.LONG);
+                    } else if (invokeInstruction.name().equalsString("setShort") && invokeInstruction.typeSymbol().equals(MTD_FIELD_SET_SHORT)) {
+                        genMonitorFieldWrite(codeBuilder, TypeKind.SHORT);
+                    }
+
+                    codeBuilder.with(codeElement);
                 }
 
-                codeBuilder.with(codeElement);
-            }
+                else {
+                    // proceed with normal code
+                    codeBuilder.with(codeElement);
+                }
+            };
+        };
 
-            else {
-                // proceed with normal code
-                codeBuilder.with(codeElement);
+        return classFile.transformClass(classModel, ClassTransform.transformingMethods((MethodBuilder methodBuilder, MethodElement methodElement) -> {
+            if (methodElement instanceof CodeModel codeModel) {
+                methodBuilder.transformCode(codeModel, deinstrumentation.skippingUncheckedSites(instrumentFieldAccesses.apply(codeModel.parent().orElseThrow())));
+            } else {
+                methodBuilder.with(methodElement);
             }
         }));
     }
@@ -239,6 +321,37 @@ final class FieldUsageTransformer implements ClassFileTransformer {
         return MethodTypeDesc.of(CD_void, CD_Object, paramType);
     }
 
+    /**
+     * Jumps to the checked label if the current thread owns the object, and has the access to the field itself (or regardless
+     * of its access, for thread-confined fields).
+     * Otherwise, falls through to the call into Permissions, which also considers other threads and delegations.
+     */
+    private static void genCheckShadowPermissions(CodeBuilder codeBuilder, ClassDesc owningClass, int shadowIndex, boolean confined, Opcode opcode, Label checked) {
+        // Operand stack:
+        // [..., objectRef]
+        codeBuilder.dup();
+        // [..., objectRef, objectRef]
+        codeBuilder.getfield(owningClass, ShadowFields.FIELD_NAME, SHADOW_PERMISSIONS_CLASSDESC);
+        // [..., objectRef, shadowPermissions]
+        if (confined) {
+            invokeIsOwner(codeBuilder);
+            // [..., objectRef, owned]
+        } else {
+            codeBuilder.loadConstant(shadowIndex);
+            // [..., objectRef, shadowPermissions, shadowIndex]
+            if (opcode == Opcode.GETFIELD) {
+                readAccess(codeBuilder);
+            } else {
+                writeAccess(codeBuilder);
+            }
+            // [..., objectRef, shadowPermissions, shadowIndex, access]
+            invokeOwnerCovers(codeBuilder);
+            // [..., objectRef, covered]
+        }
+        codeBuilder.ifne(checked);
+        // [..., objectRef]
+    }
+
     private static void genMonitorFieldRead(CodeBuilder codeBuilder) {
         // java.lang.reflect.Field#getX : [..., java.lang.reflect.Field, Object] -> [..., Object]
 
@@ -0,0 +1,167 @@
+package memorymonitoring.agent;
+
+import java.lang.classfile.ClassFile;
+import java.lang.classfile.ClassModel;
+import java.lang.classfile.ClassTransform;
+import java.lang.classfile.CodeBuilder;
+import java.lang.classfile.CodeElement;
+import java.lang.classfile.Opcode;
+import java.lang.classfile.TypeKind;
+import java.lang.classfile.instruction.InvokeInstruction;
+import java.lang.constant.ClassDesc;
+import java.lang.constant.ConstantDescs;
+import java.lang.constant.MethodTypeDesc;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.lang.invoke.VarHandle;
+import java.security.ProtectionDomain;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import static memorymonitoring.agent.RuntimeApiHelper.*;
+
+/**
+ * Monitors the accesses to fields and arrays through VarHandles and MethodHandles.
+ * <ul>
+ *     <li>The lookups of field VarHandles, array element VarHandles, getters and setters are redirected to
+ *     MonitoredHandles, which binds the handles to the field they access.</li>
+ *     <li>The invocations of the access mode methods of VarHandles (get, set, compareAndSet, ...) are checked using
+ *     MonitoredHandles#logVarHandleAccess.</li>
+ * </ul>
+ * Whether a VarHandle accesses an instance field, a static field or an array is only known at run time, so all
+ * invocations of the access mode methods are checked, except for the reads if reads are not monitored. The runtime leaves
+ * out the accesses to the kinds of memory that are not monitored, see {@link MonitoredAccesses}.
+ */
+final class HandleUsageTransformer implements ClassFileTransformer {
+
+    private final MonitoredAccesses monitored;
+    private final Deinstrumentation deinstrumentation;
+
+    HandleUsageTransformer(MonitoredAccesses monitored, Deinstrumentation deinstrumentation) {
+        this.monitored = monitored;
+        this.deinstrumentation = deinstrumentation;
+    }
+
+    @Override
+    public byte[] transform(Module           module,
+                            ClassLoader      loader,
+                            String           className,
+                            Class<?>         classBeingRedefined,
+                            ProtectionDomain protectionDomain,
+                            byte[]           classfileBuffer)
+            throws IllegalClassFormatException {
+
+        if (!InstrumentedClasses.contains(className)) {
+            return null;
+        }
+
+        ClassFile classFile = ClassFile.of();
+        ClassModel classModel = classFile.parse(classfileBuffer);
+
+        return classFile.transformClass(classModel, ClassTransform.transformingMethodBodies(deinstrumentation.skippingUncheckedSites(
+                (CodeBuilder codeBuilder, CodeElement codeElement) -> {
+                    // Handles to memory that is not monitored are not bound, so MonitoredHandles does not check their accesses.
+                    if (codeElement instanceof InvokeInstruction invokeInstruction && isFieldHandleLookup(invokeInstruction) && monitored.fields()) {
+                        // Lookup#findX: [..., lookup, Class, String, Class] -> [..., handle]
+                        // MonitoredHandles#findX takes the lookup as its first argument, so the operand stack stays the same.
+                        invokeMonitoredHandlesLookup(codeBuilder, invokeInstruction.name().stringValue(), invokeInstruction.typeSymbol().returnType());
+                    }
+
+                    else if (codeElement instanceof InvokeInstruction invokeInstruction && isArrayElementVarHandleLookup(invokeInstruction) && monitored.arrays()) {
+                        // MethodHandles#arrayElementVarHandle: [..., Class] -> [..., VarHandle]
+                        invokeMonitoredArrayElementVarHandle(codeBuilder);
+                    }
+
+                    else if (codeElement instanceof InvokeInstruction invokeInstruction && accessMode(invokeInstruction).isPresent()
+                            && (monitored.reads() || !isRead(accessMode(invokeInstruction).get()))) {
+                        genLogVarHandleAccess(codeBuilder, invokeInstruction.typeSymbol(), isRead(accessMode(invokeInstruction).get()));
+                        codeBuilder.with(codeElement);
+                    }
+
+                    else {
+                        // proceed with normal code
+                        codeBuilder.with(codeElement);
+                    }
+                })));
+    }
+
+    private static void genLogVarHandleAccess(CodeBuilder codeBuilder, MethodTypeDesc accessModeType, boolean read) {
+        // VarHandle#accessMode: [..., varHandle, coordinate1, ..., coordinateN, value1, ..., valueM] -> [..., result]
+        // The kind of the handle is only known at run time, so the first argument is passed if it can be a receiver or an array,
+        // and the second if it can be an index.
+
+        // Operand stack:
+        // [..., varHandle, arg1, ..., argN]
+        List<ClassDesc> parameters = accessModeType.parameterList();
+        int[] slots = new int[parameters.size()];
+        for (int i = parameters.size() - 1; i >= 0; i--) {
+            TypeKind typeKind = TypeKind.from(parameters.get(i));
+            slots[i] = codeBuilder.allocateLocal(typeKind);
+            codeBuilder.storeLocal(typeKind, slots[i]);
+        }
+        // [..., varHandle]
+        codeBuilder.dup();
+        // [..., varHandle, varHandle]
+        if (!parameters.isEmpty() && TypeKind.from(parameters.get(0)) == TypeKind.REFERENCE) {
+            codeBuilder.aload(slots[0]);
+        } else {
+            codeBuilder.aconst_null();
+        }
+        // [..., varHandle, varHandle, coordinate]
+        if (parameters.size() > 1 && TypeKind.from(parameters.get(1)) == TypeKind.INT) {
+            codeBuilder.iload(slots[1]);
+        } else {
+            codeBuilder.iconst_0();
+        }
+        // [..., varHandle, varHandle, coordinate, index]
+        if (read) {
+            readAccess(codeBuilder);
+        } else {
+            writeAccess(codeBuilder);
+        }
+        // [..., varHandle, varHandle, coordinate, index, access]
+        invokeLogVarHandleAccess(codeBuilder);
+        // [..., varHandle]
+        for (int i = 0; i < parameters.size(); i++) {
+            codeBuilder.loadLocal(TypeKind.from(parameters.get(i)), slots[i]);
+        }
+        // [..., varHandle, arg1, ..., argN]
+    }
+
+    private static boolean isFieldHandleLookup(InvokeInstruction invokeInstruction) {
+        return invokeInstruction.opcode() == Opcode.INVOKEVIRTUAL
+                && invokeInstruction.owner().matches(ConstantDescs.CD_MethodHandles_Lookup)
+                && FIELD_HANDLE_LOOKUPS.contains(invokeInstruction.name().stringValue())
+                && invokeInstruction.typeSymbol().parameterList().equals(FIELD_HANDLE_LOOKUP_PARAMETERS);
+    }
+
+    private static boolean isArrayElementVarHandleLookup(InvokeInstruction invokeInstruction) {
+        return invokeInstruction.opcode() == Opcode.INVOKESTATIC
+                && invokeInstruction.owner().matches(ConstantDescs.CD_MethodHandles)
+                && invokeInstruction.name().equalsString("arrayElementVarHandle")
+                && invokeInstruction.typeSymbol().equals(ARRAY_ELEMENT_VAR_HANDLE_METHOD_TYPE_DESC);
+    }
+
+    /** The access mode of an invocation of a VarHandle, if it is an invocation of an access mode method. */
+    private static Optional<VarHandle.AccessMode> accessMode(InvokeInstruction invokeInstruction) {
+        if (invokeInstruction.opcode() != Opcode.INVOKEVIRTUAL || !invokeInstruction.owner().matches(ConstantDescs.CD_VarHandle)) {
+            return Optional.empty();
+        }
+        String methodName = invokeInstruction.name().stringValue();
+        return Arrays.stream(VarHandle.AccessMode.values()).filter(accessMode -> accessMode.methodName().equals(methodName)).findFirst();
+    }
+
+    private static boolean isRead(VarHandle.AccessMode accessMode) {
+        return switch (accessMode) {
+            case GET, GET_VOLATILE, GET_ACQUIRE, GET_OPAQUE -> true;
+            default -> false;   // all other access modes (may) write the variable.
+        };
+    }
+
+    private static final Set<String> FIELD_HANDLE_LOOKUPS = Set.of(
+            "findVarHandle", "findStaticVarHandle", "findGetter", "findSetter", "findStaticGetter", "findStaticSetter");
+
+    private static final List<ClassDesc> FIELD_HANDLE_LOOKUP_PARAMETERS = List.of(ConstantDescs.CD_Class, ConstantDescs.CD_String, ConstantDescs.CD_Class);
+}
@@ -4,16 +4,17 @@ import java.lang.classfile.ClassBuilder;
 import java.lang.classfile.ClassElement;
 import java.lang.classfile.ClassFile;
 import java.lang.classfile.ClassModel;
+import java.lang.classfile.ClassTransform;
 import java.lang.classfile.CodeBuilder;
 import java.lang.classfile.CodeElement;
 import java.lang.classfile.CodeModel;
 import java.lang.classfile.CodeTransform;
 import java.lang.classfile.FieldModel;
+import java.lang.classfile.Label;
 import java.lang.classfile.MethodModel;
 import java.lang.classfile.Opcode;
 import java.lang.classfile.constantpool.ClassEntry;
 import java.lang.classfile.instruction.InvokeInstruction;
-import java.lang.classfile.instruction.ReturnInstruction;
 import java.lang.constant.ClassDesc;
 import java.lang.constant.ConstantDescs;
 import java.lang.constant.MethodTypeDesc;
@@ -22,15 +23,22 @@ import java.lang.instrument.IllegalClassFormatException;
 import java.lang.reflect.AccessFlag;
 import java.security.ProtectionDomain;
 import java.util.ArrayList;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
-import java.util.Set;
 
 import static memorymonitoring.agent.RuntimeApiHelper.*;
 
 final class InitializerTransformer implements ClassFileTransformer {
 
+    // Whether FieldUsageTransformer checks thread-confined fields with shadow permissions by ownership only.
+    private final boolean checkShadowPermissions;
+    private final MonitoredAccesses monitored;
+
+    InitializerTransformer(boolean checkShadowPermissions, MonitoredAccesses monitored) {
+        this.checkShadowPermissions = checkShadowPermissions;
+        this.monitored = monitored;
+    }
+
     @Override
     public byte[] transform(Module           module,
                             ClassLoader      loader,
@@ -40,49 +48,43 @@ final class InitializerTransformer implements ClassFileTransformer {
                             byte[]           classfileBuffer)
             throws IllegalClassFormatException {
 
-        // TODO make configurable (via commandline arg?)
-        if (!className.startsWith("memorymonitoring/example")) {
+        if (!InstrumentedClasses.contains(className)) {
             return null;
         }
 
         ClassFile classFile = ClassFile.of();
         ClassModel classModel = classFile.parse(classfileBuffer);
 
+        // The permissions of the instance fields are stored in the objects themselves, if the class gets shadow permissions.
+        Optional<List<String>> shadowLayout = monitored.instanceFields() ? ShadowFields.layout(classModel) : Optional.empty();
+        Exemptions exemptions = Exemptions.of(classModel);
+        boolean checkOwnership = checkShadowPermissions && shadowLayout.isPresent();
+        // the owner of an object implicitly has WRITE permission to these fields, see ShadowPermissions#register.
+        int confinedMask = checkOwnership ? confinedMask(shadowLayout.get(), exemptions) : 0;
+
         List<FieldModel> fields = classModel.fields();
         ArrayList<FieldModel> instanceFields = new ArrayList<>(fields.size());
         ArrayList<FieldModel> staticFields = new ArrayList<>(fields.size());
-        Set<String> finalFields = new HashSet<>();
         for (FieldModel field : fields) {
-            (field.flags().has(AccessFlag.STATIC) ? staticFields : instanceFields).add(field);
-            if (field.flags().has(AccessFlag.FINAL)) {
-                finalFields.add(field.fieldName().stringValue());
-            }
+            // No permissions are needed for fields that are not monitored, nor for fields of which only the ownership of the object is checked.
+            String fieldName = field.fieldName().stringValue();
+            if (exemptions.isImmutable(fieldName) || (checkOwnership && exemptions.isConfined(fieldName))) continue;
+
+            // Nor for the kinds of fields that are not monitored, see MonitoredAccesses.
+            boolean isStatic = field.flags().has(AccessFlag.STATIC);
+            if (isStatic ? !monitored.staticFields() : !monitored.instanceFields()) continue;
+
+            (isStatic ? staticFields : instanceFields).add(field);
         }
         instanceFields.trimToSize();
         staticFields.trimToSize();
+        int writeMask = checkOwnership ? writeMask(shadowLayout.get(), instanceFields) : 0;
 
         boolean hasClassInitializer = classModel.methods().stream().anyMatch(InitializerTransformer::isClassInitializer);
         ClassDesc thisClass = classModel.thisClass().asSymbol();
         Optional<ClassEntry> superClass = classModel.superclass();
 
-        return classFile.transformClass(classModel, (ClassBuilder classBuilder, ClassElement classElement) -> {
-            // Add class initialiser to the classs, if one is absent.
-            if (!hasClassInitializer) {
-                classBuilder.withMethodBody(
-                        ConstantDescs.CLASS_INIT_NAME,
-                        ConstantDescs.MTD_void,
-                        AccessFlag.PUBLIC.mask() | AccessFlag.STATIC.mask(),
-                        (CodeBuilder codeBuilder) -> {
-                            // Set WRITE permission for the calling thread for all static fields.
-                            generateSetWritePermissionForAllStaticFieldsInThisClass(codeBuilder, thisClass, staticFields);
-                            // Set default READ permission for all threads for all static final fields.
-                            generateSetReadPermissionFallbackForAllStaticFieldsInThisClass(codeBuilder, thisClass, finalFields, staticFields);
-                            // return (void)
-                            codeBuilder.return_();
-                        }
-                );
-            } // otherwise, static initialiser will be instrumented.
-
+        ClassTransform instrumentInitializers = (ClassBuilder classBuilder, ClassElement classElement) -> {
             if (classElement instanceof MethodModel maybeConstructorMethod && isConstructor(maybeConstructorMethod)) {
                 MethodTypeDesc methodTypeDescriptor = maybeConstructorMethod.methodTypeSymbol();
                 int flags = maybeConstructorMethod.flags().flagsMask();
@@ -95,45 +97,33 @@ final class InitializerTransformer implements ClassFileTransformer {
                         if (codeElement instanceof InvokeInstruction instruction && isInvokeSuperConstructor(superClass, instruction)) {
                             codeBuilder.with(instruction); // invoke super constructor
 
-                            // Grant write permission (has to occur after super constructor call).
-                            for (FieldModel instanceFieldModel : instanceFields) {
-                                // [...]
-                                codeBuilder.aload(0);
-                                // [..., this]
-                                codeBuilder.ldc(thisClass);
-                                // [..., this, DeclaringClass.class]
-                                codeBuilder.ldc(instanceFieldModel.fieldName().stringValue());
-                                // [..., this, DeclaringClass.class, "someField"]
-                                writeAccess(codeBuilder);
-                                // [..., this, DeclaringClass.class, "someField", Access.WRITE]
-                                invokeSetFieldPermission(codeBuilder);
-                                // [...]
-                            }
-                        }
+                            if (checkOwnership) {
+                                // Grant WRITE permission to the instance fields at once, by creating the shadow permissions
+                                // with a summary in which the constructing thread has WRITE permission to these fields.
+                                // If a grant from the super constructor already created the shadow permissions, grant them one by one.
+                                Label granted = codeBuilder.newLabel();
+                                Label alreadyInitialized = codeBuilder.newLabel();
+                                generateInitializeShadowPermissions(codeBuilder, thisClass, shadowLayout.get().size(), writeMask, alreadyInitialized);
+                                codeBuilder.goto_(granted);
+                                codeBuilder.labelBinding(alreadyInitialized);
+                                generateSetWritePermissionForAllInstanceFieldsInThisClass(codeBuilder, thisClass, instanceFields);
+                                codeBuilder.labelBinding(granted);
+                            } else {
+                                // Initialize the shadow permissions, unless a grant from the super constructor already did.
+                                shadowLayout.ifPresent(layout -> {
+                                    Label initialized = codeBuilder.newLabel();
+                                    generateInitializeShadowPermissions(codeBuilder, thisClass, layout.size(), 0, initialized);
+                                    codeBuilder.labelBinding(initialized);
+                                });
 
-                        else if (codeElement instanceof ReturnInstruction) {
-                            // Before return, grant READ permission to all threads for all final instance fields.
-
-                            for (FieldModel instanceFieldModel : instanceFields) {
-                                // loop body contents similar to #accept method.
-                                String fieldName = instanceFieldModel.fieldName().stringValue();
-                                if (finalFields.contains(fieldName)) {
-                                    // we do get here
-                                    codeBuilder.aload(0);  // [..., this]
-                                    codeBuilder.ldc(thisClass); // [..., this, DeclaringClass.class]
-                                    codeBuilder.ldc(fieldName); // [..., this, DeclaringClass.class, "someField"]
-                                    readAccess(codeBuilder);    // [..., this, DeclaringClass.class, "someField", Access.READ]
-                                    invokeSetFieldDefaultPermission(codeBuilder);
-                                }
+                                // Grant write permission (has to occur after super constructor call).
+                                generateSetWritePermissionForAllInstanceFieldsInThisClass(codeBuilder, thisClass, instanceFields);
                             }
-
-                            // regardless of the type of return instruction, our operand stack should be exactly the same
-                            // as before decorating the return instructions. Whether it's a void return, int return or long return
-                            // we can just do the return and assume the stack has the correct return value on top.
-                            codeBuilder.with(codeElement);
                         }
 
                         else {
+                            // No READ permission is granted to the final fields before return, because reads of final fields
+                            // are not checked outside of initializers (see FieldUsageTransformer).
                             codeBuilder.with(codeElement);
                         }
                     }
@@ -146,20 +136,16 @@ final class InitializerTransformer implements ClassFileTransformer {
                 classBuilder.withMethodBody(ConstantDescs.CLASS_INIT_NAME, ConstantDescs.MTD_void, flags, (CodeBuilder codeBuilder) -> {
                     if (code.isPresent()) {
                         CodeModel codeModel = code.get();
+                        // Register the shadow permissions before any instance can be created.
+                        shadowLayout.ifPresent(layout -> generateRegisterShadowPermissions(codeBuilder, layout, confinedMask));
+
                         // Set Access.WRITE permission for all static fields.
                         // Note, the generated code does not contain an extra loop; the field permissions are just written inlined/unrolled.
                         generateSetWritePermissionForAllStaticFieldsInThisClass(codeBuilder, thisClass, staticFields);
 
                         // Write the original class initializer instructions afterwards.
                         for (CodeElement codeElement : codeModel) {
-                            if (codeElement instanceof ReturnInstruction) {
-                                // Before return, set Access.READ permission for all final static fields, for all threads.
-                                generateSetReadPermissionFallbackForAllStaticFieldsInThisClass(codeBuilder, thisClass, finalFields, staticFields);
-                                codeBuilder.with(codeElement);
-                            }
-                            else {
-                                codeBuilder.with(codeElement);
-                            }
+                            codeBuilder.with(codeElement);
                         }
                     }
                 });
@@ -169,24 +155,137 @@ final class InitializerTransformer implements ClassFileTransformer {
                 // Not a constructor or class initializer
                 classBuilder.accept(classElement);
             }
+        };
+
+        // Members which are added once, after all elements of the class have been transformed.
+        ClassTransform addMembers = ClassTransform.endHandler((ClassBuilder classBuilder) -> {
+            // Add the field which holds the shadow permissions of an instance.
+            if (shadowLayout.isPresent()) {
+                classBuilder.withField(ShadowFields.FIELD_NAME, SHADOW_PERMISSIONS_CLASSDESC,
+                        AccessFlag.PUBLIC.mask() | AccessFlag.TRANSIENT.mask() | AccessFlag.SYNTHETIC.mask());
+            }
+
+            // Add class initialiser to the classs, if one is absent.
+            if (!hasClassInitializer) {
+                classBuilder.withMethodBody(
+                        ConstantDescs.CLASS_INIT_NAME,
+                        ConstantDescs.MTD_void,
+                        AccessFlag.PUBLIC.mask() | AccessFlag.STATIC.mask(),
+                        (CodeBuilder codeBuilder) -> {
+                            // Register the shadow permissions before any instance can be created.
+                            shadowLayout.ifPresent(layout -> generateRegisterShadowPermissions(codeBuilder, layout, confinedMask));
+                            // Set WRITE permission for the calling thread for all static fields.
+                            generateSetWritePermissionForAllStaticFieldsInThisClass(codeBuilder, thisClass, staticFields);
+                            // return (void)
+                            codeBuilder.return_();
+                        }
+                );
+            } // otherwise, static initialiser will be instrumented.
+        });
+
+        // Object#clone copies the shadow permissions fields of all classes of the object, see ShadowPermissions#cloned.
+        ClassTransform resetClonedShadowPermissions = ClassTransform.transformingMethodBodies((CodeBuilder codeBuilder, CodeElement codeElement) -> {
+            codeBuilder.with(codeElement);
+            if (codeElement instanceof InvokeInstruction instruction && isInvokeSuperClone(superClass, instruction)) {
+                generateResetClonedShadowPermissions(codeBuilder);
+            }
         });
+
+        ClassTransform instrumentClass = instrumentInitializers.andThen(addMembers);
+        // Superclasses may have shadow permissions, even if this class has none.
+        return classFile.transformClass(classModel, monitored.instanceFields() ? instrumentClass.andThen(resetClonedShadowPermissions) : instrumentClass);
     }
 
-    private void generateSetReadPermissionFallbackForAllStaticFieldsInThisClass(CodeBuilder codeBuilder,
-                                                                                ClassDesc thisClass,
-                                                                                Set<String> finalFields,
-                                                                                List<FieldModel> staticFields) {
-        for (FieldModel staticField : staticFields) {
-            if (finalFields.contains(staticField.fieldName().stringValue())) {
-                // prepare [..., owningInstance, fieldName, access]:
-                codeBuilder.ldc(thisClass);                             // owningInstance = Foo.class
-                codeBuilder.ldc(thisClass);                             // declaringClass = Foo.class
-                codeBuilder.ldc(staticField.fieldName().stringValue()); // fieldName = "someField"
-                readAccess(codeBuilder);                                // access = Access.READ
-                // consume arguments, set default permission for the static final field.
-                invokeSetFieldDefaultPermission(codeBuilder);
+    private static int confinedMask(List<String> layout, Exemptions exemptions) {
+        int confinedMask = 0;
+        for (int index = 0; index < layout.size(); index++) {
+            if (exemptions.isConfined(layout.get(index))) {
+                confinedMask |= 1 << index;
             }
         }
+        return confinedMask;
+    }
+
+    private static int writeMask(List<String> layout, List<FieldModel> instanceFields) {
+        int writeMask = 0;
+        for (FieldModel instanceField : instanceFields) {
+            writeMask |= 1 << layout.indexOf(instanceField.fieldName().stringValue());
+        }
+        return writeMask;
+    }
+
+    private static void generateRegisterShadowPermissions(CodeBuilder codeBuilder, List<String> layout, int confinedMask) {
+        // [...]
+        codeBuilder.invokestatic(ConstantDescs.CD_MethodHandles, "lookup", MethodTypeDesc.of(ConstantDescs.CD_MethodHandles_Lookup), false);
+        // [..., lookup]
+        codeBuilder.loadConstant(confinedMask);
+        // [..., lookup, confinedMask]
+        codeBuilder.loadConstant(layout.size());
+        // [..., lookup, confinedMask, length]
+        codeBuilder.anewarray(ConstantDescs.CD_String);
+        // [..., lookup, confinedMask, fieldNames]
+        for (int index = 0; index < layout.size(); index++) {
+            codeBuilder.dup();
+            // [..., lookup, confinedMask, fieldNames, fieldNames]
+            codeBuilder.loadConstant(index);
+            // [..., lookup, confinedMask, fieldNames, fieldNames, index]
+            codeBuilder.ldc(layout.get(index));
+            // [..., lookup, confinedMask, fieldNames, fieldNames, index, "someField"]
+            codeBuilder.aastore();
+            // [..., lookup, confinedMask, fieldNames]
+        }
+        invokeRegisterShadowPermissions(codeBuilder);
+        // [...]
+    }
+
+    private static void generateInitializeShadowPermissions(CodeBuilder codeBuilder, ClassDesc thisClass, int fieldCount, int writeMask, Label alreadyInitialized) {
+        // [...]
+        codeBuilder.aload(0);
+        // [..., this]
+        codeBuilder.getfield(thisClass, ShadowFields.FIELD_NAME, SHADOW_PERMISSIONS_CLASSDESC);
+        // [..., shadowPermissions]
+        codeBuilder.ifnonnull(alreadyInitialized);
+        // [...]
+        codeBuilder.aload(0);
+        // [..., this]
+        codeBuilder.loadConstant(fieldCount);
+        // [..., this, fieldCount]
+        codeBuilder.loadConstant(writeMask);
+        // [..., this, fieldCount, writeMask]
+        invokeShadowPermissionsOwnedByCurrentThread(codeBuilder);
+        // [..., this, shadowPermissions]
+        codeBuilder.putfield(thisClass, ShadowFields.FIELD_NAME, SHADOW_PERMISSIONS_CLASSDESC);
+        // [...]
+    }
+
+    private static void generateResetClonedShadowPermissions(CodeBuilder codeBuilder) {
+        // [..., clone]
+        codeBuilder.dup();
+        // [..., clone, clone]
+        codeBuilder.aload(0);
+        // [..., clone, clone, this]
+        invokeShadowPermissionsCloned(codeBuilder);
+        // [..., clone]
+    }
+
+    private static void generateSetWritePermissionForAllInstanceFieldsInThisClass(CodeBuilder codeBuilder, ClassDesc thisClass, List<FieldModel> instanceFields) {
+        // Grants WRITE permission to the current thread for all fields in instanceFields
+
+        // [...]
+        for (FieldModel instanceFieldModel : instanceFields) {
+            // [...]
+            codeBuilder.aload(0);
+            // [..., this]
+            codeBuilder.ldc(thisClass);
+            // [..., this, DeclaringClass.class]
+            codeBuilder.ldc(instanceFieldModel.fieldName().stringValue());
+            // [..., this, DeclaringClass.class, "someField"]
+            writeAccess(codeBuilder);
+            // [..., this, DeclaringClass.class, "someField", Access.WRITE]
+            invokeSetFieldPermission(codeBuilder);
+            // [...]
+        }
+        // [...]
     }
 
     private static boolean isInvokeSuperConstructor(Optional<ClassEntry> superClass, InvokeInstruction invokeInstruction) {
@@ -199,6 +298,18 @@ final class InitializerTransformer implements ClassFileTransformer {
                 && invokeInstruction.typeSymbol().returnType().equals(ConstantDescs.CD_void);
     }
 
+    private static boolean isInvokeSuperClone(Optional<ClassEntry> superClass, InvokeInstruction invokeInstruction) {
+        if (superClass.isEmpty()) return false;
+
+        // the return type may be covariant, if a superclass overrides clone.
+        return invokeInstruction.opcode() == Opcode.INVOKESPECIAL
+                && !invokeInstruction.isInterface()
+                && invokeInstruction.name().equalsString("clone")
+                && invokeInstruction.owner().equals(superClass.get())
+                && invokeInstruction.typeSymbol().parameterCount() == 0
+                && !invokeInstruction.typeSymbol().returnType().isPrimitive();
+    }
+
     private static void generateSetWritePermissionForAllStaticFieldsInThisClass(CodeBuilder codeBuilder, ClassDesc thisClass, List<FieldModel> staticFields) {
         // Grants WRITE permission to the current thread for all fields in staticFields
 
@@ -0,0 +1,47 @@
+package memorymonitoring.agent;
+
+import java.util.List;
+
+/**
+ * The classes that are instrumented, by package: by default only the example application, otherwise those passed to the
+ * agent with {@code include=<package>} (repeatable), or all classes with {@code include=*}. The classes of the agent and
+ * the runtime are never instrumented, since the instrumented code calls into them. Instrumenting the classes of the JDK
+ * itself ({@code include=*} or {@code include=java}) is only meant for ahead-of-time instrumentation and benchmarks.
+ * <p>
+ * Also decides which other classes are read to find out about the fields of a referenced class (see {@link Exemptions}
+ * and {@link ShadowFields}), since only instrumented classes have exemptions and shadow permissions.
+ */
+final class InstrumentedClasses {
+
+    static final String ALL = "*";
+    private static final List<String> DEFAULT_PREFIXES = List.of("memorymonitoring/example");
+    private static final List<String> EXCLUDED_PREFIXES = List.of("memorymonitoring/agent/", RuntimeApiHelper.RUNTIME_PACKAGE.replace('.', '/') + "/", "memorymonitoring/util/");
+
+    // Set once, when the options are parsed, before any class is transformed.
+    private static volatile List<String> prefixes = DEFAULT_PREFIXES;
+
+    private InstrumentedClasses() {}
+
+    /**
+     * Instrument the classes in the given packages (including their subpackages) instead of the default ones.
+     * @param packages package names (e.g. {@code com.example}), or {@link #ALL}
+     */
+    static void include(List<String> packages) {
+        if (packages.isEmpty()) return;
+        prefixes = packages.contains(ALL) ? List.of("") : packages.stream().map(name -> name.replace('.', '/')).toList();
+    }
+
+    /**
+     * Whether a class is instrumented.
+     * @param className the internal name of the class
+     */
+    static boolean contains(String className) {
+        for (String excluded : EXCLUDED_PREFIXES) {
+            if (className.startsWith(excluded)) return false;
+        }
+        for (String prefix : prefixes) {
+            if (className.startsWith(prefix)) return true;
+        }
+        return false;
+    }
+}
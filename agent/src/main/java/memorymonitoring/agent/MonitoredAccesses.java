@@ -0,0 +1,121 @@
+package memorymonitoring.agent;
+
+import java.lang.classfile.CodeElement;
+import java.lang.classfile.Opcode;
+import java.lang.classfile.instruction.ArrayLoadInstruction;
+import java.lang.classfile.instruction.ArrayStoreInstruction;
+import java.lang.classfile.instruction.FieldInstruction;
+import java.lang.classfile.instruction.InvokeInstruction;
+import java.lang.constant.ClassDesc;
+import java.lang.constant.ConstantDescs;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The kinds of accesses that are monitored, selected with the agent option {@code monitor=<kind>}, which can be passed
+ * more than once:
+ * <ul>
+ *     <li>{@code all}: all accesses (the default).</li>
+ *     <li>{@code writes}: only writes, of the selected kinds of memory.</li>
+ *     <li>{@code fields}: instance and static fields.</li>
+ *     <li>{@code statics}: static fields.</li>
+ *     <li>{@code arrays}: array elements.</li>
+ * </ul>
+ * The kinds of memory add up, {@code writes} restricts them: {@code monitor=writes,monitor=arrays} monitors the writes to
+ * arrays only. No code is inserted for the accesses that are not monitored. Accesses through VarHandles can only be told
+ * apart at run time, so memorymonitoring.runtime.MonitoredAccesses leaves those out. In mode races all accesses are
+ * monitored, see {@link AgentOptions#parse(String)}.
+ */
+record MonitoredAccesses(boolean reads, boolean instanceFields, boolean staticFields, boolean arrays) {
+
+    static final MonitoredAccesses ALL = new MonitoredAccesses(true, true, true, true);
+
+    private static final ClassDesc CD_REFLECT_FIELD = ClassDesc.of("java.lang.reflect", "Field");
+    private static final ClassDesc CD_REFLECT_ARRAY = ClassDesc.of("java.lang.reflect", "Array");
+
+    /**
+     * The selected kinds of accesses.
+     * @param kinds the values of the monitor options, empty for all accesses
+     * @throws IllegalArgumentException if a kind is unknown
+     */
+    static MonitoredAccesses of(List<String> kinds) {
+        // Must match the initialization of memorymonitoring.runtime.MonitoredAccesses.
+        boolean reads = true, memoryKinds = false, instanceFields = false, staticFields = false, arrays = false;
+        for (String kind : kinds) {
+            switch (kind) {
+                case "all" -> { memoryKinds = true; instanceFields = true; staticFields = true; arrays = true; }
+                case "writes" -> reads = false;
+                case "fields" -> { memoryKinds = true; instanceFields = true; staticFields = true; }
+                case "statics" -> { memoryKinds = true; staticFields = true; }
+                case "arrays" -> { memoryKinds = true; arrays = true; }
+                default -> throw new IllegalArgumentException("Agent option monitor must be all, writes, fields, statics or arrays, got: " + kind);
+            }
+        }
+        return memoryKinds ? new MonitoredAccesses(reads, instanceFields, staticFields, arrays) : new MonitoredAccesses(reads, true, true, true);
+    }
+
+    boolean isAll() {
+        return equals(ALL);
+    }
+
+    boolean fields() {
+        return instanceFields || staticFields;
+    }
+
+    /** Whether the accesses of a getfield, putfield, getstatic or putstatic instruction are monitored. */
+    boolean fieldInstruction(Opcode opcode) {
+        return switch (opcode) {
+            case GETFIELD -> instanceFields && reads;
+            case PUTFIELD -> instanceFields;
+            case GETSTATIC -> staticFields && reads;
+            case PUTSTATIC -> staticFields;
+            default -> false;
+        };
+    }
+
+    /** Whether reflective accesses to fields (Field#get, Field#set, ...) are monitored, which can be static or not. */
+    boolean reflectiveFieldAccess(boolean write) {
+        return fields() && (write || reads);
+    }
+
+    /** Whether accesses to array elements are monitored, directly, in bulk or reflectively. */
+    boolean arrayAccess(boolean write) {
+        return arrays && (write || reads);
+    }
+
+    /**
+     * Whether an access site (see {@link AccessSites}) is monitored. Accesses through VarHandles are, because the kind of
+     * memory that a handle accesses is only known at run time. Only called for the elements of the code that are sites.
+     */
+    boolean site(CodeElement codeElement) {
+        return switch (codeElement) {
+            case FieldInstruction instruction -> fieldInstruction(instruction.opcode());
+            case ArrayLoadInstruction _ -> arrayAccess(false);
+            case ArrayStoreInstruction _ -> arrayAccess(true);
+            case InvokeInstruction instruction when instruction.owner().matches(ConstantDescs.CD_VarHandle) -> true;
+            case InvokeInstruction instruction when instruction.owner().matches(CD_REFLECT_FIELD) ->
+                    reflectiveFieldAccess(instruction.name().stringValue().startsWith("set"));
+            case InvokeInstruction instruction when instruction.owner().matches(CD_REFLECT_ARRAY) ->
+                    arrayAccess(instruction.name().stringValue().startsWith("set"));
+            // System#arraycopy writes to its destination, the bulk operations of BulkArrayOperations may only read.
+            case InvokeInstruction instruction -> arrayAccess(instruction.name().equalsString("arraycopy")
+                    || BulkArrayOperations.accessedRanges(instruction).stream().anyMatch(BulkArrayOperations.ArrayRange::write));
+            default -> true;
+        };
+    }
+
+    /**
+     * The value of the option through which the runtime picks up the selection, the monitor options that select the same
+     * accesses. Empty for all accesses.
+     */
+    String optionValue() {
+        List<String> kinds = new ArrayList<>();
+        if (!reads) kinds.add("writes");
+        if (!(instanceFields && staticFields && arrays)) {
+            if (instanceFields) kinds.add("fields");
+            else if (staticFields) kinds.add("statics");
+            if (arrays) kinds.add("arrays");
+        }
+        return String.join(",", kinds);
+    }
+}
@@ -30,8 +30,7 @@ public final class NewArrayTransformer implements ClassFileTransformer {
                             byte[]           classfileBuffer)
             throws IllegalClassFormatException {
 
-        // TODO make configurable (via commandline arg?)
-        if (!className.startsWith("memorymonitoring/example")) {
+        if (!InstrumentedClasses.contains(className)) {
             return null;
         }
 
@@ -125,6 +124,21 @@ public final class NewArrayTransformer implements ClassFileTransformer {
                 }
             }
 
+            else if (codeElement instanceof InvokeInstruction invokeInstruction && BulkArrayOperations.returnsArrayCopy(invokeInstruction)) {
+                // Arrays#copyOf, Arrays#copyOfRange, clone: [..., operand1, ..., operandN] -> [..., arr]
+
+                // Operand stack:
+                // [..., operand1, ..., operandN]
+                codeBuilder.with(codeElement);
+                // [..., arr]
+                codeBuilder.dup();
+                // [..., arr, arr]
+                writeAccess(codeBuilder);
+                // [..., arr, arr, Access.WRITE]
+                invokeSetArrayPermissionWholeArray(codeBuilder);
+                // [..., arr]
+            }
+
             else {
                 // Leave all other instructions unchanged.
                 codeBuilder.with(codeElement);
@@ -3,6 +3,7 @@ package memorymonitoring.agent;
 import java.lang.classfile.CodeBuilder;
 import java.lang.constant.ClassDesc;
 import java.lang.constant.ConstantDescs;
+import java.lang.constant.DirectMethodHandleDesc;
 import java.lang.constant.MethodTypeDesc;
 
 final class RuntimeApiHelper {
@@ -10,15 +11,45 @@ final class RuntimeApiHelper {
     static final String RUNTIME_PACKAGE = "memorymonitoring.runtime";
     static final ClassDesc ACCESS_CLASSDESC = ClassDesc.of(RUNTIME_PACKAGE, "Access");
     static final ClassDesc PERMISSIONS_CLASSDESC = ClassDesc.of(RUNTIME_PACKAGE, "Permissions");
+    static final ClassDesc RACE_DETECTOR_CLASSDESC = ClassDesc.of(RUNTIME_PACKAGE, "RaceDetector");
+    static final ClassDesc SHADOW_PERMISSIONS_CLASSDESC = ClassDesc.of(RUNTIME_PACKAGE, "ShadowPermissions");
+    static final ClassDesc MONITORED_HANDLES_CLASSDESC = ClassDesc.of(RUNTIME_PACKAGE, "MonitoredHandles");
+    static final ClassDesc SITE_PROFILER_CLASSDESC = ClassDesc.of(RUNTIME_PACKAGE, "SiteProfiler");
+    static final ClassDesc TASK_PERMISSIONS_CLASSDESC = ClassDesc.of(RUNTIME_PACKAGE, "TaskPermissions");
+    static final ClassDesc FORK_JOIN_TASK_CLASSDESC = ClassDesc.of("java.util.concurrent", "ForkJoinTask");
     static final ClassDesc REFLECT_FIELD_CLASSDESC = ClassDesc.of("java.lang.reflect", "Field");
     static final MethodTypeDesc SET_FIELD_PERMISSION_METHOD_TYPE_DESC = MethodTypeDesc.of(ConstantDescs.CD_void, ConstantDescs.CD_Object, ConstantDescs.CD_Class, ConstantDescs.CD_String, ACCESS_CLASSDESC);
-    static final MethodTypeDesc SET_FIELD_DEFAULT_PERMISSION_METHOD_TYPE_DESC = MethodTypeDesc.of(ConstantDescs.CD_void, ConstantDescs.CD_Object, ConstantDescs.CD_Class, ConstantDescs.CD_String, ACCESS_CLASSDESC);
     static final MethodTypeDesc SET_ARRAY_PERMISSION_WHOLE_ARRAY_METHOD_TYPE_DESC = MethodTypeDesc.of(ConstantDescs.CD_void, ConstantDescs.CD_Object, ACCESS_CLASSDESC);
     static final MethodTypeDesc SET_ARRAY_PERMISSION_WHOLE_MULTI_ARRAY_METHOD_TYPE_DESC = MethodTypeDesc.of(ConstantDescs.CD_void, ConstantDescs.CD_Object, ConstantDescs.CD_int, ACCESS_CLASSDESC);
     static final MethodTypeDesc LOG_FIELD_ACCESS_METHOD_TYPE_DESC = MethodTypeDesc.of(ConstantDescs.CD_void, ConstantDescs.CD_Object, ConstantDescs.CD_Class, ConstantDescs.CD_String, ACCESS_CLASSDESC);
     static final MethodTypeDesc LOG_REFLECT_FIELD_ACCESS_METHOD_TYPE_DESC = MethodTypeDesc.of(ConstantDescs.CD_void, REFLECT_FIELD_CLASSDESC, ConstantDescs.CD_Object, ACCESS_CLASSDESC);
     static final MethodTypeDesc LOG_ARRAY_ACCESS_METHOD_TYPE_DESC = MethodTypeDesc.of(ConstantDescs.CD_void, ConstantDescs.CD_Object, ConstantDescs.CD_int, ACCESS_CLASSDESC);
     static final MethodTypeDesc LOG_ARRAY_ACCESS_RANGE_METHOD_TYPE_DESC = MethodTypeDesc.of(ConstantDescs.CD_void, ConstantDescs.CD_Object, ConstantDescs.CD_int, ConstantDescs.CD_int, ACCESS_CLASSDESC);
+    static final MethodTypeDesc LOG_ARRAY_ACCESS_WHOLE_ARRAY_METHOD_TYPE_DESC = MethodTypeDesc.of(ConstantDescs.CD_void, ConstantDescs.CD_Object, ACCESS_CLASSDESC);
+    static final MethodTypeDesc LOG_BULK_ARRAY_ACCESS_METHOD_TYPE_DESC = MethodTypeDesc.of(ConstantDescs.CD_void, ConstantDescs.CD_Object, ConstantDescs.CD_int, ConstantDescs.CD_int, ACCESS_CLASSDESC);
+    static final MethodTypeDesc OWNED_BY_CURRENT_THREAD_METHOD_TYPE_DESC = MethodTypeDesc.of(SHADOW_PERMISSIONS_CLASSDESC, ConstantDescs.CD_int, ConstantDescs.CD_int);
+    static final MethodTypeDesc CLONED_SHADOW_PERMISSIONS_METHOD_TYPE_DESC = MethodTypeDesc.of(ConstantDescs.CD_void, ConstantDescs.CD_Object, ConstantDescs.CD_Object);
+    static final MethodTypeDesc REGISTER_SHADOW_PERMISSIONS_METHOD_TYPE_DESC = MethodTypeDesc.of(ConstantDescs.CD_void, ConstantDescs.CD_MethodHandles_Lookup, ConstantDescs.CD_int, ConstantDescs.CD_String.arrayType());
+    static final MethodTypeDesc ENTER_SITE_METHOD_TYPE_DESC = MethodTypeDesc.of(ConstantDescs.CD_void, ConstantDescs.CD_int);
+    // SiteProfiler#site(Lookup, String, Class, int siteId, String methodName, String methodType, int bci, int line, String kind)
+    static final DirectMethodHandleDesc SITE_BOOTSTRAP = ConstantDescs.ofConstantBootstrap(SITE_PROFILER_CLASSDESC, "site", ConstantDescs.CD_int,
+            ConstantDescs.CD_int, ConstantDescs.CD_String, ConstantDescs.CD_String, ConstantDescs.CD_int, ConstantDescs.CD_int, ConstantDescs.CD_String);
+    static final MethodTypeDesc OWNER_COVERS_METHOD_TYPE_DESC = MethodTypeDesc.of(ConstantDescs.CD_boolean, SHADOW_PERMISSIONS_CLASSDESC, ConstantDescs.CD_int, ACCESS_CLASSDESC);
+    static final MethodTypeDesc IS_OWNER_METHOD_TYPE_DESC = MethodTypeDesc.of(ConstantDescs.CD_boolean, SHADOW_PERMISSIONS_CLASSDESC);
+    static final MethodTypeDesc LOG_VAR_HANDLE_ACCESS_METHOD_TYPE_DESC = MethodTypeDesc.of(ConstantDescs.CD_void, ConstantDescs.CD_VarHandle, ConstantDescs.CD_Object, ConstantDescs.CD_int, ACCESS_CLASSDESC);
+    static final MethodTypeDesc ARRAY_ELEMENT_VAR_HANDLE_METHOD_TYPE_DESC = MethodTypeDesc.of(ConstantDescs.CD_VarHandle, ConstantDescs.CD_Class);
+    static final MethodTypeDesc ACQUIRE_METHOD_TYPE_DESC = MethodTypeDesc.of(ConstantDescs.CD_void, ConstantDescs.CD_Object);
+    static final MethodTypeDesc ACQUIRE_IF_LOCKED_METHOD_TYPE_DESC = MethodTypeDesc.of(ConstantDescs.CD_boolean, ConstantDescs.CD_boolean, ConstantDescs.CD_Object);
+    static final MethodTypeDesc RELEASE_METHOD_TYPE_DESC = MethodTypeDesc.of(ConstantDescs.CD_void, ConstantDescs.CD_Object);
+    static final MethodTypeDesc THREAD_START_METHOD_TYPE_DESC = MethodTypeDesc.of(ConstantDescs.CD_void, ClassDesc.of("java.lang", "Thread"));
+    static final MethodTypeDesc THREAD_START_TASK_METHOD_TYPE_DESC = MethodTypeDesc.of(ClassDesc.of("java.lang", "Runnable"), ClassDesc.of("java.lang", "Runnable"));
+    static final MethodTypeDesc THREAD_JOIN_METHOD_TYPE_DESC = MethodTypeDesc.of(ConstantDescs.CD_void, ClassDesc.of("java.lang", "Thread"));
+    static final MethodTypeDesc ENTER_TASK_METHOD_TYPE_DESC = MethodTypeDesc.of(ConstantDescs.CD_Object, FORK_JOIN_TASK_CLASSDESC);
+    static final MethodTypeDesc EXECUTE_TASK_METHOD_TYPE_DESC = MethodTypeDesc.of(ConstantDescs.CD_void, ClassDesc.of("java.util.concurrent", "Executor"), ClassDesc.of("java.lang", "Runnable"));
+    static final MethodTypeDesc REMOVE_TASK_METHOD_TYPE_DESC = MethodTypeDesc.of(ConstantDescs.CD_boolean, ClassDesc.of("java.util.concurrent", "ThreadPoolExecutor"), ClassDesc.of("java.lang", "Runnable"));
+    static final MethodTypeDesc DELEGATE_TASKS_METHOD_TYPE_DESC = MethodTypeDesc.of(ClassDesc.of("java.util", "Collection"), ClassDesc.of("java.util", "Collection"));
+    static final MethodTypeDesc UNDELEGATE_TASKS_METHOD_TYPE_DESC = MethodTypeDesc.of(ClassDesc.of("java.util", "List"), ClassDesc.of("java.util", "List"));
+    static final MethodTypeDesc EXIT_TASK_METHOD_TYPE_DESC = MethodTypeDesc.of(ConstantDescs.CD_void, ConstantDescs.CD_Object);
 
     private RuntimeApiHelper() {
     }
@@ -51,6 +82,14 @@ final class RuntimeApiHelper {
         codeBuilder.invokestatic(PERMISSIONS_CLASSDESC, "logArrayAccess", LOG_ARRAY_ACCESS_RANGE_METHOD_TYPE_DESC, false);
     }
 
+    static void invokeLogArrayAccessWholeArray(CodeBuilder codeBuilder) {
+        codeBuilder.invokestatic(PERMISSIONS_CLASSDESC, "logArrayAccessWholeArray", LOG_ARRAY_ACCESS_WHOLE_ARRAY_METHOD_TYPE_DESC, false);
+    }
+
+    static void invokeLogBulkArrayAccess(CodeBuilder codeBuilder) {
+        codeBuilder.invokestatic(PERMISSIONS_CLASSDESC, "logBulkArrayAccess", LOG_BULK_ARRAY_ACCESS_METHOD_TYPE_DESC, false);
+    }
+
     static void invokeSetFieldPermission(CodeBuilder codeBuilder) {
         codeBuilder.invokestatic(PERMISSIONS_CLASSDESC, "setFieldPermission", SET_FIELD_PERMISSION_METHOD_TYPE_DESC, false);
     }
@@ -63,7 +102,98 @@ final class RuntimeApiHelper {
         codeBuilder.invokestatic(PERMISSIONS_CLASSDESC, "setArrayPermissionWholeMultiArray", SET_ARRAY_PERMISSION_WHOLE_MULTI_ARRAY_METHOD_TYPE_DESC, false);
     }
 
-    static void invokeSetFieldDefaultPermission(CodeBuilder codeBuilder) {
-        codeBuilder.invokestatic(PERMISSIONS_CLASSDESC, "setFieldDefaultPermission", SET_FIELD_DEFAULT_PERMISSION_METHOD_TYPE_DESC, false);
+    static void invokeEnterSite(CodeBuilder codeBuilder) {
+        codeBuilder.invokestatic(SITE_PROFILER_CLASSDESC, "enter", ENTER_SITE_METHOD_TYPE_DESC, false);
+    }
+
+    static void invokeShadowPermissionsOwnedByCurrentThread(CodeBuilder codeBuilder) {
+        codeBuilder.invokestatic(SHADOW_PERMISSIONS_CLASSDESC, "ownedByCurrentThread", OWNED_BY_CURRENT_THREAD_METHOD_TYPE_DESC, false);
+    }
+
+    static void invokeRegisterShadowPermissions(CodeBuilder codeBuilder) {
+        codeBuilder.invokestatic(SHADOW_PERMISSIONS_CLASSDESC, "register", REGISTER_SHADOW_PERMISSIONS_METHOD_TYPE_DESC, false);
+    }
+
+    static void invokeShadowPermissionsCloned(CodeBuilder codeBuilder) {
+        codeBuilder.invokestatic(SHADOW_PERMISSIONS_CLASSDESC, "cloned", CLONED_SHADOW_PERMISSIONS_METHOD_TYPE_DESC, false);
+    }
+
+    static void invokeOwnerCovers(CodeBuilder codeBuilder) {
+        codeBuilder.invokestatic(SHADOW_PERMISSIONS_CLASSDESC, "ownerCovers", OWNER_COVERS_METHOD_TYPE_DESC, false);
+    }
+
+    static void invokeIsOwner(CodeBuilder codeBuilder) {
+        codeBuilder.invokestatic(SHADOW_PERMISSIONS_CLASSDESC, "isOwner", IS_OWNER_METHOD_TYPE_DESC, false);
+    }
+
+    static void invokeLogVarHandleAccess(CodeBuilder codeBuilder) {
+        codeBuilder.invokestatic(MONITORED_HANDLES_CLASSDESC, "logVarHandleAccess", LOG_VAR_HANDLE_ACCESS_METHOD_TYPE_DESC, false);
+    }
+
+    static void invokeMonitoredHandlesLookup(CodeBuilder codeBuilder, String lookupMethodName, ClassDesc handleType) {
+        // MonitoredHandles has a static counterpart of every supported Lookup method: (Lookup, Class, String, Class) -> handleType
+        MethodTypeDesc methodType = MethodTypeDesc.of(handleType, ConstantDescs.CD_MethodHandles_Lookup, ConstantDescs.CD_Class, ConstantDescs.CD_String, ConstantDescs.CD_Class);
+        codeBuilder.invokestatic(MONITORED_HANDLES_CLASSDESC, lookupMethodName, methodType, false);
+    }
+
+    static void invokeMonitoredArrayElementVarHandle(CodeBuilder codeBuilder) {
+        codeBuilder.invokestatic(MONITORED_HANDLES_CLASSDESC, "arrayElementVarHandle", ARRAY_ELEMENT_VAR_HANDLE_METHOD_TYPE_DESC, false);
+    }
+
+    static void invokeDelegateTask(CodeBuilder codeBuilder, ClassDesc taskType) {
+        // TaskPermissions#delegate is overloaded for every supported task type: (TaskType) -> TaskType
+        codeBuilder.invokestatic(TASK_PERMISSIONS_CLASSDESC, "delegate", MethodTypeDesc.of(taskType, taskType), false);
+    }
+
+    static void invokeExecuteTask(CodeBuilder codeBuilder) {
+        codeBuilder.invokestatic(TASK_PERMISSIONS_CLASSDESC, "execute", EXECUTE_TASK_METHOD_TYPE_DESC, false);
+    }
+
+    static void invokeRemoveTask(CodeBuilder codeBuilder) {
+        codeBuilder.invokestatic(TASK_PERMISSIONS_CLASSDESC, "remove", REMOVE_TASK_METHOD_TYPE_DESC, false);
+    }
+
+    static void invokeUndelegateTasks(CodeBuilder codeBuilder) {
+        codeBuilder.invokestatic(TASK_PERMISSIONS_CLASSDESC, "undelegate", UNDELEGATE_TASKS_METHOD_TYPE_DESC, false);
+    }
+
+    static void invokeDelegateCallables(CodeBuilder codeBuilder) {
+        codeBuilder.invokestatic(TASK_PERMISSIONS_CLASSDESC, "delegateCallables", DELEGATE_TASKS_METHOD_TYPE_DESC, false);
+    }
+
+    static void invokeDelegateForkJoinTasks(CodeBuilder codeBuilder) {
+        codeBuilder.invokestatic(TASK_PERMISSIONS_CLASSDESC, "delegateForkJoinTasks", DELEGATE_TASKS_METHOD_TYPE_DESC, false);
+    }
+
+    static void invokeEnterTask(CodeBuilder codeBuilder) {
+        codeBuilder.invokestatic(TASK_PERMISSIONS_CLASSDESC, "enter", ENTER_TASK_METHOD_TYPE_DESC, false);
+    }
+
+    static void invokeExitTask(CodeBuilder codeBuilder) {
+        codeBuilder.invokestatic(TASK_PERMISSIONS_CLASSDESC, "exit", EXIT_TASK_METHOD_TYPE_DESC, false);
+    }
+
+    static void invokeAcquire(CodeBuilder codeBuilder) {
+        codeBuilder.invokestatic(RACE_DETECTOR_CLASSDESC, "acquire", ACQUIRE_METHOD_TYPE_DESC, false);
+    }
+
+    static void invokeAcquireIfLocked(CodeBuilder codeBuilder) {
+        codeBuilder.invokestatic(RACE_DETECTOR_CLASSDESC, "acquireIfLocked", ACQUIRE_IF_LOCKED_METHOD_TYPE_DESC, false);
+    }
+
+    static void invokeRelease(CodeBuilder codeBuilder) {
+        codeBuilder.invokestatic(RACE_DETECTOR_CLASSDESC, "release", RELEASE_METHOD_TYPE_DESC, false);
+    }
+
+    static void invokeThreadStart(CodeBuilder codeBuilder) {
+        codeBuilder.invokestatic(RACE_DETECTOR_CLASSDESC, "threadStart", THREAD_START_METHOD_TYPE_DESC, false);
+    }
+
+    static void invokeThreadStartTask(CodeBuilder codeBuilder) {
+        codeBuilder.invokestatic(RACE_DETECTOR_CLASSDESC, "threadStart", THREAD_START_TASK_METHOD_TYPE_DESC, false);
+    }
+
+    static void invokeThreadJoin(CodeBuilder codeBuilder) {
+        codeBuilder.invokestatic(RACE_DETECTOR_CLASSDESC, "threadJoin", THREAD_JOIN_METHOD_TYPE_DESC, false);
     }
 }
@@ -0,0 +1,63 @@
+package memorymonitoring.agent;
+
+import java.lang.classfile.ClassModel;
+import java.lang.classfile.FieldModel;
+import java.lang.reflect.AccessFlag;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Layout of the shadow permissions of instrumented classes: the instance fields of which the permissions are stored in the
+ * synthetic field {@value #FIELD_NAME} of the object itself, see memorymonitoring.runtime.ShadowPermissions.
+ * <p>
+ * {@link InitializerTransformer} adds the field and registers the layout, {@link FieldUsageTransformer} uses the layout
+ * to check accesses of the owning thread inline. Both must agree on the layout, so it is only computed here.
+ */
+final class ShadowFields {
+
+    // Must match memorymonitoring.runtime.ShadowPermissions#FIELD_NAME.
+    static final String FIELD_NAME = "$permissions";
+    // Must match memorymonitoring.runtime.ShadowPermissions#MAX_FIELDS.
+    static final int MAX_FIELDS = Long.SIZE / 2;
+
+    // TODO classes are identified by name only, classes with the same name in different class loaders will share a layout.
+    private static final ConcurrentHashMap<String, Optional<List<String>>> layoutsOfOtherClasses = new ConcurrentHashMap<>();
+
+    private ShadowFields() {
+    }
+
+    /**
+     * Compute the layout of a class that is being instrumented.
+     * @return the names of the instance fields in the order of their shadow index, or empty if the class gets no shadow permissions
+     */
+    static Optional<List<String>> layout(ClassModel classModel) {
+        if (classModel.flags().has(AccessFlag.INTERFACE)) return Optional.empty();
+        // records can not declare additional instance fields.
+        if (classModel.superclass().isPresent() && classModel.superclass().get().asInternalName().equals("java/lang/Record")) return Optional.empty();
+
+        // immutable fields are not monitored, so they need no shadow permissions.
+        Exemptions exemptions = Exemptions.of(classModel);
+        List<String> instanceFields = new ArrayList<>();
+        for (FieldModel field : classModel.fields()) {
+            if (!field.flags().has(AccessFlag.STATIC) && !exemptions.isImmutable(field.fieldName().stringValue())) {
+                instanceFields.add(field.fieldName().stringValue());
+            }
+        }
+        if (instanceFields.isEmpty() || instanceFields.size() > MAX_FIELDS) return Optional.empty();
+        return Optional.of(List.copyOf(instanceFields));
+    }
+
+    /**
+     * Compute the layout of another class, which may or may not be instrumented, by reading its class file.
+     * @param loader the class loader of the class that refers to the other class
+     * @param className the internal name of the other class
+     * @return the layout, or empty if the other class is not instrumented or gets no shadow permissions
+     */
+    static Optional<List<String>> layout(ClassLoader loader, String className) {
+        if (!InstrumentedClasses.contains(className)) return Optional.empty();
+
+        return layoutsOfOtherClasses.computeIfAbsent(className, _ -> ClassFiles.parse(loader, className).flatMap(ShadowFields::layout));
+    }
+}
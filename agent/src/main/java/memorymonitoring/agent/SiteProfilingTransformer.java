@@ -0,0 +1,105 @@
+package memorymonitoring.agent;
+
+import java.lang.classfile.ClassFile;
+import java.lang.classfile.ClassModel;
+import java.lang.classfile.ClassTransform;
+import java.lang.classfile.CodeBuilder;
+import java.lang.classfile.CodeElement;
+import java.lang.classfile.CodeModel;
+import java.lang.classfile.CodeTransform;
+import java.lang.classfile.MethodBuilder;
+import java.lang.classfile.MethodElement;
+import java.lang.classfile.MethodModel;
+import java.lang.constant.ConstantDescs;
+import java.lang.constant.DynamicConstantDesc;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.security.ProtectionDomain;
+import java.util.Optional;
+
+import static memorymonitoring.agent.RuntimeApiHelper.*;
+
+/**
+ * Counts the executions of the access sites of a class (see {@link AccessSites}) with memorymonitoring.runtime.SiteProfiler.
+ * <p>
+ * Every site gets an id at transform time. The id is passed to SiteProfiler#enter as a dynamic constant, whose bootstrap
+ * arguments describe the site (method, bytecode offset, line, kind), so that the runtime learns the description of a site
+ * when the site is executed for the first time, without registering all sites of a class up front.
+ * <p>
+ * Must run before the other transformers, so that the offsets and the sites are those of the original class file.
+ * The other transformers recognize the sites by the constant, see {@link AccessSites#siteIdOf}. Sites that are not
+ * monitored (see {@link MonitoredAccesses}) are not counted.
+ */
+final class SiteProfilingTransformer implements ClassFileTransformer {
+
+    private final AccessSites accessSites;
+    private final MonitoredAccesses monitored;
+    private final Deinstrumentation deinstrumentation;
+
+    SiteProfilingTransformer(AccessSites accessSites, MonitoredAccesses monitored, Deinstrumentation deinstrumentation) {
+        this.accessSites = accessSites;
+        this.monitored = monitored;
+        this.deinstrumentation = deinstrumentation;
+    }
+
+    @Override
+    public byte[] transform(Module           module,
+                            ClassLoader      loader,
+                            String           className,
+                            Class<?>         classBeingRedefined,
+                            ProtectionDomain protectionDomain,
+                            byte[]           classfileBuffer)
+            throws IllegalClassFormatException {
+
+        if (!InstrumentedClasses.contains(className)) {
+            return null;
+        }
+
+        ClassFile classFile = ClassFile.of();
+        ClassModel classModel = classFile.parse(classfileBuffer);
+        // dynamic constants require class file version 55 (Java 11).
+        if (classModel.majorVersion() < ClassFile.JAVA_11_VERSION) return null;
+
+        int siteCount = AccessSites.of(loader, classModel).size();
+        if (siteCount == 0) return null;
+        // Methods are transformed in the order of the class file, like AccessSites#of numbers the sites.
+        int[] nextSiteId = { accessSites.reserve(className, siteCount) };
+        Exemptions exemptions = Exemptions.withInherited(loader, classModel);
+
+        return classFile.transformClass(classModel, ClassTransform.transformingMethods((MethodBuilder methodBuilder, MethodElement methodElement) -> {
+            if (methodElement instanceof CodeModel codeModel) {
+                MethodModel method = codeModel.parent().orElseThrow();
+                methodBuilder.transformCode(codeModel, profileSites(new AccessSites.Walker(loader, classModel, exemptions, method), method, nextSiteId));
+            } else {
+                methodBuilder.with(methodElement);
+            }
+        }));
+    }
+
+    private CodeTransform profileSites(AccessSites.Walker walker, MethodModel method, int[] nextSiteId) {
+        return (CodeBuilder codeBuilder, CodeElement codeElement) -> {
+            Optional<String> kind = walker.accept(codeElement);
+            if (kind.isPresent()) {
+                int id = nextSiteId[0]++;
+                if (!monitored.site(codeElement)) {
+                    // Not checked, so not counted either. The site keeps its id, so that the ids do not depend on the options.
+                    codeBuilder.with(codeElement);
+                    return;
+                }
+                DynamicConstantDesc<Integer> siteId = DynamicConstantDesc.ofNamed(SITE_BOOTSTRAP, "site", ConstantDescs.CD_int,
+                        id, method.methodName().stringValue(), method.methodType().stringValue(), walker.bci(), walker.line(), kind.get());
+                // [...]
+                codeBuilder.ldc(siteId);
+                // [..., siteId]
+                if (deinstrumentation.isUnchecked(id)) {
+                    // Neither counted nor checked anymore, the constant only marks the site for the other transformers.
+                    codeBuilder.pop();
+                } else {
+                    invokeEnterSite(codeBuilder);
+                }
+                // [...]
+            }
+            codeBuilder.with(codeElement);
+        };
+    }
+}
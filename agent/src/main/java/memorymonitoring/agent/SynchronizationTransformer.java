@@ -0,0 +1,363 @@
+package memorymonitoring.agent;
+
+import java.lang.classfile.ClassFile;
+import java.lang.classfile.ClassModel;
+import java.lang.classfile.ClassTransform;
+import java.lang.classfile.CodeBuilder;
+import java.lang.classfile.CodeElement;
+import java.lang.classfile.CodeTransform;
+import java.lang.classfile.Label;
+import java.lang.classfile.MethodModel;
+import java.lang.classfile.Opcode;
+import java.lang.classfile.TypeKind;
+import java.lang.classfile.instruction.InvokeInstruction;
+import java.lang.classfile.instruction.MonitorInstruction;
+import java.lang.classfile.instruction.ReturnInstruction;
+import java.lang.constant.ClassDesc;
+import java.lang.constant.MethodTypeDesc;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.lang.reflect.AccessFlag;
+import java.security.ProtectionDomain;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import static java.lang.constant.ConstantDescs.*;
+import static memorymonitoring.agent.RuntimeApiHelper.*;
+
+/**
+ * Reports synchronization to the race detector, so that it can derive the happens-before relation:
+ * monitors (synchronized blocks and methods), java.util.concurrent.locks.Lock, and Thread#start / Thread#join, also of
+ * subclasses of Thread and of threads started by Thread.Builder#start or Thread#startVirtualThread.
+ * Only used in {@link AgentOptions.Mode#RACES} mode. Volatile fields are recognised by the runtime.
+ */
+final class SynchronizationTransformer implements ClassFileTransformer {
+
+    @Override
+    public byte[] transform(Module           module,
+                            ClassLoader      loader,
+                            String           className,
+                            Class<?>         classBeingRedefined,
+                            ProtectionDomain protectionDomain,
+                            byte[]           classfileBuffer)
+            throws IllegalClassFormatException {
+
+        if (!InstrumentedClasses.contains(className)) {
+            return null;
+        }
+
+        ClassFile classFile = ClassFile.of();
+        ClassModel classModel = classFile.parse(classfileBuffer);
+        ClassDesc thisClass = classModel.thisClass().asSymbol();
+
+        ClassTransform synchronizationEdges = ClassTransform.transformingMethodBodies(
+                (CodeBuilder codeBuilder, CodeElement codeElement) -> {
+                    if (codeElement instanceof MonitorInstruction monitorInstruction && monitorInstruction.opcode() == Opcode.MONITORENTER) {
+                        // monitorenter: [..., lock] -> [...]
+
+                        // Operand stack:
+                        // [..., lock]
+                        codeBuilder.dup();
+                        // [..., lock, lock]
+                        codeBuilder.with(codeElement);
+                        // [..., lock]
+                        invokeAcquire(codeBuilder);
+                        // [...]
+                    }
+
+                    else if (codeElement instanceof MonitorInstruction monitorInstruction && monitorInstruction.opcode() == Opcode.MONITOREXIT) {
+                        // monitorexit: [..., lock] -> [...]
+
+                        // Operand stack:
+                        // [..., lock]
+                        codeBuilder.dup();
+                        // [..., lock, lock]
+                        invokeRelease(codeBuilder);
+                        // [..., lock]
+                        codeBuilder.with(codeElement);
+                        // [...]
+                    }
+
+                    else if (codeElement instanceof InvokeInstruction invokeInstruction && isLockAcquire(invokeInstruction)) {
+                        // lock: [..., lock] -> [...]
+                        codeBuilder.dup();
+                        // [..., lock, lock]
+                        codeBuilder.with(codeElement);
+                        // [..., lock]
+                        invokeAcquire(codeBuilder);
+                        // [...]
+                    }
+
+                    else if (codeElement instanceof InvokeInstruction invokeInstruction && isLockTryAcquire(invokeInstruction)) {
+                        genTryLock(codeBuilder, invokeInstruction);
+                    }
+
+                    else if (codeElement instanceof InvokeInstruction invokeInstruction && isLockRelease(invokeInstruction)) {
+                        // unlock: [..., lock] -> [...]
+                        codeBuilder.dup();
+                        // [..., lock, lock]
+                        invokeRelease(codeBuilder);
+                        // [..., lock]
+                        codeBuilder.with(codeElement);
+                        // [...]
+                    }
+
+                    else if (codeElement instanceof InvokeInstruction invokeInstruction && isThreadStart(invokeInstruction)) {
+                        // start: [..., thread] -> [...]
+                        codeBuilder.dup();
+                        // [..., thread, thread]
+                        invokeIfThread(codeBuilder, invokeInstruction, RuntimeApiHelper::invokeThreadStart);
+                        // [..., thread]
+                        codeBuilder.with(codeElement);
+                        // [...]
+                    }
+
+                    else if (codeElement instanceof InvokeInstruction invokeInstruction && isThreadStartWithTask(invokeInstruction)) {
+                        // Thread.Builder#start, Thread#startVirtualThread: [..., (builder), task] -> [..., thread]
+                        // The thread runs as soon as it is created, so the edge goes through its task instead.
+                        invokeThreadStartTask(codeBuilder);
+                        // [..., (builder), task']
+                        codeBuilder.with(codeElement);
+                        // [..., thread]
+                    }
+
+                    else if (codeElement instanceof InvokeInstruction invokeInstruction && isThreadJoin(invokeInstruction)) {
+                        genThreadJoin(codeBuilder, invokeInstruction);
+                    }
+
+                    else {
+                        // proceed with normal code
+                        codeBuilder.with(codeElement);
+                    }
+                });
+
+        return classFile.transformClass(classModel, synchronizationEdges
+                .andThen(ClassTransform.transformingMethodBodies(
+                        methodModel -> isSynchronizedMethod(methodModel) && !methodModel.flags().has(AccessFlag.STATIC),
+                        CodeTransform.ofStateful(() -> new SynchronizedMethodTransform(thisClass, false))))
+                .andThen(ClassTransform.transformingMethodBodies(
+                        methodModel -> isSynchronizedMethod(methodModel) && methodModel.flags().has(AccessFlag.STATIC),
+                        CodeTransform.ofStateful(() -> new SynchronizedMethodTransform(thisClass, true)))));
+    }
+
+    /**
+     * The monitor of a synchronized method is acquired and released by the JVM itself,
+     * so the acquire is reported at the start of the method, and the release at every (normal or abrupt) exit.
+     */
+    private static final class SynchronizedMethodTransform implements CodeTransform {
+
+        private final ClassDesc thisClass;
+        private final boolean isStatic;
+        private Label start;
+
+        private SynchronizedMethodTransform(ClassDesc thisClass, boolean isStatic) {
+            this.thisClass = thisClass;
+            this.isStatic = isStatic;
+        }
+
+        @Override
+        public void atStart(CodeBuilder codeBuilder) {
+            // [...]
+            loadMonitor(codeBuilder);
+            // [..., lock]
+            invokeAcquire(codeBuilder);
+            // [...]
+            start = codeBuilder.newBoundLabel();
+        }
+
+        @Override
+        public void accept(CodeBuilder codeBuilder, CodeElement codeElement) {
+            if (codeElement instanceof ReturnInstruction) {
+                // [..., returnValue]
+                loadMonitor(codeBuilder);
+                // [..., returnValue, lock]
+                invokeRelease(codeBuilder);
+                // [..., returnValue]
+            }
+            codeBuilder.with(codeElement);
+        }
+
+        @Override
+        public void atEnd(CodeBuilder codeBuilder) {
+            Label end = codeBuilder.newBoundLabel();
+            Label handler = codeBuilder.newBoundLabel();
+            codeBuilder.exceptionCatchAll(start, end, handler);
+            // [throwable]
+            loadMonitor(codeBuilder);
+            // [throwable, lock]
+            invokeRelease(codeBuilder);
+            // [throwable]
+            codeBuilder.athrow();
+        }
+
+        private void loadMonitor(CodeBuilder codeBuilder) {
+            if (isStatic) {
+                codeBuilder.ldc(thisClass);
+            } else {
+                codeBuilder.aload(0);
+            }
+        }
+    }
+
+    private static void genTryLock(CodeBuilder codeBuilder, InvokeInstruction invokeInstruction) {
+        // tryLock: [..., lock, (timeout, unit)] -> [..., locked]
+
+        // Operand stack:
+        // [..., lock, (timeout, unit)]
+        genDupReceiver(codeBuilder, invokeInstruction.typeSymbol());
+        // [..., lock, lock, (timeout, unit)]
+        codeBuilder.with(invokeInstruction);
+        // [..., lock, locked]
+        codeBuilder.swap();
+        // [..., locked, lock]
+        invokeAcquireIfLocked(codeBuilder);
+        // [..., locked]
+    }
+
+    private static void genThreadJoin(CodeBuilder codeBuilder, InvokeInstruction invokeInstruction) {
+        // join: [..., thread, timeout...] -> [..., (joined)]
+        MethodTypeDesc methodType = invokeInstruction.typeSymbol();
+
+        // Operand stack:
+        // [..., thread, arg1, ..., argN]
+        genDupReceiver(codeBuilder, methodType);
+        // [..., thread, thread, arg1, ..., argN]
+        codeBuilder.with(invokeInstruction);
+        if (methodType.returnType().equals(CD_void)) {
+            // [..., thread]
+            invokeIfThread(codeBuilder, invokeInstruction, RuntimeApiHelper::invokeThreadJoin);
+            // [...]
+        } else {
+            // [..., thread, joined]
+            codeBuilder.swap();
+            // [..., joined, thread]
+            invokeIfThread(codeBuilder, invokeInstruction, RuntimeApiHelper::invokeThreadJoin);
+            // [..., joined]
+        }
+    }
+
+    /** Duplicates the receiver of an invocation, below the arguments: [..., receiver, args...] -> [..., receiver, receiver, args...] */
+    private static void genDupReceiver(CodeBuilder codeBuilder, MethodTypeDesc methodType) {
+        // Operand stack:
+        // [..., receiver, arg1, ..., argN]
+        List<ClassDesc> parameters = methodType.parameterList();
+        int[] slots = new int[parameters.size()];
+        for (int i = parameters.size() - 1; i >= 0; i--) {
+            TypeKind typeKind = TypeKind.from(parameters.get(i));
+            slots[i] = codeBuilder.allocateLocal(typeKind);
+            codeBuilder.storeLocal(typeKind, slots[i]);
+        }
+        // [..., receiver]
+        codeBuilder.dup();
+        // [..., receiver, receiver]
+        for (int i = 0; i < parameters.size(); i++) {
+            codeBuilder.loadLocal(TypeKind.from(parameters.get(i)), slots[i]);
+        }
+        // [..., receiver, receiver, arg1, ..., argN]
+    }
+
+    /**
+     * Passes the receiver of an invocation on Thread or on a class that may be a subclass of Thread to a race detector hook:
+     * [..., receiver] -> [...]. Whether the class extends Thread is only known at run time, when it is loaded.
+     */
+    private static void invokeIfThread(CodeBuilder codeBuilder, InvokeInstruction invokeInstruction, Consumer<CodeBuilder> hook) {
+        if (invokeInstruction.owner().matches(CD_Thread)) {
+            hook.accept(codeBuilder);
+            return;
+        }
+
+        // Operand stack:
+        // [..., receiver]
+        codeBuilder.dup();
+        // [..., receiver, receiver]
+        codeBuilder.instanceOf(CD_Thread);
+        // [..., receiver, isThread]
+        codeBuilder.ifThenElse(Opcode.IFNE,
+                thread -> {
+                    // [..., receiver]
+                    thread.checkcast(CD_Thread);
+                    // [..., thread]
+                    hook.accept(thread);
+                    // [...]
+                },
+                other -> {
+                    // [..., receiver]
+                    other.pop();
+                    // [...]
+                });
+    }
+
+    private static boolean isLockAcquire(InvokeInstruction invokeInstruction) {
+        return LOCK_CLASSES.contains(invokeInstruction.owner().asSymbol())
+                && (invokeInstruction.name().equalsString("lock") || invokeInstruction.name().equalsString("lockInterruptibly"))
+                && invokeInstruction.typeSymbol().equals(MTD_void);
+    }
+
+    private static boolean isLockTryAcquire(InvokeInstruction invokeInstruction) {
+        return LOCK_CLASSES.contains(invokeInstruction.owner().asSymbol())
+                && invokeInstruction.name().equalsString("tryLock")
+                && (invokeInstruction.typeSymbol().equals(MTD_TRY_LOCK) || invokeInstruction.typeSymbol().equals(MTD_TRY_LOCK_TIMED));
+    }
+
+    private static boolean isLockRelease(InvokeInstruction invokeInstruction) {
+        return LOCK_CLASSES.contains(invokeInstruction.owner().asSymbol())
+                && invokeInstruction.name().equalsString("unlock")
+                && invokeInstruction.typeSymbol().equals(MTD_void);
+    }
+
+    /** Thread#start, also when invoked on a subclass of Thread, which {@link #invokeIfThread} tells apart at run time. */
+    private static boolean isThreadStart(InvokeInstruction invokeInstruction) {
+        return invokeInstruction.opcode() == Opcode.INVOKEVIRTUAL
+                && invokeInstruction.name().equalsString("start")
+                && invokeInstruction.typeSymbol().equals(MTD_void);
+    }
+
+    private static boolean isThreadStartWithTask(InvokeInstruction invokeInstruction) {
+        return switch (invokeInstruction.opcode()) {
+            case INVOKEINTERFACE -> THREAD_BUILDER_CLASSES.contains(invokeInstruction.owner().asSymbol())
+                    && invokeInstruction.name().equalsString("start")
+                    && invokeInstruction.typeSymbol().equals(MTD_START_WITH_TASK);
+            case INVOKESTATIC -> invokeInstruction.owner().matches(CD_Thread)
+                    && invokeInstruction.name().equalsString("startVirtualThread")
+                    && invokeInstruction.typeSymbol().equals(MTD_START_WITH_TASK);
+            default -> false;
+        };
+    }
+
+    /** Thread#join, also when invoked on a subclass of Thread, which {@link #invokeIfThread} tells apart at run time. */
+    private static boolean isThreadJoin(InvokeInstruction invokeInstruction) {
+        return invokeInstruction.opcode() == Opcode.INVOKEVIRTUAL
+                && invokeInstruction.name().equalsString("join")
+                && (invokeInstruction.owner().matches(CD_Thread) || MTDS_THREAD_JOIN.contains(invokeInstruction.typeSymbol()));
+    }
+
+    private static boolean isSynchronizedMethod(MethodModel methodModel) {
+        return methodModel.flags().has(AccessFlag.SYNCHRONIZED);
+    }
+
+    private static final String LOCKS_PACKAGE = "java.util.concurrent.locks";
+
+    private static final Set<ClassDesc> LOCK_CLASSES = Set.of(
+            ClassDesc.of(LOCKS_PACKAGE, "Lock"),
+            ClassDesc.of(LOCKS_PACKAGE, "ReentrantLock"),
+            ClassDesc.of(LOCKS_PACKAGE + ".ReentrantReadWriteLock$ReadLock"),
+            ClassDesc.of(LOCKS_PACKAGE + ".ReentrantReadWriteLock$WriteLock"));
+
+    private static final ClassDesc CD_Thread = ClassDesc.of("java.lang", "Thread");
+    private static final ClassDesc CD_Runnable = ClassDesc.of("java.lang", "Runnable");
+
+    private static final Set<ClassDesc> THREAD_BUILDER_CLASSES = Set.of(
+            ClassDesc.of("java.lang.Thread$Builder"),
+            ClassDesc.of("java.lang.Thread$Builder$OfPlatform"),
+            ClassDesc.of("java.lang.Thread$Builder$OfVirtual"));
+
+    private static final MethodTypeDesc MTD_TRY_LOCK = MethodTypeDesc.of(CD_boolean);
+    private static final MethodTypeDesc MTD_TRY_LOCK_TIMED = MethodTypeDesc.of(CD_boolean, CD_long, ClassDesc.of("java.util.concurrent", "TimeUnit"));
+    private static final MethodTypeDesc MTD_START_WITH_TASK = MethodTypeDesc.of(CD_Thread, CD_Runnable);
+    private static final Set<MethodTypeDesc> MTDS_THREAD_JOIN = Set.of(
+            MTD_void,
+            MethodTypeDesc.of(CD_void, CD_long),
+            MethodTypeDesc.of(CD_void, CD_long, CD_int),
+            MethodTypeDesc.of(CD_boolean, ClassDesc.of("java.time", "Duration")));
+}
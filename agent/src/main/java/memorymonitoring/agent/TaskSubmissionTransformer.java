@@ -0,0 +1,348 @@
+package memorymonitoring.agent;
+
+import java.lang.classfile.ClassFile;
+import java.lang.classfile.ClassModel;
+import java.lang.classfile.ClassTransform;
+import java.lang.classfile.CodeBuilder;
+import java.lang.classfile.CodeElement;
+import java.lang.classfile.CodeTransform;
+import java.lang.classfile.Label;
+import java.lang.classfile.MethodModel;
+import java.lang.classfile.Opcode;
+import java.lang.classfile.TypeKind;
+import java.lang.classfile.instruction.InvokeInstruction;
+import java.lang.classfile.instruction.ReturnInstruction;
+import java.lang.constant.ClassDesc;
+import java.lang.constant.ConstantDescs;
+import java.lang.constant.MethodTypeDesc;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.lang.reflect.AccessFlag;
+import java.security.ProtectionDomain;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static memorymonitoring.agent.RuntimeApiHelper.*;
+
+/**
+ * Propagates the permissions of a thread that submits a task to the worker thread which executes the task.
+ * <ul>
+ *     <li>Task arguments passed to Executor, ExecutorService, ForkJoinPool and CompletableFuture (*Async) methods
+ *     are wrapped using TaskPermissions#delegate, also the collections of tasks passed to invokeAll and invokeAny.</li>
+ *     <li>The tasks passed to Executor#execute stay in the queue of the executor, so the executor may hand them back:
+ *     Executor#execute and ThreadPoolExecutor#remove are replaced by TaskPermissions#execute and #remove, which keep track
+ *     of the queued wrappers of a task, and the wrappers returned by shutdownNow are unwrapped.</li>
+ *     <li>ForkJoinTask#fork and all overloads of ForkJoinTask#invokeAll register a delegation for the forked tasks,
+ *     which is installed and uninstalled by the compute method of the task (the exec method of tasks that extend
+ *     ForkJoinTask itself). Subclasses are recognised through their superclasses, whose class files are read.</li>
+ * </ul>
+ * Only the invocations in instrumented classes are recognised, e.g. not the tasks that a library submits internally.
+ */
+final class TaskSubmissionTransformer implements ClassFileTransformer {
+
+    @Override
+    public byte[] transform(Module           module,
+                            ClassLoader      loader,
+                            String           className,
+                            Class<?>         classBeingRedefined,
+                            ProtectionDomain protectionDomain,
+                            byte[]           classfileBuffer)
+            throws IllegalClassFormatException {
+
+        if (!InstrumentedClasses.contains(className)) {
+            return null;
+        }
+
+        ClassFile classFile = ClassFile.of();
+        ClassModel classModel = classFile.parse(classfileBuffer);
+
+        ClassTransform wrapSubmittedTasks = ClassTransform.transformingMethodBodies(
+                (CodeBuilder codeBuilder, CodeElement codeElement) -> {
+                    if (codeElement instanceof InvokeInstruction invokeInstruction && isExecutorExecute(invokeInstruction)) {
+                        // execute: [..., executor, task] -> [...]
+                        invokeExecuteTask(codeBuilder);
+                        // [...]
+                    }
+
+                    else if (codeElement instanceof InvokeInstruction invokeInstruction
+                            && (isTaskSubmission(invokeInstruction) || isForkJoinTaskInvokeAll(invokeInstruction))) {
+                        genDelegateTaskArguments(codeBuilder, invokeInstruction);
+                        codeBuilder.with(codeElement);
+                    }
+
+                    else if (codeElement instanceof InvokeInstruction invokeInstruction && isExecutorRemove(invokeInstruction)) {
+                        // remove: [..., executor, task] -> [..., removed]
+                        invokeRemoveTask(codeBuilder);
+                        // [..., removed]
+                    }
+
+                    else if (codeElement instanceof InvokeInstruction invokeInstruction && isExecutorShutdownNow(invokeInstruction)) {
+                        // shutdownNow: [..., executor] -> [..., tasks]
+                        codeBuilder.with(codeElement);
+                        // [..., delegatingTasks]
+                        invokeUndelegateTasks(codeBuilder);
+                        // [..., tasks]
+                    }
+
+                    else if (codeElement instanceof InvokeInstruction invokeInstruction && isForkJoinTaskFork(invokeInstruction)) {
+                        // fork: [..., task] -> [..., task]
+
+                        // Operand stack:
+                        // [..., task]
+                        invokeDelegateTask(codeBuilder, FORK_JOIN_TASK_CLASSDESC);
+                        // [..., task]
+                        ClassDesc taskType = invokeInstruction.owner().asSymbol();
+                        if (!taskType.equals(FORK_JOIN_TASK_CLASSDESC)) {
+                            codeBuilder.checkcast(taskType);
+                        }
+                        codeBuilder.with(codeElement);
+                        // [..., task]
+                    }
+
+                    else {
+                        // proceed with normal code
+                        codeBuilder.with(codeElement);
+                    }
+                });
+
+        TaskKind taskKind = classModel.superclass().map(superclass -> taskKind(loader, superclass.asInternalName())).orElse(TaskKind.NONE);
+        if (taskKind != TaskKind.NONE) {
+            return classFile.transformClass(classModel, wrapSubmittedTasks.andThen(
+                    ClassTransform.transformingMethodBodies(taskKind::isTaskMethod,
+                            CodeTransform.ofStateful(ComputeMethodTransform::new))));
+        } else {
+            return classFile.transformClass(classModel, wrapSubmittedTasks);
+        }
+    }
+
+    /** Which method of a ForkJoinTask runs the task. */
+    private enum TaskKind {
+        /** Not a ForkJoinTask. */
+        NONE,
+        /** RecursiveTask, RecursiveAction and CountedCompleter implement ForkJoinTask#exec by calling compute. */
+        COMPUTE,
+        /** Subclasses of ForkJoinTask itself implement ForkJoinTask#exec. */
+        EXEC;
+
+        boolean isTaskMethod(MethodModel methodModel) {
+            boolean nameMatches = switch (this) {
+                case NONE -> false;
+                case COMPUTE -> methodModel.methodName().equalsString("compute");
+                case EXEC -> methodModel.methodName().equalsString("exec") && methodModel.methodTypeSymbol().equals(MTD_EXEC);
+            };
+            return nameMatches
+                    && methodModel.methodTypeSymbol().parameterCount() == 0
+                    && !methodModel.flags().has(AccessFlag.STATIC)
+                    && !methodModel.flags().has(AccessFlag.ABSTRACT)
+                    && !methodModel.flags().has(AccessFlag.BRIDGE);
+        }
+    }
+
+    // By internal class name, for the classes that are not ForkJoinTask or one of its subclasses in FORK_JOIN_TASK_CLASSES.
+    private static final ConcurrentHashMap<String, TaskKind> taskKinds = new ConcurrentHashMap<>();
+
+    /**
+     * Whether a class is a ForkJoinTask, read from the class files of the class and its superclasses, because the class
+     * hierarchy is not known at transformation time.
+     */
+    private static TaskKind taskKind(ClassLoader loader, String className) {
+        if (className.equals(FORK_JOIN_TASK_INTERNAL_NAME)) return TaskKind.EXEC;
+        if (FORK_JOIN_TASK_CLASSES.contains(className)) return TaskKind.COMPUTE;
+        // other classes of the JDK, e.g. java/lang/Object, end the search.
+        if (className.startsWith("java/")) return TaskKind.NONE;
+
+        // not computeIfAbsent, because the kinds of the superclasses are cached recursively.
+        TaskKind taskKind = taskKinds.get(className);
+        if (taskKind == null) {
+            taskKind = ClassFiles.parse(loader, className)
+                    .flatMap(ClassModel::superclass)
+                    .map(superclass -> taskKind(loader, superclass.asInternalName()))
+                    .orElse(TaskKind.NONE);
+            taskKinds.putIfAbsent(className, taskKind);
+        }
+        return taskKind;
+    }
+
+    /**
+     * Wraps the compute (or exec) method of a ForkJoinTask: installs the delegation of the forking thread at the start of
+     * the method, and uninstalls it again when the method returns, or completes abruptly.
+     */
+    private static final class ComputeMethodTransform implements CodeTransform {
+
+        private int token;
+        private Label start;
+
+        @Override
+        public void atStart(CodeBuilder codeBuilder) {
+            // [...]
+            codeBuilder.aload(0);
+            // [..., this]
+            invokeEnterTask(codeBuilder);
+            // [..., token]
+            token = codeBuilder.allocateLocal(TypeKind.REFERENCE);
+            codeBuilder.astore(token);
+            // [...]
+            start = codeBuilder.newBoundLabel();
+        }
+
+        @Override
+        public void accept(CodeBuilder codeBuilder, CodeElement codeElement) {
+            if (codeElement instanceof ReturnInstruction) {
+                // [..., returnValue]
+                codeBuilder.aload(token);
+                // [..., returnValue, token]
+                invokeExitTask(codeBuilder);
+                // [..., returnValue]
+            }
+            codeBuilder.with(codeElement);
+        }
+
+        @Override
+        public void atEnd(CodeBuilder codeBuilder) {
+            Label end = codeBuilder.newBoundLabel();
+            Label handler = codeBuilder.newBoundLabel();
+            codeBuilder.exceptionCatchAll(start, end, handler);
+            // [throwable]
+            codeBuilder.aload(token);
+            // [throwable, token]
+            invokeExitTask(codeBuilder);
+            // [throwable]
+            codeBuilder.athrow();
+        }
+    }
+
+    private static void genDelegateTaskArguments(CodeBuilder codeBuilder, InvokeInstruction invokeInstruction) {
+        // Operand stack:
+        // [..., arg1, ..., argN]
+        List<ClassDesc> parameters = invokeInstruction.typeSymbol().parameterList();
+        int[] slots = new int[parameters.size()];
+        for (int i = parameters.size() - 1; i >= 0; i--) {
+            TypeKind typeKind = TypeKind.from(parameters.get(i));
+            slots[i] = codeBuilder.allocateLocal(typeKind);
+            codeBuilder.storeLocal(typeKind, slots[i]);
+        }
+        // [...]
+        for (int i = 0; i < parameters.size(); i++) {
+            ClassDesc parameter = parameters.get(i);
+            codeBuilder.loadLocal(TypeKind.from(parameter), slots[i]);
+            if (isTasksArgument(invokeInstruction, parameter)) {
+                // [..., tasks]
+                if (invokeInstruction.opcode() == Opcode.INVOKESTATIC) {
+                    // ForkJoinTask#invokeAll returns the collection it is passed, so the tasks are registered, not wrapped.
+                    invokeDelegateForkJoinTasks(codeBuilder);
+                } else {
+                    invokeDelegateCallables(codeBuilder);
+                }
+                // [..., delegatingTasks]
+            } else if (TASK_TYPES.contains(parameter)) {
+                // [..., task]
+                invokeDelegateTask(codeBuilder, parameter);
+                // [..., delegatingTask]
+            }
+        }
+        // [..., arg1, ..., argN]
+    }
+
+    /** Whether an argument is the collection of tasks passed to invokeAll or invokeAny. */
+    private static boolean isTasksArgument(InvokeInstruction invokeInstruction, ClassDesc parameter) {
+        return parameter.equals(CD_COLLECTION)
+                && (invokeInstruction.name().equalsString("invokeAll") || invokeInstruction.name().equalsString("invokeAny"));
+    }
+
+    private static boolean isTaskSubmission(InvokeInstruction invokeInstruction) {
+        if (invokeInstruction.opcode() == Opcode.INVOKESPECIAL) return false;
+        if (!SUBMITTING_CLASSES.contains(invokeInstruction.owner().asSymbol())) return false;
+
+        String methodName = invokeInstruction.name().stringValue();
+        if (!SUBMITTING_METHODS.contains(methodName) && !methodName.endsWith("Async")) return false;
+
+        return invokeInstruction.typeSymbol().parameterList().stream()
+                .anyMatch(parameter -> TASK_TYPES.contains(parameter) || isTasksArgument(invokeInstruction, parameter));
+    }
+
+    private static boolean isExecutorExecute(InvokeInstruction invokeInstruction) {
+        return invokeInstruction.opcode() != Opcode.INVOKESPECIAL
+                && SUBMITTING_CLASSES.contains(invokeInstruction.owner().asSymbol())
+                && invokeInstruction.name().equalsString("execute")
+                && invokeInstruction.typeSymbol().equals(MTD_EXECUTE);
+    }
+
+    private static boolean isExecutorRemove(InvokeInstruction invokeInstruction) {
+        return invokeInstruction.opcode() == Opcode.INVOKEVIRTUAL
+                && THREAD_POOL_EXECUTOR_CLASSES.contains(invokeInstruction.owner().asSymbol())
+                && invokeInstruction.name().equalsString("remove")
+                && invokeInstruction.typeSymbol().equals(MTD_REMOVE);
+    }
+
+    private static boolean isExecutorShutdownNow(InvokeInstruction invokeInstruction) {
+        return invokeInstruction.opcode() != Opcode.INVOKESPECIAL
+                && SUBMITTING_CLASSES.contains(invokeInstruction.owner().asSymbol())
+                && invokeInstruction.name().equalsString("shutdownNow")
+                && invokeInstruction.typeSymbol().equals(MTD_SHUTDOWN_NOW);
+    }
+
+    private static boolean isForkJoinTaskFork(InvokeInstruction invokeInstruction) {
+        return invokeInstruction.opcode() == Opcode.INVOKEVIRTUAL
+                && invokeInstruction.name().equalsString("fork")
+                && invokeInstruction.typeSymbol().equals(MTD_FORK);
+    }
+
+    private static boolean isForkJoinTaskInvokeAll(InvokeInstruction invokeInstruction) {
+        // the owner is not checked, since javac uses the calling subclass as owner for unqualified invocations.
+        return invokeInstruction.opcode() == Opcode.INVOKESTATIC
+                && invokeInstruction.name().equalsString("invokeAll")
+                && MTDS_INVOKE_ALL.contains(invokeInstruction.typeSymbol());
+    }
+
+    private static final String CONCURRENT_PACKAGE = "java.util.concurrent";
+
+    private static final Set<ClassDesc> SUBMITTING_CLASSES = Set.of(
+            ClassDesc.of(CONCURRENT_PACKAGE, "Executor"),
+            ClassDesc.of(CONCURRENT_PACKAGE, "ExecutorService"),
+            ClassDesc.of(CONCURRENT_PACKAGE, "ScheduledExecutorService"),
+            ClassDesc.of(CONCURRENT_PACKAGE, "AbstractExecutorService"),
+            ClassDesc.of(CONCURRENT_PACKAGE, "ThreadPoolExecutor"),
+            ClassDesc.of(CONCURRENT_PACKAGE, "ScheduledThreadPoolExecutor"),
+            ClassDesc.of(CONCURRENT_PACKAGE, "ForkJoinPool"),
+            ClassDesc.of(CONCURRENT_PACKAGE, "CompletableFuture"),
+            ClassDesc.of(CONCURRENT_PACKAGE, "CompletionStage"));
+
+    private static final Set<ClassDesc> THREAD_POOL_EXECUTOR_CLASSES = Set.of(
+            ClassDesc.of(CONCURRENT_PACKAGE, "ThreadPoolExecutor"),
+            ClassDesc.of(CONCURRENT_PACKAGE, "ScheduledThreadPoolExecutor"));
+
+    private static final Set<String> SUBMITTING_METHODS = Set.of(
+            "execute", "submit", "invoke", "invokeAll", "invokeAny", "schedule", "scheduleAtFixedRate", "scheduleWithFixedDelay");
+
+    private static final ClassDesc CD_RUNNABLE = ClassDesc.of("java.lang", "Runnable");
+    private static final ClassDesc CD_COLLECTION = ClassDesc.of("java.util", "Collection");
+
+    private static final Set<ClassDesc> TASK_TYPES = Set.of(
+            CD_RUNNABLE,
+            ClassDesc.of(CONCURRENT_PACKAGE, "Callable"),
+            ClassDesc.of("java.util.function", "Supplier"),
+            ClassDesc.of("java.util.function", "Function"),
+            ClassDesc.of("java.util.function", "Consumer"),
+            ClassDesc.of("java.util.function", "BiFunction"),
+            ClassDesc.of("java.util.function", "BiConsumer"),
+            FORK_JOIN_TASK_CLASSDESC,
+            FORK_JOIN_TASK_CLASSDESC.arrayType());
+
+    // By internal name, see #taskKind.
+    private static final String FORK_JOIN_TASK_INTERNAL_NAME = "java/util/concurrent/ForkJoinTask";
+    private static final Set<String> FORK_JOIN_TASK_CLASSES = Set.of(
+            "java/util/concurrent/RecursiveTask",
+            "java/util/concurrent/RecursiveAction",
+            "java/util/concurrent/CountedCompleter");
+
+    private static final MethodTypeDesc MTD_FORK = MethodTypeDesc.of(FORK_JOIN_TASK_CLASSDESC);
+    private static final MethodTypeDesc MTD_EXEC = MethodTypeDesc.of(ConstantDescs.CD_boolean);
+    private static final Set<MethodTypeDesc> MTDS_INVOKE_ALL = Set.of(
+            MethodTypeDesc.of(ConstantDescs.CD_void, FORK_JOIN_TASK_CLASSDESC, FORK_JOIN_TASK_CLASSDESC),
+            MethodTypeDesc.of(ConstantDescs.CD_void, FORK_JOIN_TASK_CLASSDESC.arrayType()),
+            MethodTypeDesc.of(CD_COLLECTION, CD_COLLECTION));
+    private static final MethodTypeDesc MTD_EXECUTE = MethodTypeDesc.of(ConstantDescs.CD_void, CD_RUNNABLE);
+    private static final MethodTypeDesc MTD_REMOVE = MethodTypeDesc.of(ConstantDescs.CD_boolean, CD_RUNNABLE);
+    private static final MethodTypeDesc MTD_SHUTDOWN_NOW = MethodTypeDesc.of(ClassDesc.of("java.util", "List"));
+}
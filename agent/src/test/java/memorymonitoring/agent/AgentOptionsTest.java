@@ -0,0 +1,71 @@
+package memorymonitoring.agent;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public final class AgentOptionsTest {
+
+    @Test
+    public void testDefaults() {
+        for (String agentArgs : new String[] {null, "", " "}) {
+            AgentOptions options = AgentOptions.parse(agentArgs);
+            assertEquals(AgentOptions.Mode.PERMISSIONS, options.mode());
+            assertNull(options.traceDirectory());
+            assertFalse(options.offHeapArrays());
+            assertEquals(List.of(), options.includedPackages());
+            assertNull(options.statisticsFile());
+            assertTrue(options.monitoredAccesses().isAll());
+            assertFalse(options.profileSites());
+        }
+    }
+
+    @Test
+    public void testAllOptions() {
+        AgentOptions options = AgentOptions.parse("mode=permissions, trace=/tmp/trace,arrays=offheap,profile=5,deinstrument=1000,"
+                + "include=com.example,include=org.example,stats=/tmp/stats,monitor=all");
+        assertEquals(AgentOptions.Mode.PERMISSIONS, options.mode());
+        assertEquals("/tmp/trace", options.traceDirectory());
+        assertTrue(options.offHeapArrays());
+        assertEquals(5, options.profileTop());
+        assertEquals(1000, options.deinstrumentThreshold());
+        assertEquals(List.of("com.example", "org.example"), options.includedPackages());
+        assertEquals("/tmp/stats", options.statisticsFile());
+        assertTrue(options.monitoredAccesses().isAll());
+    }
+
+    @Test
+    public void testModeRaces() {
+        AgentOptions options = AgentOptions.parse("mode=races,profile=5,monitor=all");
+        assertEquals(AgentOptions.Mode.RACES, options.mode());
+        assertTrue(options.monitoredAccesses().isAll());
+        assertEquals(0, options.deinstrumentThreshold());
+    }
+
+    @Test
+    public void testMonitoredAccessesCanBeSelectedInModePermissions() {
+        AgentOptions options = AgentOptions.parse("mode=permissions,monitor=writes,monitor=arrays");
+        assertEquals(new MonitoredAccesses(false, false, false, true), options.monitoredAccesses());
+    }
+
+    @Test
+    public void testSitesAreProfiledForTheProfileAndForDeinstrumentation() {
+        assertTrue(AgentOptions.parse("profile=1").profileSites());
+        assertTrue(AgentOptions.parse("deinstrument=1").profileSites());
+    }
+
+    @Test
+    public void testInvalidOptionsAreRejected() {
+        for (String agentArgs : new String[] {"mode", "mode=locks", "arrays=disk", "profile=0", "deinstrument=-1", "monitor=reads", "verbose=true",
+                "mode=races,monitor=writes", "mode=races,monitor=arrays", "mode=races,monitor=statics",
+                "mode=races,deinstrument=1000", "deinstrument=1000,mode=races"}) {
+            assertThrows(IllegalArgumentException.class, () -> AgentOptions.parse(agentArgs), agentArgs);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package memorymonitoring.agent;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.classfile.Opcode;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public final class MonitoredAccessesTest {
+
+    @Test
+    public void testAllAccessesByDefault() {
+        assertEquals(MonitoredAccesses.ALL, MonitoredAccesses.of(List.of()));
+        assertEquals(MonitoredAccesses.ALL, MonitoredAccesses.of(List.of("all")));
+        assertEquals(MonitoredAccesses.ALL, MonitoredAccesses.of(List.of("fields", "arrays")));
+        assertEquals("", MonitoredAccesses.ALL.optionValue());
+    }
+
+    @Test
+    public void testKindsOfMemoryAddUpAndWritesRestrictThem() {
+        assertEquals(new MonitoredAccesses(false, true, true, true), MonitoredAccesses.of(List.of("writes")));
+        assertEquals(new MonitoredAccesses(true, false, true, true), MonitoredAccesses.of(List.of("statics", "arrays")));
+        assertEquals(new MonitoredAccesses(false, false, false, true), MonitoredAccesses.of(List.of("writes", "arrays")));
+        assertEquals(new MonitoredAccesses(true, true, true, false), MonitoredAccesses.of(List.of("fields")));
+    }
+
+    @Test
+    public void testUnknownKindIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> MonitoredAccesses.of(List.of("reads")));
+    }
+
+    @Test
+    public void testOptionValueSelectsTheSameAccesses() {
+        List<List<String>> selections = List.of(List.of("writes"), List.of("fields"), List.of("statics"), List.of("arrays"),
+                List.of("writes", "statics"), List.of("statics", "arrays"), List.of("writes", "fields", "arrays"));
+        for (List<String> kinds : selections) {
+            MonitoredAccesses monitoredAccesses = MonitoredAccesses.of(kinds);
+            assertEquals(monitoredAccesses, MonitoredAccesses.of(List.of(monitoredAccesses.optionValue().split(","))), kinds::toString);
+        }
+    }
+
+    @Test
+    public void testFieldInstructions() {
+        MonitoredAccesses writes = MonitoredAccesses.of(List.of("writes"));
+        assertFalse(writes.fieldInstruction(Opcode.GETFIELD));
+        assertTrue(writes.fieldInstruction(Opcode.PUTFIELD));
+        assertFalse(writes.fieldInstruction(Opcode.GETSTATIC));
+        assertTrue(writes.fieldInstruction(Opcode.PUTSTATIC));
+
+        MonitoredAccesses statics = MonitoredAccesses.of(List.of("statics"));
+        assertFalse(statics.fieldInstruction(Opcode.GETFIELD));
+        assertFalse(statics.fieldInstruction(Opcode.PUTFIELD));
+        assertTrue(statics.fieldInstruction(Opcode.GETSTATIC));
+        assertTrue(statics.fieldInstruction(Opcode.PUTSTATIC));
+        assertFalse(statics.fieldInstruction(Opcode.IALOAD));
+    }
+
+    @Test
+    public void testReflectiveAndArrayAccesses() {
+        MonitoredAccesses arrays = MonitoredAccesses.of(List.of("writes", "arrays"));
+        assertFalse(arrays.reflectiveFieldAccess(true));
+        assertFalse(arrays.arrayAccess(false));
+        assertTrue(arrays.arrayAccess(true));
+
+        MonitoredAccesses statics = MonitoredAccesses.of(List.of("statics"));
+        assertTrue(statics.reflectiveFieldAccess(false));
+        assertFalse(statics.arrayAccess(true));
+    }
+}
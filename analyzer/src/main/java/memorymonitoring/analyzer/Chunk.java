@@ -0,0 +1,13 @@
+package memorymonitoring.analyzer;
+
+import java.lang.foreign.MemorySegment;
+
+/**
+ * A chunk of records in a memory-mapped trace segment.
+ * @param segment the mapped segment file
+ * @param offset offset of the chunk (including its header) in the segment
+ * @param length length of the chunk (including its header) in bytes
+ * @param baseNanos timestamp that the time deltas of the records in this chunk are relative to
+ */
+record Chunk(MemorySegment segment, long offset, int length, long baseNanos) {
+}
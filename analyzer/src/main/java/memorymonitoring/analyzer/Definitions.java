@@ -0,0 +1,134 @@
+package memorymonitoring.analyzer;
+
+import java.lang.constant.ClassDesc;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RecursiveTask;
+
+import static memorymonitoring.runtime.trace.TraceFormat.*;
+
+/**
+ * The names of the threads, classes, objects and fields referred to by the records of a trace.
+ */
+final class Definitions {
+
+    record ObjectDefinition(int classId, boolean isClass, int arrayLength) {}
+    record FieldDefinition(int classId, String name) {}
+
+    static final int NOT_AN_ARRAY = -1;
+
+    private final Map<Long, String> threadNames = new HashMap<>();
+    private final Map<Integer, String> classNames = new HashMap<>();
+    private final Map<Long, ObjectDefinition> objects = new HashMap<>();
+    private final Map<Integer, FieldDefinition> fields = new HashMap<>();
+    private long events;
+
+    /** Collect the definitions of all chunks, in parallel. */
+    static Definitions collect(List<Chunk> chunks) {
+        return new CollectTask(chunks, 0, chunks.size()).invoke();
+    }
+
+    private static final class CollectTask extends RecursiveTask<Definitions> {
+        private static final int THRESHOLD = 16;
+
+        private final List<Chunk> chunks;
+        private final int from, to;
+
+        private CollectTask(List<Chunk> chunks, int from, int to) {
+            this.chunks = chunks;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Definitions compute() {
+            if (to - from <= THRESHOLD) {
+                Definitions definitions = new Definitions();
+                for (int i = from; i < to; i++) {
+                    definitions.scan(chunks.get(i));
+                }
+                return definitions;
+            }
+
+            int middle = (from + to) >>> 1;
+            CollectTask left = new CollectTask(chunks, from, middle);
+            left.fork();
+            Definitions right = new CollectTask(chunks, middle, to).compute();
+            return left.join().mergeWith(right);
+        }
+    }
+
+    private void scan(Chunk chunk) {
+        RecordCursor cursor = new RecordCursor(chunk);
+        while (cursor.next()) {
+            switch (cursor.kind()) {
+                case DEFINE_THREAD -> threadNames.put(cursor.id(), cursor.name());
+                case DEFINE_CLASS -> classNames.put((int) cursor.id(), cursor.name());
+                case DEFINE_OBJECT -> objects.put(cursor.id(), new ObjectDefinition(cursor.classId(), false, NOT_AN_ARRAY));
+                case DEFINE_CLASS_OBJECT -> objects.put(cursor.id(), new ObjectDefinition(cursor.classId(), true, NOT_AN_ARRAY));
+                case DEFINE_ARRAY -> objects.put(cursor.id(), new ObjectDefinition(cursor.classId(), false, cursor.length()));
+                case DEFINE_FIELD -> fields.put((int) cursor.id(), new FieldDefinition(cursor.classId(), cursor.name()));
+                default -> events += 1;
+            }
+        }
+    }
+
+    private Definitions mergeWith(Definitions other) {
+        threadNames.putAll(other.threadNames);
+        classNames.putAll(other.classNames);
+        objects.putAll(other.objects);
+        fields.putAll(other.fields);
+        events += other.events;
+        return this;
+    }
+
+    /** The number of access and grant records. */
+    long events() {
+        return events;
+    }
+
+    int threadCount() {
+        return threadNames.size();
+    }
+
+    ObjectDefinition object(long objectId) {
+        return objects.get(objectId);
+    }
+
+    String threadName(long threadId) {
+        return threadNames.getOrDefault(threadId, "#" + threadId);
+    }
+
+    String objectName(long objectId) {
+        ObjectDefinition object = objects.get(objectId);
+        if (object == null) {
+            return "<unknown>#" + objectId;
+        }
+        String className = className(object.classId());
+        return object.isClass() ? className : className + "#" + objectId;
+    }
+
+    String fieldName(int fieldId) {
+        FieldDefinition field = fields.get(fieldId);
+        return field == null ? "<unknown>#" + fieldId : className(field.classId()) + "." + field.name();
+    }
+
+    String fieldReference(long objectId, int fieldId) {
+        FieldDefinition field = fields.get(fieldId);
+        return "%s.%s".formatted(objectName(objectId), field == null ? "<unknown>#" + fieldId : field.name());
+    }
+
+    String arrayReference(long objectId, int indexFrom, int indexTo) {
+        return "%s.[%d, %d)".formatted(objectName(objectId), indexFrom, indexTo);
+    }
+
+    private String className(int classId) {
+        String className = classNames.get(classId);
+        if (className == null) {
+            return "<unknown>";
+        }
+        // Class#getName of array classes is a descriptor, e.g. [I.
+        return className.startsWith("[") ? ClassDesc.ofDescriptor(className.replace('.', '/')).displayName() : className;
+    }
+}
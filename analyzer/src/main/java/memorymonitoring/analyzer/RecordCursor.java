@@ -0,0 +1,114 @@
+package memorymonitoring.analyzer;
+
+import memorymonitoring.runtime.Access;
+import memorymonitoring.runtime.trace.TraceFormat;
+
+import java.nio.ByteBuffer;
+
+import static memorymonitoring.runtime.trace.TraceFormat.*;
+
+/**
+ * Decodes the records of one chunk. The fields of the current record that do not apply to its kind are left unchanged.
+ */
+final class RecordCursor {
+
+    private final ByteBuffer buffer;
+
+    private int kind;
+    private Access access;
+    private long threadId;
+    private long nanos;
+    private long siteId;
+    private long objectId;
+    private int fieldId;
+    private int indexFrom, indexTo;
+    private long[] delegatingThreadIds;
+
+    // definitions
+    private long id;
+    private int classId;
+    private int length;
+    private String name;
+
+    RecordCursor(Chunk chunk) {
+        this.buffer = chunk.segment().asSlice(chunk.offset(), chunk.length()).asByteBuffer();
+        this.buffer.position(CHUNK_HEADER_SIZE);
+        this.nanos = chunk.baseNanos();
+    }
+
+    /**
+     * Decode the next record.
+     * @return false if there are no more records in the chunk
+     */
+    boolean next() {
+        if (!buffer.hasRemaining()) {
+            return false;
+        }
+
+        int tag = buffer.get() & 0xFF;
+        kind = TraceFormat.kind(tag);
+        access = TraceFormat.access(tag);
+        switch (kind) {
+            case FIELD_ACCESS, FIELD_GRANT, FIELD_DEFAULT_GRANT -> {
+                readEventHeader();
+                fieldId = (int) readVarLong(buffer);
+            }
+            case ARRAY_ACCESS, ARRAY_GRANT -> {
+                readEventHeader();
+                indexFrom = (int) readVarLong(buffer);
+                indexTo = indexFrom + (int) readVarLong(buffer);
+            }
+            case DEFINE_THREAD, DEFINE_CLASS -> {
+                id = readVarLong(buffer);
+                name = readString(buffer);
+            }
+            case DEFINE_OBJECT, DEFINE_CLASS_OBJECT -> {
+                id = readVarLong(buffer);
+                classId = (int) readVarLong(buffer);
+            }
+            case DEFINE_ARRAY -> {
+                id = readVarLong(buffer);
+                classId = (int) readVarLong(buffer);
+                length = (int) readVarLong(buffer);
+            }
+            case DEFINE_FIELD -> {
+                id = readVarLong(buffer);
+                classId = (int) readVarLong(buffer);
+                name = readString(buffer);
+            }
+            case DELEGATION -> {
+                threadId = readVarLong(buffer);
+                nanos += readVarLong(buffer);
+                delegatingThreadIds = new long[(int) readVarLong(buffer)];
+                for (int i = 0; i < delegatingThreadIds.length; i++) {
+                    delegatingThreadIds[i] = readVarLong(buffer);
+                }
+            }
+            default -> throw new IllegalStateException("Unknown record kind: " + kind);
+        }
+        return true;
+    }
+
+    private void readEventHeader() {
+        threadId = readVarLong(buffer);
+        nanos += readVarLong(buffer);
+        siteId = readVarLong(buffer);
+        objectId += unZigZag(readVarLong(buffer));
+    }
+
+    int kind() { return kind; }
+    Access access() { return access; }
+    long threadId() { return threadId; }
+    long nanos() { return nanos; }
+    long siteId() { return siteId; }
+    long objectId() { return objectId; }
+    int fieldId() { return fieldId; }
+    int indexFrom() { return indexFrom; }
+    int indexTo() { return indexTo; }
+    long[] delegatingThreadIds() { return delegatingThreadIds; }
+
+    long id() { return id; }
+    int classId() { return classId; }
+    int length() { return length; }
+    String name() { return name; }
+}
@@ -0,0 +1,236 @@
+package memorymonitoring.analyzer;
+
+import memorymonitoring.runtime.Access;
+import memorymonitoring.runtime.ArrayPermission;
+import memorymonitoring.runtime.FieldPermission;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.RecursiveTask;
+
+import static memorymonitoring.runtime.trace.TraceFormat.*;
+
+/**
+ * Replays the accesses and grants of a trace against the permission semantics of {@link memorymonitoring.runtime.Permissions}.
+ * <p>
+ * Permissions of different objects are independent of each other, so the objects are divided over partitions which are
+ * replayed in parallel. Each partition merges the records of all chunks in timestamp order, and replays those of its own
+ * objects. Chunks are only opened once the merge reaches their base timestamp, so the number of chunks that are being
+ * read at the same time does not grow with the size of the trace.
+ * <p>
+ * Like {@link memorymonitoring.runtime.Permissions}, a thread may use the permissions that are delegated to it by the
+ * submitters of the task it is running (see memorymonitoring.runtime.TaskPermissions). Delegations are not tied to an
+ * object, so every partition replays all of them.
+ */
+final class Replay {
+
+    private static final class ObjectState {
+        private Map<Integer, FieldPermission> fields;
+        private ArrayPermission array;
+        private long accesses, violations;
+
+        private FieldPermission field(int fieldId) {
+            if (fields == null) {
+                fields = new HashMap<>();
+            }
+            return fields.computeIfAbsent(fieldId, _ -> new FieldPermission());
+        }
+    }
+
+    private final List<Chunk> chunks;
+    private final Definitions definitions;
+    private final int partition, partitions;
+    private final Map<Long, ObjectState> objects = new HashMap<>();
+    // The threads of which the permissions are delegated to a thread, innermost first. Absent if none.
+    private final Map<Long, long[]> delegations = new HashMap<>();
+    private final Report report;
+
+    private Replay(List<Chunk> chunks, Definitions definitions, int partition, int partitions, int top) {
+        this.chunks = chunks;
+        this.definitions = definitions;
+        this.partition = partition;
+        this.partitions = partitions;
+        this.report = new Report(top);
+    }
+
+    static Report run(List<Chunk> chunks, Definitions definitions, int partitions, int top) {
+        return new ReplayTask(chunks, definitions, 0, partitions, partitions, top).invoke();
+    }
+
+    private static final class ReplayTask extends RecursiveTask<Report> {
+        private final List<Chunk> chunks;
+        private final Definitions definitions;
+        private final int from, to, partitions;
+        private final int top;
+
+        private ReplayTask(List<Chunk> chunks, Definitions definitions, int from, int to, int partitions, int top) {
+            this.chunks = chunks;
+            this.definitions = definitions;
+            this.from = from;
+            this.to = to;
+            this.partitions = partitions;
+            this.top = top;
+        }
+
+        @Override
+        protected Report compute() {
+            if (to - from == 1) {
+                return new Replay(chunks, definitions, from, partitions, top).replay();
+            }
+
+            int middle = (from + to) >>> 1;
+            ReplayTask left = new ReplayTask(chunks, definitions, from, middle, partitions, top);
+            left.fork();
+            Report right = new ReplayTask(chunks, definitions, middle, to, partitions, top).compute();
+            return left.join().mergeWith(right);
+        }
+    }
+
+    private Report replay() {
+        PriorityQueue<RecordCursor> cursors = new PriorityQueue<>(Comparator.comparingLong(RecordCursor::nanos));
+        int nextChunk = 0;
+        while (true) {
+            // Records are never older than the base timestamp of their chunk.
+            while (nextChunk < chunks.size() && (cursors.isEmpty() || chunks.get(nextChunk).baseNanos() <= cursors.peek().nanos())) {
+                RecordCursor cursor = new RecordCursor(chunks.get(nextChunk++));
+                if (advance(cursor)) {
+                    cursors.add(cursor);
+                }
+            }
+
+            RecordCursor cursor = cursors.poll();
+            if (cursor == null) {
+                break;
+            }
+            replay(cursor);
+            if (advance(cursor)) {
+                cursors.add(cursor);
+            }
+        }
+
+        report.rankObjects(objects, state -> state.accesses, state -> state.violations);
+        return report;
+    }
+
+    /** Move the cursor to the next access or grant of an object in this partition, or to the next delegation. */
+    private boolean advance(RecordCursor cursor) {
+        while (cursor.next()) {
+            if (cursor.kind() == DELEGATION
+                    || (isEvent(cursor.kind()) && Long.remainderUnsigned(cursor.objectId(), partitions) == partition)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void replay(RecordCursor cursor) {
+        if (cursor.kind() == DELEGATION) {
+            long[] delegatingThreadIds = cursor.delegatingThreadIds();
+            if (delegatingThreadIds.length == 0) {
+                delegations.remove(cursor.threadId());
+            } else {
+                delegations.put(cursor.threadId(), delegatingThreadIds);
+            }
+            return;
+        }
+
+        long objectId = cursor.objectId();
+        long threadId = cursor.threadId();
+        Access access = cursor.access();
+        ObjectState state = objects.computeIfAbsent(objectId, _ -> new ObjectState());
+        report.countEvent();
+
+        switch (cursor.kind()) {
+            case FIELD_GRANT -> {
+                Access conflictingAccess = state.field(cursor.fieldId()).set(threadId, access);
+                if (conflictingAccess != null) {
+                    report.conflict(cursor.nanos(), () -> conflictMessage(threadId, definitions.fieldReference(objectId, cursor.fieldId()), access, conflictingAccess));
+                }
+            }
+            case FIELD_DEFAULT_GRANT -> state.field(cursor.fieldId()).setDefault(access);
+            case ARRAY_GRANT -> {
+                if (!hasArray(state, objectId)) return;
+                Access conflictingAccess = state.array.set(threadId, cursor.indexFrom(), cursor.indexTo(), access);
+                if (conflictingAccess != null) {
+                    report.conflict(cursor.nanos(), () -> conflictMessage(threadId, definitions.arrayReference(objectId, cursor.indexFrom(), cursor.indexTo()), access, conflictingAccess));
+                }
+            }
+            case FIELD_ACCESS -> {
+                state.accesses += 1;
+                report.countFieldAccess(cursor.fieldId());
+                FieldPermission fieldPermission = state.fields == null ? null : state.fields.get(cursor.fieldId());
+                Access grantedAccess = fieldPermission == null ? Access.NONE : effectiveFieldAccess(fieldPermission, threadId);
+                if (!grantedAccess.covers(access)) {
+                    state.violations += 1;
+                    Access granted = grantedAccess;
+                    report.violation(cursor.nanos(), () -> violationMessage(threadId, definitions.fieldReference(objectId, cursor.fieldId()), access, granted));
+                }
+            }
+            case ARRAY_ACCESS -> {
+                state.accesses += 1;
+                if (!hasArray(state, objectId)) return;
+                Access grantedAccess = effectiveArrayAccess(state.array, threadId, cursor.indexFrom(), cursor.indexTo());
+                if (!grantedAccess.covers(access)) {
+                    state.violations += 1;
+                    report.violation(cursor.nanos(), () -> violationMessage(threadId, definitions.arrayReference(objectId, cursor.indexFrom(), cursor.indexTo()), access, grantedAccess));
+                }
+            }
+            default -> throw new IllegalStateException("Not an access or grant: " + cursor.kind());
+        }
+    }
+
+    // Like Permissions#getEffectiveFieldPermission.
+    private Access effectiveFieldAccess(FieldPermission fieldPermission, long threadId) {
+        Access access = fieldAccess(fieldPermission, threadId);
+        long[] delegatingThreadIds = delegations.get(threadId);
+        if (delegatingThreadIds != null) {
+            for (int i = 0; i < delegatingThreadIds.length && access != Access.WRITE; i++) {
+                access = Access.strongest(access, fieldAccess(fieldPermission, delegatingThreadIds[i]));
+            }
+        }
+        return access;
+    }
+
+    private static Access fieldAccess(FieldPermission fieldPermission, long threadId) {
+        Access access = fieldPermission.get(threadId);
+        return access == null ? Access.NONE : access;
+    }
+
+    // Like Permissions#getEffectiveArrayPermission.
+    private Access effectiveArrayAccess(ArrayPermission arrayPermission, long threadId, int indexFrom, int indexTo) {
+        Access access = arrayPermission.get(threadId, indexFrom, indexTo);
+        long[] delegatingThreadIds = delegations.get(threadId);
+        if (delegatingThreadIds != null) {
+            for (int i = 0; i < delegatingThreadIds.length && access != Access.WRITE; i++) {
+                access = Access.strongest(access, arrayPermission.get(delegatingThreadIds[i], indexFrom, indexTo));
+            }
+        }
+        return access;
+    }
+
+    private boolean hasArray(ObjectState state, long objectId) {
+        if (state.array == null) {
+            Definitions.ObjectDefinition object = definitions.object(objectId);
+            if (object == null || object.arrayLength() == Definitions.NOT_AN_ARRAY) {
+                // the definition was lost, because the recording JVM dropped the chunk containing it.
+                report.countUndefined();
+                return false;
+            }
+            state.array = new ArrayPermission(object.arrayLength());
+        }
+        return true;
+    }
+
+    private String violationMessage(long threadId, String reference, Access observedAccess, Access grantedAccess) {
+        return String.format("Thread %s: trying to access %s at level %s. Violation! %s permission was requested, but only %s permission was given.",
+                definitions.threadName(threadId), reference, observedAccess, observedAccess, grantedAccess);
+    }
+
+    private String conflictMessage(long threadId, String reference, Access grantedAccess, Access conflictingAccess) {
+        return String.format("Thread %s: granting %s permission to %s. Violation! Another thread already has %s permission.",
+                definitions.threadName(threadId), grantedAccess, reference, conflictingAccess);
+    }
+}
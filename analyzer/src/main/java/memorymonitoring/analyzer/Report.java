@@ -0,0 +1,131 @@
+package memorymonitoring.analyzer;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+
+/**
+ * Results of replaying (a partition of) a trace. Reports of partitions are merged into the report of the whole trace.
+ */
+final class Report {
+
+    record Finding(long nanos, String message) {}
+    record RankedObject(long objectId, long count) {}
+
+    private static final Comparator<Finding> BY_TIME = Comparator.comparingLong(Finding::nanos);
+    private static final Comparator<RankedObject> BY_COUNT = Comparator.comparingLong(RankedObject::count).reversed();
+
+    private final int top;
+    private long events, violations, conflicts, undefined;
+    private List<Finding> violationExamples = new ArrayList<>();
+    private List<Finding> conflictExamples = new ArrayList<>();
+    private List<RankedObject> hotObjects = List.of();
+    private List<RankedObject> violatedObjects = List.of();
+    private final Map<Integer, Long> fieldAccesses = new HashMap<>();
+
+    Report(int top) {
+        this.top = top;
+    }
+
+    void countEvent() {
+        events += 1;
+    }
+
+    void countUndefined() {
+        undefined += 1;
+    }
+
+    void countFieldAccess(int fieldId) {
+        fieldAccesses.merge(fieldId, 1L, Long::sum);
+    }
+
+    // Records are replayed in timestamp order, so the first findings of a partition are its oldest ones.
+    void violation(long nanos, Supplier<String> message) {
+        violations += 1;
+        if (violationExamples.size() < top) {
+            violationExamples.add(new Finding(nanos, message.get()));
+        }
+    }
+
+    void conflict(long nanos, Supplier<String> message) {
+        conflicts += 1;
+        if (conflictExamples.size() < top) {
+            conflictExamples.add(new Finding(nanos, message.get()));
+        }
+    }
+
+    <S> void rankObjects(Map<Long, S> objects, ToLongFunction<S> accesses, ToLongFunction<S> violations) {
+        hotObjects = rank(objects, accesses);
+        violatedObjects = rank(objects, violations);
+    }
+
+    private <S> List<RankedObject> rank(Map<Long, S> objects, ToLongFunction<S> count) {
+        return objects.entrySet().stream()
+                .map(entry -> new RankedObject(entry.getKey(), count.applyAsLong(entry.getValue())))
+                .filter(rankedObject -> rankedObject.count() > 0)
+                .sorted(BY_COUNT)
+                .limit(top)
+                .toList();
+    }
+
+    Report mergeWith(Report other) {
+        events += other.events;
+        violations += other.violations;
+        conflicts += other.conflicts;
+        undefined += other.undefined;
+        violationExamples = first(violationExamples, other.violationExamples, BY_TIME);
+        conflictExamples = first(conflictExamples, other.conflictExamples, BY_TIME);
+        hotObjects = first(hotObjects, other.hotObjects, BY_COUNT);
+        violatedObjects = first(violatedObjects, other.violatedObjects, BY_COUNT);
+        other.fieldAccesses.forEach((fieldId, count) -> fieldAccesses.merge(fieldId, count, Long::sum));
+        return this;
+    }
+
+    private <T> List<T> first(List<T> one, List<T> two, Comparator<T> order) {
+        return Stream.concat(one.stream(), two.stream()).sorted(order).limit(top).collect(ArrayList::new, List::add, List::addAll);
+    }
+
+    void print(PrintStream out, Definitions definitions, long startNanos) {
+        out.printf("Replayed %d accesses and grants.%n", events);
+        if (undefined > 0) {
+            out.printf("Skipped %d records of arrays that are not defined in the trace.%n", undefined);
+        }
+
+        out.printf("%nViolations: %d%n", violations);
+        for (Finding finding : violationExamples) {
+            out.printf("  %s%n", format(finding, startNanos));
+        }
+        if (!violatedObjects.isEmpty()) {
+            out.printf("%nObjects with the most violations:%n");
+        }
+        for (RankedObject object : violatedObjects) {
+            out.printf("  %10d  %s%n", object.count(), definitions.objectName(object.objectId()));
+        }
+
+        out.printf("%nConflicting grants: %d%n", conflicts);
+        for (Finding finding : conflictExamples) {
+            out.printf("  %s%n", format(finding, startNanos));
+        }
+
+        out.printf("%nHot objects:%n");
+        for (RankedObject object : hotObjects) {
+            out.printf("  %10d  %s%n", object.count(), definitions.objectName(object.objectId()));
+        }
+
+        out.printf("%nHot fields:%n");
+        fieldAccesses.entrySet().stream()
+                .sorted(Map.Entry.<Integer, Long>comparingByValue().reversed())
+                .limit(top)
+                .forEach(entry -> out.printf("  %10d  %s%n", entry.getValue(), definitions.fieldName(entry.getKey())));
+    }
+
+    private static String format(Finding finding, long startNanos) {
+        return String.format("[+%.3f ms] %s", (finding.nanos() - startNanos) / 1_000_000.0, finding.message());
+    }
+}
@@ -0,0 +1,148 @@
+package memorymonitoring.analyzer;
+
+import memorymonitoring.runtime.stats.StatisticsFormat;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.VarHandle;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Watches the statistics that a running program publishes (with the agent option {@code stats=<file>}), like top: the
+ * counters and their rates since the previous refresh, the sizes of the permission stores and the hottest access sites.
+ * The statistics file is mapped into memory and read in place, the program is not attached to.
+ * <p>
+ * Usage: {@code java -cp runtime.jar:analyzer.jar memorymonitoring.analyzer.StatisticsTop <statistics file> [interval seconds] [--once]}
+ */
+public final class StatisticsTop {
+
+    private static final int DEFAULT_INTERVAL_SECONDS = 2;
+    private static final String CLEAR_SCREEN = "\033[H\033[2J";
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private record Site(long executions, long violations, String description) {}
+
+    private final MemorySegment file;
+    private long[] previousCounters;
+    private long previousNanos;
+
+    private StatisticsTop(MemorySegment file) {
+        this.file = file;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        List<String> arguments = new ArrayList<>(List.of(args));
+        boolean once = arguments.remove("--once");
+        if (arguments.isEmpty() || arguments.size() > 2) {
+            System.err.println("Usage: StatisticsTop <statistics file> [interval seconds] [--once]");
+            System.exit(2);
+        }
+        Path path = Path.of(arguments.get(0));
+        long intervalMillis = 1000L * (arguments.size() == 2 ? Integer.parseInt(arguments.get(1)) : DEFAULT_INTERVAL_SECONDS);
+
+        try (Arena arena = Arena.ofConfined(); FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < StatisticsFormat.FILE_SIZE) {
+                throw new IOException("Not a statistics file: " + path);
+            }
+            MemorySegment file = channel.map(FileChannel.MapMode.READ_ONLY, 0, StatisticsFormat.FILE_SIZE, arena);
+            if (file.get(ValueLayout.JAVA_LONG, 0) != StatisticsFormat.MAGIC) {
+                throw new IOException("Not a statistics file (or not of this machine): " + path);
+            }
+
+            StatisticsTop top = new StatisticsTop(file);
+            if (once) {
+                top.print(System.out);
+                return;
+            }
+            while (true) {
+                System.out.print(CLEAR_SCREEN);
+                top.print(System.out);
+                System.out.flush();
+                Thread.sleep(intervalMillis);
+            }
+        }
+    }
+
+    private void print(PrintStream out) {
+        long nanos = System.nanoTime();
+        long pid = file.get(ValueLayout.JAVA_LONG, StatisticsFormat.PID_OFFSET);
+        Instant started = Instant.ofEpochMilli(file.get(ValueLayout.JAVA_LONG, StatisticsFormat.START_TIME_OFFSET));
+        Instant updated = Instant.ofEpochMilli(file.get(ValueLayout.JAVA_LONG, StatisticsFormat.UPDATE_TIME_OFFSET));
+        boolean alive = ProcessHandle.of(pid).map(ProcessHandle::isAlive).orElse(false);
+        out.printf("Process %d (%s), started %s, updated %.1f s ago.%n%n", pid, alive ? "running" : "exited",
+                LocalDateTime.ofInstant(started, ZoneId.systemDefault()).format(TIME),
+                Duration.between(updated, Instant.now()).toMillis() / 1000.0);
+
+        long[] counters = readCounters();
+        out.printf("%-32s %16s %16s%n", "", "total", "per second");
+        for (int counter = 0; counter < counters.length; counter++) {
+            String rate = previousCounters == null ? "-"
+                    : "%.1f".formatted((counters[counter] - previousCounters[counter]) * 1e9 / (nanos - previousNanos));
+            out.printf("%-32s %16d %16s%n", StatisticsFormat.COUNTER_NAMES.get(counter), counters[counter], rate);
+        }
+        previousCounters = counters;
+        previousNanos = nanos;
+
+        out.println();
+        for (int gauge = 0; gauge < StatisticsFormat.GAUGE_NAMES.size(); gauge++) {
+            out.printf("%-32s %16d%n", StatisticsFormat.GAUGE_NAMES.get(gauge), file.get(ValueLayout.JAVA_LONG, StatisticsFormat.gaugeOffset(gauge)));
+        }
+
+        List<Site> sites = readSites();
+        if (!sites.isEmpty()) {
+            out.printf("%nHottest sites:%n%14s %12s  %s%n", "executions", "violations", "site");
+            for (Site site : sites) {
+                out.printf("%14d %12d  %s%n", site.executions(), site.violations(), site.description());
+            }
+        }
+    }
+
+    private long[] readCounters() {
+        long[] counters = new long[StatisticsFormat.COUNTER_NAMES.size()];
+        for (int stripe = 0; stripe < StatisticsFormat.STRIPES; stripe++) {
+            for (int counter = 0; counter < counters.length; counter++) {
+                counters[counter] += file.get(ValueLayout.JAVA_LONG, StatisticsFormat.counterOffset(stripe, counter));
+            }
+        }
+        return counters;
+    }
+
+    // The sites are rewritten while they are read, so read them again until a consistent version was read.
+    private List<Site> readSites() {
+        while (true) {
+            long version = file.get(ValueLayout.JAVA_LONG, StatisticsFormat.SITES_VERSION_OFFSET);
+            VarHandle.acquireFence();
+            if ((version & 1) == 0) {
+                List<Site> sites = new ArrayList<>();
+                int count = (int) Math.min(file.get(ValueLayout.JAVA_LONG, StatisticsFormat.SITE_COUNT_OFFSET), StatisticsFormat.MAX_SITES);
+                for (int index = 0; index < count; index++) {
+                    long offset = StatisticsFormat.siteOffset(index);
+                    int length = Math.clamp(file.get(ValueLayout.JAVA_LONG, offset + StatisticsFormat.SITE_DESCRIPTION_LENGTH), 0, StatisticsFormat.MAX_DESCRIPTION_SIZE);
+                    byte[] description = file.asSlice(offset + StatisticsFormat.SITE_DESCRIPTION, length).toArray(ValueLayout.JAVA_BYTE);
+                    sites.add(new Site(
+                            file.get(ValueLayout.JAVA_LONG, offset + StatisticsFormat.SITE_EXECUTIONS),
+                            file.get(ValueLayout.JAVA_LONG, offset + StatisticsFormat.SITE_VIOLATIONS),
+                            new String(description, StandardCharsets.UTF_8)));
+                }
+                VarHandle.acquireFence();
+                if (file.get(ValueLayout.JAVA_LONG, StatisticsFormat.SITES_VERSION_OFFSET) == version) {
+                    return sites;
+                }
+            }
+            Thread.onSpinWait();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package memorymonitoring.analyzer;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Offline analysis of a trace recorded by the agent (with the {@code trace=<directory>} option).
+ * Reports permission violations, conflicting grants, and the most accessed objects and fields.
+ * <p>
+ * Usage: {@code java -jar analyzer.jar <trace directory> [top]}
+ */
+public final class TraceAnalyzer {
+
+    private static final int DEFAULT_TOP = 10;
+
+    private TraceAnalyzer() {}
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: TraceAnalyzer <trace directory> [top]");
+            System.exit(2);
+        }
+        Path directory = Path.of(args[0]);
+        int top = args.length == 2 ? Integer.parseInt(args[1]) : DEFAULT_TOP;
+
+        try (TraceSegments segments = new TraceSegments(directory)) {
+            List<Chunk> chunks = segments.chunks();
+            Definitions definitions = Definitions.collect(chunks);
+            System.out.printf("Trace %s: %d segments, %d chunks, %d threads.%n", directory, segments.segmentCount(), chunks.size(), definitions.threadCount());
+
+            Report report = Replay.run(chunks, definitions, ForkJoinPool.getCommonPoolParallelism(), top);
+            long startNanos = chunks.isEmpty() ? 0 : chunks.getFirst().baseNanos();
+            report.print(System.out, definitions, startNanos);
+        }
+    }
+}
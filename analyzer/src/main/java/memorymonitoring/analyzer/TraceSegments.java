@@ -0,0 +1,85 @@
+package memorymonitoring.analyzer;
+
+import memorymonitoring.runtime.trace.TraceFormat;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * The segment files of a trace, mapped into memory, so that traces larger than the heap can be read.
+ * Closing this object unmaps all segments.
+ */
+final class TraceSegments implements AutoCloseable {
+
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+
+    // shared, because the segments are read by the fork/join worker threads.
+    private final Arena arena = Arena.ofShared();
+    private final int segmentCount;
+    private final List<Chunk> chunks = new ArrayList<>();
+
+    TraceSegments(Path directory) throws IOException {
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(TraceSegments::isSegmentFile).sorted().toList();
+        }
+        segmentCount = files.size();
+
+        for (Path file : files) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                MemorySegment segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+                if (segment.byteSize() < TraceFormat.SEGMENT_HEADER_SIZE || segment.get(LONG, 0) != TraceFormat.MAGIC) {
+                    throw new IOException("Not a trace segment: " + file);
+                }
+                indexChunks(segment);
+            }
+        }
+
+        // Records in a chunk are never older than the base timestamp of the chunk, see Replay.
+        chunks.sort(Comparator.comparingLong(Chunk::baseNanos));
+    }
+
+    private void indexChunks(MemorySegment segment) {
+        long offset = TraceFormat.SEGMENT_HEADER_SIZE;
+        while (offset + TraceFormat.CHUNK_HEADER_SIZE <= segment.byteSize()) {
+            int length = segment.get(INT, offset);
+            if (length == 0) {
+                break;  // end of a segment that was not truncated, e.g. because the recording JVM crashed.
+            }
+            long baseNanos = segment.get(LONG, offset + Integer.BYTES);
+            chunks.add(new Chunk(segment, offset, length, baseNanos));
+            offset += length;
+        }
+    }
+
+    private static boolean isSegmentFile(Path file) {
+        String fileName = file.getFileName().toString();
+        return fileName.startsWith(TraceFormat.SEGMENT_FILE_PREFIX) && fileName.endsWith(TraceFormat.SEGMENT_FILE_SUFFIX);
+    }
+
+    int segmentCount() {
+        return segmentCount;
+    }
+
+    /** All chunks of all segments, ordered by their base timestamp. */
+    List<Chunk> chunks() {
+        return chunks;
+    }
+
+    @Override
+    public void close() {
+        arena.close();
+    }
+}
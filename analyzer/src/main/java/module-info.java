@@ -0,0 +1,3 @@
+module memorymonitoring.analyzer {
+    requires memorymonitoring.runtime;
+}
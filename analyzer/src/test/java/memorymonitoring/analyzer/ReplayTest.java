@@ -0,0 +1,186 @@
+package memorymonitoring.analyzer;
+
+import memorymonitoring.runtime.Access;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Round trip of traces, encoded like the runtime records them, through the analyzer.
+ */
+public final class ReplayTest {
+
+    private static final long MAIN = 1, WORKER = 2;
+    private static final int BOX_CLASS = 1, INT_ARRAY_CLASS = 2;
+    private static final int VALUE_FIELD = 1;
+    private static final long BOX = 10, ARRAY = 11;
+
+    @TempDir
+    Path directory;
+
+    private static TraceWriter definitions(TraceWriter trace) {
+        return trace
+                .defineThread(MAIN, "main")
+                .defineThread(WORKER, "worker")
+                .defineClass(BOX_CLASS, "example.Box")
+                .defineClass(INT_ARRAY_CLASS, "[I")
+                .defineObject(BOX, BOX_CLASS)
+                .defineArray(ARRAY, INT_ARRAY_CLASS, 10)
+                .defineField(VALUE_FIELD, BOX_CLASS, "value");
+    }
+
+    @Test
+    public void testAccessWithoutPermissionIsAViolation() throws IOException {
+        definitions(new TraceWriter().chunk(100))
+                .fieldGrant(110, MAIN, BOX, VALUE_FIELD, Access.WRITE)
+                .fieldAccess(120, MAIN, BOX, VALUE_FIELD, Access.WRITE)
+                .fieldAccess(130, WORKER, BOX, VALUE_FIELD, Access.READ)
+                .write(directory, 0);
+
+        String report = analyze(1);
+        assertTrue(report.contains("Replayed 3 accesses and grants."), report);
+        assertTrue(report.contains("Violations: 1"), report);
+        assertTrue(report.contains("Thread worker: trying to access example.Box#10.value at level READ. Violation! READ permission was requested, but only NONE permission was given."), report);
+        assertTrue(report.contains("Conflicting grants: 0"), report);
+    }
+
+    @Test
+    public void testConflictingGrants() throws IOException {
+        definitions(new TraceWriter().chunk(100))
+                .fieldGrant(110, MAIN, BOX, VALUE_FIELD, Access.READ)
+                .fieldGrant(120, WORKER, BOX, VALUE_FIELD, Access.READ)
+                .fieldGrant(130, WORKER, BOX, VALUE_FIELD, Access.WRITE)
+                .write(directory, 0);
+
+        String report = analyze(1);
+        assertTrue(report.contains("Conflicting grants: 1"), report);
+        assertTrue(report.contains("Thread worker: granting WRITE permission to example.Box#10.value. Violation! Another thread already has READ permission."), report);
+    }
+
+    @Test
+    public void testDefaultGrant() throws IOException {
+        definitions(new TraceWriter().chunk(100))
+                .fieldDefaultGrant(110, MAIN, BOX, VALUE_FIELD, Access.READ)
+                .fieldAccess(120, WORKER, BOX, VALUE_FIELD, Access.READ)
+                .fieldAccess(130, WORKER, BOX, VALUE_FIELD, Access.WRITE)
+                .write(directory, 0);
+
+        String report = analyze(1);
+        assertTrue(report.contains("Violations: 1"), report);
+        assertTrue(report.contains("at level WRITE"), report);
+    }
+
+    @Test
+    public void testDelegatedPermissionsOnlyApplyWhileTheTaskRuns() throws IOException {
+        definitions(new TraceWriter().chunk(100))
+                .fieldGrant(110, MAIN, BOX, VALUE_FIELD, Access.WRITE)
+                .delegation(120, WORKER, MAIN)
+                .fieldAccess(130, WORKER, BOX, VALUE_FIELD, Access.WRITE)
+                .delegation(140, WORKER)
+                .fieldAccess(150, WORKER, BOX, VALUE_FIELD, Access.WRITE)
+                .write(directory, 0);
+
+        String report = analyze(1);
+        assertTrue(report.contains("Violations: 1"), report);
+        assertTrue(report.contains("[+0.000 ms] Thread worker: trying to access example.Box#10.value at level WRITE."), report);
+    }
+
+    @Test
+    public void testArrayRanges() throws IOException {
+        definitions(new TraceWriter().chunk(100))
+                .arrayGrant(110, MAIN, ARRAY, 0, 5, Access.WRITE)
+                .arrayGrant(120, WORKER, ARRAY, 5, 10, Access.READ)
+                .arrayAccess(130, MAIN, ARRAY, 0, 5, Access.WRITE)
+                .arrayAccess(140, WORKER, ARRAY, 5, 10, Access.READ)
+                .arrayAccess(150, MAIN, ARRAY, 3, 8, Access.READ)
+                .arrayGrant(160, WORKER, ARRAY, 4, 6, Access.READ)
+                .write(directory, 0);
+
+        String report = analyze(1);
+        assertTrue(report.contains("Violations: 1"), report);
+        assertTrue(report.contains("Thread main: trying to access int[]#11.[3, 8) at level READ."), report);
+        assertTrue(report.contains("Conflicting grants: 1"), report);
+        assertTrue(report.contains("Thread worker: granting READ permission to int[]#11.[4, 6)."), report);
+    }
+
+    @Test
+    public void testUndefinedArraysAreSkipped() throws IOException {
+        new TraceWriter().chunk(100)
+                .defineThread(MAIN, "main")
+                .arrayGrant(110, MAIN, ARRAY, 0, 5, Access.WRITE)
+                .arrayAccess(120, MAIN, ARRAY, 0, 5, Access.WRITE)
+                .write(directory, 0);
+
+        String report = analyze(1);
+        assertTrue(report.contains("Skipped 2 records of arrays that are not defined in the trace."), report);
+        assertTrue(report.contains("Violations: 0"), report);
+    }
+
+    @Test
+    public void testChunksOfSegmentsAreMergedInTimestampOrder() throws IOException {
+        // The main thread grants and revokes in one segment, the worker accesses in between in another one, which holds
+        // the definitions too: definitions are collected from all segments first.
+        new TraceWriter().chunk(100)
+                .fieldGrant(110, MAIN, BOX, VALUE_FIELD, Access.WRITE)
+                .fieldGrant(120, MAIN, BOX, VALUE_FIELD, Access.NONE)
+                .chunk(300)
+                .fieldGrant(300, MAIN, BOX, VALUE_FIELD, Access.WRITE)
+                .write(directory, 0);
+        definitions(new TraceWriter().chunk(105))
+                .fieldAccess(115, WORKER, BOX, VALUE_FIELD, Access.READ)
+                .fieldAccess(125, WORKER, BOX, VALUE_FIELD, Access.READ)
+                .fieldAccess(200, WORKER, BOX, VALUE_FIELD, Access.WRITE)
+                .write(directory, 1);
+
+        try (TraceSegments segments = new TraceSegments(directory)) {
+            assertEquals(2, segments.segmentCount());
+            assertEquals(List.of(100L, 105L, 300L), segments.chunks().stream().map(Chunk::baseNanos).toList());
+        }
+        String report = analyze(1);
+        assertTrue(report.contains("Violations: 3"), report);
+        assertTrue(report.contains("Thread worker: trying to access example.Box#10.value at level READ"), report);
+        assertTrue(report.contains("Conflicting grants: 0"), report);
+    }
+
+    @Test
+    public void testPartitionsReplayLikeOne() throws IOException {
+        TraceWriter trace = definitions(new TraceWriter().chunk(100));
+        for (int i = 0; i < 8; i++) {
+            long box = 100 + i;
+            trace.defineObject(box, BOX_CLASS)
+                    .fieldGrant(200 + 10 * i, MAIN, box, VALUE_FIELD, Access.WRITE)
+                    .delegation(201 + 10 * i, WORKER, i % 2 == 0 ? new long[] {MAIN} : new long[0])
+                    .fieldAccess(202 + 10 * i, WORKER, box, VALUE_FIELD, Access.WRITE);
+        }
+        trace.write(directory, 0);
+
+        String report = analyze(1);
+        assertTrue(report.contains("Violations: 4"), report);
+        // The objects that are ranked equally may be listed in another order, the violations are ordered by time.
+        assertEquals(violations(report), violations(analyze(3)));
+    }
+
+    private static String violations(String report) {
+        return report.substring(report.indexOf("Violations:"), report.indexOf("Objects with the most violations:"));
+    }
+
+    private String analyze(int partitions) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (TraceSegments segments = new TraceSegments(directory)) {
+            List<Chunk> chunks = segments.chunks();
+            Definitions definitions = Definitions.collect(chunks);
+            Report report = Replay.run(chunks, definitions, partitions, 10);
+            report.print(new PrintStream(out, true, StandardCharsets.UTF_8), definitions, chunks.getFirst().baseNanos());
+        }
+        return out.toString(StandardCharsets.UTF_8);
+    }
+}
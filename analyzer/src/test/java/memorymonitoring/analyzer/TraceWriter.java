@@ -0,0 +1,169 @@
+package memorymonitoring.analyzer;
+
+import memorymonitoring.runtime.Access;
+import memorymonitoring.runtime.trace.TraceFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static memorymonitoring.runtime.trace.TraceFormat.*;
+
+/**
+ * Writes a trace segment record by record, in the format that memorymonitoring.runtime.TraceRecorder records. Every chunk
+ * is started with {@link #chunk(long)}; the times of the accesses, grants and delegations are absolute, and must not
+ * decrease within a chunk.
+ */
+final class TraceWriter {
+
+    private byte[] bytes = new byte[1024];
+    private int position = SEGMENT_HEADER_SIZE;
+    private int chunkStart = -1;
+    private long lastNanos, lastObjectId;
+
+    TraceWriter() {
+        ByteBuffer.wrap(bytes).putLong(0, MAGIC);
+    }
+
+    TraceWriter chunk(long baseNanos) {
+        endChunk();
+        chunkStart = position;
+        ensureCapacity(CHUNK_HEADER_SIZE);
+        ByteBuffer.wrap(bytes).putLong(position + Integer.BYTES, baseNanos);
+        position += CHUNK_HEADER_SIZE;
+        lastNanos = baseNanos;
+        lastObjectId = 0;
+        return this;
+    }
+
+    TraceWriter defineThread(long threadId, String name) {
+        tag(DEFINE_THREAD, Access.NONE);
+        writeVarLong(threadId);
+        return writeString(name);
+    }
+
+    TraceWriter defineClass(int classId, String name) {
+        tag(DEFINE_CLASS, Access.NONE);
+        writeVarLong(classId);
+        return writeString(name);
+    }
+
+    TraceWriter defineObject(long objectId, int classId) {
+        tag(DEFINE_OBJECT, Access.NONE);
+        writeVarLong(objectId);
+        writeVarLong(classId);
+        return this;
+    }
+
+    TraceWriter defineArray(long objectId, int classId, int length) {
+        tag(DEFINE_ARRAY, Access.NONE);
+        writeVarLong(objectId);
+        writeVarLong(classId);
+        writeVarLong(length);
+        return this;
+    }
+
+    TraceWriter defineField(int fieldId, int classId, String name) {
+        tag(DEFINE_FIELD, Access.NONE);
+        writeVarLong(fieldId);
+        writeVarLong(classId);
+        return writeString(name);
+    }
+
+    TraceWriter fieldGrant(long nanos, long threadId, long objectId, int fieldId, Access access) {
+        eventHeader(FIELD_GRANT, nanos, threadId, objectId, access);
+        writeVarLong(fieldId);
+        return this;
+    }
+
+    TraceWriter fieldDefaultGrant(long nanos, long threadId, long objectId, int fieldId, Access access) {
+        eventHeader(FIELD_DEFAULT_GRANT, nanos, threadId, objectId, access);
+        writeVarLong(fieldId);
+        return this;
+    }
+
+    TraceWriter fieldAccess(long nanos, long threadId, long objectId, int fieldId, Access access) {
+        eventHeader(FIELD_ACCESS, nanos, threadId, objectId, access);
+        writeVarLong(fieldId);
+        return this;
+    }
+
+    TraceWriter arrayGrant(long nanos, long threadId, long objectId, int indexFrom, int indexTo, Access access) {
+        eventHeader(ARRAY_GRANT, nanos, threadId, objectId, access);
+        writeVarLong(indexFrom);
+        writeVarLong(indexTo - indexFrom);
+        return this;
+    }
+
+    TraceWriter arrayAccess(long nanos, long threadId, long objectId, int indexFrom, int indexTo, Access access) {
+        eventHeader(ARRAY_ACCESS, nanos, threadId, objectId, access);
+        writeVarLong(indexFrom);
+        writeVarLong(indexTo - indexFrom);
+        return this;
+    }
+
+    /** The thread acts on behalf of the delegating threads (innermost first), or on its own behalf again if there are none. */
+    TraceWriter delegation(long nanos, long threadId, long... delegatingThreadIds) {
+        tag(DELEGATION, Access.NONE);
+        writeVarLong(threadId);
+        writeVarLong(nanos - lastNanos);
+        lastNanos = nanos;
+        writeVarLong(delegatingThreadIds.length);
+        for (long delegatingThreadId : delegatingThreadIds) {
+            writeVarLong(delegatingThreadId);
+        }
+        return this;
+    }
+
+    /** Write the segment with the given index to the trace directory. */
+    void write(Path directory, int segmentIndex) throws IOException {
+        endChunk();
+        Files.write(directory.resolve(TraceFormat.segmentFileName(segmentIndex)), Arrays.copyOf(bytes, position));
+    }
+
+    private void eventHeader(int kind, long nanos, long threadId, long objectId, Access access) {
+        tag(kind, access);
+        writeVarLong(threadId);
+        writeVarLong(nanos - lastNanos);
+        writeVarLong(UNKNOWN_SITE);
+        writeVarLong(zigZag(objectId - lastObjectId));
+        lastNanos = nanos;
+        lastObjectId = objectId;
+    }
+
+    private void tag(int kind, Access access) {
+        if (chunkStart < 0) {
+            throw new IllegalStateException("No chunk started");
+        }
+        ensureCapacity(1);
+        bytes[position++] = (byte) TraceFormat.tag(kind, access);
+    }
+
+    private void writeVarLong(long value) {
+        ensureCapacity(10);
+        position = TraceFormat.writeVarLong(bytes, position, value);
+    }
+
+    private TraceWriter writeString(String value) {
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        ensureCapacity(10 + utf8.length);
+        position = TraceFormat.writeString(bytes, position, utf8);
+        return this;
+    }
+
+    private void endChunk() {
+        if (chunkStart >= 0) {
+            ByteBuffer.wrap(bytes).putInt(chunkStart, position - chunkStart);
+            chunkStart = -1;
+        }
+    }
+
+    private void ensureCapacity(int size) {
+        if (position + size > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, position + size));
+        }
+    }
+}
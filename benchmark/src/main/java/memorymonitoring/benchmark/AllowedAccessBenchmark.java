@@ -0,0 +1,114 @@
+package memorymonitoring.benchmark;
+
+import memorymonitoring.runtime.Access;
+import memorymonitoring.runtime.Permissions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks of accesses that are allowed, which must not allocate: the instrumented code checks every access, so any
+ * allocation on this path multiplies the allocation rate of the program. The logging configuration is left as is,
+ * allowed accesses are only logged at level FINE.
+ * <p>
+ * Run as a regression test with {@code java -cp benchmark/target/benchmarks.jar memorymonitoring.benchmark.AllowedAccessBenchmark},
+ * which runs the benchmarks with the gc profiler and fails if any check allocates (gc.alloc.rate.norm of at least
+ * {@value #MAX_BYTES_PER_OP} bytes per operation, the small remainder below that is measurement noise of JMH itself).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AllowedAccessBenchmark {
+
+    private static final double MAX_BYTES_PER_OP = 0.5;
+
+    static final class Holder {
+        static int counter;
+        int value;
+    }
+
+    private Holder holder;
+    private int[] source;
+    private int[] target;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        holder = new Holder();
+        source = new int[1024];
+        target = new int[1024];
+
+        Permissions.setFieldPermission(holder, Holder.class, "value", Access.WRITE);
+        Permissions.setFieldPermission(Holder.class, Holder.class, "counter", Access.WRITE);
+        Permissions.setArrayPermissionWholeArray(source, Access.READ);
+        Permissions.setArrayPermissionWholeArray(target, Access.WRITE);
+    }
+
+    @Benchmark
+    public Holder checkFieldRead() {
+        Permissions.logFieldAccess(holder, Holder.class, "value", Access.READ);
+        return holder;
+    }
+
+    @Benchmark
+    public Holder checkStaticFieldWrite() {
+        Permissions.logFieldAccess(Holder.class, Holder.class, "counter", Access.WRITE);
+        return holder;
+    }
+
+    @Benchmark
+    public int[] checkArrayElementWrite() {
+        Permissions.logArrayAccess(target, 42, Access.WRITE);
+        return target;
+    }
+
+    @Benchmark
+    public int[] checkArraycopy() {
+        // as instrumented for System.arraycopy(source, 0, target, 512, 256)
+        Permissions.logBulkArrayAccess(source, 0, 256, Access.READ);
+        Permissions.logBulkArrayAccess(target, 512, 512 + 256, Access.WRITE);
+        return target;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(AllowedAccessBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+
+        List<String> allocating = new ArrayList<>();
+        for (RunResult runResult : new Runner(options).run()) {
+            BenchmarkParams params = runResult.getParams();
+            Result<?> allocation = runResult.getSecondaryResults().get("gc.alloc.rate.norm");
+            if (allocation == null || Double.isNaN(allocation.getScore()) || allocation.getScore() >= MAX_BYTES_PER_OP) {
+                allocating.add(params.getBenchmark() + ": " + (allocation == null ? "not measured" : allocation.getScore() + " B/op"));
+            }
+        }
+        if (!allocating.isEmpty()) {
+            throw new AssertionError("Checks of allowed accesses allocate: " + allocating);
+        }
+        System.out.println("Checks of allowed accesses do not allocate.");
+    }
+}
@@ -0,0 +1,125 @@
+package memorymonitoring.benchmark;
+
+import memorymonitoring.runtime.Access;
+import memorymonitoring.runtime.Permissions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Heap footprint and garbage collection time of the permissions to many small arrays, with the permissions kept on the
+ * heap (default) and in the off-heap table (agent option {@code arrays=offheap}).
+ * <p>
+ * Run with {@code java -jar benchmark/target/benchmarks.jar ArrayPermissionFootprintBenchmark -prof gc}.
+ * After every iteration, the retained heap, the off-heap memory and the accumulated collection time are printed.
+ */
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class ArrayPermissionFootprintBenchmark {
+
+    private static final String OFF_HEAP = "-Dmemorymonitoring.arrays=offheap";
+
+    @State(Scope.Benchmark)
+    public static class MonitoredArrays {
+        @Param("1000000")
+        private int arrays;
+
+        @Param("8")
+        private int length;
+
+        private int[][] live;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            Logger.getLogger(Permissions.class.getName()).setLevel(java.util.logging.Level.OFF);
+
+            live = new int[arrays][];
+            for (int i = 0; i < arrays; i++) {
+                live[i] = new int[length];
+                Permissions.setArrayPermissionWholeArray(live[i], Access.WRITE);
+            }
+        }
+
+        @TearDown(Level.Iteration)
+        public void reportFootprint() {
+            System.gc();
+            long heapBytes = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            long offHeapBytes = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class).stream()
+                    .filter(pool -> pool.getName().equals("direct"))
+                    .mapToLong(BufferPoolMXBean::getMemoryUsed)
+                    .sum();
+            long gcMillis = ManagementFactory.getGarbageCollectorMXBeans().stream()
+                    .mapToLong(GarbageCollectorMXBean::getCollectionTime)
+                    .sum();
+            System.out.printf("%nRetained heap: %.1f MiB, off-heap: %.1f MiB, total gc time: %d ms%n",
+                    heapBytes / (1024.0 * 1024.0), offHeapBytes / (1024.0 * 1024.0), gcMillis);
+        }
+    }
+
+    private static int fullGc(MonitoredArrays monitoredArrays) {
+        // The duration of a full collection is proportional to the live objects, including the permission state.
+        System.gc();
+        return monitoredArrays.live.length;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Fork(1)
+    public int fullGcOnHeap(MonitoredArrays monitoredArrays) {
+        return fullGc(monitoredArrays);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Fork(value = 1, jvmArgsAppend = OFF_HEAP)
+    public int fullGcOffHeap(MonitoredArrays monitoredArrays) {
+        return fullGc(monitoredArrays);
+    }
+
+    @State(Scope.Thread)
+    public static class ShortLived {
+        @Param("8")
+        private int length;
+    }
+
+    private static int[] grantNewArray(ShortLived shortLived) {
+        // The arrays die young, their permission state is reclaimed by the map or the table.
+        int[] array = new int[shortLived.length];
+        Permissions.setArrayPermissionWholeArray(array, Access.WRITE);
+        return array;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Fork(1)
+    public int[] grantNewArrayOnHeap(MonitoredArrays monitoredArrays, ShortLived shortLived) {
+        return grantNewArray(shortLived);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Fork(value = 1, jvmArgsAppend = OFF_HEAP)
+    public int[] grantNewArrayOffHeap(MonitoredArrays monitoredArrays, ShortLived shortLived) {
+        return grantNewArray(shortLived);
+    }
+}
@@ -0,0 +1,90 @@
+package memorymonitoring.benchmark;
+
+import memorymonitoring.runtime.Access;
+import memorymonitoring.runtime.Permissions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Throughput of permission grants (including the check for conflicting permissions of other threads),
+ * depending on the number of other threads that already hold a permission to the same field or array.
+ * <p>
+ * Run with {@code java -jar benchmark/target/benchmarks.jar GrantBenchmark}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GrantBenchmark {
+
+    static final class Holder {
+        int value;
+    }
+
+    @Param({"0", "100", "10000"})
+    private int otherHolders;
+
+    private Holder holder;
+    private int[] array;
+    private int index;
+
+    @Setup(Level.Trial)
+    public void setUp() throws InterruptedException {
+        Logger.getLogger(Permissions.class.getName()).setLevel(java.util.logging.Level.OFF);
+
+        holder = new Holder();
+        array = new int[1024];
+
+        // Other threads obtain read permission to the field, and to disjoint parts of the array.
+        for (int i = 0; i < otherHolders; i++) {
+            int readerIndex = i;
+            Thread reader = Thread.ofVirtual().start(() -> {
+                Permissions.setFieldPermission(holder, Holder.class, "value", Access.READ);
+                Permissions.setArrayPermission(array, 1 + readerIndex % (array.length - 1), Access.READ);
+            });
+            reader.join();
+        }
+    }
+
+    @Benchmark
+    public Holder grantFieldRead() {
+        Permissions.setFieldPermission(holder, Holder.class, "value", Access.READ);
+        return holder;
+    }
+
+    @Benchmark
+    public Holder grantFieldWriteConflicting() {
+        // conflicts with the readers (if any), which is reported as a violation.
+        Permissions.setFieldPermission(holder, Holder.class, "value", Access.WRITE);
+        return holder;
+    }
+
+    @Benchmark
+    public int[] grantArrayElementWrite() {
+        // index 0 is never held by other threads.
+        Permissions.setArrayPermission(array, 0, Access.WRITE);
+        return array;
+    }
+
+    @Benchmark
+    public int[] grantArrayElementRead() {
+        index = (index + 1) % array.length;
+        Permissions.setArrayPermission(array, index, Access.READ);
+        return array;
+    }
+}
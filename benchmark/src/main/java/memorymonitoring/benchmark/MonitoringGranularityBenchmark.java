@@ -0,0 +1,116 @@
+package memorymonitoring.benchmark;
+
+import memorymonitoring.agent.ClassInstrumenter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.IllegalClassFormatException;
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+/**
+ * Overhead of the monitoring of a workload that reads about eight times as often as it writes, per selection of the
+ * monitored accesses (agent option {@code monitor=<kind>}). The workload accesses instance fields, a static field and the
+ * elements of an array, all with permission, so no access is logged. One operation is one pass over the array.
+ * <ul>
+ *     <li>{@code none}: the workload without instrumentation, the baseline.</li>
+ *     <li>{@code all}: all accesses are monitored, the default of the agent.</li>
+ *     <li>{@code writes}, {@code fields}, {@code statics}, {@code arrays}: only the selected accesses are monitored.</li>
+ * </ul>
+ * The workload is instrumented with the same transformations as the agent would apply, and loaded by a class loader of its
+ * own. The runtime picks up the selection once, so every selection runs in a fork of its own.
+ * <p>
+ * Run with {@code java -jar benchmark/target/benchmarks.jar MonitoringGranularityBenchmark}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MonitoringGranularityBenchmark {
+
+    @Param({"none", "all", "writes", "fields", "statics", "arrays"})
+    private String monitor;
+
+    /** Sums and updates the elements of an array, see {@link #getAsInt()}. */
+    public static final class Workload implements IntSupplier {
+        private static int updates;
+
+        private int[] elements = new int[1024];
+        private int scale = 3;
+        private int sum;
+
+        // Per element 4 reads (elements twice, the element, scale), every 8th element 2 reads (elements, updates) and
+        // 4 writes (sum, the element, updates, scale) more: 34 reads per 4 writes.
+        @Override
+        public int getAsInt() {
+            int total = 0;
+            for (int i = 0; i < elements.length; i++) {
+                total += elements[i] * scale;
+                if ((i & 7) == 0) {
+                    sum = total;
+                    elements[i] = total;
+                    updates = updates + 1;
+                    scale = total & 3;
+                }
+            }
+            return total;
+        }
+    }
+
+    private IntSupplier workload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, IllegalClassFormatException, ReflectiveOperationException {
+        if (monitor.equals("none")) {
+            workload = new Workload();
+            return;
+        }
+
+        ClassInstrumenter instrumenter = ClassInstrumenter.of("include=memorymonitoring.benchmark,monitor=" + monitor);
+        String className = Workload.class.getName().replace('.', '/');
+        byte[] instrumented;
+        try (InputStream classFile = Workload.class.getResourceAsStream("/" + className + ".class")) {
+            instrumented = instrumenter.instrument(Workload.class.getClassLoader(), className, classFile.readAllBytes());
+        }
+        // Before the runtime is first used, like the agent does.
+        instrumenter.runtimeProperties().forEach(System::setProperty);
+
+        // Constructed by the benchmark thread, which so gets the permissions to the fields and the array.
+        Class<?> instrumentedClass = new InstrumentedClassLoader(Workload.class.getClassLoader()).define(Workload.class.getName(), instrumented);
+        try {
+            workload = (IntSupplier) instrumentedClass.getConstructor().newInstance();
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("Could not construct the instrumented workload", e.getCause());
+        }
+    }
+
+    @Benchmark
+    public int workload() {
+        return workload.getAsInt();
+    }
+
+    private static final class InstrumentedClassLoader extends ClassLoader {
+        InstrumentedClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] classFile) {
+            return defineClass(name, classFile, 0, classFile.length);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package memorymonitoring.benchmark;
+
+import memorymonitoring.agent.ClassInstrumenter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.IllegalClassFormatException;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Cost of the class transformations of the agent, i.e. of class loading with the agent attached, over a corpus of real
+ * classes. One operation transforms one class of the corpus, the next operation the next class.
+ * <ul>
+ *     <li>{@code classesPerSecond}: the throughput in classes per second.</li>
+ *     <li>{@code latency}: the distribution (percentiles) of the time to transform a class.</li>
+ *     <li>With {@code -prof gc}, gc.alloc.rate.norm is the number of bytes allocated per class.</li>
+ *     <li>The size growth of the instrumented classes is printed before the first iteration.</li>
+ * </ul>
+ * The corpus is a list of module names of the running JDK and paths of jars or class directories, separated by the path
+ * separator. It defaults to the java.base module, which is read from the jrt file system, so the benchmark runs offline.
+ * Classes that can not be transformed (e.g. because their superclasses are missing from the corpus) are left out.
+ * <p>
+ * Run with {@code java -jar benchmark/target/benchmarks.jar TransformationBenchmark -prof gc}, optionally with
+ * {@code -p corpus=java.base:java.desktop:path/to/app.jar} or {@code -p transformer=FieldUsageTransformer}.
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TransformationBenchmark {
+
+    @Param("java.base")
+    private String corpus;
+
+    // "all" runs all transformations of the agent in permissions mode, like the agent does when a class is loaded.
+    @Param({"FieldUsageTransformer", "ArrayUsageTransformer", "InitializerTransformer", "NewArrayTransformer", "all"})
+    private String transformer;
+
+    private record CorpusClass(String className, byte[] bytes) {}
+
+    private ClassInstrumenter instrumenter;
+    private ClassLoader loader;
+    private CorpusClass[] classes;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        ClassInstrumenter all = ClassInstrumenter.of("include=*");
+        instrumenter = transformer.equals("all") ? all : all.restrictedTo(transformer);
+
+        List<CorpusClass> corpusClasses = new ArrayList<>();
+        List<URL> classPath = new ArrayList<>();
+        for (String entry : corpus.split(File.pathSeparator)) {
+            Path path = Path.of(entry);
+            if (Files.exists(path)) {
+                readArtifact(path, corpusClasses);
+                classPath.add(path.toUri().toURL());
+            } else {
+                readModule(entry, corpusClasses);
+            }
+        }
+        // The transformers read the class files of referenced classes (e.g. superclasses) through the class loader.
+        loader = new URLClassLoader(classPath.toArray(URL[]::new), ClassLoader.getSystemClassLoader());
+
+        // Transform every class once, to leave out the classes that can not be transformed and to measure the size growth.
+        List<CorpusClass> transformable = new ArrayList<>();
+        long originalBytes = 0, instrumentedBytes = 0;
+        int changed = 0, failed = 0;
+        for (CorpusClass corpusClass : corpusClasses) {
+            try {
+                byte[] instrumented = instrumenter.instrument(loader, corpusClass.className(), corpusClass.bytes());
+                transformable.add(corpusClass);
+                originalBytes += corpusClass.bytes().length;
+                instrumentedBytes += instrumented == null ? corpusClass.bytes().length : instrumented.length;
+                changed += instrumented == null ? 0 : 1;
+            } catch (IllegalClassFormatException | RuntimeException e) {
+                failed += 1;
+            }
+        }
+        if (transformable.isEmpty()) {
+            throw new IllegalStateException("No transformable classes in corpus " + corpus);
+        }
+        classes = transformable.toArray(CorpusClass[]::new);
+
+        System.out.printf("%nCorpus: %d classes (%d could not be transformed), %d changed by %s. Size: %.1f KiB -> %.1f KiB (%+.1f%%)%n",
+                classes.length, failed, changed, transformer, originalBytes / 1024.0, instrumentedBytes / 1024.0,
+                100.0 * (instrumentedBytes - originalBytes) / originalBytes);
+    }
+
+    private static void readModule(String moduleName, List<CorpusClass> corpusClasses) throws IOException {
+        FileSystem jrt = FileSystems.getFileSystem(URI.create("jrt:/"));
+        Path module = jrt.getPath("/modules", moduleName);
+        if (!Files.isDirectory(module)) {
+            throw new IllegalArgumentException("Corpus entry is neither a file nor a module of the JDK: " + moduleName);
+        }
+        try (Stream<Path> files = Files.walk(module)) {
+            for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile).sorted()::iterator) {
+                addClass(module.relativize(file).toString(), Files.readAllBytes(file), corpusClasses);
+            }
+        }
+    }
+
+    private static void readArtifact(Path path, List<CorpusClass> corpusClasses) throws IOException {
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> files = Files.walk(path)) {
+                for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile).sorted()::iterator) {
+                    addClass(path.relativize(file).toString().replace(File.separatorChar, '/'), Files.readAllBytes(file), corpusClasses);
+                }
+            }
+        } else {
+            try (ZipFile jar = new ZipFile(path.toFile())) {
+                Enumeration<? extends ZipEntry> entries = jar.entries();
+                while (entries.hasMoreElements()) {
+                    ZipEntry entry = entries.nextElement();
+                    try (InputStream content = jar.getInputStream(entry)) {
+                        addClass(entry.getName(), content.readAllBytes(), corpusClasses);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void addClass(String name, byte[] bytes, List<CorpusClass> corpusClasses) {
+        // module descriptors and versioned classes of multi-release jars are not transformed by the agent either.
+        if (!name.endsWith(".class") || name.endsWith("module-info.class") || name.startsWith("META-INF/")) return;
+        corpusClasses.add(new CorpusClass(name.substring(0, name.length() - ".class".length()), bytes));
+    }
+
+    private byte[] transformNext() throws IllegalClassFormatException {
+        CorpusClass corpusClass = classes[next];
+        next = next + 1 == classes.length ? 0 : next + 1;
+        return instrumenter.instrument(loader, corpusClass.className(), corpusClass.bytes());
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public byte[] classesPerSecond() throws IllegalClassFormatException {
+        return transformNext();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public byte[] latency() throws IllegalClassFormatException {
+        return transformNext();
+    }
+}
@@ -0,0 +1,107 @@
+package memorymonitoring.benchmark;
+
+import memorymonitoring.runtime.Access;
+import memorymonitoring.runtime.Permissions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Throughput and retained memory of the permission store when a large number of virtual threads obtain permissions.
+ * <p>
+ * Run with {@code java -jar benchmark/target/benchmarks.jar VirtualThreadPermissionsBenchmark -prof gc}.
+ * The heap that is still in use after each iteration (i.e. the permission state kept alive by the tracked objects)
+ * is printed at the end of every iteration.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class VirtualThreadPermissionsBenchmark {
+
+    static final class Holder {
+        int value;
+    }
+
+    @Param("1000000")
+    private int threads;
+
+    private Holder shared;
+
+    @Setup(Level.Trial)
+    public void disableLogging() {
+        Logger.getLogger(Permissions.class.getName()).setLevel(java.util.logging.Level.OFF);
+    }
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        shared = new Holder();
+    }
+
+    @Benchmark
+    public Holder ownObjectPerThread() {
+        // Every virtual thread allocates an object, is its sole owner, and accesses it.
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < threads; i++) {
+                executor.execute(() -> {
+                    Holder holder = new Holder();
+                    Permissions.setFieldPermission(holder, Holder.class, "value", Access.WRITE);
+                    Permissions.logFieldAccess(holder, Holder.class, "value", Access.WRITE);
+                });
+            }
+        }
+        return shared;
+    }
+
+    @Benchmark
+    public Holder sharedObjectReadByAllThreads() {
+        // Every virtual thread obtains read permission to the same object, which therefore keeps state for all threads.
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < threads; i++) {
+                executor.execute(() -> {
+                    Permissions.setFieldPermission(shared, Holder.class, "value", Access.READ);
+                    Permissions.logFieldAccess(shared, Holder.class, "value", Access.READ);
+                });
+            }
+        }
+        return shared;
+    }
+
+    @Benchmark
+    public Holder sharedObjectWithDefault() {
+        // One owner plus an all-threads default: virtual threads only read through the default permission.
+        Permissions.setFieldPermission(shared, Holder.class, "value", Access.WRITE);
+        Permissions.setFieldDefaultPermission(shared, Holder.class, "value", Access.READ);
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < threads; i++) {
+                executor.execute(() -> Permissions.logFieldAccess(shared, Holder.class, "value", Access.READ));
+            }
+        }
+        return shared;
+    }
+
+    @TearDown(Level.Iteration)
+    public void reportRetainedHeap() {
+        System.gc();
+        long usedBytes = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+        System.out.printf("%nRetained heap after iteration: %.1f MiB%n", usedBytes / (1024.0 * 1024.0));
+    }
+}
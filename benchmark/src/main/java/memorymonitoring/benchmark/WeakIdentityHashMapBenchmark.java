@@ -0,0 +1,122 @@
+package memorymonitoring.benchmark;
+
+import memorymonitoring.util.WeakIdentityHashMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lookup latency of {@link WeakIdentityHashMap} (single-threaded and concurrent), and the reclamation of entries of which
+ * the keys were garbage collected.
+ * <p>
+ * Run with {@code java -jar benchmark/target/benchmarks.jar WeakIdentityHashMapBenchmark -prof gc}.
+ * Lookups should not allocate.
+ */
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WeakIdentityHashMapBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Lookup {
+        @Param({"1000", "1000000"})
+        private int size;
+
+        private WeakIdentityHashMap<Object, Object> map;
+        private Object[] keys;
+        private Object absentKey;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            map = new WeakIdentityHashMap<>();
+            keys = new Object[size];
+            for (int i = 0; i < size; i++) {
+                keys[i] = new Object();
+                map.put(keys[i], keys[i]);
+            }
+            absentKey = new Object();
+        }
+
+        private Object randomKey() {
+            return keys[ThreadLocalRandom.current().nextInt(keys.length)];
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public Object getHit(Lookup lookup) {
+        return lookup.map.get(lookup.randomKey());
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public Object getMiss(Lookup lookup) {
+        return lookup.map.get(lookup.absentKey);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @Threads(4)
+    public Object getHitConcurrent(Lookup lookup) {
+        return lookup.map.get(lookup.randomKey());
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @Threads(4)
+    public Object computeIfAbsentExistingConcurrent(Lookup lookup) {
+        return lookup.map.computeIfAbsent(lookup.randomKey(), key -> key);
+    }
+
+    @State(Scope.Benchmark)
+    public static class Reclaim {
+        @Param("1000000")
+        private int garbageKeys;
+
+        private final WeakIdentityHashMap<Object, long[]> map = new WeakIdentityHashMap<>();
+
+        @Setup(Level.Invocation)
+        public void fillWithGarbage() {
+            // The keys become unreachable immediately, the values are only reclaimed once the entries are expunged.
+            for (int i = 0; i < garbageKeys; i++) {
+                map.put(new Object(), new long[8]);
+            }
+            System.gc();
+        }
+
+        @TearDown(Level.Iteration)
+        public void reportRetainedHeap() {
+            System.gc();
+            long usedBytes = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            System.out.printf("%nEntries left: %d, retained heap after iteration: %.1f MiB%n", map.size(), usedBytes / (1024.0 * 1024.0));
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 5)
+    public int expungeAfterGc(Reclaim reclaim) {
+        // size() expunges all entries of which the keys were collected.
+        return reclaim.map.size();
+    }
+}
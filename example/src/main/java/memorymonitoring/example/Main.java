@@ -6,6 +6,8 @@ import memorymonitoring.runtime.Permissions;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class Main {
 
@@ -73,6 +75,34 @@ public class Main {
         Field instanceField = Main.class.getDeclaredField("instanceField");
         instanceField.setLong(main, 1338L);
         IO.println(instanceField.getLong(main));
+
+        // permissions of the submitting thread are delegated to the worker thread (no violation):
+        try (ExecutorService executor = Executors.newSingleThreadExecutor()) {
+            executor.submit(() -> main.instanceDouble = 2.0).get();
+        }
+        IO.println("instanceDouble = " + main.instanceDouble);
+
+        // the array is partitioned among worker threads, each of which writes its own partition (no violation):
+        long[] squares = new long[1000];
+        int[] boundaries = {0, squares.length / 2, squares.length};
+        Thread[] workers = new Thread[boundaries.length - 1];
+        for (int w = 0; w < workers.length; w++) {
+            int from = boundaries[w], to = boundaries[w + 1];
+            workers[w] = Thread.ofPlatform().unstarted(() -> {
+                for (int i = from; i < to; i++) {
+                    squares[i] = (long) i * i;
+                }
+            });
+        }
+        Permissions.partitionArray(squares, boundaries, workers);
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        Permissions.mergeArray(squares);
+        IO.println("sum of squares = " + Arrays.stream(squares).sum());
     }
 
 }
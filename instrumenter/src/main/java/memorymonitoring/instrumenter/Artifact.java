@@ -0,0 +1,103 @@
+package memorymonitoring.instrumenter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * The entries of a jar file or a class directory, read into memory so that its classes can be instrumented in parallel.
+ */
+final class Artifact {
+
+    /**
+     * An entry of the artifact.
+     * @param name the path of the entry relative to the root of the artifact, separated by '/'
+     */
+    record Entry(String name, byte[] content) {
+
+        boolean isClass() {
+            // module descriptors and versioned classes of multi-release jars are not instrumented.
+            return name.endsWith(".class") && !name.endsWith("module-info.class") && !name.startsWith("META-INF/");
+        }
+
+        /** The internal name of the class in this entry. */
+        String className() {
+            return name.substring(0, name.length() - ".class".length());
+        }
+    }
+
+    private Artifact() {}
+
+    static boolean isJar(Path path) {
+        return !Files.isDirectory(path);
+    }
+
+    /** Read all entries of a jar file or a class directory, in the order in which they occur. */
+    static List<Entry> read(Path path) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        if (isJar(path)) {
+            try (ZipFile jar = new ZipFile(path.toFile())) {
+                Enumeration<? extends ZipEntry> zipEntries = jar.entries();
+                while (zipEntries.hasMoreElements()) {
+                    ZipEntry zipEntry = zipEntries.nextElement();
+                    if (zipEntry.isDirectory() || isSignature(zipEntry.getName()) || isInstrumenterOutput(zipEntry.getName())) continue;
+                    try (InputStream content = jar.getInputStream(zipEntry)) {
+                        entries.add(new Entry(zipEntry.getName(), content.readAllBytes()));
+                    }
+                }
+            }
+        } else {
+            try (Stream<Path> files = Files.walk(path)) {
+                for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile).sorted()::iterator) {
+                    String name = path.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+                    if (isInstrumenterOutput(name)) continue;
+                    entries.add(new Entry(name, Files.readAllBytes(file)));
+                }
+            }
+        }
+        return entries;
+    }
+
+    /** Write the entries to a jar file, or to a class directory if the output is an existing directory or has no .jar extension. */
+    static void write(Path path, List<Entry> entries) throws IOException {
+        if (Files.isDirectory(path) || !path.getFileName().toString().endsWith(".jar")) {
+            for (Entry entry : entries) {
+                Path file = path.resolve(entry.name());
+                Files.createDirectories(file.getParent());
+                Files.write(file, entry.content());
+            }
+        } else {
+            Path parent = path.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            try (OutputStream file = Files.newOutputStream(path);
+                 ZipOutputStream jar = new ZipOutputStream(file)) {
+                for (Entry entry : entries) {
+                    jar.putNextEntry(new ZipEntry(entry.name()));
+                    jar.write(entry.content());
+                    jar.closeEntry();
+                }
+            }
+        }
+    }
+
+    // The resources of an earlier instrumentation are replaced.
+    private static boolean isInstrumenterOutput(String name) {
+        return name.equals(Instrumenter.OPTIONS_RESOURCE) || name.equals(Instrumenter.MANIFEST_RESOURCE);
+    }
+
+    // The signatures of a signed jar no longer match after instrumentation.
+    private static boolean isSignature(String name) {
+        return name.startsWith("META-INF/") && (name.endsWith(".SF") || name.endsWith(".DSA") || name.endsWith(".RSA") || name.endsWith(".EC"));
+    }
+}
@@ -0,0 +1,63 @@
+package memorymonitoring.instrumenter;
+
+import memorymonitoring.agent.ClassInstrumenter.AccessSite;
+import memorymonitoring.agent.ClassInstrumenter.MonitoredField;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The manifest of an instrumented artifact: the options it was instrumented with, and ids for the monitored fields and the
+ * access sites of the instrumented classes.
+ * <p>
+ * The manifest is a text file with one tab-separated record per line:
+ * <pre>
+ * option  key  value
+ * field   id   className  fieldName  static|instance  shadowIndex
+ * site    id   className  methodName  methodType  bci  line  kind
+ * </pre>
+ * Field ids are numbered from 1 in the order of the class names and then the order in the class file. Site ids are those
+ * that the site profiler reports the sites by (0 is TraceFormat#UNKNOWN_SITE), they are reserved in the order of the class
+ * names too, from the first site id given to the instrumenter. Instrumenting the same classes with the same options
+ * therefore always assigns the same ids.
+ */
+final class InstrumentationManifest {
+
+    private InstrumentationManifest() {}
+
+    /**
+     * Render the manifest.
+     * @param options the runtime properties the artifact was instrumented with
+     * @param fields the monitored fields of the instrumented classes, ordered by class name
+     * @param sites the access sites of the instrumented classes, ordered by class name
+     */
+    static byte[] render(Map<String, String> options, List<MonitoredField> fields, List<AccessSite> sites) {
+        StringBuilder manifest = new StringBuilder();
+        manifest.append("# Memory monitoring instrumentation manifest\n");
+        options.forEach((key, value) -> manifest.append("option\t").append(key).append('\t').append(value).append('\n'));
+
+        int fieldId = 1;
+        for (MonitoredField field : fields) {
+            manifest.append("field\t").append(fieldId++)
+                    .append('\t').append(field.className())
+                    .append('\t').append(field.fieldName())
+                    .append('\t').append(field.isStatic() ? "static" : "instance")
+                    .append('\t').append(field.shadowIndex())
+                    .append('\n');
+        }
+
+        for (AccessSite site : sites) {
+            manifest.append("site\t").append(site.id())
+                    .append('\t').append(site.className())
+                    .append('\t').append(site.methodName())
+                    .append('\t').append(site.methodType())
+                    .append('\t').append(site.bci())
+                    .append('\t').append(site.line())
+                    .append('\t').append(site.kind())
+                    .append('\n');
+        }
+
+        return manifest.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,161 @@
+package memorymonitoring.instrumenter;
+
+import memorymonitoring.agent.ClassInstrumenter;
+import memorymonitoring.agent.ClassInstrumenter.AccessSite;
+import memorymonitoring.agent.ClassInstrumenter.MonitoredField;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.instrument.IllegalClassFormatException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IntSummaryStatistics;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Ahead-of-time instrumentation of a jar file or a class directory, with the same transformations as the agent applies
+ * when classes are loaded. The instrumented artifact only needs the runtime on the class path, no agent.
+ * <p>
+ * Usage: {@code java -jar instrumenter.jar [--options <agent options>] [--classpath <class path>] [--first-site-id <id>] <input> <output>}
+ * <p>
+ * The classes are instrumented in parallel. The options may include {@code profile=<top>}, to instrument the classes
+ * for the site profiler (see SiteProfiler), which then reports the sites by the ids in the manifest. The site ids start
+ * at 1, or at {@code --first-site-id}: artifacts that are used together must be given distinct site ids, which the runtime
+ * checks. Options that only the agent supports, like {@code deinstrument}, are rejected. Besides the instrumented classes,
+ * the output contains:
+ * <ul>
+ *     <li>{@value #OPTIONS_RESOURCE}: the options the classes were instrumented with, which the runtime picks up
+ *     when no agent sets them, and the range of site ids ({@value #SITES_PROPERTY}) if the sites are profiled.</li>
+ *     <li>{@value #MANIFEST_RESOURCE}: the ids of the monitored fields and access sites, see {@link InstrumentationManifest}.</li>
+ * </ul>
+ * The class path is only used to read the class files of classes that the input refers to (e.g. superclasses), it is not
+ * instrumented.
+ */
+public final class Instrumenter {
+
+    // Must match memorymonitoring.runtime.RuntimeOptions#RESOURCE.
+    static final String OPTIONS_RESOURCE = "META-INF/memorymonitoring/options.properties";
+    static final String MANIFEST_RESOURCE = "META-INF/memorymonitoring/manifest.txt";
+    // Must match memorymonitoring.runtime.RuntimeOptions#SITES_PROPERTY.
+    static final String SITES_PROPERTY = "memorymonitoring.sites";
+
+    private Instrumenter() {}
+
+    /** The result of instrumenting one entry: the entry to write, and what the manifest records for it. */
+    private record Instrumented(Artifact.Entry entry, boolean isInstrumented, List<MonitoredField> fields, List<AccessSite> sites) {}
+
+    public static void main(String[] args) throws IOException {
+        String agentOptions = null;
+        String classPath = "";
+        int firstSiteId = 1;
+        List<String> paths = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--options" -> agentOptions = args[++i];
+                case "--classpath" -> classPath = args[++i];
+                case "--first-site-id" -> firstSiteId = Integer.parseInt(args[++i]);
+                default -> paths.add(args[i]);
+            }
+        }
+        if (paths.size() != 2) {
+            System.err.println("Usage: Instrumenter [--options <agent options>] [--classpath <class path>] [--first-site-id <id>] <input> <output>");
+            System.exit(2);
+        }
+        Path input = Path.of(paths.get(0));
+        Path output = Path.of(paths.get(1));
+
+        long startNanos = System.nanoTime();
+        ClassInstrumenter instrumenter = ClassInstrumenter.aheadOfTime(agentOptions, firstSiteId);
+        List<Artifact.Entry> entries = Artifact.read(input);
+
+        List<Artifact.Entry> classes = entries.stream().filter(Artifact.Entry::isClass).sorted(Comparator.comparing(Artifact.Entry::name)).toList();
+        List<Instrumented> results;
+        try (URLClassLoader loader = new URLClassLoader(urls(input, classPath), ClassLoader.getPlatformClassLoader())) {
+            // Reserve the site ids in the order of the class names, so that the ids do not depend on the order in which the
+            // classes are instrumented. Which field accesses are sites depends on the class files of the accessed classes.
+            List<Integer> siteCounts = classes.parallelStream().map(entry -> ClassInstrumenter.countAccessSites(loader, entry.content())).toList();
+            for (int i = 0; i < classes.size(); i++) {
+                instrumenter.reserveSiteIds(classes.get(i).className(), siteCounts.get(i));
+            }
+
+            // The transformations are independent per class, and only read the (original) class files of other classes.
+            results = entries.parallelStream().map(entry -> instrument(instrumenter, loader, entry)).toList();
+        }
+
+        List<Artifact.Entry> outputEntries = new ArrayList<>(results.size() + 2);
+        for (Instrumented result : results) {
+            outputEntries.add(result.entry());
+        }
+
+        List<Instrumented> instrumentedClasses = results.stream()
+                .filter(Instrumented::isInstrumented)
+                .sorted(Comparator.comparing(result -> result.entry().name()))
+                .toList();
+        List<MonitoredField> fields = new ArrayList<>();
+        List<AccessSite> sites = new ArrayList<>();
+        for (Instrumented result : instrumentedClasses) {
+            fields.addAll(result.fields());
+            sites.addAll(result.sites());
+        }
+
+        Map<String, String> runtimeProperties = new LinkedHashMap<>(instrumenter.runtimeProperties());
+        if (instrumenter.profilesSites() && !sites.isEmpty()) {
+            // so that the runtime can tell whether the sites of two artifacts share ids.
+            IntSummaryStatistics siteIds = sites.stream().mapToInt(AccessSite::id).summaryStatistics();
+            runtimeProperties.put(SITES_PROPERTY, siteIds.getMin() + "-" + siteIds.getMax());
+        }
+        outputEntries.add(new Artifact.Entry(OPTIONS_RESOURCE, properties(runtimeProperties)));
+        outputEntries.add(new Artifact.Entry(MANIFEST_RESOURCE, InstrumentationManifest.render(runtimeProperties, fields, sites)));
+        Artifact.write(output, outputEntries);
+
+        System.out.printf("Instrumented %d of %d classes (%d fields, %d access sites) from %s to %s in %d ms.%n",
+                instrumentedClasses.size(), classes.size(), fields.size(), sites.size(), input, output, (System.nanoTime() - startNanos) / 1_000_000);
+    }
+
+    private static Instrumented instrument(ClassInstrumenter instrumenter, ClassLoader loader, Artifact.Entry entry) {
+        if (!entry.isClass()) return new Instrumented(entry, false, List.of(), List.of());
+
+        byte[] original = entry.content();
+        try {
+            byte[] instrumented = instrumenter.instrument(loader, entry.className(), original);
+            if (instrumented == null) return new Instrumented(entry, false, List.of(), List.of());
+
+            return new Instrumented(new Artifact.Entry(entry.name(), instrumented), true,
+                    ClassInstrumenter.monitoredFields(original), instrumenter.accessSites(loader, entry.className(), original));
+        } catch (IllegalClassFormatException e) {
+            throw new IllegalArgumentException("Could not instrument " + entry.name(), e);
+        }
+    }
+
+    private static URL[] urls(Path input, String classPath) throws MalformedURLException {
+        List<URL> urls = new ArrayList<>();
+        urls.add(input.toUri().toURL());
+        for (String element : classPath.split(File.pathSeparator)) {
+            if (!element.isBlank()) {
+                urls.add(Path.of(element).toUri().toURL());
+            }
+        }
+        return urls.toArray(URL[]::new);
+    }
+
+    private static byte[] properties(Map<String, String> runtimeProperties) {
+        Properties properties = new Properties();
+        properties.putAll(runtimeProperties);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            properties.store(bytes, "Options of the instrumented classes, read by memorymonitoring.runtime.RuntimeOptions");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+}
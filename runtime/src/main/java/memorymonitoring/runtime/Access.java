@@ -13,4 +13,8 @@ public enum Access {
     public static Access weakest(Access one, Access two) {
         return one.covers(two) ? two : one;
     }
+
+    public static Access strongest(Access one, Access two) {
+        return one.covers(two) ? one : two;
+    }
 }
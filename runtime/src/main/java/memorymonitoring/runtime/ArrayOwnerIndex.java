@@ -0,0 +1,182 @@
+package memorymonitoring.runtime;
+
+import memorymonitoring.util.SegmentTree;
+import org.jspecify.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Counts the threads that hold READ and WRITE permission, per disjoint range (segment) of one array, and remembers the
+ * owning thread of the segments that have a single writer.
+ * <p>
+ * Segments are split at the boundaries of every grant, so the permission of any single thread is uniform within a segment.
+ * This allows a grant to detect conflicting permissions of other threads from the counters of the affected segments,
+ * without visiting the permissions of all other threads.
+ * <p>
+ * The segments are kept in parallel arrays sorted by their start index, so the segment of an index is found with a binary
+ * search. Adjacent segments that are owned by the same single writer (and that have no readers) are merged again after a
+ * grant, so an array that is partitioned among threads (see {@link Permissions#partitionArray(Object, int[], Thread[])})
+ * has one segment per partition, and checking the access of an owner costs O(log partitions), see {@link #isSoleWriter}.
+ */
+final class ArrayOwnerIndex {
+
+    private static final long NO_WRITER = -1L;  // no writer, several writers, or a single writer which is not known
+    private static final int INITIAL_CAPACITY = 4;
+
+    private final int length;
+    private int size;
+    private int[] starts;           // start index (inclusive) per segment, a segment ends where the next one starts.
+    private int[] readers;
+    private int[] writers;
+    private long[] writerThreadIds; // the threadId of the only writer of a segment, or NO_WRITER
+
+    ArrayOwnerIndex(int length) {
+        this.length = length;
+        this.size = 1;
+        this.starts = new int[INITIAL_CAPACITY];
+        this.readers = new int[INITIAL_CAPACITY];
+        this.writers = new int[INITIAL_CAPACITY];
+        this.writerThreadIds = new long[INITIAL_CAPACITY];
+        writerThreadIds[0] = NO_WRITER;
+    }
+
+    /**
+     * Whether a thread is the only thread with WRITE permission to every element in a range.
+     * If so, the thread has WRITE permission to the range, and no other thread has any permission to it.
+     * @param threadId the id of the thread
+     * @param indexFrom starting index - inclusive
+     * @param indexTo end index - exclusive
+     */
+    boolean isSoleWriter(long threadId, int indexFrom, int indexTo) {
+        for (int segment = segmentOf(indexFrom); segment < size && starts[segment] < indexTo; segment++) {
+            if (writerThreadIds[segment] != threadId) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Register a grant, and check whether it conflicts with the permissions of other threads.
+     * @param threadId the id of the granted thread
+     * @param ownRanges the permissions of the granted thread, before the grant is applied
+     * @param indexFrom starting index - inclusive
+     * @param indexTo end index - exclusive
+     * @param access the permission level to be granted
+     * @return the strongest conflicting permission held by another thread, or null if the grant does not conflict
+     */
+    @Nullable Access grant(long threadId, SegmentTree<Access> ownRanges, int indexFrom, int indexTo, Access access) {
+        if (indexFrom >= indexTo) return null;
+
+        int first = split(indexFrom);
+        split(indexTo);
+
+        Access conflict = null;
+        int segment = first;
+        for (; segment < size && starts[segment] < indexTo; segment++) {
+            Access previous = writerThreadIds[segment] == threadId ? Access.WRITE : ownRanges.get(starts[segment], end(segment));
+            int otherWriters = writers[segment] - (previous == Access.WRITE ? 1 : 0);
+            int otherReaders = readers[segment] - (previous == Access.READ ? 1 : 0);
+            if (otherWriters > 0 && access != Access.NONE) {
+                conflict = Access.WRITE;
+            } else if (otherReaders > 0 && access == Access.WRITE && conflict == null) {
+                conflict = Access.READ;
+            }
+
+            count(segment, previous, -1);
+            count(segment, access, +1);
+            if (access == Access.WRITE) {
+                writerThreadIds[segment] = writers[segment] == 1 ? threadId : NO_WRITER;
+            } else if (previous == Access.WRITE) {
+                // if another writer remains, it is not known which thread it is.
+                writerThreadIds[segment] = NO_WRITER;
+            }
+        }
+        coalesce(first - 1, segment);
+        return conflict;
+    }
+
+    private int segmentOf(int index) {
+        int found = Arrays.binarySearch(starts, 0, size, index);
+        return found >= 0 ? found : -found - 2;
+    }
+
+    private int end(int segment) {
+        return segment + 1 < size ? starts[segment + 1] : length;
+    }
+
+    /** Split the segment that contains an index, so that a segment starts at the index. Returns that segment. */
+    private int split(int index) {
+        if (index >= length) return size;
+
+        int containing = segmentOf(index);
+        if (starts[containing] == index) return containing;
+
+        if (size == starts.length) {
+            int capacity = size * 2;
+            starts = Arrays.copyOf(starts, capacity);
+            readers = Arrays.copyOf(readers, capacity);
+            writers = Arrays.copyOf(writers, capacity);
+            writerThreadIds = Arrays.copyOf(writerThreadIds, capacity);
+        }
+        int inserted = containing + 1;
+        shift(inserted, inserted + 1, size - inserted);
+        size += 1;
+        copy(containing, inserted);
+        starts[inserted] = index;
+        return inserted;
+    }
+
+    /**
+     * Merge the adjacent segments between two segments (inclusive) that have the same single writer and no readers.
+     * Segments of which the permissions of all threads are not known from the counters can not be merged, since the
+     * permission of a thread must stay uniform within a segment.
+     */
+    private void coalesce(int firstSegment, int lastSegment) {
+        int first = Math.max(firstSegment, 0);
+        int last = Math.min(lastSegment, size - 1);
+
+        int kept = first;
+        for (int segment = first + 1; segment <= last; segment++) {
+            if (!isSoleOwnerState(kept) || !isSoleOwnerState(segment)
+                    || writers[kept] != writers[segment] || writerThreadIds[kept] != writerThreadIds[segment]) {
+                kept += 1;
+                if (kept != segment) {
+                    copy(segment, kept);
+                    starts[kept] = starts[segment];
+                }
+            }
+        }
+
+        int removed = last - kept;
+        if (removed > 0) {
+            shift(last + 1, kept + 1, size - last - 1);
+            size -= removed;
+        }
+    }
+
+    // Whether the permissions of all threads in a segment are known: either nobody holds a permission, or one known writer.
+    private boolean isSoleOwnerState(int segment) {
+        return readers[segment] == 0 && (writers[segment] == 0 || writerThreadIds[segment] != NO_WRITER);
+    }
+
+    private void shift(int from, int to, int count) {
+        System.arraycopy(starts, from, starts, to, count);
+        System.arraycopy(readers, from, readers, to, count);
+        System.arraycopy(writers, from, writers, to, count);
+        System.arraycopy(writerThreadIds, from, writerThreadIds, to, count);
+    }
+
+    // Copy the counters of a segment, not its start.
+    private void copy(int from, int to) {
+        readers[to] = readers[from];
+        writers[to] = writers[from];
+        writerThreadIds[to] = writerThreadIds[from];
+    }
+
+    private void count(int segment, @Nullable Access access, int delta) {
+        if (access == Access.WRITE) {
+            writers[segment] += delta;
+        } else if (access == Access.READ) {
+            readers[segment] += delta;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package memorymonitoring.runtime;
+
+import memorymonitoring.util.LongHashMap;
+import memorymonitoring.util.SegmentTree;
+import org.jspecify.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Permissions of all threads to the ranges of one array.
+ * <p>
+ * Threads are identified by {@link Thread#threadId()}. The ranges of the first thread that obtains a permission are stored
+ * inline; the ranges of all other threads are kept in an overflow map that is only allocated when needed.
+ * The ranges of a thread are removed with {@link #reclaim(long)} when the thread is gone, see {@link Permissions}.
+ * <p>
+ * Which threads own which ranges is also kept in one {@link ArrayOwnerIndex} per array, which detects conflicting grants,
+ * and answers the checks of threads that are the only writer of the checked range (e.g. the workers of a partitioned
+ * array) without looking up the ranges of the thread.
+ * <p>
+ * This class is public so that recorded traces can be replayed offline with the same semantics.
+ */
+public final class ArrayPermission {
+
+    private static final long NO_OWNER = -1L;
+
+    private final int length;
+    private final ArrayOwnerIndex owners;
+    private long ownerThreadId = NO_OWNER;
+    private @Nullable SegmentTree<Access> ownerRanges;
+    private @Nullable LongHashMap<SegmentTree<Access>> otherThreads;
+
+    public ArrayPermission(int length) {
+        this.length = length;
+        this.owners = new ArrayOwnerIndex(length);
+    }
+
+    @Nullable SegmentTree<Access> get(long threadId) {
+        if (ownerThreadId == threadId) {
+            return ownerRanges;
+        }
+        return otherThreads == null ? null : otherThreads.get(threadId);
+    }
+
+    /**
+     * Get the access level of a thread to a range in the array.
+     * @param threadId the id of the thread
+     * @param indexFrom starting index - inclusive
+     * @param indexTo end index - exclusive
+     * @return the weakest access level of the thread in this range
+     */
+    public Access get(long threadId, int indexFrom, int indexTo) {
+        if (owners.isSoleWriter(threadId, indexFrom, indexTo)) {
+            return Access.WRITE;
+        }
+        SegmentTree<Access> ranges = get(threadId);
+        Access access = ranges == null ? null : ranges.get(indexFrom, indexTo);
+        return access == null ? Access.NONE : access;
+    }
+
+    /**
+     * Set the permission of a thread to a range in the array.
+     * @param threadId the id of the thread
+     * @param indexFrom starting index - inclusive
+     * @param indexTo end index - exclusive
+     * @param access the permission level to be set
+     * @return the strongest conflicting permission held by another thread in this range, or null if there is no conflict
+     */
+    public @Nullable Access set(long threadId, int indexFrom, int indexTo, Access access) {
+        SegmentTree<Access> ranges = computeIfAbsent(threadId);
+        Access conflict = owners.grant(threadId, ranges, indexFrom, indexTo, access);
+        ranges.set(indexFrom, indexTo, access);
+        return conflict;
+    }
+
+    /** Whether a permission was set for the thread. */
+    boolean holds(long threadId) {
+        return get(threadId) != null;
+    }
+
+    /** Remove the ranges of a thread, e.g. because the thread is gone. */
+    void reclaim(long threadId) {
+        SegmentTree<Access> ranges = get(threadId);
+        if (ranges == null) return;
+
+        // uncount the permissions of the thread in the owner index.
+        owners.grant(threadId, ranges, 0, length, Access.NONE);
+        if (ownerThreadId == threadId) {
+            // the slot is taken by the next thread that gets a permission and has no entry in the overflow map.
+            ownerThreadId = NO_OWNER;
+            ownerRanges = null;
+        } else {
+            otherThreads.remove(threadId);
+            if (otherThreads.isEmpty()) {
+                otherThreads = null;
+            }
+        }
+    }
+
+    /**
+     * Remove the ranges of all threads but one, e.g. when the partitions of the array are merged back into one thread.
+     * @return the ids of the threads of which the ranges were removed
+     */
+    long[] reclaimAllExcept(long threadId) {
+        long[] threadIds = otherThreads == null ? new long[0] : otherThreads.keys();
+        if (ownerThreadId != NO_OWNER) {
+            threadIds = Arrays.copyOf(threadIds, threadIds.length + 1);
+            threadIds[threadIds.length - 1] = ownerThreadId;
+        }
+
+        int reclaimed = 0;
+        for (long other : threadIds) {
+            if (other != threadId) {
+                reclaim(other);
+                threadIds[reclaimed++] = other;
+            }
+        }
+        return Arrays.copyOf(threadIds, reclaimed);
+    }
+
+    private SegmentTree<Access> computeIfAbsent(long threadId) {
+        if (ownerThreadId == NO_OWNER && get(threadId) == null) {
+            ownerThreadId = threadId;
+            ownerRanges = newRanges();
+        }
+        if (ownerThreadId == threadId) {
+            return ownerRanges;
+        }
+
+        if (otherThreads == null) {
+            otherThreads = new LongHashMap<>();
+        }
+        return otherThreads.computeIfAbsent(threadId, _ -> newRanges());
+    }
+
+    private SegmentTree<Access> newRanges() {
+        return new SegmentTree<>(length, Access.NONE, Access::weakest);
+    }
+}
@@ -0,0 +1,86 @@
+package memorymonitoring.runtime;
+
+import memorymonitoring.util.VectorClock;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Immutable handle to the permissions of the thread(s) that submitted a task.
+ * <p>
+ * A delegation is captured on the submitting thread and installed on the worker thread for the duration of the task.
+ * Both capturing and installing are O(1): the handle only holds the threads, the permissions themselves are looked up
+ * in the permission store by thread id when they are checked. Holding the threads keeps their permissions from being
+ * reclaimed while a task may still use them (see {@link Permissions}). A task submitted from within a delegated task inherits the delegation
+ * of its parent, so the chain is at most as long as the number of distinct threads involved.
+ * <p>
+ * When data race detection is enabled, the delegation also carries the vector clock of the submitter, so that the
+ * submission of the task happens before its execution. When a trace is recorded, installing and restoring a delegation
+ * is recorded too (see {@link TraceRecorder#delegation(Delegation)}), so that the analyzer replays the same permissions.
+ */
+final class Delegation {
+
+    private static final ThreadLocal<@Nullable Delegation> INSTALLED = new ThreadLocal<>();
+
+    private final Thread thread;
+    private final @Nullable Delegation parent;
+    private final @Nullable VectorClock submitterClock;
+
+    private Delegation(Thread thread, @Nullable Delegation parent, @Nullable VectorClock submitterClock) {
+        this.thread = thread;
+        this.parent = parent;
+        this.submitterClock = submitterClock;
+    }
+
+    long threadId() {
+        return thread.threadId();
+    }
+
+    @Nullable Delegation parent() {
+        return parent;
+    }
+
+    /** Capture the permissions of the current thread, including the permissions delegated to it. */
+    static Delegation capture() {
+        Thread thread = Thread.currentThread();
+        Delegation current = INSTALLED.get();
+        VectorClock submitterClock = RaceDetector.ENABLED ? RaceDetector.submitTask() : null;
+        for (Delegation delegation = current; delegation != null; delegation = delegation.parent) {
+            if (delegation.thread == thread) {
+                return submitterClock == null ? current : new Delegation(current.thread, current.parent, submitterClock);
+            }
+        }
+        return new Delegation(thread, current, submitterClock);
+    }
+
+    /** The delegation installed on the current thread, or null if the current thread only acts on its own behalf. */
+    static @Nullable Delegation current() {
+        return INSTALLED.get();
+    }
+
+    /**
+     * Install a delegation on the current thread.
+     * @param delegation the delegation
+     * @return the previously installed delegation, which must be passed to {@link #restore(Delegation)}
+     */
+    static @Nullable Delegation install(Delegation delegation) {
+        Delegation previous = INSTALLED.get();
+        INSTALLED.set(delegation);
+        if (delegation.submitterClock != null) {
+            RaceDetector.startTask(delegation.submitterClock);
+        }
+        if (TraceRecorder.ENABLED) {
+            TraceRecorder.delegation(delegation);
+        }
+        return previous;
+    }
+
+    static void restore(@Nullable Delegation previous) {
+        if (previous == null) {
+            INSTALLED.remove();
+        } else {
+            INSTALLED.set(previous);
+        }
+        if (TraceRecorder.ENABLED) {
+            TraceRecorder.delegation(previous);
+        }
+    }
+}
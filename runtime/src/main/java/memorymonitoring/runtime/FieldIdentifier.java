@@ -1,4 +0,0 @@
-package memorymonitoring.runtime;
-
-record FieldIdentifier(Class<?> declaringClass, String fieldName) {
-}
@@ -0,0 +1,109 @@
+package memorymonitoring.runtime;
+
+import memorymonitoring.util.LongHashMap;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * Permissions of all threads to one field of one object (or one static field, in which case the owning object is the Class).
+ * <p>
+ * Threads are identified by {@link Thread#threadId()}. The common case of a single owning thread plus a default for all
+ * other threads is stored inline; only when a second thread gets an explicit permission, an overflow map is allocated.
+ * The number of threads with explicit READ and WRITE permission is counted, so that conflicting grants can be detected
+ * without visiting the permissions of all other threads.
+ * <p>
+ * The permission of a thread is removed with {@link #reclaim(long)} when the thread is gone, see {@link Permissions}.
+ * <p>
+ * This class is public so that recorded traces can be replayed offline with the same semantics.
+ */
+public final class FieldPermission {
+
+    private static final long NO_OWNER = -1L;
+
+    private long ownerThreadId = NO_OWNER;
+    private Access ownerAccess = Access.NONE;
+    private @Nullable LongHashMap<Access> otherThreads;
+    private @Nullable Access defaultAccess;
+    private int readers, writers;
+
+    /**
+     * Get the access level of a thread.
+     * @param threadId the id of the thread
+     * @return the explicitly granted access of the thread, otherwise the default access, otherwise null
+     */
+    public @Nullable Access get(long threadId) {
+        Access access = getExplicit(threadId);
+        return access != null ? access : defaultAccess;
+    }
+
+    /**
+     * Set the access level of a thread.
+     * @param threadId the id of the thread
+     * @param access the permission level to be set
+     * @return the strongest conflicting permission held by another thread, or null if there is no conflict
+     */
+    public @Nullable Access set(long threadId, Access access) {
+        Access previous = getExplicit(threadId);
+        int otherWriters = writers - (previous == Access.WRITE ? 1 : 0);
+        int otherReaders = readers - (previous == Access.READ ? 1 : 0);
+        Access conflict = switch (access) {
+            case WRITE -> otherWriters > 0 ? Access.WRITE : otherReaders > 0 ? Access.READ : null;
+            case READ -> otherWriters > 0 ? Access.WRITE : null;
+            case NONE -> null;
+        };
+        count(previous, -1);
+        count(access, +1);
+
+        if (ownerThreadId == threadId || (ownerThreadId == NO_OWNER && previous == null)) {
+            ownerThreadId = threadId;
+            ownerAccess = access;
+        } else {
+            if (otherThreads == null) {
+                otherThreads = new LongHashMap<>();
+            }
+            otherThreads.put(threadId, access);
+        }
+        return conflict;
+    }
+
+    /** Whether a permission was explicitly set for the thread. */
+    boolean holds(long threadId) {
+        return getExplicit(threadId) != null;
+    }
+
+    /** Remove the explicit permission of a thread, which is gone. */
+    void reclaim(long threadId) {
+        Access previous = getExplicit(threadId);
+        if (previous == null) return;
+
+        count(previous, -1);
+        if (ownerThreadId == threadId) {
+            // the slot is taken by the next thread that gets a permission and has no entry in the overflow map.
+            ownerThreadId = NO_OWNER;
+            ownerAccess = Access.NONE;
+        } else {
+            otherThreads.remove(threadId);
+            if (otherThreads.isEmpty()) {
+                otherThreads = null;
+            }
+        }
+    }
+
+    private @Nullable Access getExplicit(long threadId) {
+        if (ownerThreadId == threadId) {
+            return ownerAccess;
+        }
+        return otherThreads == null ? null : otherThreads.get(threadId);
+    }
+
+    private void count(@Nullable Access access, int delta) {
+        if (access == Access.WRITE) {
+            writers += delta;
+        } else if (access == Access.READ) {
+            readers += delta;
+        }
+    }
+
+    public void setDefault(Access access) {
+        defaultAccess = access;
+    }
+}
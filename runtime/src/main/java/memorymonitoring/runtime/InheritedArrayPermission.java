@@ -0,0 +1,56 @@
+package memorymonitoring.runtime;
+
+import java.util.BitSet;
+
+/**
+ * A permission to all sub-arrays of a multi-dimensional array, which is not granted yet.
+ * <p>
+ * Granting a permission to every sub-array when a multi-dimensional array is created costs a grant per sub-array, most of
+ * which may never be used. Instead, the permission is recorded once for the outer array, and is granted to a sub-array
+ * when the element of the outer array which refers to it is first accessed (see {@link Permissions#logArrayAccess}).
+ * The sub-arrays of a newly created array can only be reached through the outer array, so no sub-array can be accessed
+ * before its permission was granted.
+ * <p>
+ * The permission is granted at most once per element: when an element of the outer array is overwritten, the element
+ * is resolved first, so that the new element does not inherit the permission.
+ * <p>
+ * If reads of arrays are not monitored (agent option {@code monitor=writes}), the instrumented code does not call into
+ * the runtime when it loads a sub-array, so the sub-arrays are granted when the outer array is created instead. The same
+ * holds once the agent stops checking hot sites (agent option {@code deinstrument}), see {@link SiteProfiler#hotSites}.
+ * <p>
+ * Not thread-safe, all access is guarded by the lock of {@link Permissions}.
+ */
+final class InheritedArrayPermission {
+
+    // referenced, so that the permissions of the thread are not reclaimed before they were inherited, see ThreadStateIndex.
+    final Thread thread;
+    final int dimensions;       // the dimensions of the sub-arrays
+    final Access access;
+
+    private final BitSet resolved;
+    private int unresolved;
+
+    InheritedArrayPermission(Thread thread, int dimensions, Access access, int length) {
+        this.thread = thread;
+        this.dimensions = dimensions;
+        this.access = access;
+        this.resolved = new BitSet(length);
+        this.unresolved = length;
+    }
+
+    /**
+     * Mark an element of the outer array as resolved.
+     * @return true if the permission still needs to be granted to the element, false if it was resolved before
+     */
+    boolean resolve(int index) {
+        if (resolved.get(index)) return false;
+        resolved.set(index);
+        unresolved -= 1;
+        return true;
+    }
+
+    /** Whether all elements of the outer array are resolved, after which the permission can be forgotten. */
+    boolean isComplete() {
+        return unresolved == 0;
+    }
+}
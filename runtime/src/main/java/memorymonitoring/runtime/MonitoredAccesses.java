@@ -0,0 +1,60 @@
+package memorymonitoring.runtime;
+
+import org.jspecify.annotations.Nullable;
+
+import java.util.List;
+
+/**
+ * The kinds of accesses that are monitored, selected with the agent option {@code monitor=<kind>}: all accesses (the
+ * default), or only writes, and/or only the accesses to fields, static fields or arrays.
+ * <p>
+ * The agent inserts no code for the accesses that are not monitored. The accesses that can only be told apart at run time
+ * are left out here: reflective accesses and accesses through VarHandles, which can access either a static or an instance
+ * field. With all accesses monitored, the check is folded away by the JIT compiler.
+ */
+final class MonitoredAccesses {
+
+    // Must match memorymonitoring.agent.AgentOptions#MONITOR_PROPERTY.
+    static final String MONITOR_PROPERTY = "memorymonitoring.monitor";
+    private static final @Nullable String MONITOR = RuntimeOptions.get(MONITOR_PROPERTY);
+
+    private static final boolean READS, INSTANCE_FIELDS, STATIC_FIELDS, ARRAYS;
+    static {
+        // Must match memorymonitoring.agent.MonitoredAccesses#of.
+        boolean reads = true, memoryKinds = false, instanceFields = false, staticFields = false, arrays = false;
+        for (String kind : MONITOR == null || MONITOR.isBlank() ? List.<String>of() : List.of(MONITOR.split(","))) {
+            switch (kind.strip()) {
+                case "all" -> { memoryKinds = true; instanceFields = true; staticFields = true; arrays = true; }
+                case "writes" -> reads = false;
+                case "fields" -> { memoryKinds = true; instanceFields = true; staticFields = true; }
+                case "statics" -> { memoryKinds = true; staticFields = true; }
+                case "arrays" -> { memoryKinds = true; arrays = true; }
+                default -> throw new IllegalArgumentException("Option " + MONITOR_PROPERTY + " must be a list of all, writes, fields, statics or arrays, got: " + MONITOR);
+            }
+        }
+        READS = reads;
+        INSTANCE_FIELDS = instanceFields || !memoryKinds;
+        STATIC_FIELDS = staticFields || !memoryKinds;
+        ARRAYS = arrays || !memoryKinds;
+    }
+
+    static final boolean ALL = READS && INSTANCE_FIELDS && STATIC_FIELDS && ARRAYS;
+    static {
+        // Must match memorymonitoring.agent.AgentOptions#parse: the race detector needs the accesses to volatile fields.
+        if (!ALL && "races".equals(RuntimeOptions.get(RaceDetector.MODE_PROPERTY))) {
+            throw new IllegalArgumentException("Option " + MONITOR_PROPERTY + " must select all accesses in mode races, got: " + MONITOR);
+        }
+    }
+
+    private MonitoredAccesses() {}
+
+    /** Whether an access to a field is monitored. For static fields, the owning instance is the declaring class. */
+    static boolean isMonitoredFieldAccess(Object owningInstance, Access access) {
+        return (READS || access != Access.READ)
+                && (owningInstance instanceof Class<?> ? STATIC_FIELDS : INSTANCE_FIELDS);
+    }
+
+    static boolean isMonitoredArrayAccess(Access access) {
+        return ARRAYS && (READS || access != Access.READ);
+    }
+}
@@ -0,0 +1,192 @@
+package memorymonitoring.runtime;
+
+import memorymonitoring.util.CalledByInstrumentedCode;
+import memorymonitoring.util.WeakIdentityHashMap;
+import org.jspecify.annotations.Nullable;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+
+/**
+ * Monitoring of the accesses to fields and arrays through {@link VarHandle}s and {@link MethodHandle}s.
+ * <p>
+ * Instrumented code obtains its handles through this class instead of through {@link MethodHandles.Lookup} and
+ * {@link MethodHandles}. The field that a handle accesses is resolved once, when the handle is created:
+ * <ul>
+ *     <li>Getters and setters are returned with the check of the access folded in, bound to the field.</li>
+ *     <li>VarHandles are registered in a weak cache, so that the instrumented invocations of their access modes
+ *     only need one (lock-free, allocation-free) lookup to find the field, see {@link #logVarHandleAccess}.</li>
+ * </ul>
+ * Handles of final fields (which only allow reads) and of immutable fields are not monitored, like direct accesses to such
+ * fields. Handles created by code that is not instrumented are not monitored either.
+ */
+public final class MonitoredHandles {
+
+    /** What the accesses through a VarHandle access. */
+    private sealed interface Target permits FieldTarget, ArrayElementTarget {}
+
+    private record FieldTarget(Class<?> declaringClass, String fieldName, boolean isStatic) implements Target {}
+
+    private enum ArrayElementTarget implements Target { INSTANCE }
+
+    private static final WeakIdentityHashMap<VarHandle, Target> varHandleTargets = new WeakIdentityHashMap<>();
+
+    private static final MethodHandle LOG_FIELD_ACCESS;
+    static {
+        try {
+            LOG_FIELD_ACCESS = MethodHandles.lookup().findStatic(Permissions.class, "logFieldAccess",
+                    MethodType.methodType(void.class, Object.class, Class.class, String.class, Access.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private MonitoredHandles() {}
+
+    /** @see MethodHandles.Lookup#findVarHandle(Class, String, Class) */
+    @CalledByInstrumentedCode
+    public static VarHandle findVarHandle(MethodHandles.Lookup lookup, Class<?> receiverClass, String fieldName, Class<?> fieldType)
+            throws NoSuchFieldException, IllegalAccessException {
+        VarHandle varHandle = lookup.findVarHandle(receiverClass, fieldName, fieldType);
+        FieldTarget target = monitoredField(receiverClass, fieldName, false);
+        if (target != null) {
+            varHandleTargets.put(varHandle, target);
+        }
+        return varHandle;
+    }
+
+    /** @see MethodHandles.Lookup#findStaticVarHandle(Class, String, Class) */
+    @CalledByInstrumentedCode
+    public static VarHandle findStaticVarHandle(MethodHandles.Lookup lookup, Class<?> declaringClass, String fieldName, Class<?> fieldType)
+            throws NoSuchFieldException, IllegalAccessException {
+        VarHandle varHandle = lookup.findStaticVarHandle(declaringClass, fieldName, fieldType);
+        FieldTarget target = monitoredField(declaringClass, fieldName, true);
+        if (target != null) {
+            varHandleTargets.put(varHandle, target);
+        }
+        return varHandle;
+    }
+
+    /** @see MethodHandles#arrayElementVarHandle(Class) */
+    @CalledByInstrumentedCode
+    public static VarHandle arrayElementVarHandle(Class<?> arrayClass) {
+        VarHandle varHandle = MethodHandles.arrayElementVarHandle(arrayClass);
+        varHandleTargets.put(varHandle, ArrayElementTarget.INSTANCE);
+        return varHandle;
+    }
+
+    /** @see MethodHandles.Lookup#findGetter(Class, String, Class) */
+    @CalledByInstrumentedCode
+    public static MethodHandle findGetter(MethodHandles.Lookup lookup, Class<?> receiverClass, String fieldName, Class<?> fieldType)
+            throws NoSuchFieldException, IllegalAccessException {
+        MethodHandle getter = lookup.findGetter(receiverClass, fieldName, fieldType);
+        return withInstanceFieldCheck(getter, monitoredField(receiverClass, fieldName, false), receiverClass, Access.READ);
+    }
+
+    /** @see MethodHandles.Lookup#findSetter(Class, String, Class) */
+    @CalledByInstrumentedCode
+    public static MethodHandle findSetter(MethodHandles.Lookup lookup, Class<?> receiverClass, String fieldName, Class<?> fieldType)
+            throws NoSuchFieldException, IllegalAccessException {
+        MethodHandle setter = lookup.findSetter(receiverClass, fieldName, fieldType);
+        return withInstanceFieldCheck(setter, monitoredField(receiverClass, fieldName, false), receiverClass, Access.WRITE);
+    }
+
+    /** @see MethodHandles.Lookup#findStaticGetter(Class, String, Class) */
+    @CalledByInstrumentedCode
+    public static MethodHandle findStaticGetter(MethodHandles.Lookup lookup, Class<?> declaringClass, String fieldName, Class<?> fieldType)
+            throws NoSuchFieldException, IllegalAccessException {
+        MethodHandle getter = lookup.findStaticGetter(declaringClass, fieldName, fieldType);
+        return withStaticFieldCheck(getter, monitoredField(declaringClass, fieldName, true), Access.READ);
+    }
+
+    /** @see MethodHandles.Lookup#findStaticSetter(Class, String, Class) */
+    @CalledByInstrumentedCode
+    public static MethodHandle findStaticSetter(MethodHandles.Lookup lookup, Class<?> declaringClass, String fieldName, Class<?> fieldType)
+            throws NoSuchFieldException, IllegalAccessException {
+        MethodHandle setter = lookup.findStaticSetter(declaringClass, fieldName, fieldType);
+        return withStaticFieldCheck(setter, monitoredField(declaringClass, fieldName, true), Access.WRITE);
+    }
+
+    /**
+     * Check an access through a VarHandle, before the access mode method of the handle is invoked.
+     * @param varHandle the handle
+     * @param coordinate the first argument of the access mode method if it is a reference (the receiver of an instance field,
+     *                   or the array), null otherwise
+     * @param index the second argument of the access mode method if it is an int (the index into the array), 0 otherwise
+     * @param observedAccessLevel READ for the get access modes, WRITE for all others
+     */
+    @CalledByInstrumentedCode
+    public static void logVarHandleAccess(VarHandle varHandle, @Nullable Object coordinate, int index, Access observedAccessLevel) {
+        switch (varHandleTargets.get(varHandle)) {
+            case null -> {} // not monitored.
+            case FieldTarget(Class<?> declaringClass, String fieldName, boolean isStatic) when isStatic ->
+                    Permissions.logFieldAccess(declaringClass, declaringClass, fieldName, observedAccessLevel);
+            case FieldTarget(Class<?> declaringClass, String fieldName, _) -> {
+                if (coordinate == null) return; // the handle throws a NullPointerException.
+                if (ownerCovers(coordinate, declaringClass, fieldName, observedAccessLevel)) return;
+                Permissions.logFieldAccess(coordinate, declaringClass, fieldName, observedAccessLevel);
+            }
+            case ArrayElementTarget _ -> {
+                if (coordinate == null) return; // the handle throws a NullPointerException.
+                Permissions.logArrayAccess(coordinate, index, observedAccessLevel);
+            }
+        }
+    }
+
+    // Same check as the instrumented GETFIELD and PUTFIELD instructions do inline, see ShadowPermissions#ownerCovers.
+    private static boolean ownerCovers(Object owningInstance, Class<?> declaringClass, String fieldName, Access access) {
+        // accesses that pass the check are not recorded, nor does the race detector use shadow permissions.
+        if (TraceRecorder.ENABLED || RaceDetector.ENABLED) return false;
+
+        ShadowPermissions.Layout layout = ShadowPermissions.layout(declaringClass, fieldName);
+        if (layout == null) return false;
+        ShadowPermissions shadow = layout.shadowIfPresent(owningInstance);
+        int fieldIndex = layout.index(fieldName);
+        return layout.isConfined(fieldIndex)
+                ? ShadowPermissions.isOwner(shadow)
+                : ShadowPermissions.ownerCovers(shadow, fieldIndex, access);
+    }
+
+    private static MethodHandle withInstanceFieldCheck(MethodHandle accessor, @Nullable FieldTarget target, Class<?> receiverClass, Access access) {
+        if (target == null) return accessor;
+
+        // (Object owningInstance) -> void, invoked with the receiver of the accessor.
+        MethodHandle check = MethodHandles.insertArguments(LOG_FIELD_ACCESS, 1, target.declaringClass(), target.fieldName(), access)
+                .asType(MethodType.methodType(void.class, receiverClass));
+        return MethodHandles.foldArguments(accessor, check);
+    }
+
+    private static MethodHandle withStaticFieldCheck(MethodHandle accessor, @Nullable FieldTarget target, Access access) {
+        if (target == null) return accessor;
+
+        // () -> void
+        MethodHandle check = MethodHandles.insertArguments(LOG_FIELD_ACCESS, 0, target.declaringClass(), target.declaringClass(), target.fieldName(), access);
+        return MethodHandles.foldArguments(accessor, check);
+    }
+
+    /**
+     * Resolve the field that a lookup found, like the JVM resolves a field reference.
+     * @return the field, or null if accesses to it are not monitored
+     */
+    private static @Nullable FieldTarget monitoredField(Class<?> referencedClass, String fieldName, boolean isStatic) throws NoSuchFieldException {
+        Field field = resolveField(referencedClass, fieldName);
+        if (Modifier.isFinal(field.getModifiers()) || Permissions.isImmutable(field)) return null;
+        return new FieldTarget(field.getDeclaringClass(), fieldName, isStatic);
+    }
+
+    private static Field resolveField(Class<?> referencedClass, String fieldName) throws NoSuchFieldException {
+        for (Class<?> clazz = referencedClass; clazz != null; clazz = clazz.getSuperclass()) {
+            try {
+                return clazz.getDeclaredField(fieldName);
+            } catch (NoSuchFieldException _) {
+                // declared by a superclass
+            }
+        }
+        // static fields of interfaces are public.
+        return referencedClass.getField(fieldName);
+    }
+}
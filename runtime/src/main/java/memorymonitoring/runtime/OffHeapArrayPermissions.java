@@ -0,0 +1,355 @@
+package memorymonitoring.runtime;
+
+import org.jspecify.annotations.Nullable;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemoryLayout.PathElement;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.StructLayout;
+import java.lang.foreign.ValueLayout;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Array;
+
+/**
+ * Permissions of all threads to arrays, kept in an off-heap table instead of in one {@link ArrayPermission} per array.
+ * <p>
+ * Enabled by running the agent with {@code arrays=offheap}. Arrays can not carry a shadow field like instrumented objects
+ * (see {@link ShadowPermissions}), so every monitored array needs an entry in a table. Most arrays are only ever used by
+ * the thread that allocated them, so the table stores a compact state per array: the owning thread, and its access to
+ * each element (2 bits per element, for arrays of at most {@value #ELEMENTS_PER_WORD} elements) or to the whole array
+ * (for longer arrays). Only when another thread obtains a permission, or a longer array gets a permission to part of it,
+ * the state is inflated to an {@link ArrayPermission} on the heap.
+ * <p>
+ * The table is an open addressing table (linear probing) in a {@link MemorySegment}, keyed by the identity hash code of the
+ * array. The only object on the heap per array is the weak reference that identifies the array of a slot. When the array
+ * is garbage collected, the reference is enqueued, and the slot is freed by the next grant.
+ * <p>
+ * Not thread-safe, all access is guarded by the lock of {@link Permissions}.
+ */
+final class OffHeapArrayPermissions {
+
+    // Must match memorymonitoring.agent.AgentOptions#ARRAYS_PROPERTY.
+    static final String ARRAYS_PROPERTY = "memorymonitoring.arrays";
+    static final boolean ENABLED = "offheap".equals(RuntimeOptions.get(ARRAYS_PROPERTY));
+
+    private static final long NO_OWNER = -1L;
+    private static final int ELEMENTS_PER_WORD = Long.SIZE / 2;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static final StructLayout SLOT = MemoryLayout.structLayout(
+            ValueLayout.JAVA_LONG.withName("owner"),    // threadId of the owner, or NO_OWNER
+            ValueLayout.JAVA_LONG.withName("access"),   // Access#ordinal of the owner, 2 bits per element or for the whole array
+            ValueLayout.JAVA_INT.withName("hash"),
+            ValueLayout.JAVA_INT.withName("state"));
+    private static final long OWNER_OFFSET = SLOT.byteOffset(PathElement.groupElement("owner"));
+    private static final long ACCESS_OFFSET = SLOT.byteOffset(PathElement.groupElement("access"));
+    private static final long HASH_OFFSET = SLOT.byteOffset(PathElement.groupElement("hash"));
+    private static final long STATE_OFFSET = SLOT.byteOffset(PathElement.groupElement("state"));
+
+    private static final int FREE = 0, USED = 1, REMOVED = 2;
+    private static final Access[] ACCESSES = Access.values();
+
+    /** Identifies the array of a slot. */
+    private static final class SlotReference extends WeakReference<Object> {
+        private int slot;                                   // -1 once the slot was dropped by a rehash
+        private @Nullable ArrayPermission inflated;
+
+        private SlotReference(Object array, int slot, ReferenceQueue<Object> referenceQueue) {
+            super(array, referenceQueue);
+            this.slot = slot;
+        }
+    }
+
+    private final ReferenceQueue<Object> referenceQueue = new ReferenceQueue<>();
+    private Arena arena;
+    private MemorySegment table;
+    private @Nullable SlotReference[] references;
+    private int capacity;
+    private int used;       // used and removed slots
+    private int size;       // used slots
+
+    OffHeapArrayPermissions() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Get the access level of a thread to a range in the array.
+     * @see ArrayPermission#get(long, int, int)
+     */
+    Access get(Object array, long threadId, int indexFrom, int indexTo) {
+        int slot = find(array, hash(array));
+        if (slot < 0) return Access.NONE;
+
+        ArrayPermission inflated = references[slot].inflated;
+        if (inflated != null) {
+            return inflated.get(threadId, indexFrom, indexTo);
+        }
+        if (owner(slot) != threadId) {
+            return Access.NONE;
+        }
+
+        long bits = access(slot);
+        if (Array.getLength(array) > ELEMENTS_PER_WORD) {
+            return accessAt(bits, 0);
+        }
+        Access weakest = Access.WRITE;
+        for (int index = indexFrom; index < indexTo; index++) {
+            weakest = Access.weakest(weakest, accessAt(bits, index));
+        }
+        return weakest;
+    }
+
+    /**
+     * Set the permission of a thread to a range in the array.
+     * @see ArrayPermission#set(long, int, int, Access)
+     */
+    @Nullable Access set(Object array, long threadId, int indexFrom, int indexTo, Access access) {
+        expungeStaleEntries();
+
+        int hash = hash(array);
+        int slot = find(array, hash);
+        if (slot < 0) {
+            slot = insert(array, hash);
+        }
+
+        SlotReference reference = references[slot];
+        if (reference.inflated == null) {
+            long owner = owner(slot);
+            int length = Array.getLength(array);
+            if (owner == NO_OWNER || owner == threadId) {
+                if (length <= ELEMENTS_PER_WORD) {
+                    long bits = access(slot);
+                    for (int index = indexFrom; index < indexTo; index++) {
+                        bits = withAccessAt(bits, index, access);
+                    }
+                    setOwner(slot, threadId, bits);
+                    return null;
+                } else if (indexFrom == 0 && indexTo == length) {
+                    setOwner(slot, threadId, withAccessAt(0L, 0, access));
+                    return null;
+                }
+            }
+            reference.inflated = inflate(slot, length);
+        }
+        return reference.inflated.set(threadId, indexFrom, indexTo, access);
+    }
+
+    /**
+     * The permissions to an array that was inflated, or null if the array only has a compact state. Only inflated arrays
+     * keep state per thread, so only they need to be reclaimed when a thread is gone.
+     */
+    @Nullable ArrayPermission inflated(Object array) {
+        int slot = find(array, hash(array));
+        return slot < 0 ? null : references[slot].inflated;
+    }
+
+    /** Whether a thread has a permission to the array, in the inflated or in the compact state. */
+    boolean holds(Object array, long threadId) {
+        int slot = find(array, hash(array));
+        if (slot < 0) return false;
+
+        ArrayPermission inflated = references[slot].inflated;
+        return inflated != null ? inflated.holds(threadId) : owner(slot) == threadId;
+    }
+
+    /**
+     * Remove the permissions of all threads but one to an array.
+     * @see ArrayPermission#reclaimAllExcept(long)
+     */
+    long[] reclaimAllExcept(Object array, long threadId) {
+        int slot = find(array, hash(array));
+        if (slot < 0) return new long[0];
+
+        ArrayPermission inflated = references[slot].inflated;
+        if (inflated != null) {
+            return inflated.reclaimAllExcept(threadId);
+        }
+        long owner = owner(slot);
+        if (owner == NO_OWNER || owner == threadId) {
+            return new long[0];
+        }
+        setOwner(slot, NO_OWNER, 0L);
+        return new long[] { owner };
+    }
+
+    /** The number of arrays in the table, including arrays that were collected but not removed yet. */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Replay the compact state of the owner into an ArrayPermission. The owner is tracked like any other thread with a
+     * permission in the ArrayPermission (see {@link Permissions#trackReplayedOwner(long, Object)}); if the owner is gone,
+     * its state is dropped instead.
+     */
+    private ArrayPermission inflate(int slot, int length) {
+        ArrayPermission inflated = new ArrayPermission(length);
+        long owner = owner(slot);
+        if (owner != NO_OWNER && Permissions.trackReplayedOwner(owner, inflated)) {
+            long bits = access(slot);
+            if (length > ELEMENTS_PER_WORD) {
+                inflated.set(owner, 0, length, accessAt(bits, 0));
+            } else {
+                // one grant per run of elements with the same access.
+                int runStart = 0;
+                for (int index = 1; index <= length; index++) {
+                    if (index == length || accessAt(bits, index) != accessAt(bits, runStart)) {
+                        inflated.set(owner, runStart, index, accessAt(bits, runStart));
+                        runStart = index;
+                    }
+                }
+            }
+        }
+        return inflated;
+    }
+
+    // ===== table =====
+
+    private int find(Object array, int hash) {
+        int mask = capacity - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int state = state(slot);
+            if (state == FREE) {
+                return -1;
+            }
+            if (state == USED && slotHash(slot) == hash && references[slot].refersTo(array)) {
+                return slot;
+            }
+        }
+    }
+
+    private int insert(Object array, int hash) {
+        if ((used + 1) * 4 > capacity * 3) {
+            rehash();
+        }
+
+        int mask = capacity - 1;
+        int slot = hash & mask;
+        int state;
+        while ((state = state(slot)) == USED) {
+            slot = (slot + 1) & mask;
+        }
+        if (state == FREE) {
+            used += 1;
+        }
+        size += 1;
+
+        long offset = offset(slot);
+        table.set(ValueLayout.JAVA_LONG, offset + OWNER_OFFSET, NO_OWNER);
+        table.set(ValueLayout.JAVA_LONG, offset + ACCESS_OFFSET, 0L);
+        table.set(ValueLayout.JAVA_INT, offset + HASH_OFFSET, hash);
+        table.set(ValueLayout.JAVA_INT, offset + STATE_OFFSET, USED);
+        references[slot] = new SlotReference(array, slot, referenceQueue);
+        return slot;
+    }
+
+    private void expungeStaleEntries() {
+        Reference<?> stale;
+        while ((stale = referenceQueue.poll()) != null) {
+            int slot = ((SlotReference) stale).slot;
+            if (slot >= 0 && references[slot] == stale) {
+                table.set(ValueLayout.JAVA_INT, offset(slot) + STATE_OFFSET, REMOVED);
+                references[slot] = null;
+                size -= 1;
+            }
+        }
+    }
+
+    /** Copy the live slots to a new table, dropping removed slots and slots of which the array was collected. */
+    private void rehash() {
+        Arena oldArena = arena;
+        MemorySegment oldTable = table;
+        @Nullable SlotReference[] oldReferences = references;
+        int oldCapacity = capacity;
+
+        int live = 0;
+        for (SlotReference reference : oldReferences) {
+            if (reference != null && !reference.refersTo(null)) {
+                live += 1;
+            }
+        }
+        int newCapacity = INITIAL_CAPACITY;
+        while (newCapacity < (live + 1) * 2) {
+            newCapacity <<= 1;
+        }
+        allocate(newCapacity);
+
+        int mask = newCapacity - 1;
+        int copied = 0;  // arrays may have been collected since they were counted
+        for (int oldSlot = 0; oldSlot < oldCapacity; oldSlot++) {
+            SlotReference reference = oldReferences[oldSlot];
+            if (reference == null) continue;
+            if (reference.refersTo(null)) {
+                reference.slot = -1;    // it may still be enqueued, but its slot is gone.
+                continue;
+            }
+
+            long oldOffset = offset(oldSlot);
+            int hash = oldTable.get(ValueLayout.JAVA_INT, oldOffset + HASH_OFFSET);
+            int slot = hash & mask;
+            while (state(slot) != FREE) {
+                slot = (slot + 1) & mask;
+            }
+            MemorySegment.copy(oldTable, oldOffset, table, offset(slot), SLOT.byteSize());
+            reference.slot = slot;
+            references[slot] = reference;
+            copied += 1;
+        }
+        used = copied;
+        size = copied;
+
+        oldArena.close();
+    }
+
+    private void allocate(int newCapacity) {
+        // shared, because the table is accessed by all threads (under the lock of Permissions).
+        arena = Arena.ofShared();
+        table = arena.allocate(SLOT.byteSize() * newCapacity, SLOT.byteAlignment());    // zeroed, so all slots are FREE
+        references = new SlotReference[newCapacity];
+        capacity = newCapacity;
+    }
+
+    // ===== helpers =====
+
+    private static int hash(Object array) {
+        return System.identityHashCode(array) * 0x9E3779B9;
+    }
+
+    private static long offset(int slot) {
+        return slot * SLOT.byteSize();
+    }
+
+    private int state(int slot) {
+        return table.get(ValueLayout.JAVA_INT, offset(slot) + STATE_OFFSET);
+    }
+
+    private int slotHash(int slot) {
+        return table.get(ValueLayout.JAVA_INT, offset(slot) + HASH_OFFSET);
+    }
+
+    private long owner(int slot) {
+        return table.get(ValueLayout.JAVA_LONG, offset(slot) + OWNER_OFFSET);
+    }
+
+    private long access(int slot) {
+        return table.get(ValueLayout.JAVA_LONG, offset(slot) + ACCESS_OFFSET);
+    }
+
+    private void setOwner(int slot, long threadId, long accessBits) {
+        long offset = offset(slot);
+        table.set(ValueLayout.JAVA_LONG, offset + OWNER_OFFSET, threadId);
+        table.set(ValueLayout.JAVA_LONG, offset + ACCESS_OFFSET, accessBits);
+    }
+
+    private static Access accessAt(long bits, int index) {
+        return ACCESSES[(int) (bits >>> (index << 1)) & 0b11];
+    }
+
+    private static long withAccessAt(long bits, int index, Access access) {
+        int shift = index << 1;
+        return (bits & ~(0b11L << shift)) | ((long) access.ordinal() << shift);
+    }
+}
@@ -1,17 +1,19 @@
 package memorymonitoring.runtime;
 
+import memorymonitoring.runtime.annotation.Immutable;
+import memorymonitoring.runtime.stats.StatisticsFormat;
 import memorymonitoring.util.CalledByInstrumentedCode;
-import memorymonitoring.util.SegmentTree;
+import memorymonitoring.util.ThreadStateIndex;
 import memorymonitoring.util.WeakIdentityHashMap;
+import org.jspecify.annotations.Nullable;
 
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Optional;
-import java.util.WeakHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -23,10 +25,25 @@ public final class Permissions {
     // TODO i.e. while being locked on one of the instances, the other instance should never be accessed.
     // TODO I think our access patterns (and access patterns of generated code) is like this, so we could do this refactor (and remove a bunch of synchronized modifiers from methods in this class).
     // TODO can we make this lock-free? or at the very least only lock on the owning object references?
-    // TODO probably want to refactor this again to WeakIdentityHashMap<Object, Map<String, WeakHashMap<Thread, Access>>> to enable quicker access checking for other threads.
-    private static final WeakIdentityHashMap<Object, WeakHashMap<Thread, Map<FieldIdentifier, Access>>> fieldPermissions = new WeakIdentityHashMap<>();  // For static fields, the owning Object is an instance of java.lang.Class.
-    private static final WeakIdentityHashMap<Object, WeakHashMap<Thread, SegmentTree<Access>>> arrayPermissions = new WeakIdentityHashMap<>();
-    private static final WeakIdentityHashMap<Object, Map<FieldIdentifier, Access>> fieldDefaultPermissions = new WeakIdentityHashMap<>();
+
+    // Threads are identified by Thread#threadId() rather than by weak references to the Thread objects, so that the
+    // permission state of (virtual) threads does not need one WeakHashMap per tracked object.
+    // For static fields, the owning Object is an instance of java.lang.Class. Keyed by the declaring class and the field name
+    // rather than by a record of both, so that looking up the permission of an access does not allocate.
+    private static final WeakIdentityHashMap<Object, Map<Class<?>, Map<String, FieldPermission>>> fieldPermissions = new WeakIdentityHashMap<>();
+    private static final WeakIdentityHashMap<Object, ArrayPermission> arrayPermissions = new WeakIdentityHashMap<>();
+    private static final @Nullable OffHeapArrayPermissions offHeapArrayPermissions = OffHeapArrayPermissions.ENABLED ? new OffHeapArrayPermissions() : null;
+    // Permissions to the sub-arrays of multi-dimensional arrays, which are granted when the sub-arrays are first used.
+    private static final WeakIdentityHashMap<Object[], InheritedArrayPermission> inheritedArrayPermissions = new WeakIdentityHashMap<>();
+    // Whether sub-arrays are granted right away instead, because not all reads of the outer arrays are checked: when reads
+    // are not monitored (see MonitoredAccesses), or once the agent stops checking sites (see SiteProfiler#hotSites).
+    // Guarded by the lock of this class.
+    private static boolean inheritArrayPermissionsEagerly = !MonitoredAccesses.isMonitoredArrayAccess(Access.READ);
+    // The FieldPermissions and ArrayPermissions in which each thread has a permission, so that the permissions of a thread
+    // are removed from long-lived objects and arrays when the thread is gone, rather than when these are collected.
+    // Reclaimed on every grant. The inline owner state of ShadowPermissions and OffHeapArrayPermissions is not per thread,
+    // but their owners are tracked, so that the state of an owner can be added when it is replayed, see trackReplayedOwner.
+    private static final ThreadStateIndex<Object> threadPermissions = new ThreadStateIndex<>();
 
     private Permissions() {}
 
@@ -36,25 +53,56 @@ public final class Permissions {
     }
 
     public static synchronized void setFieldPermission(Thread thread, Object owningInstance, Class<?> declaringClass, String fieldName, Access access) {
-        String message = String.format("Granting %s permission to thread %s at object field %s.%s", access, thread.getName(), owningInstance, fieldName);
-        LOGGER.info(message);
-
-        // TODO check whether other threads have conflicting permission to the object field?
+        reclaimGoneThreads();
+        if (TraceRecorder.ENABLED) {
+            TraceRecorder.fieldGrant(thread.threadId(), owningInstance, declaringClass, fieldName, access);
+        } else {
+            String message = String.format("Granting %s permission to thread %s at object field %s.%s", access, thread.getName(), owningInstance, fieldName);
+            LOGGER.info(message);
+        }
 
-        fieldPermissions
-                .computeIfAbsent(Objects.requireNonNull(owningInstance), _ -> new WeakHashMap<>())
-                .computeIfAbsent(thread, _ -> new HashMap<>())
-                .put(new FieldIdentifier(declaringClass, fieldName), access); // TODO when upgrading permission, log warning?
+        ShadowPermissions.Layout shadowLayout = shadowLayout(Objects.requireNonNull(owningInstance), declaringClass, fieldName);
+        ShadowPermissions shadow = shadowLayout != null ? shadowLayout.shadowOf(owningInstance) : null;
+        FieldPermission fieldPermission = shadow != null
+                ? shadow.field(shadowLayout.index(fieldName))
+                : fieldPermission(owningInstance, declaringClass, fieldName);
+        boolean tracked = fieldPermission.holds(thread.threadId());
+        Access conflictingAccess = shadow != null
+                ? shadow.set(shadowLayout.index(fieldName), thread.threadId(), access)
+                : fieldPermission.set(thread.threadId(), access); // TODO when upgrading permission, log warning?
+        if (!tracked) {
+            threadPermissions.add(thread, fieldPermission);
+        }
+        if (Statistics.ENABLED) {
+            Statistics.grant(StatisticsFormat.FIELD_GRANTS, conflictingAccess != null);
+        }
+        if (conflictingAccess != null) {
+            logConflict(thread.getName(), fieldReference(owningInstance, fieldName), access, conflictingAccess);
+        }
     }
 
-    @CalledByInstrumentedCode
+    // not called by instrumented code (anymore), reads of final fields are not checked after initialization.
     public static synchronized void setFieldDefaultPermission(Object owningInstance, Class<?> declaringClass, String fieldName, Access access) {
-        String message = String.format("Granting %s permission to all threads at object field %s.%s", access, owningInstance, fieldName);
-        LOGGER.info(message);
+        if (TraceRecorder.ENABLED) {
+            TraceRecorder.fieldDefaultGrant(owningInstance, declaringClass, fieldName, access);
+        } else {
+            String message = String.format("Granting %s permission to all threads at object field %s.%s", access, owningInstance, fieldName);
+            LOGGER.info(message);
+        }
 
-        fieldDefaultPermissions
+        ShadowPermissions.Layout shadowLayout = shadowLayout(owningInstance, declaringClass, fieldName);
+        if (shadowLayout != null) {
+            shadowLayout.shadowOf(owningInstance).setDefault(shadowLayout.index(fieldName), access);
+        } else {
+            fieldPermission(owningInstance, declaringClass, fieldName).setDefault(access);
+        }
+    }
+
+    private static FieldPermission fieldPermission(Object owningInstance, Class<?> declaringClass, String fieldName) {
+        return fieldPermissions
                 .computeIfAbsent(owningInstance, _ -> new HashMap<>())
-                .put(new FieldIdentifier(declaringClass, fieldName), access);
+                .computeIfAbsent(declaringClass, _ -> new HashMap<>())
+                .computeIfAbsent(fieldName, _ -> new FieldPermission());
     }
 
     // not called by instrumented code (yet).
@@ -76,12 +124,29 @@ public final class Permissions {
     public static void setArrayPermissionWholeMultiArray(Object multiArray, int dimensions, Access access) {
         setArrayPermissionWholeArray(multiArray, access);
 
-        if (dimensions > 1) {
-            int length = Array.getLength(multiArray);
-            for (int idx = 0; idx < length; idx += 1) {
-                Object nestedArray = Array.get(multiArray, idx);
-                setArrayPermissionWholeMultiArray(nestedArray, dimensions - 1, access);
-            }
+        if (dimensions > 1 && multiArray instanceof Object[] subArrays && subArrays.length > 0) {
+            // The sub-arrays are granted lazily, see InheritedArrayPermission.
+            inheritArrayPermission(subArrays, new InheritedArrayPermission(Thread.currentThread(), dimensions - 1, access, subArrays.length));
+        }
+    }
+
+    private static synchronized void inheritArrayPermission(Object[] subArrays, InheritedArrayPermission inherited) {
+        inheritedArrayPermissions.put(subArrays, inherited);
+        if (inheritArrayPermissionsEagerly) {
+            resolveInheritedArrayPermission(subArrays, 0, subArrays.length);
+        }
+    }
+
+    /**
+     * Grant the sub-arrays of all multi-dimensional arrays that were not granted yet, and grant the sub-arrays of new
+     * multi-dimensional arrays right away from now on. Called before the agent stops checking sites that may read the
+     * outer arrays, which would otherwise leave their sub-arrays without permission.
+     */
+    static synchronized void inheritArrayPermissionsEagerly() {
+        if (inheritArrayPermissionsEagerly) return;
+        inheritArrayPermissionsEagerly = true;
+        for (Object[] subArrays : inheritedArrayPermissions.keys()) {
+            resolveInheritedArrayPermission(subArrays, 0, subArrays.length);
         }
     }
 
@@ -93,38 +158,218 @@ public final class Permissions {
      * @param access the permission level to be set
      */
     public static synchronized void setArrayPermission(Thread thread, Object arrayInstance, int indexFrom, int indexTo, Access access) {
-        String message = String.format("Granting %s permission to thread %s at array range %s[%d, %d)", access, thread.getName(), arrayInstanceToString(arrayInstance), indexFrom, indexTo);
-        LOGGER.info(message);
+        reclaimGoneThreads();
+        long threadId = thread.threadId();
+        if (TraceRecorder.ENABLED) {
+            TraceRecorder.arrayGrant(threadId, arrayInstance, indexFrom, indexTo, access);
+        } else if (LOGGER.isLoggable(Level.INFO)) {
+            // formatting the contents of a (multi-dimensional) array costs more than the grant itself.
+            String message = String.format("Granting %s permission to thread %s at array range %s[%d, %d)", access, thread.getName(), arrayInstanceToString(arrayInstance), indexFrom, indexTo);
+            LOGGER.info(message);
+        }
+
+        Access conflictingAccess;
+        if (offHeapArrayPermissions != null) {
+            // the thread may become the owner of the compact state, which is tracked when it is inflated.
+            threadPermissions.track(thread);
+            boolean tracked = offHeapArrayPermissions.holds(arrayInstance, threadId);
+            conflictingAccess = offHeapArrayPermissions.set(arrayInstance, threadId, indexFrom, indexTo, access);
+            ArrayPermission inflated = offHeapArrayPermissions.inflated(arrayInstance);
+            if (inflated != null && !tracked) {
+                threadPermissions.add(thread, inflated);
+            }
+        } else {
+            ArrayPermission arrayPermission = arrayPermissions.computeIfAbsent(arrayInstance, _ -> new ArrayPermission(Array.getLength(arrayInstance)));
+            boolean tracked = arrayPermission.holds(threadId);
+            conflictingAccess = arrayPermission.set(threadId, indexFrom, indexTo, access); // TODO chen upgrading permission, log warning?
+            if (!tracked) {
+                threadPermissions.add(thread, arrayPermission);
+            }
+        }
+        if (Statistics.ENABLED) {
+            Statistics.grant(StatisticsFormat.ARRAY_GRANTS, conflictingAccess != null);
+        }
+        if (conflictingAccess != null) {
+            logConflict(thread.getName(), arrayReference(arrayInstance, indexFrom, indexTo), access, conflictingAccess);
+        }
+    }
+
+    /**
+     * Partition a range of an array among threads, e.g. among the workers of a fork/join algorithm: each thread gets WRITE
+     * permission to its partition, and the current thread hands over its permission to the partitioned range.
+     * Claims of other threads to the partitions are reported as conflicts.
+     * @param arrayInstance the array
+     * @param boundaries the ascending boundaries of the partitions: partition i is [boundaries[i], boundaries[i + 1])
+     * @param threads the owner of each partition, one less than there are boundaries
+     */
+    public static synchronized void partitionArray(Object arrayInstance, int[] boundaries, Thread[] threads) {
+        if (boundaries.length != threads.length + 1) {
+            throw new IllegalArgumentException("Expected " + (threads.length + 1) + " partition boundaries for " + threads.length + " threads, got " + boundaries.length);
+        }
+        int length = Array.getLength(arrayInstance);
+        for (int i = 0; i < boundaries.length; i++) {
+            if (boundaries[i] < (i == 0 ? 0 : boundaries[i - 1]) || boundaries[i] > length) {
+                throw new IllegalArgumentException("Overlapping or out of bounds partition boundaries " + Arrays.toString(boundaries) + " for array of length " + length);
+            }
+        }
+
+        setArrayPermission(Thread.currentThread(), arrayInstance, boundaries[0], boundaries[threads.length], Access.NONE);
+        for (int i = 0; i < threads.length; i++) {
+            setArrayPermission(threads[i], arrayInstance, boundaries[i], boundaries[i + 1], Access.WRITE);
+        }
+    }
+
+    /**
+     * Merge the partitions of an array (see {@link #partitionArray(Object, int[], Thread[])}) back into the current thread,
+     * e.g. after the workers were joined: the permissions of all other threads to the array are revoked, and the current
+     * thread gets WRITE permission to the whole array.
+     * @param arrayInstance the array
+     */
+    public static synchronized void mergeArray(Object arrayInstance) {
+        Thread thread = Thread.currentThread();
+        long threadId = thread.threadId();
+        int length = Array.getLength(arrayInstance);
+
+        long[] revoked;
+        if (offHeapArrayPermissions != null) {
+            revoked = offHeapArrayPermissions.reclaimAllExcept(arrayInstance, threadId);
+        } else {
+            ArrayPermission arrayPermission = arrayPermissions.get(arrayInstance);
+            revoked = arrayPermission == null ? new long[0] : arrayPermission.reclaimAllExcept(threadId);
+        }
+        if (TraceRecorder.ENABLED) {
+            for (long otherThreadId : revoked) {
+                TraceRecorder.arrayGrant(otherThreadId, arrayInstance, 0, length, Access.NONE);
+            }
+        } else if (revoked.length > 0 && LOGGER.isLoggable(Level.INFO)) {
+            LOGGER.info(String.format("Revoking the permissions of %d threads at array %s", revoked.length, arrayInstanceToString(arrayInstance)));
+        }
 
-        // TODO check whether other threads have conflicting permission in this array range?
+        setArrayPermission(thread, arrayInstance, 0, length, Access.WRITE);
+    }
 
-        arrayPermissions
-                .computeIfAbsent(arrayInstance, _ -> new WeakHashMap<>())
-                .computeIfAbsent(thread, _ -> new SegmentTree<>(Array.getLength(arrayInstance), Access.NONE, Access::weakest))
-                .set(indexFrom, indexTo, access); // TODO chen upgrading permission, log warning?
+    // Remove the permissions of the threads that are gone from all objects and arrays. Guarded by the lock of this class.
+    private static void reclaimGoneThreads() {
+        int reclaimed = threadPermissions.reclaimGoneThreads((holder, threadId) -> {
+            switch (holder) {
+                case FieldPermission fieldPermission -> fieldPermission.reclaim(threadId);
+                case ArrayPermission arrayPermission -> arrayPermission.reclaim(threadId);
+                default -> throw new RuntimeException("Unreachable");
+            }
+        });
+        if (reclaimed > 0 && LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine(String.format("Reclaimed the permissions of %d terminated threads", reclaimed));
+        }
+    }
+
+    /**
+     * Record that the owner of an inline state (of {@link ShadowPermissions} or {@link OffHeapArrayPermissions}) holds a
+     * permission in the FieldPermission or ArrayPermission that the state is replayed into, so that it is reclaimed when
+     * the owner is gone. Guarded by the lock of this class.
+     * @return false if the owner is gone, in which case its permission must not be replayed
+     */
+    static boolean trackReplayedOwner(long threadId, Object holder) {
+        return threadPermissions.add(threadId, holder);
+    }
+
+    /** Track the current thread as the owner of inline state, see {@link ShadowPermissions#ownedByCurrentThread(int, int)}. */
+    static synchronized void trackOwner(Thread thread) {
+        threadPermissions.track(thread);
+    }
+
+    /** Publish the sizes of the permission stores, see {@link Statistics}. */
+    static synchronized void publishStoreSizes() {
+        Statistics.gauge(StatisticsFormat.OBJECTS_WITH_FIELD_PERMISSIONS, fieldPermissions.size());
+        Statistics.gauge(StatisticsFormat.ARRAYS_WITH_PERMISSIONS, offHeapArrayPermissions != null ? offHeapArrayPermissions.size() : arrayPermissions.size());
+        Statistics.gauge(StatisticsFormat.TRACKED_THREADS, threadPermissions.threadCount());
+    }
+
+    /**
+     * Grant the inherited permission to the sub-arrays in a range of a multi-dimensional array, that were not granted yet.
+     * Sub-arrays that are multi-dimensional themselves inherit the permission in turn.
+     */
+    private static synchronized void resolveInheritedArrayPermission(Object[] subArrays, int indexFrom, int indexTo) {
+        InheritedArrayPermission inherited = inheritedArrayPermissions.get(subArrays);
+        if (inherited == null) return;
+
+        for (int index = Math.max(indexFrom, 0); index < Math.min(indexTo, subArrays.length); index++) {
+            if (!inherited.resolve(index)) continue;
+            Object subArray = subArrays[index];
+            if (subArray == null) continue; // e.g. new int[2][3][], or already overwritten
+
+            int length = Array.getLength(subArray);
+            setArrayPermission(inherited.thread, subArray, 0, length, inherited.access);
+            if (inherited.dimensions > 1 && subArray instanceof Object[] nestedSubArrays && length > 0) {
+                inheritArrayPermission(nestedSubArrays, new InheritedArrayPermission(
+                        inherited.thread, inherited.dimensions - 1, inherited.access, length));
+            }
+        }
+        if (inherited.isComplete()) {
+            inheritedArrayPermissions.remove(subArrays);
+        }
     }
 
     public static synchronized Access getFieldPermission(Thread thread, Object owningInstance, Class<?> declaringClass, String fieldName) {
-        FieldIdentifier fieldId = new FieldIdentifier(declaringClass, fieldName);
-        return Optional.ofNullable(fieldPermissions.get(owningInstance))
-                .map(threadFieldAccesses -> threadFieldAccesses.get(thread))
-                .map(fieldAccesses -> fieldAccesses.get(fieldId))
-                .or(() -> Optional.ofNullable(fieldDefaultPermissions.get(owningInstance))
-                        .map(fieldMapping -> fieldMapping.get(fieldId)))
-                .orElse(Access.NONE);
+        return getFieldPermission(thread.threadId(), owningInstance, declaringClass, fieldName);
+    }
+
+    private static Access getFieldPermission(long threadId, Object owningInstance, Class<?> declaringClass, String fieldName) {
+        ShadowPermissions.Layout shadowLayout = shadowLayout(owningInstance, declaringClass, fieldName);
+        if (shadowLayout != null) {
+            ShadowPermissions shadow = shadowLayout.shadowIfPresent(owningInstance);
+            int fieldIndex = shadowLayout.index(fieldName);
+            Access access = shadow == null ? null : shadow.get(fieldIndex, threadId, shadowLayout.isConfined(fieldIndex));
+            return access == null ? Access.NONE : access;
+        }
+
+        Map<Class<?>, Map<String, FieldPermission>> fieldsByClass = fieldPermissions.get(owningInstance);
+        Map<String, FieldPermission> fields = fieldsByClass == null ? null : fieldsByClass.get(declaringClass);
+        FieldPermission fieldPermission = fields == null ? null : fields.get(fieldName);
+        Access access = fieldPermission == null ? null : fieldPermission.get(threadId);
+        return access == null ? Access.NONE : access;
+    }
+
+    // Permissions to the instance fields of instrumented classes are stored in the objects themselves, see ShadowPermissions.
+    private static ShadowPermissions.@Nullable Layout shadowLayout(Object owningInstance, Class<?> declaringClass, String fieldName) {
+        if (owningInstance instanceof Class<?>) return null; // static field
+        return ShadowPermissions.layout(declaringClass, fieldName);
     }
 
     public static synchronized Access getArrayPermission(Thread thread, Object arrayInstance, int indexFrom, int indexTo) {
+        return getArrayPermission(thread.threadId(), arrayInstance, indexFrom, indexTo);
+    }
+
+    private static Access getArrayPermission(long threadId, Object arrayInstance, int indexFrom, int indexTo) {
         assert 0 <= indexFrom && indexFrom < indexTo && indexTo <= Array.getLength(arrayInstance) : "Invalid array range.";
 
-        return Optional.ofNullable(arrayPermissions.get(arrayInstance))
-                .map(threadRangeAccesses -> threadRangeAccesses.get(thread))
-                .map(rangeAccesses -> rangeAccesses.get(indexFrom, indexTo))
-                .orElse(Access.NONE);
+        if (offHeapArrayPermissions != null) {
+            return offHeapArrayPermissions.get(arrayInstance, threadId, indexFrom, indexTo);
+        }
+        ArrayPermission arrayPermission = arrayPermissions.get(arrayInstance);
+        return arrayPermission == null ? Access.NONE : arrayPermission.get(threadId, indexFrom, indexTo);
+    }
+
+    // The current thread can use its own permissions, as well as the permissions delegated to it by the submitters of the task it is running.
+    private static synchronized Access getEffectiveFieldPermission(Thread thread, Object owningInstance, Class<?> declaringClass, String fieldName) {
+        Access access = getFieldPermission(thread.threadId(), owningInstance, declaringClass, fieldName);
+        for (Delegation delegation = Delegation.current(); delegation != null && access != Access.WRITE; delegation = delegation.parent()) {
+            access = Access.strongest(access, getFieldPermission(delegation.threadId(), owningInstance, declaringClass, fieldName));
+        }
+        return access;
+    }
+
+    private static synchronized Access getEffectiveArrayPermission(Thread thread, Object arrayInstance, int indexFrom, int indexTo) {
+        Access access = getArrayPermission(thread.threadId(), arrayInstance, indexFrom, indexTo);
+        for (Delegation delegation = Delegation.current(); delegation != null && access != Access.WRITE; delegation = delegation.parent()) {
+            access = Access.strongest(access, getArrayPermission(delegation.threadId(), arrayInstance, indexFrom, indexTo));
+        }
+        return access;
     }
 
     @CalledByInstrumentedCode
     public static void logFieldAccess(Field field, Object objectInstance, Access observedAccessLevel) {
+        if (isImmutable(field)) return; // not monitored, like direct accesses to this field.
+        if (observedAccessLevel == Access.READ && Modifier.isFinal(field.getModifiers())) return; // like direct reads of final fields, outside of initializers.
         Object owningInstance = objectInstance == null ? field.getDeclaringClass() : objectInstance;
         logFieldAccess(owningInstance, field.getDeclaringClass(), field.getName(), observedAccessLevel);
     }
@@ -132,11 +377,28 @@ public final class Permissions {
     @CalledByInstrumentedCode
     public static void logFieldAccess(Object owningInstance, Class<?> declaringClass, String fieldName, Access observedAccessLevel) {
         if (owningInstance == Access.class && observedAccessLevel == Access.READ) return; // always allow reading these enum values.
+        if (!MonitoredAccesses.ALL && !MonitoredAccesses.isMonitoredFieldAccess(owningInstance, observedAccessLevel)) return;
+        if (TraceRecorder.ENABLED) {
+            TraceRecorder.fieldAccess(owningInstance, declaringClass, fieldName, observedAccessLevel);
+        }
+        if (RaceDetector.ENABLED) {
+            RaceDetector.fieldAccess(owningInstance, declaringClass, fieldName, observedAccessLevel);
+            return;
+        }
 
         Thread thread = Thread.currentThread();
-        Access grantedAccess = getFieldPermission(thread, owningInstance, declaringClass, fieldName);
-        Object formattedOwningInstance = owningInstance instanceof Class<?> clazz ? clazz.getName() : owningInstance;
-        logAccess(thread, "%s.%s".formatted(formattedOwningInstance, fieldName), observedAccessLevel, grantedAccess);
+        Access grantedAccess = getEffectiveFieldPermission(thread, owningInstance, declaringClass, fieldName);
+        if (Statistics.ENABLED) {
+            Statistics.fieldCheck(owningInstance, grantedAccess.covers(observedAccessLevel));
+        }
+        if (isLogged(observedAccessLevel, grantedAccess)) {
+            logAccess(thread, fieldReference(owningInstance, fieldName), observedAccessLevel, grantedAccess);
+        }
+    }
+
+    static boolean isImmutable(Field field) {
+        return field.isAnnotationPresent(Immutable.class)
+                || (!Modifier.isStatic(field.getModifiers()) && field.getDeclaringClass().isAnnotationPresent(Immutable.class));
     }
 
     @CalledByInstrumentedCode
@@ -146,22 +408,90 @@ public final class Permissions {
 
     @CalledByInstrumentedCode
     public static void logArrayAccess(Object owningArray, int indexFrom, int indexTo, Access observedAccessLevel) {
+        // Before an element of a multi-dimensional array is read or overwritten, the sub-array it refers to gets its permission.
+        // Also if the access itself is not monitored, because the accesses to the sub-array may be.
+        if (owningArray instanceof Object[] subArrays && inheritedArrayPermissions.get(subArrays) != null) {
+            resolveInheritedArrayPermission(subArrays, indexFrom, indexTo);
+        }
+        if (!MonitoredAccesses.ALL && !MonitoredAccesses.isMonitoredArrayAccess(observedAccessLevel)) return;
+        if (TraceRecorder.ENABLED) {
+            TraceRecorder.arrayAccess(owningArray, indexFrom, indexTo, observedAccessLevel);
+        }
+        if (RaceDetector.ENABLED) {
+            RaceDetector.arrayAccess(owningArray, indexFrom, indexTo, observedAccessLevel);
+            return;
+        }
         Thread thread = Thread.currentThread();
-        Access grantedAccess = getArrayPermission(thread, owningArray, indexFrom, indexTo);
-        logAccess(thread, "%s.[%d, %d)".formatted(arrayInstanceToString(owningArray), indexFrom, indexTo), observedAccessLevel, grantedAccess);
+        Access grantedAccess = getEffectiveArrayPermission(thread, owningArray, indexFrom, indexTo);
+        if (Statistics.ENABLED) {
+            Statistics.arrayCheck(grantedAccess.covers(observedAccessLevel));
+        }
+        if (isLogged(observedAccessLevel, grantedAccess)) {
+            logAccess(thread, arrayReference(owningArray, indexFrom, indexTo), observedAccessLevel, grantedAccess);
+        }
+    }
+
+    /**
+     * Check an access to all elements of an array by a bulk operation (e.g. {@link Arrays#fill(int[], int)}, {@code array.clone()}).
+     * Null arrays and empty arrays are not checked, the bulk operation throws or accesses nothing.
+     */
+    @CalledByInstrumentedCode
+    public static void logArrayAccessWholeArray(@Nullable Object array, Access observedAccessLevel) {
+        if (array == null) return;
+        logBulkArrayAccess(array, 0, Array.getLength(array), observedAccessLevel);
+    }
+
+    /**
+     * Check an access to a range of an array by a bulk operation (e.g. {@link Arrays#fill(int[], int, int, int)},
+     * {@link Arrays#copyOfRange(int[], int, int)}). The end of the range is clamped to the length of the array, because the
+     * copying operations accept ranges past the end of the array. Invalid ranges are not checked, the bulk operation throws.
+     */
+    @CalledByInstrumentedCode
+    public static void logBulkArrayAccess(@Nullable Object array, int indexFrom, int indexTo, Access observedAccessLevel) {
+        if (array == null) return;
+        int clampedIndexTo = Math.min(indexTo, Array.getLength(array));
+        if (indexFrom < 0 || indexFrom >= clampedIndexTo) return;
+        logArrayAccess(array, indexFrom, clampedIndexTo, observedAccessLevel);
+    }
+
+    /**
+     * Whether an access is logged: violations always are, allowed accesses only at level FINE, and not if they are recorded
+     * in the trace. Formatting the reference to the accessed field or array allocates, so it is only done for logged
+     * accesses, and checking an allowed access allocates nothing.
+     */
+    private static boolean isLogged(Access observedAccess, Access grantedAccess) {
+        return !grantedAccess.covers(observedAccess) || (!TraceRecorder.ENABLED && LOGGER.isLoggable(Level.FINE));
     }
 
     private static void logAccess(Thread thread, String reference, Access observedAccess, Access grantedAccess) {
+        boolean allowed = grantedAccess.covers(observedAccess);
+        if (!allowed) {
+            SiteProfiler.violation();
+        }
 
         String message = String.format("Thread %s: trying to access %s at level %s.", thread.getName(), reference, observedAccess);
-        boolean allowed = grantedAccess.covers(observedAccess);
         if (!allowed) {
-            message = message + String.format(" Violation! %s permission was requested, but only %s permission was given.", observedAccess, grantedAccess);
+            message = message + String.format(" Violation! %s permission was requested, but only %s permission was given. %s",
+                    observedAccess, grantedAccess, ViolationTraces.describe(ViolationTraces.capture()));
         }
-        Level level = allowed ? Level.INFO : Level.SEVERE;
+        Level level = allowed ? Level.FINE : Level.SEVERE;
         LOGGER.log(level, message);
     }
 
+    private static void logConflict(String threadName, String reference, Access grantedAccess, Access conflictingAccess) {
+        String message = String.format("Thread %s: granting %s permission to %s. Violation! Another thread already has %s permission.", threadName, grantedAccess, reference, conflictingAccess);
+        LOGGER.log(Level.SEVERE, message);
+    }
+
+    private static String fieldReference(Object owningInstance, String fieldName) {
+        Object formattedOwningInstance = owningInstance instanceof Class<?> clazz ? clazz.getName() : owningInstance;
+        return "%s.%s".formatted(formattedOwningInstance, fieldName);
+    }
+
+    private static String arrayReference(Object array, int indexFrom, int indexTo) {
+        return "%s.[%d, %d)".formatted(arrayInstanceToString(array), indexFrom, indexTo);
+    }
+
     private static String arrayInstanceToString(Object array) {
         return switch (array) {
             case byte[] bytes -> Arrays.toString(bytes);
@@ -0,0 +1,431 @@
+package memorymonitoring.runtime;
+
+import memorymonitoring.runtime.stats.StatisticsFormat;
+import memorymonitoring.util.CalledByInstrumentedCode;
+import memorymonitoring.util.VectorClock;
+import memorymonitoring.util.WeakIdentityHashMap;
+import org.jspecify.annotations.Nullable;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Happens-before based data race detection, following the FastTrack algorithm (Flanagan &amp; Freund, PLDI 2009).
+ * <p>
+ * Enabled by running the agent with {@code mode=races}. In this mode the access hooks in {@link Permissions} do not check
+ * permissions, but report accesses that are not ordered by happens-before with a previous conflicting access.
+ * Happens-before edges are created by monitors, volatile fields, thread start/join, java.util.concurrent locks,
+ * and task submission to executors.
+ */
+public final class RaceDetector {
+
+    static final String MODE_PROPERTY = "memorymonitoring.mode";
+    static final boolean ENABLED = "races".equals(RuntimeOptions.get(MODE_PROPERTY));
+
+    private static final Logger LOGGER = Logger.getLogger(RaceDetector.class.getName());
+
+    private enum Race {
+        WRITE_WRITE("Write is concurrent with a previous write."),
+        WRITE_READ("Read is concurrent with a previous write."),
+        READ_WRITE("Write is concurrent with a previous read.");
+
+        private final String description;
+
+        Race(String description) {
+            this.description = description;
+        }
+    }
+
+    private static final class ThreadState {
+        private final int index;
+        private final VectorClock clock = new VectorClock();
+        private long epoch;
+
+        private ThreadState(int index) {
+            this.index = index;
+            clock.set(index, 1);
+            this.epoch = VectorClock.epoch(index, 1);
+        }
+
+        private void tick() {
+            clock.increment(index);
+            epoch = VectorClock.epoch(index, clock.get(index));
+        }
+    }
+
+    private static final AtomicInteger nextThreadIndex = new AtomicInteger();
+    private static final WeakIdentityHashMap<Thread, ThreadState> threadStates = new WeakIdentityHashMap<>();
+    private static final ThreadLocal<ThreadState> CURRENT = ThreadLocal.withInitial(() -> threadState(Thread.currentThread()));
+
+    private static final WeakIdentityHashMap<Object, VectorClock> lockClocks = new WeakIdentityHashMap<>();
+    // VarState, or VectorClock for volatile fields. Keyed by the declaring class and the field name like the permissions
+    // (see Permissions#fieldPermissions), in concurrent maps, so that looking up the state of an access neither locks nor allocates.
+    private static final WeakIdentityHashMap<Object, Map<Class<?>, Map<String, Object>>> fieldStates = new WeakIdentityHashMap<>();
+    private static final WeakIdentityHashMap<Object, ArrayState> arrayStates = new WeakIdentityHashMap<>();
+
+    private static final ClassValue<Set<String>> volatileFields = new ClassValue<>() {
+        @Override
+        protected Set<String> computeValue(Class<?> type) {
+            Set<String> result = new HashSet<>();
+            // field references may name a subclass of the class that actually declares the field.
+            for (Class<?> clazz = type; clazz != null; clazz = clazz.getSuperclass()) {
+                for (Field field : clazz.getDeclaredFields()) {
+                    if (Modifier.isVolatile(field.getModifiers())) {
+                        result.add(field.getName());
+                    }
+                }
+            }
+            return result;
+        }
+    };
+
+    /**
+     * FastTrack shadow state of the elements of an array, per range rather than per element. A range of elements that all
+     * have the same state shares one {@link VarState}, and is only split in halves when an access covers part of it. Halves
+     * that have the same epochs again are merged, so an array that is accessed as a whole, or element by element within one
+     * epoch, keeps a few ranges, and an access costs O(log n) lookups and locks only the ranges it accesses.
+     * <p>
+     * The state of a range is guarded by the monitor of the range. The halves are published with release and read with
+     * acquire, so that finding the ranges of an access does not lock. A range that was merged into its parent has neither
+     * state nor halves: an access that runs into it is retried from the parent, which is harmless because accessing a
+     * variable again within the same epoch changes nothing.
+     */
+    private static final class ArrayState {
+
+        private static final VarHandle HALVES;
+        static {
+            try {
+                HALVES = MethodHandles.lookup().findVarHandle(ArrayState.class, "halves", ArrayState[].class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        // The result of an access packs the first race (its ordinal + 1) and the index it was found at, and whether the
+        // access changed a state or ran into a merged range.
+        private static final long NO_RACE = 0L;
+        private static final long RACE_MASK = (1L << 34) - 1;
+        private static final long CHANGED = 1L << 34;
+        private static final long RETIRED = 1L << 35;
+
+        private final int start, end; // inclusive, exclusive
+        private @Nullable VarState state;
+        private ArrayState @Nullable [] halves;
+
+        private ArrayState(int start, int end, VarState state) {
+            this.start = start;
+            this.end = end;
+            this.state = state;
+        }
+
+        private long access(ThreadState thread, int indexFrom, int indexTo, Access access) {
+            long result = NO_RACE;
+            while (true) {
+                ArrayState[] halves = (ArrayState[]) HALVES.getAcquire(this);
+                if (halves == null) {
+                    synchronized (this) {
+                        VarState state = this.state;
+                        if (state != null && indexFrom <= start && end <= indexTo) {
+                            return combine(result, accessAll(thread, state, Math.max(start, indexFrom), access));
+                        } else if (state != null) {
+                            split(state);
+                        } else if (this.halves == null) {
+                            return result | RETIRED;
+                        }
+                    }
+                    continue;
+                }
+
+                ArrayState left = halves[0], right = halves[1];
+                long attempt = NO_RACE;
+                if (indexFrom < left.end) {
+                    attempt = left.access(thread, indexFrom, indexTo, access);
+                }
+                if (indexTo > right.start && (attempt & RETIRED) == 0) {
+                    attempt = combine(attempt, right.access(thread, indexFrom, indexTo, access));
+                }
+                result = combine(result, attempt & ~RETIRED);
+                if ((attempt & RETIRED) != 0) {
+                    // the halves were merged into this range.
+                    continue;
+                }
+                if ((attempt & CHANGED) != 0) {
+                    merge(halves);
+                }
+                return result;
+            }
+        }
+
+        private static long accessAll(ThreadState thread, VarState state, int index, Access access) {
+            long write = state.write, read = state.read;
+            VectorClock readShared = state.readShared;
+            Race race = access == Access.WRITE ? write(thread, state) : read(thread, state);
+            long result = race == null ? NO_RACE : ((long) (race.ordinal() + 1) << 32) | (index & 0xFFFFFFFFL);
+            boolean changed = state.write != write || state.read != read || state.readShared != readShared;
+            return changed ? result | CHANGED : result;
+        }
+
+        // Guarded by this.
+        private void split(VarState state) {
+            int mid = (start + end) >>> 1;
+            this.state = null;
+            HALVES.setRelease(this, new ArrayState[] { new ArrayState(start, mid, state.copy()), new ArrayState(mid, end, state) });
+        }
+
+        private void merge(ArrayState[] halves) {
+            ArrayState left = halves[0], right = halves[1];
+            if (HALVES.getAcquire(left) != null || HALVES.getAcquire(right) != null) return;
+
+            // from the parent down to the halves, while accesses lock a single range at a time.
+            synchronized (this) {
+                if (this.halves != halves) return;
+                synchronized (left) {
+                    synchronized (right) {
+                        VarState leftState = left.state, rightState = right.state;
+                        if (leftState != null && rightState != null && leftState.isSameEpochs(rightState)) {
+                            state = leftState;
+                            left.state = null;
+                            right.state = null;
+                            HALVES.setRelease(this, null);
+                        }
+                    }
+                }
+            }
+        }
+
+        /** The first of both races, and whether either access changed a state or ran into a merged range. */
+        private static long combine(long first, long second) {
+            long race = (first & RACE_MASK) != NO_RACE ? first & RACE_MASK : second & RACE_MASK;
+            return race | ((first | second) & (CHANGED | RETIRED));
+        }
+
+        private static @Nullable Race race(long result) {
+            int race = (int) ((result & RACE_MASK) >>> 32);
+            return race == 0 ? null : Race.values()[race - 1];
+        }
+
+        private static int index(long result) {
+            return (int) result;
+        }
+    }
+
+    private RaceDetector() {}
+
+    private static ThreadState threadState(Thread thread) {
+        return threadStates.computeIfAbsent(thread, _ -> new ThreadState(nextThreadIndex.getAndIncrement()));
+    }
+
+    // ===== synchronization =====
+
+    @CalledByInstrumentedCode
+    public static void acquire(Object lock) {
+        VectorClock lockClock = lockClocks.get(lock);
+        if (lockClock != null) {
+            ThreadState thread = CURRENT.get();
+            synchronized (lockClock) {
+                thread.clock.joinWith(lockClock);
+            }
+        }
+    }
+
+    @CalledByInstrumentedCode
+    public static boolean acquireIfLocked(boolean locked, Object lock) {
+        if (locked) {
+            acquire(lock);
+        }
+        return locked;
+    }
+
+    @CalledByInstrumentedCode
+    public static void release(Object lock) {
+        VectorClock lockClock = lockClocks.computeIfAbsent(lock, _ -> new VectorClock());
+        ThreadState thread = CURRENT.get();
+        synchronized (lockClock) {
+            // join rather than copy, so that concurrent releases of shared (read) locks are all retained.
+            lockClock.joinWith(thread.clock);
+        }
+        thread.tick();
+    }
+
+    @CalledByInstrumentedCode
+    public static void threadStart(Thread thread) {
+        ThreadState parent = CURRENT.get();
+        ThreadState child = threadState(thread);
+        child.clock.joinWith(parent.clock);
+        parent.tick();
+    }
+
+    /**
+     * Happens-before edge to a thread that is created and started at once, by Thread.Builder#start or
+     * Thread#startVirtualThread: the task of the thread is replaced by one that joins the clock of the starting thread first.
+     */
+    @CalledByInstrumentedCode
+    public static Runnable threadStart(Runnable task) {
+        VectorClock started = submitTask();
+        return () -> {
+            startTask(started);
+            task.run();
+        };
+    }
+
+    @CalledByInstrumentedCode
+    public static void threadJoin(Thread thread) {
+        if (thread.isAlive()) return; // join timed out
+
+        ThreadState child = threadStates.get(thread);
+        if (child != null) {
+            CURRENT.get().clock.joinWith(child.clock);
+        }
+    }
+
+    /** Happens-before edge from task submission, see {@link Delegation#capture()}. */
+    static VectorClock submitTask() {
+        ThreadState thread = CURRENT.get();
+        VectorClock snapshot = thread.clock.copy();
+        thread.tick();
+        return snapshot;
+    }
+
+    /** Happens-before edge to the start of the task, see {@link Delegation#install(Delegation)}. */
+    static void startTask(VectorClock submitted) {
+        CURRENT.get().clock.joinWith(submitted);
+    }
+
+    // ===== accesses =====
+
+    static void fieldAccess(Object owningInstance, Class<?> declaringClass, String fieldName, Access access) {
+        Object state = fieldState(owningInstance, declaringClass, fieldName);
+
+        ThreadState thread = CURRENT.get();
+        if (state instanceof VectorClock volatileClock) {
+            // volatile write: release, volatile read: acquire.
+            synchronized (volatileClock) {
+                if (access == Access.WRITE) {
+                    volatileClock.joinWith(thread.clock);
+                } else {
+                    thread.clock.joinWith(volatileClock);
+                }
+            }
+            if (access == Access.WRITE) {
+                thread.tick();
+            }
+        } else {
+            Race race = access(thread, (VarState) state, access);
+            if (race != null) {
+                Object formattedOwningInstance = owningInstance instanceof Class<?> clazz ? clazz.getName() : owningInstance;
+                reportRace(race, "%s.%s".formatted(formattedOwningInstance, fieldName));
+            }
+        }
+    }
+
+    private static Object fieldState(Object owningInstance, Class<?> declaringClass, String fieldName) {
+        // get before computeIfAbsent, because ConcurrentHashMap#computeIfAbsent may lock even if the key is present.
+        Map<Class<?>, Map<String, Object>> classStates = fieldStates.get(owningInstance);
+        if (classStates == null) {
+            classStates = fieldStates.computeIfAbsent(owningInstance, _ -> new ConcurrentHashMap<>());
+        }
+        Map<String, Object> states = classStates.get(declaringClass);
+        if (states == null) {
+            states = classStates.computeIfAbsent(declaringClass, _ -> new ConcurrentHashMap<>());
+        }
+        Object state = states.get(fieldName);
+        if (state == null) {
+            state = states.computeIfAbsent(fieldName, _ -> volatileFields.get(declaringClass).contains(fieldName) ? new VectorClock() : new VarState());
+        }
+        return state;
+    }
+
+    static void arrayAccess(Object array, int indexFrom, int indexTo, Access access) {
+        if (indexFrom >= indexTo) return;
+
+        ArrayState states = arrayStates.get(array);
+        if (states == null) {
+            states = arrayStates.computeIfAbsent(array, _ -> new ArrayState(0, Array.getLength(array), new VarState()));
+        }
+        if (indexFrom < 0 || indexTo > states.end) return; // the access throws.
+
+        long result = states.access(CURRENT.get(), indexFrom, indexTo, access);
+        Race race = ArrayState.race(result);
+        if (race != null) {
+            // one report per range access, at the first element that races.
+            reportRace(race, "%s[]@%x.[%d]".formatted(array.getClass().getComponentType().getName(), System.identityHashCode(array),
+                    ArrayState.index(result)));
+        }
+    }
+
+    private static @Nullable Race access(ThreadState thread, VarState state, Access access) {
+        synchronized (state) {
+            return access == Access.WRITE ? write(thread, state) : read(thread, state);
+        }
+    }
+
+    private static @Nullable Race read(ThreadState thread, VarState state) {
+        long epoch = thread.epoch;
+        VectorClock readShared = state.readShared;
+
+        // [READ SAME EPOCH]
+        if (state.read == epoch) return null;
+        if (readShared != null && readShared.get(thread.index) == VectorClock.clock(epoch)) return null;
+
+        Race race = thread.clock.covers(state.write) ? null : Race.WRITE_READ;
+
+        if (readShared != null) {
+            // [READ SHARED]
+            readShared.set(thread.index, VectorClock.clock(epoch));
+        } else if (thread.clock.covers(state.read)) {
+            // [READ EXCLUSIVE]
+            state.read = epoch;
+        } else {
+            // [READ SHARE]
+            readShared = new VectorClock();
+            readShared.set(VectorClock.thread(state.read), VectorClock.clock(state.read));
+            readShared.set(thread.index, VectorClock.clock(epoch));
+            state.readShared = readShared;
+        }
+        return race;
+    }
+
+    private static @Nullable Race write(ThreadState thread, VarState state) {
+        long epoch = thread.epoch;
+
+        // [WRITE SAME EPOCH]
+        if (state.write == epoch) return null;
+
+        Race race = thread.clock.covers(state.write) ? null : Race.WRITE_WRITE;
+
+        VectorClock readShared = state.readShared;
+        if (readShared != null) {
+            // [WRITE SHARED]
+            if (race == null && !thread.clock.covers(readShared)) {
+                race = Race.READ_WRITE;
+            }
+            state.readShared = null;
+            state.read = VarState.NO_EPOCH;
+        } else if (race == null && !thread.clock.covers(state.read)) {
+            // [WRITE EXCLUSIVE]
+            race = Race.READ_WRITE;
+        }
+
+        state.write = epoch;
+        return race;
+    }
+
+    private static void reportRace(Race race, String reference) {
+        SiteProfiler.violation();
+        if (Statistics.ENABLED) {
+            Statistics.increment(StatisticsFormat.DATA_RACES);
+        }
+        String message = String.format("Thread %s: data race on %s. %s %s", Thread.currentThread().getName(), reference, race.description,
+                ViolationTraces.describe(ViolationTraces.capture()));
+        LOGGER.severe(message);
+    }
+}
@@ -0,0 +1,102 @@
+package memorymonitoring.runtime;
+
+import org.jspecify.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * The options of the runtime. The agent passes its options as system properties. Classes that were instrumented ahead of
+ * time run without the agent, so the instrumenter writes the options to the resource {@value #RESOURCE} of the
+ * instrumented artifact instead. System properties take precedence over the resource.
+ * <p>
+ * Every instrumented artifact on the class path has such a resource. The artifacts must have been instrumented with the
+ * same options, and those instrumented for the site profiler with distinct site ids ({@value #SITES_PROPERTY}),
+ * otherwise reading the options fails.
+ */
+final class RuntimeOptions {
+
+    // Must match memorymonitoring.instrumenter.Instrumenter#OPTIONS_RESOURCE.
+    static final String RESOURCE = "META-INF/memorymonitoring/options.properties";
+    // Must match memorymonitoring.instrumenter.Instrumenter#SITES_PROPERTY.
+    static final String SITES_PROPERTY = "memorymonitoring.sites";
+
+    /** The site ids of an instrumented artifact, from first to last (inclusive). */
+    private record SiteIds(URL resource, int first, int last) {}
+
+    private static final Properties INSTRUMENTED_OPTIONS = load();
+
+    private RuntimeOptions() {}
+
+    static @Nullable String get(String property) {
+        String value = System.getProperty(property);
+        return value != null ? value : INSTRUMENTED_OPTIONS.getProperty(property);
+    }
+
+    private static Properties load() {
+        Properties options = new Properties();
+        @Nullable URL optionsResource = null;
+        List<SiteIds> siteIds = new ArrayList<>();
+        try {
+            // the same artifact may be on the class path more than once.
+            Set<String> loaded = new HashSet<>();
+            Enumeration<URL> resources = ClassLoader.getSystemResources(RESOURCE);
+            while (resources.hasMoreElements()) {
+                URL resource = resources.nextElement();
+                if (!loaded.add(resource.toExternalForm())) continue;
+
+                Properties properties = new Properties();
+                try (InputStream in = resource.openStream()) {
+                    properties.load(in);
+                }
+                String sites = (String) properties.remove(SITES_PROPERTY);
+                if (sites != null) {
+                    siteIds.add(siteIds(resource, sites));
+                }
+                if (optionsResource == null) {
+                    options = properties;
+                    optionsResource = resource;
+                } else if (!options.equals(properties)) {
+                    throw new IllegalArgumentException("Classes instrumented ahead of time with different options are on the class path: "
+                            + optionsResource + " has " + options + ", " + resource + " has " + properties);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        checkDistinct(siteIds);
+        return options;
+    }
+
+    private static SiteIds siteIds(URL resource, String sites) {
+        int separator = sites.indexOf('-');
+        if (separator < 0) {
+            throw new IllegalArgumentException("Option " + SITES_PROPERTY + " must be of the form first-last, got: " + sites + " in " + resource);
+        }
+        return new SiteIds(resource, Integer.parseInt(sites.substring(0, separator)), Integer.parseInt(sites.substring(separator + 1)));
+    }
+
+    /** Fail if two artifacts use the same site ids, because the site profiler would count their sites as one. */
+    private static void checkDistinct(List<SiteIds> siteIds) {
+        siteIds.sort(Comparator.comparingInt(SiteIds::first));
+        for (int i = 1; i < siteIds.size(); i++) {
+            SiteIds previous = siteIds.get(i - 1), next = siteIds.get(i);
+            if (next.first() <= previous.last()) {
+                int unused = siteIds.stream().mapToInt(SiteIds::last).max().orElseThrow() + 1;
+                throw new IllegalArgumentException(String.format(
+                        "Classes instrumented ahead of time with the same site ids are on the class path: %s has sites %d-%d, %s has sites %d-%d. "
+                                + "Instrument one of them again with --first-site-id %d.",
+                        previous.resource(), previous.first(), previous.last(), next.resource(), next.first(), next.last(), unused));
+            }
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package memorymonitoring.runtime;
+
+import memorymonitoring.util.CalledByInstrumentedCode;
+import org.jspecify.annotations.Nullable;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Permissions to the instance fields of one object, stored in a synthetic field of the object itself.
+ * <p>
+ * The agent adds the field {@value #FIELD_NAME} to the classes it instruments, and registers the instance fields of such
+ * a class with {@link #register(MethodHandles.Lookup, int, String...)} in its class initializer. The permissions of these fields
+ * are then kept in the object instead of in the global store of {@link Permissions}, and are garbage collected together
+ * with the object.
+ * <p>
+ * The thread that constructed the object is the owner, or if the object was not constructed by an instrumented constructor,
+ * the first thread that obtains a permission to one of the fields (like {@link FieldPermission}). The access
+ * of the owner to each field is summarized in a bitmap (2 bits per field), so that instrumented code can check accesses of
+ * the owner without calling into {@link Permissions}, see {@link #ownerCovers(ShadowPermissions, int, Access)}.
+ * The summary is only written while holding the lock of {@link Permissions}, or before the object is published.
+ * <p>
+ * The WRITE permission that a constructor grants to all fields of the object is only recorded in the summary, see
+ * {@link #ownedByCurrentThread(int, int)}. The {@link FieldPermission} of a field is created from the summary when the
+ * permission to the field diverges from it, i.e. when a permission to the field is set by any thread.
+ * <p>
+ * Object#clone copies the synthetic field, so instrumented code calls {@link #cloned(Object, Object)} after super.clone(),
+ * so that the clone does not share the permissions of the original.
+ */
+public final class ShadowPermissions {
+
+    // Must match memorymonitoring.agent.ShadowFields#FIELD_NAME.
+    public static final String FIELD_NAME = "$permissions";
+    // Must match memorymonitoring.agent.ShadowFields#MAX_FIELDS.
+    public static final int MAX_FIELDS = Long.SIZE / 2;
+
+    private static final long NO_OWNER = -1L;
+    private static final Access[] ACCESS_BY_ORDINAL = Access.values();
+
+    /** The instance fields declared by an instrumented class, and the handle of its shadow field. */
+    record Layout(VarHandle shadowField, List<String> fieldNames, int confinedMask) {
+
+        int index(String fieldName) {
+            return fieldNames.indexOf(fieldName);
+        }
+
+        boolean isConfined(int fieldIndex) {
+            return (confinedMask & (1 << fieldIndex)) != 0;
+        }
+
+        @Nullable ShadowPermissions shadowIfPresent(Object owningInstance) {
+            return (ShadowPermissions) shadowField.getAcquire(owningInstance);
+        }
+
+        ShadowPermissions shadowOf(Object owningInstance) {
+            ShadowPermissions shadow = (ShadowPermissions) shadowField.getAcquire(owningInstance);
+            if (shadow == null) {
+                // the object was not (yet) initialized by an instrumented constructor.
+                ShadowPermissions created = new ShadowPermissions(fieldNames.size());
+                shadow = (ShadowPermissions) shadowField.compareAndExchange(owningInstance, null, created);
+                if (shadow == null) {
+                    shadow = created;
+                }
+            }
+            return shadow;
+        }
+    }
+
+    // Associated with the class itself, because the layout refers to the class through its VarHandle: neither the class nor
+    // its loader is kept reachable by the layout. Classes that are not registered have an empty reference.
+    private static final ClassValue<AtomicReference<@Nullable Layout>> layouts = new ClassValue<>() {
+        @Override
+        protected AtomicReference<@Nullable Layout> computeValue(Class<?> type) {
+            return new AtomicReference<>();
+        }
+    };
+    // Whether the current thread is tracked as an owner, so that the permissions of the owner can be reclaimed when they
+    // are split off from the summary, see #field(int).
+    private static final ThreadLocal<Boolean> ownerTracked = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+    private volatile long ownerThreadId = NO_OWNER;
+    private volatile long ownerAccess;      // Access#ordinal of the owner, 2 bits per field
+    private final @Nullable FieldPermission[] fields;
+
+    ShadowPermissions(int fieldCount) {
+        this.fields = new FieldPermission[fieldCount];
+    }
+
+    /**
+     * Create the shadow permissions of an object that is being constructed, owned by the constructing thread.
+     * The constructing thread is granted WRITE permission to the given fields at once, without taking the lock of
+     * {@link Permissions}: the object is not published yet, so no other thread can have a permission to its fields.
+     * @param fieldCount the number of instance fields declared by the class of the constructor
+     * @param writeMask the fields (bit per shadow index) to which the constructing thread is granted WRITE permission
+     */
+    @CalledByInstrumentedCode
+    public static ShadowPermissions ownedByCurrentThread(int fieldCount, int writeMask) {
+        ShadowPermissions shadow = new ShadowPermissions(fieldCount);
+        Thread thread = Thread.currentThread();
+        if (!ownerTracked.get()) {
+            // once per thread.
+            Permissions.trackOwner(thread);
+            ownerTracked.set(Boolean.TRUE);
+        }
+        shadow.ownerThreadId = thread.threadId();
+        if (writeMask != 0) {
+            shadow.ownerAccess = spread(writeMask, Access.WRITE);
+        }
+        return shadow;
+    }
+
+    // Repeat the ordinal of the access for every field in the mask, 2 bits per field.
+    private static long spread(int fieldMask, Access access) {
+        long bits = 0L;
+        for (int mask = fieldMask; mask != 0; mask &= mask - 1) {
+            bits |= (long) access.ordinal() << (Integer.numberOfTrailingZeros(mask) << 1);
+        }
+        return bits;
+    }
+
+    /**
+     * Register the instance fields of an instrumented class.
+     * @param lookup a lookup with full privilege access to the instrumented class
+     * @param confinedMask the fields (bit per shadow index) to which the owner of an object implicitly has WRITE permission,
+     *                     see {@link memorymonitoring.runtime.annotation.ThreadConfined}
+     * @param fieldNames the instance fields declared by the instrumented class, in the order of their shadow index
+     */
+    @CalledByInstrumentedCode
+    public static void register(MethodHandles.Lookup lookup, int confinedMask, String... fieldNames) {
+        Class<?> clazz = lookup.lookupClass();
+        try {
+            VarHandle shadowField = lookup.findVarHandle(clazz, FIELD_NAME, ShadowPermissions.class);
+            layouts.get(clazz).set(new Layout(shadowField, List.of(fieldNames), confinedMask));
+        } catch (NoSuchFieldException | IllegalAccessException e) {
+            throw new IllegalStateException("Class " + clazz.getName() + " has no accessible shadow permissions field", e);
+        }
+    }
+
+    /**
+     * Give the clone of an object fresh shadow permissions. Object#clone copies the shadow fields, so without this the
+     * clone would share the permissions (and the owner) of the original. The shadow fields of the clone are reset to null,
+     * unless they were already replaced, e.g. by a super.clone() further up the class hierarchy: the first thread that
+     * obtains a permission to a field of the clone becomes its owner.
+     * @param clone the object returned by super.clone(), may be null or of another class than the original
+     * @param original the object of which super.clone() was called
+     */
+    @CalledByInstrumentedCode
+    public static void cloned(@Nullable Object clone, Object original) {
+        if (clone == null || clone == original) return;
+
+        for (Class<?> clazz = clone.getClass(); clazz != null; clazz = clazz.getSuperclass()) {
+            Layout layout = layouts.get(clazz).get();
+            if (layout != null && clazz.isInstance(original)) {
+                ShadowPermissions shared = layout.shadowIfPresent(original);
+                if (shared != null) {
+                    layout.shadowField.compareAndSet(clone, shared, (ShadowPermissions) null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Check whether the current thread is the owner of the object, and has at least the given access to the field.
+     * Instrumented code only calls into {@link Permissions} if this check fails.
+     * @param shadow the shadow permissions of the object, null if not initialized yet
+     * @param fieldIndex the index of the field in the layout of its declaring class
+     * @param access the access level that is requested
+     */
+    @CalledByInstrumentedCode
+    public static boolean ownerCovers(@Nullable ShadowPermissions shadow, int fieldIndex, Access access) {
+        return shadow != null
+                && shadow.ownerThreadId == Thread.currentThread().threadId()
+                && (int) ((shadow.ownerAccess >>> (fieldIndex << 1)) & 0b11) >= access.ordinal();
+    }
+
+    /**
+     * Check whether the current thread is the owner of the object, regardless of its access to the fields.
+     * Used for fields of which the class is annotated as {@link memorymonitoring.runtime.annotation.ThreadConfined}.
+     * @param shadow the shadow permissions of the object, null if not initialized yet
+     */
+    @CalledByInstrumentedCode
+    public static boolean isOwner(@Nullable ShadowPermissions shadow) {
+        return shadow != null && shadow.ownerThreadId == Thread.currentThread().threadId();
+    }
+
+    /**
+     * Get the layout of the class that declares the field, if it is an instrumented class.
+     * @param declaringClass the declaring class as referred to by the field access, which may be a subclass of the actual declaring class
+     * @return the layout, or null if the field is not kept in shadow permissions
+     */
+    static @Nullable Layout layout(Class<?> declaringClass, String fieldName) {
+        for (Class<?> clazz = declaringClass; clazz != null; clazz = clazz.getSuperclass()) {
+            Layout layout = layouts.get(clazz).get();
+            if (layout != null && layout.index(fieldName) >= 0) {
+                return layout;
+            }
+        }
+        return null;
+    }
+
+    @Nullable Access get(int fieldIndex, long threadId) {
+        FieldPermission field = fields[fieldIndex];
+        if (field == null) {
+            // only the owner can have a permission to the field, which is recorded in the summary.
+            return threadId == ownerThreadId ? ownerAccessFromSummary(fieldIndex) : null;
+        }
+        return field.get(threadId);
+    }
+
+    /** Like {@link #get(int, long)}, but the owner has WRITE permission to a thread-confined field unless granted otherwise. */
+    @Nullable Access get(int fieldIndex, long threadId, boolean confined) {
+        Access access = get(fieldIndex, threadId);
+        return access == null && confined && threadId == ownerThreadId ? Access.WRITE : access;
+    }
+
+    @Nullable Access set(int fieldIndex, long threadId, Access access) {
+        if (ownerThreadId == NO_OWNER) {
+            ownerThreadId = threadId;
+        }
+        Access conflictingAccess = field(fieldIndex).set(threadId, access);
+        updateOwnerAccess(fieldIndex);
+        return conflictingAccess;
+    }
+
+    void setDefault(int fieldIndex, Access access) {
+        field(fieldIndex).setDefault(access);
+        updateOwnerAccess(fieldIndex);
+    }
+
+    /**
+     * The permissions of all threads to a field, split off from the summary if needed. The permission of the owner is
+     * tracked like the permission of any other thread (see {@link Permissions#trackReplayedOwner(long, Object)}); if the
+     * owner is gone, the object has no owner anymore, and the permissions of the owner in the summary are dropped.
+     */
+    FieldPermission field(int fieldIndex) {
+        FieldPermission field = fields[fieldIndex];
+        if (field == null) {
+            // split the permission of the owner off from the summary.
+            field = new FieldPermission();
+            Access ownerAccess = ownerAccessFromSummary(fieldIndex);
+            if (ownerAccess != null) {
+                if (Permissions.trackReplayedOwner(ownerThreadId, field)) {
+                    field.set(ownerThreadId, ownerAccess);
+                } else {
+                    ownerThreadId = NO_OWNER;
+                    this.ownerAccess = 0L;
+                }
+            }
+            fields[fieldIndex] = field;
+        }
+        return field;
+    }
+
+    private @Nullable Access ownerAccessFromSummary(int fieldIndex) {
+        int ordinal = (int) ((ownerAccess >>> (fieldIndex << 1)) & 0b11);
+        return ordinal == 0 ? null : ACCESS_BY_ORDINAL[ordinal];
+    }
+
+    private void updateOwnerAccess(int fieldIndex) {
+        Access access = get(fieldIndex, ownerThreadId);
+        long bits = access == null ? 0 : access.ordinal();
+        int shift = fieldIndex << 1;
+        ownerAccess = (ownerAccess & ~(0b11L << shift)) | (bits << shift);
+    }
+}
@@ -0,0 +1,231 @@
+package memorymonitoring.runtime;
+
+import memorymonitoring.util.CalledByInstrumentedCode;
+import org.jspecify.annotations.Nullable;
+
+import java.io.PrintStream;
+import java.lang.invoke.MethodHandles;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Profile of the access sites of instrumented code: how often each site is executed, and how many violations (or data
+ * races) its accesses cause. Enabled with the agent option {@code profile=<top>}, which makes the agent count the
+ * executions of every site with {@link #enter(int)}.
+ * <p>
+ * The agent gives every site an id when it instruments the class. The site is described to the profiler by the bootstrap
+ * method {@link #site} of a dynamic constant, which is resolved the first time the site is executed. The counters of a
+ * site are striped ({@link LongAdder}), so that threads that execute the same site do not contend on a single counter.
+ * A site id that two different sites use, because their classes were instrumented separately, fails the resolution of
+ * the second site.
+ * <p>
+ * Violations are attributed to the site that the violating thread entered last, which is the site of the access that is
+ * checked. The {@code top} hottest and most violating sites are printed at exit, see {@link #dump(PrintStream, int)}.
+ * <p>
+ * With the agent option {@code deinstrument=<threshold>} the agent polls {@link #hotSites(long)} and stops checking the
+ * sites that it returns. {@link #requestReinstrumentation(int)} makes the agent check a site again.
+ */
+public final class SiteProfiler {
+
+    // Must match memorymonitoring.agent.AgentOptions#PROFILE_PROPERTY.
+    static final String PROFILE_PROPERTY = "memorymonitoring.profile";
+    private static final @Nullable String PROFILE = RuntimeOptions.get(PROFILE_PROPERTY);
+    // The agent counts the executions if the property is set, but 0 means that the profile is not printed at exit.
+    static final boolean ENABLED = PROFILE != null;
+    private static final int TOP = ENABLED ? Integer.parseInt(PROFILE) : 0;
+
+    /** An access site, as described by the agent. */
+    record Site(int id, Class<?> declaringClass, String methodName, String methodType, int bci, int line, String kind,
+                        LongAdder executions, LongAdder violations) {
+
+        @Override
+        public String toString() {
+            String line = this.line < 0 ? "?" : Integer.toString(this.line);
+            return String.format("%s.%s%s line %s, bci %d: %s (site %d)", declaringClass.getName(), methodName, methodType, line, bci, kind, id);
+        }
+    }
+
+    // Indexed by site id, grown when a site with a larger id is registered.
+    private static volatile @Nullable Site[] sites = new Site[256];
+    private static final ThreadLocal<int[]> currentSite = ThreadLocal.withInitial(() -> new int[1]);
+
+    // Guarded by the class lock.
+    private static final BitSet reportedHotSites = new BitSet();
+    private static final BitSet reinstrumentationRequests = new BitSet();
+
+    static {
+        if (TOP > 0) {
+            Runtime.getRuntime().addShutdownHook(Thread.ofPlatform().unstarted(() -> dump(System.err, TOP)));
+        }
+    }
+
+    private SiteProfiler() {}
+
+    /**
+     * Bootstrap method of the dynamic constant that holds the id of a site.
+     * @param lookup the lookup of the class that contains the site
+     * @return the id of the site
+     */
+    @CalledByInstrumentedCode
+    public static int site(MethodHandles.Lookup lookup, String name, Class<?> type,
+                           int siteId, String methodName, String methodType, int bci, int line, String kind) {
+        register(new Site(siteId, lookup.lookupClass(), methodName, methodType, bci, line, kind, new LongAdder(), new LongAdder()));
+        return siteId;
+    }
+
+    /** Count an execution of a site, just before its access is checked. */
+    @CalledByInstrumentedCode
+    public static void enter(int siteId) {
+        Site site = site(siteId);
+        if (site != null) {
+            site.executions().increment();
+        }
+        currentSite.get()[0] = siteId;
+    }
+
+    /** The site that the current thread entered last, or 0 (TraceFormat#UNKNOWN_SITE) if not profiling. */
+    static int currentSite() {
+        return ENABLED ? currentSite.get()[0] : 0;
+    }
+
+    /** Count a violation by the access that the current thread is checking. */
+    static void violation() {
+        if (!ENABLED) return;
+        Site site = site(currentSite.get()[0]);
+        if (site != null) {
+            site.violations().increment();
+        }
+    }
+
+    /**
+     * Print the hottest sites and the sites with the most violations.
+     * @param top the maximum number of sites to print per list
+     */
+    public static void dump(PrintStream out, int top) {
+        List<Site> registered = Arrays.stream(sites).filter(Objects::nonNull).toList();
+        long executions = registered.stream().mapToLong(site -> site.executions().sum()).sum();
+        long violations = registered.stream().mapToLong(site -> site.violations().sum()).sum();
+        out.printf("Access sites: %d executed, %d executions, %d violations.%n", registered.size(), executions, violations);
+
+        out.printf("Hottest sites:%n");
+        printTop(out, registered, top, Site::executions);
+        out.printf("Most violating sites:%n");
+        printTop(out, registered, top, Site::violations);
+    }
+
+    private static void printTop(PrintStream out, List<Site> registered, int top, Function<Site, LongAdder> counter) {
+        record Counted(Site site, long count) {}
+        registered.stream()
+                .map(site -> new Counted(site, counter.apply(site).sum()))
+                .filter(counted -> counted.count() > 0)
+                .sorted(Comparator.comparingLong(Counted::count).reversed())
+                .limit(top)
+                .forEach(counted -> out.printf("%14d  %s%n", counted.count(), counted.site()));
+    }
+
+    /** The {@code top} most executed sites, see {@link Statistics}. */
+    static List<Site> hottestSites(int top) {
+        // the counters are sorted by a snapshot, since they keep changing.
+        record Counted(Site site, long executions) {}
+        return Arrays.stream(sites)
+                .filter(Objects::nonNull)
+                .map(site -> new Counted(site, site.executions().sum()))
+                .sorted(Comparator.comparingLong(Counted::executions).reversed())
+                .limit(top)
+                .map(Counted::site)
+                .toList();
+    }
+
+    /**
+     * The sites that were executed at least {@code threshold} times without violations, and that were not returned before.
+     * Called periodically by the agent, which stops checking these sites.
+     * <p>
+     * Checked reads of multi-dimensional arrays grant the permissions that their sub-arrays inherit (see
+     * {@link InheritedArrayPermission}), which unchecked sites would not. So before the first sites are returned, the
+     * sub-arrays are granted right away instead, see {@link Permissions#inheritArrayPermissionsEagerly()}.
+     */
+    public static int[] hotSites(long threshold) {
+        int[] hot;
+        synchronized (SiteProfiler.class) {
+            hot = Arrays.stream(sites)
+                    .filter(Objects::nonNull)
+                    .filter(site -> !reportedHotSites.get(site.id()))
+                    .filter(site -> site.violations().sum() == 0 && site.executions().sum() >= threshold)
+                    .mapToInt(Site::id)
+                    .toArray();
+            for (int siteId : hot) {
+                reportedHotSites.set(siteId);
+            }
+        }
+        if (hot.length > 0) {
+            Permissions.inheritArrayPermissionsEagerly();
+        }
+        return hot;
+    }
+
+    /**
+     * Make the agent check a site again that it stopped checking, e.g. after the de-instrumentation of the site was found
+     * to hide violations. The site may be returned by {@link #hotSites(long)} again once it crosses the threshold again.
+     * @param siteId the id of the site, as printed when the site was de-instrumented
+     */
+    public static synchronized void requestReinstrumentation(int siteId) {
+        if (reportedHotSites.get(siteId)) {
+            reinstrumentationRequests.set(siteId);
+        }
+    }
+
+    /** The sites of which reinstrumentation was requested since the last call. Called periodically by the agent. */
+    public static synchronized int[] reinstrumentationRequests() {
+        int[] requests = reinstrumentationRequests.stream().toArray();
+        for (int siteId : requests) {
+            reinstrumentationRequests.clear(siteId);
+            reportedHotSites.clear(siteId);
+            Site site = Objects.requireNonNull(site(siteId));
+            // count from scratch, so that the site is not de-instrumented again right away.
+            site.executions().reset();
+        }
+        return requests;
+    }
+
+    /** The class that contains a registered site. */
+    public static Class<?> siteClass(int siteId) {
+        return Objects.requireNonNull(site(siteId), "unknown site").declaringClass();
+    }
+
+    /** A description of a registered site, for logging. */
+    public static String siteDescription(int siteId) {
+        return Objects.requireNonNull(site(siteId), "unknown site").toString();
+    }
+
+    private static @Nullable Site site(int siteId) {
+        Site[] current = sites;
+        return siteId > 0 && siteId < current.length ? current[siteId] : null;
+    }
+
+    private static synchronized void register(Site site) {
+        Site[] current = sites;
+        if (site.id() >= current.length) {
+            current = Arrays.copyOf(current, Math.max(site.id() + 1, current.length * 2));
+        }
+        // the constant of a site can be resolved by several threads at once, the first registration wins.
+        Site registered = current[site.id()];
+        if (registered == null) {
+            current[site.id()] = site;
+        } else if (!isSameSite(registered, site)) {
+            // Classes with the same name in different class loaders share their sites, classes that were instrumented separately must not.
+            throw new IllegalStateException(String.format("Site id %d is used by two sites: %s and %s. Classes instrumented ahead of time "
+                    + "must be given distinct site ids (--first-site-id), and must not be instrumented by the agent too.", site.id(), registered, site));
+        }
+        sites = current;
+    }
+
+    private static boolean isSameSite(Site site, Site other) {
+        return site.declaringClass().getName().equals(other.declaringClass().getName()) && site.methodName().equals(other.methodName())
+                && site.methodType().equals(other.methodType()) && site.bci() == other.bci();
+    }
+}
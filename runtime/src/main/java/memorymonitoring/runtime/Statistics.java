@@ -0,0 +1,141 @@
+package memorymonitoring.runtime;
+
+import memorymonitoring.runtime.stats.StatisticsFormat;
+import org.jspecify.annotations.Nullable;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Publishes the statistics of the runtime (checks, violations and grants per kind, the sizes of the permission stores, and
+ * the hottest access sites) to a memory-mapped file in the layout described by {@link StatisticsFormat}, so that they can
+ * be watched while the program runs, e.g. with {@code memorymonitoring.analyzer.StatisticsTop}.
+ * <p>
+ * Checks and grants are counted with one atomic add to the stripe of the current thread, which is all that publishing
+ * costs the threads of the program. Only checks that reach the runtime can be counted, so the agent does not check the
+ * accesses of the owner of an object inline (see {@link ShadowPermissions}) while statistics are published. The gauges and
+ * the hottest sites are sampled by a background thread, every {@value #UPDATE_INTERVAL_MILLIS} ms.
+ * <p>
+ * Publishing is enabled by setting the option {@value #STATISTICS_PROPERTY} (see {@link RuntimeOptions}) to the path of the
+ * statistics file. The file is created when the runtime is first used, and left behind when the program exits.
+ */
+final class Statistics {
+
+    // Must match memorymonitoring.agent.AgentOptions#STATISTICS_PROPERTY.
+    static final String STATISTICS_PROPERTY = "memorymonitoring.statistics";
+    private static final @Nullable String FILE = RuntimeOptions.get(STATISTICS_PROPERTY);
+    static final boolean ENABLED = FILE != null;
+
+    private static final Logger LOGGER = Logger.getLogger(Statistics.class.getName());
+
+    // TODO make configurable (via commandline arg?)
+    private static final long UPDATE_INTERVAL_MILLIS = 1000;
+
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final ByteBuffer buffer = ENABLED ? map(Path.of(FILE)) : ByteBuffer.allocate(0);
+
+    static {
+        if (ENABLED) {
+            LONG.set(buffer, StatisticsFormat.PID_OFFSET, ProcessHandle.current().pid());
+            LONG.set(buffer, StatisticsFormat.START_TIME_OFFSET, System.currentTimeMillis());
+            // readers check the magic number last, so that they never see a file without the header.
+            LONG.setRelease(buffer, 0, StatisticsFormat.MAGIC);
+            Thread.ofPlatform().name("memorymonitoring-statistics").daemon().start(Statistics::publishPeriodically);
+        }
+    }
+
+    private Statistics() {}
+
+    static void fieldCheck(Object owningInstance, boolean allowed) {
+        boolean isStatic = owningInstance instanceof Class<?>;
+        increment(isStatic ? StatisticsFormat.STATIC_FIELD_CHECKS : StatisticsFormat.FIELD_CHECKS);
+        if (!allowed) {
+            increment(isStatic ? StatisticsFormat.STATIC_FIELD_VIOLATIONS : StatisticsFormat.FIELD_VIOLATIONS);
+        }
+    }
+
+    static void arrayCheck(boolean allowed) {
+        increment(StatisticsFormat.ARRAY_CHECKS);
+        if (!allowed) {
+            increment(StatisticsFormat.ARRAY_VIOLATIONS);
+        }
+    }
+
+    static void grant(int counter, boolean conflicting) {
+        increment(counter);
+        if (conflicting) {
+            increment(StatisticsFormat.CONFLICTING_GRANTS);
+        }
+    }
+
+    static void increment(int counter) {
+        int stripe = (int) Thread.currentThread().threadId() & (StatisticsFormat.STRIPES - 1);
+        LONG.getAndAdd(buffer, StatisticsFormat.counterOffset(stripe, counter), 1L);
+    }
+
+    /** Publish the value of a gauge. Only called by the publishing thread. */
+    static void gauge(int gauge, long value) {
+        LONG.setOpaque(buffer, StatisticsFormat.gaugeOffset(gauge), value);
+    }
+
+    private static ByteBuffer map(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // the mapping stays valid after the channel is closed.
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, StatisticsFormat.FILE_SIZE).order(ByteOrder.nativeOrder());
+        } catch (IOException e) {
+            // the program runs on without published statistics, rather than not at all.
+            LOGGER.log(Level.SEVERE, "Could not create statistics file " + file, e);
+            return ByteBuffer.allocateDirect(StatisticsFormat.FILE_SIZE).order(ByteOrder.nativeOrder());
+        }
+    }
+
+    private static void publishPeriodically() {
+        while (true) {
+            Permissions.publishStoreSizes();
+            if (SiteProfiler.ENABLED) {
+                publishSites(SiteProfiler.hottestSites(StatisticsFormat.MAX_SITES));
+            }
+            LONG.setRelease(buffer, StatisticsFormat.UPDATE_TIME_OFFSET, System.currentTimeMillis());
+
+            try {
+                Thread.sleep(UPDATE_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static void publishSites(List<SiteProfiler.Site> sites) {
+        // odd while the sites are written, see StatisticsFormat.
+        long version = (long) LONG.get(buffer, StatisticsFormat.SITES_VERSION_OFFSET);
+        LONG.setRelease(buffer, StatisticsFormat.SITES_VERSION_OFFSET, version + 1);
+        VarHandle.storeStoreFence();
+
+        for (int index = 0; index < sites.size(); index++) {
+            SiteProfiler.Site site = sites.get(index);
+            int offset = StatisticsFormat.siteOffset(index);
+            byte[] description = site.toString().getBytes(StandardCharsets.UTF_8);
+            int length = Math.min(description.length, StatisticsFormat.MAX_DESCRIPTION_SIZE);
+
+            LONG.setOpaque(buffer, offset + StatisticsFormat.SITE_ID, (long) site.id());
+            LONG.setOpaque(buffer, offset + StatisticsFormat.SITE_EXECUTIONS, site.executions().sum());
+            LONG.setOpaque(buffer, offset + StatisticsFormat.SITE_VIOLATIONS, site.violations().sum());
+            LONG.setOpaque(buffer, offset + StatisticsFormat.SITE_DESCRIPTION_LENGTH, (long) length);
+            buffer.put(offset + StatisticsFormat.SITE_DESCRIPTION, description, 0, length);
+        }
+        LONG.setOpaque(buffer, StatisticsFormat.SITE_COUNT_OFFSET, (long) sites.size());
+
+        LONG.setRelease(buffer, StatisticsFormat.SITES_VERSION_OFFSET, version + 2);
+    }
+}
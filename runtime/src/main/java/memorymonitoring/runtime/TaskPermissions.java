@@ -0,0 +1,309 @@
+package memorymonitoring.runtime;
+
+import memorymonitoring.util.CalledByInstrumentedCode;
+import memorymonitoring.util.WeakIdentityHashMap;
+import org.jspecify.annotations.Nullable;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Propagation of permissions across task boundaries (Executor, ExecutorService, ForkJoinPool, CompletableFuture).
+ * <p>
+ * At task submission, the permissions of the submitting thread are captured as a {@link Delegation}. While the worker
+ * thread runs the task, it may use both its own permissions and the permissions of the submitter.
+ */
+public final class TaskPermissions {
+
+    private static final Object NOT_ENTERED = new Object();
+
+    private static final WeakIdentityHashMap<ForkJoinTask<?>, Delegation> forkJoinTaskDelegations = new WeakIdentityHashMap<>();
+    // The wrappers of the tasks passed to Executor#execute that have not run yet, see #execute. A wrapper is removed when it
+    // runs, when the executor rejects it or hands it back. The executor may also drop a wrapper without telling (e.g. by a
+    // DiscardPolicy), so the wrappers are only weakly referenced: they do not keep their task alive, and the entry of a
+    // task is expunged when the task is garbage collected.
+    private static final WeakIdentityHashMap<Runnable, QueuedTasks> executedTasks = new WeakIdentityHashMap<>();
+
+    private static final class DelegatingRunnable implements Runnable {
+        private final Runnable task;
+        private final Delegation delegation;
+        private final boolean executed;
+
+        private DelegatingRunnable(Runnable task, Delegation delegation, boolean executed) {
+            this.task = task;
+            this.delegation = delegation;
+            this.executed = executed;
+        }
+
+        @Override
+        public void run() {
+            if (executed) {
+                dequeue(this);
+            }
+            Delegation previous = Delegation.install(delegation);
+            try {
+                task.run();
+            } finally {
+                Delegation.restore(previous);
+            }
+        }
+    }
+
+    /** The wrappers of a task that was passed to Executor#execute, once per execution that has not run yet. */
+    private static final class QueuedTasks {
+        private final List<WeakReference<DelegatingRunnable>> wrappers = new ArrayList<>(1);
+
+        synchronized void add(DelegatingRunnable wrapper) {
+            wrappers.removeIf(reference -> reference.refersTo(null));
+            wrappers.add(new WeakReference<>(wrapper));
+        }
+
+        synchronized void remove(DelegatingRunnable wrapper) {
+            wrappers.removeIf(reference -> reference.refersTo(wrapper) || reference.refersTo(null));
+        }
+
+        synchronized List<DelegatingRunnable> snapshot() {
+            List<DelegatingRunnable> snapshot = new ArrayList<>(wrappers.size());
+            for (WeakReference<DelegatingRunnable> reference : wrappers) {
+                DelegatingRunnable wrapper = reference.get();
+                if (wrapper != null) {
+                    snapshot.add(wrapper);
+                }
+            }
+            return snapshot;
+        }
+    }
+
+    private TaskPermissions() {}
+
+    @CalledByInstrumentedCode
+    public static @Nullable Runnable delegate(@Nullable Runnable task) {
+        if (task == null) return null;
+        return new DelegatingRunnable(task, Delegation.capture(), false);
+    }
+
+    /**
+     * Executor#execute, with the task wrapped. The task stays in the queue of the executor until it runs, and the executor
+     * may hand the queued tasks back, so the wrapper is remembered for {@link #remove(ThreadPoolExecutor, Runnable)} and
+     * {@link #undelegate(List)}, unless the executor rejects it.
+     */
+    @CalledByInstrumentedCode
+    public static void execute(Executor executor, @Nullable Runnable task) {
+        if (task == null) {
+            executor.execute(null);
+            return;
+        }
+        DelegatingRunnable delegatingTask = new DelegatingRunnable(task, Delegation.capture(), true);
+        executedTasks.computeIfAbsent(task, _ -> new QueuedTasks()).add(delegatingTask);
+        try {
+            executor.execute(delegatingTask);
+        } catch (Throwable e) {
+            // e.g. RejectedExecutionException: the executor does not keep the task.
+            dequeue(delegatingTask);
+            throw e;
+        }
+    }
+
+    /**
+     * ThreadPoolExecutor#remove, of the wrapper that is queued instead of a task passed to Executor#execute. The same task
+     * may be queued more than once, or in other executors, so the wrappers are tried in the order in which they were queued.
+     */
+    @CalledByInstrumentedCode
+    public static boolean remove(ThreadPoolExecutor executor, @Nullable Runnable task) {
+        QueuedTasks queued = task == null ? null : executedTasks.get(task);
+        if (queued != null) {
+            for (DelegatingRunnable delegatingTask : queued.snapshot()) {
+                if (executor.remove(delegatingTask)) {
+                    queued.remove(delegatingTask);
+                    return true;
+                }
+            }
+        }
+        return executor.remove(task);
+    }
+
+    private static void dequeue(DelegatingRunnable delegatingTask) {
+        QueuedTasks queued = executedTasks.get(delegatingTask.task);
+        if (queued != null) {
+            queued.remove(delegatingTask);
+        }
+    }
+
+    /** The tasks that were passed to Executor#execute, for the queued tasks returned by ExecutorService#shutdownNow. */
+    @CalledByInstrumentedCode
+    public static @Nullable List<Runnable> undelegate(@Nullable List<Runnable> tasks) {
+        if (tasks == null) return null;
+        List<Runnable> undelegated = new ArrayList<>(tasks.size());
+        for (Runnable task : tasks) {
+            if (task instanceof DelegatingRunnable delegatingTask) {
+                if (delegatingTask.executed) {
+                    dequeue(delegatingTask);
+                }
+                undelegated.add(delegatingTask.task);
+            } else {
+                undelegated.add(task);
+            }
+        }
+        return undelegated;
+    }
+
+    @CalledByInstrumentedCode
+    public static <V> @Nullable Callable<V> delegate(@Nullable Callable<V> task) {
+        if (task == null) return null;
+        Delegation delegation = Delegation.capture();
+        return () -> {
+            Delegation previous = Delegation.install(delegation);
+            try {
+                return task.call();
+            } finally {
+                Delegation.restore(previous);
+            }
+        };
+    }
+
+    @CalledByInstrumentedCode
+    public static <T> @Nullable Supplier<T> delegate(@Nullable Supplier<T> task) {
+        if (task == null) return null;
+        Delegation delegation = Delegation.capture();
+        return () -> {
+            Delegation previous = Delegation.install(delegation);
+            try {
+                return task.get();
+            } finally {
+                Delegation.restore(previous);
+            }
+        };
+    }
+
+    @CalledByInstrumentedCode
+    public static <T, R> @Nullable Function<T, R> delegate(@Nullable Function<T, R> task) {
+        if (task == null) return null;
+        Delegation delegation = Delegation.capture();
+        return argument -> {
+            Delegation previous = Delegation.install(delegation);
+            try {
+                return task.apply(argument);
+            } finally {
+                Delegation.restore(previous);
+            }
+        };
+    }
+
+    @CalledByInstrumentedCode
+    public static <T> @Nullable Consumer<T> delegate(@Nullable Consumer<T> task) {
+        if (task == null) return null;
+        Delegation delegation = Delegation.capture();
+        return argument -> {
+            Delegation previous = Delegation.install(delegation);
+            try {
+                task.accept(argument);
+            } finally {
+                Delegation.restore(previous);
+            }
+        };
+    }
+
+    @CalledByInstrumentedCode
+    public static <T, U, R> @Nullable BiFunction<T, U, R> delegate(@Nullable BiFunction<T, U, R> task) {
+        if (task == null) return null;
+        Delegation delegation = Delegation.capture();
+        return (argument1, argument2) -> {
+            Delegation previous = Delegation.install(delegation);
+            try {
+                return task.apply(argument1, argument2);
+            } finally {
+                Delegation.restore(previous);
+            }
+        };
+    }
+
+    @CalledByInstrumentedCode
+    public static <T, U> @Nullable BiConsumer<T, U> delegate(@Nullable BiConsumer<T, U> task) {
+        if (task == null) return null;
+        Delegation delegation = Delegation.capture();
+        return (argument1, argument2) -> {
+            Delegation previous = Delegation.install(delegation);
+            try {
+                task.accept(argument1, argument2);
+            } finally {
+                Delegation.restore(previous);
+            }
+        };
+    }
+
+    /**
+     * ForkJoinTasks cannot be wrapped, because the task itself is what gets forked and joined.
+     * Instead the delegation is registered for the task, and installed by {@link #enter(ForkJoinTask)}.
+     */
+    @CalledByInstrumentedCode
+    public static <T extends ForkJoinTask<?>> @Nullable T delegate(@Nullable T task) {
+        if (task == null) return null;
+        Delegation delegation = Delegation.capture();
+        forkJoinTaskDelegations.put(task, delegation);
+        return task;
+    }
+
+    /** The tasks passed to ForkJoinTask#invokeAll(ForkJoinTask...), see {@link #delegate(ForkJoinTask)}. */
+    @CalledByInstrumentedCode
+    public static ForkJoinTask<?> @Nullable [] delegate(ForkJoinTask<?> @Nullable [] tasks) {
+        if (tasks == null) return null;
+        for (ForkJoinTask<?> task : tasks) {
+            delegate(task);
+        }
+        return tasks;
+    }
+
+    /**
+     * The tasks passed to ForkJoinTask#invokeAll(Collection), which returns the collection it is passed, so the tasks are
+     * registered rather than wrapped, see {@link #delegate(ForkJoinTask)}.
+     */
+    @CalledByInstrumentedCode
+    public static <C extends Collection<? extends ForkJoinTask<?>>> @Nullable C delegateForkJoinTasks(@Nullable C tasks) {
+        if (tasks == null) return null;
+        for (ForkJoinTask<?> task : tasks) {
+            delegate(task);
+        }
+        return tasks;
+    }
+
+    /** The tasks passed to ExecutorService#invokeAll and #invokeAny, which are wrapped like the tasks passed one by one. */
+    @CalledByInstrumentedCode
+    public static <T> @Nullable Collection<Callable<T>> delegateCallables(@Nullable Collection<? extends Callable<T>> tasks) {
+        if (tasks == null) return null;
+        List<Callable<T>> delegatingTasks = new ArrayList<>(tasks.size());
+        for (Callable<T> task : tasks) {
+            delegatingTasks.add(delegate(task));
+        }
+        return delegatingTasks;
+    }
+
+    /**
+     * Called at the start of the compute method of a ForkJoinTask (the exec method of tasks that extend ForkJoinTask itself).
+     * @param task the task that is about to be computed
+     * @return a token which must be passed to {@link #exit(Object)} when the compute method completes
+     */
+    @CalledByInstrumentedCode
+    public static @Nullable Object enter(ForkJoinTask<?> task) {
+        Delegation delegation = forkJoinTaskDelegations.remove(task);
+        // Tasks that were not delegated (e.g. computed directly by the parent task) keep the current delegation.
+        return delegation == null ? NOT_ENTERED : Delegation.install(delegation);
+    }
+
+    @CalledByInstrumentedCode
+    public static void exit(@Nullable Object token) {
+        if (token != NOT_ENTERED) {
+            Delegation.restore((Delegation) token);
+        }
+    }
+}
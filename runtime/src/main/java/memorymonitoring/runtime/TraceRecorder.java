@@ -0,0 +1,480 @@
+package memorymonitoring.runtime;
+
+import memorymonitoring.runtime.trace.TraceFormat;
+import memorymonitoring.util.WeakIdentityHashMap;
+import org.jspecify.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Array;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records accesses and grants in the binary format described by {@link TraceFormat}.
+ * <p>
+ * Records are appended to one of a fixed number of striped buffers, selected by the id of the recording thread. The buffers
+ * are striped rather than per-thread, so that the memory used for buffering is bounded by the number of processors rather
+ * than growing with the number of (virtual) threads. Appending a record locks its stripe, which is only contended by the
+ * threads that share the stripe; the ids of objects, classes and fields are looked up without locking. A full buffer
+ * is handed to a background writer thread, which copies it into the current memory-mapped segment file, and rotates to the
+ * next segment file when the current one is full. Application threads do not wait for the writer: when the writer falls
+ * behind, the accesses and grants of a full buffer are dropped (and counted) instead. Its definitions are kept in the buffer,
+ * because every id is defined only once; only a buffer that is mostly definitions waits for the writer.
+ * <p>
+ * Recording is enabled by setting the option {@value #TRACE_PROPERTY} (see {@link RuntimeOptions}) to the directory the
+ * segment files are written to.
+ */
+final class TraceRecorder {
+
+    // Must match memorymonitoring.agent.AgentOptions#TRACE_PROPERTY.
+    static final String TRACE_PROPERTY = "memorymonitoring.trace";
+    private static final @Nullable String DIRECTORY = RuntimeOptions.get(TRACE_PROPERTY);
+    static final boolean ENABLED = DIRECTORY != null;
+
+    private static final Logger LOGGER = Logger.getLogger(TraceRecorder.class.getName());
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_RECORD_SIZE = 1 + 6 * 10;    // tag and up to six varints
+    private static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+    private static final int QUEUE_CAPACITY = 256;
+
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private static final BlockingQueue<byte[]> fullBuffers = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private static final ConcurrentLinkedQueue<byte[]> freeBuffers = new ConcurrentLinkedQueue<>();
+    private static final byte[] END_OF_TRACE = new byte[0];
+    private static final AtomicLong droppedBuffers = new AtomicLong();
+    // Set when the writer thread has stopped, after which no buffer is taken from fullBuffers anymore.
+    private static volatile boolean writerStopped;
+    private static final Stripe[] stripes = ENABLED ? newStripes() : new Stripe[0];
+
+    private static final ThreadLocal<Boolean> threadDefined = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+    // A new id is taken from its counter before it is inserted, so that only the thread that inserted it writes its
+    // definition. The ids taken by threads that lost the race to insert are left unused.
+    private static final WeakIdentityHashMap<Object, Long> objectIds = new WeakIdentityHashMap<>();
+    private static final WeakIdentityHashMap<Class<?>, ClassInfo> classIds = new WeakIdentityHashMap<>();
+    private static final AtomicLong nextObjectId = new AtomicLong(1);
+    private static final AtomicInteger nextClassId = new AtomicInteger(1), nextFieldId = new AtomicInteger(1);
+
+    private static final class ClassInfo {
+        private final int id;
+        private final Map<String, Integer> fieldIds = new ConcurrentHashMap<>();
+
+        private ClassInfo(int id) {
+            this.id = id;
+        }
+    }
+
+    static {
+        if (ENABLED) {
+            SegmentWriter writer = new SegmentWriter(Path.of(DIRECTORY));
+            Thread writerThread = Thread.ofPlatform().name("memorymonitoring-trace-writer").daemon().start(writer);
+            Runtime.getRuntime().addShutdownHook(Thread.ofPlatform().unstarted(() -> shutdown(writerThread)));
+        }
+    }
+
+    private TraceRecorder() {}
+
+    static void fieldAccess(Object owningInstance, Class<?> declaringClass, String fieldName, Access access) {
+        recordField(TraceFormat.FIELD_ACCESS, Thread.currentThread().threadId(), owningInstance, declaringClass, fieldName, access);
+    }
+
+    static void fieldGrant(long threadId, Object owningInstance, Class<?> declaringClass, String fieldName, Access access) {
+        recordField(TraceFormat.FIELD_GRANT, threadId, owningInstance, declaringClass, fieldName, access);
+    }
+
+    static void fieldDefaultGrant(Object owningInstance, Class<?> declaringClass, String fieldName, Access access) {
+        recordField(TraceFormat.FIELD_DEFAULT_GRANT, Thread.currentThread().threadId(), owningInstance, declaringClass, fieldName, access);
+    }
+
+    static void arrayAccess(Object array, int indexFrom, int indexTo, Access access) {
+        recordArray(TraceFormat.ARRAY_ACCESS, Thread.currentThread().threadId(), array, indexFrom, indexTo, access);
+    }
+
+    static void arrayGrant(long threadId, Object array, int indexFrom, int indexTo, Access access) {
+        recordArray(TraceFormat.ARRAY_GRANT, threadId, array, indexFrom, indexTo, access);
+    }
+
+    /** Record the delegation that is installed on the current thread, null if none. */
+    static void delegation(@Nullable Delegation delegation) {
+        int count = 0;
+        for (Delegation d = delegation; d != null; d = d.parent()) {
+            count += 1;
+        }
+        Stripe stripe = currentStripe();
+        synchronized (stripe) {
+            defineCurrentThread(stripe);
+            stripe.ensureCapacity(MAX_RECORD_SIZE + count * 10);
+            stripe.writeDelegation(Thread.currentThread().threadId(), count, delegation);
+        }
+    }
+
+    private static void recordField(int kind, long threadId, Object owningInstance, Class<?> declaringClass, String fieldName, Access access) {
+        Stripe stripe = currentStripe();
+        synchronized (stripe) {
+            defineCurrentThread(stripe);
+            long objectId = objectId(stripe, owningInstance);
+            int fieldId = fieldId(stripe, declaringClass, fieldName);
+            stripe.ensureCapacity(MAX_RECORD_SIZE);
+            stripe.writeHeader(kind, threadId, access, objectId);
+            stripe.writeVarLong(fieldId);
+        }
+    }
+
+    private static void recordArray(int kind, long threadId, Object array, int indexFrom, int indexTo, Access access) {
+        Stripe stripe = currentStripe();
+        synchronized (stripe) {
+            defineCurrentThread(stripe);
+            long objectId = objectId(stripe, array);
+            stripe.ensureCapacity(MAX_RECORD_SIZE);
+            stripe.writeHeader(kind, threadId, access, objectId);
+            stripe.writeVarLong(indexFrom);
+            stripe.writeVarLong(indexTo - indexFrom);
+        }
+    }
+
+    private static Stripe currentStripe() {
+        return stripes[(int) Thread.currentThread().threadId() & (stripes.length - 1)];
+    }
+
+    private static void defineCurrentThread(Stripe stripe) {
+        if (!threadDefined.get()) {
+            threadDefined.set(Boolean.TRUE);
+            Thread thread = Thread.currentThread();
+            stripe.writeDefinition(TraceFormat.DEFINE_THREAD, thread.threadId(), -1, thread.getName());
+        }
+    }
+
+    private static long objectId(Stripe stripe, Object object) {
+        Long existing = objectIds.get(object);
+        if (existing != null) {
+            return existing;
+        }
+        long id = nextObjectId.getAndIncrement();
+        long inserted = objectIds.computeIfAbsent(object, _ -> id);
+        if (inserted != id) {
+            return inserted;
+        }
+        if (object instanceof Class<?> clazz) {
+            stripe.writeDefinition(TraceFormat.DEFINE_CLASS_OBJECT, id, classInfo(stripe, clazz).id, null);
+        } else if (object.getClass().isArray()) {
+            // the length is needed to replay array permissions.
+            stripe.writeDefinition(TraceFormat.DEFINE_ARRAY, id, classInfo(stripe, object.getClass()).id, null);
+            stripe.writeVarLong(Array.getLength(object));
+        } else {
+            stripe.writeDefinition(TraceFormat.DEFINE_OBJECT, id, classInfo(stripe, object.getClass()).id, null);
+        }
+        return id;
+    }
+
+    private static int fieldId(Stripe stripe, Class<?> declaringClass, String fieldName) {
+        ClassInfo classInfo = classInfo(stripe, declaringClass);
+        Integer existing = classInfo.fieldIds.get(fieldName);
+        if (existing != null) {
+            return existing;
+        }
+        int id = nextFieldId.getAndIncrement();
+        existing = classInfo.fieldIds.putIfAbsent(fieldName, id);
+        if (existing != null) {
+            return existing;
+        }
+        stripe.writeDefinition(TraceFormat.DEFINE_FIELD, id, classInfo.id, fieldName);
+        return id;
+    }
+
+    private static ClassInfo classInfo(Stripe stripe, Class<?> clazz) {
+        ClassInfo classInfo = classIds.get(clazz);
+        if (classInfo != null) {
+            return classInfo;
+        }
+        ClassInfo newClassInfo = new ClassInfo(nextClassId.getAndIncrement());
+        classInfo = classIds.computeIfAbsent(clazz, _ -> newClassInfo);
+        if (classInfo != newClassInfo) {
+            return classInfo;
+        }
+        stripe.writeDefinition(TraceFormat.DEFINE_CLASS, classInfo.id, -1, clazz.getName());
+        return classInfo;
+    }
+
+    private static Stripe[] newStripes() {
+        int count = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1;
+        Stripe[] stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe();
+        }
+        return stripes;
+    }
+
+    private static byte[] newBuffer() {
+        byte[] buffer = freeBuffers.poll();
+        return buffer != null ? buffer : new byte[BUFFER_SIZE];
+    }
+
+    private static void shutdown(Thread writerThread) {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.flush();
+            }
+        }
+        if (enqueue(END_OF_TRACE)) {
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        long dropped = droppedBuffers.get();
+        if (dropped > 0) {
+            LOGGER.warning(String.format("Trace incomplete: the accesses and grants of %d buffers were dropped, because the trace writer could not keep up or has stopped.", dropped));
+        }
+    }
+
+    /**
+     * Hand a buffer to the writer, waiting while the queue is full.
+     * @return false if the writer has stopped, e.g. because the trace could not be written
+     */
+    private static boolean enqueue(byte[] buffer) {
+        boolean interrupted = false;
+        try {
+            while (!writerStopped) {
+                try {
+                    if (fullBuffers.offer(buffer, 10, TimeUnit.MILLISECONDS)) {
+                        return true;
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            return false;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /** A buffer holding one chunk, see {@link TraceFormat}. Guarded by its own monitor. */
+    private static final class Stripe {
+        private byte[] bytes = newBuffer();
+        private int position;
+        private long lastNanos;
+        private long lastObjectId;
+
+        private Stripe() {
+            reset();
+        }
+
+        private void reset() {
+            reset(TraceFormat.CHUNK_HEADER_SIZE);
+        }
+
+        private void reset(int position) {
+            this.position = position;
+            lastNanos = System.nanoTime();
+            lastObjectId = 0;
+            LONG.set(bytes, Integer.BYTES, lastNanos);
+        }
+
+        private void ensureCapacity(int size) {
+            if (position + size > bytes.length) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            if (position == TraceFormat.CHUNK_HEADER_SIZE) {
+                return;
+            }
+            INT.set(bytes, 0, position);
+            if (!writerStopped && fullBuffers.offer(bytes)) {
+                bytes = newBuffer();
+                reset();
+                return;
+            }
+            droppedBuffers.incrementAndGet();
+            if (writerStopped) {
+                reset();
+                return;
+            }
+            // Do not block the application thread for the accesses and grants: they are lost, and the buffer is reused for
+            // the next chunk, starting with the definitions (which are not written again) and the delegations.
+            int definitionsEnd = retainDefinitions();
+            if (definitionsEnd <= bytes.length / 2) {
+                reset(definitionsEnd);
+                return;
+            }
+            INT.set(bytes, 0, definitionsEnd);
+            if (enqueue(bytes)) {
+                bytes = newBuffer();
+            }
+            reset();
+        }
+
+        /**
+         * Move the definitions and delegations of the chunk to the start of its body, dropping the accesses and grants.
+         * The time deltas of the delegations are set to 0, since the base timestamp of the next chunk is later than the
+         * times of the records of this chunk.
+         * @return the position after the definitions and delegations
+         */
+        private int retainDefinitions() {
+            int end = TraceFormat.CHUNK_HEADER_SIZE;
+            for (int recordStart = end; recordStart < position; ) {
+                int recordEnd = TraceFormat.skipRecord(bytes, recordStart);
+                int kind = TraceFormat.kind(bytes[recordStart] & 0xFF);
+                if (TraceFormat.isDefinition(kind)) {
+                    System.arraycopy(bytes, recordStart, bytes, end, recordEnd - recordStart);
+                    end += recordEnd - recordStart;
+                } else if (kind == TraceFormat.DELEGATION) {
+                    // tag threadId timeDelta rest -> tag threadId 0 rest, which is never longer.
+                    int threadIdEnd = TraceFormat.skipVarLong(bytes, recordStart + 1);
+                    int timeDeltaEnd = TraceFormat.skipVarLong(bytes, threadIdEnd);
+                    System.arraycopy(bytes, recordStart, bytes, end, threadIdEnd - recordStart);
+                    end += threadIdEnd - recordStart;
+                    bytes[end++] = 0;
+                    System.arraycopy(bytes, timeDeltaEnd, bytes, end, recordEnd - timeDeltaEnd);
+                    end += recordEnd - timeDeltaEnd;
+                }
+                recordStart = recordEnd;
+            }
+            return end;
+        }
+
+        private void writeHeader(int kind, long threadId, Access access, long objectId) {
+            long nanos = System.nanoTime();
+            bytes[position++] = (byte) TraceFormat.tag(kind, access);
+            writeVarLong(threadId);
+            writeVarLong(nanos - lastNanos);
+            // grants have no site, accesses are attributed to the site that the thread entered last (if profiling).
+            boolean isAccess = kind == TraceFormat.FIELD_ACCESS || kind == TraceFormat.ARRAY_ACCESS;
+            writeVarLong(isAccess ? SiteProfiler.currentSite() : TraceFormat.UNKNOWN_SITE);
+            writeVarLong(TraceFormat.zigZag(objectId - lastObjectId));
+            lastNanos = nanos;
+            lastObjectId = objectId;
+        }
+
+        private void writeDelegation(long threadId, int count, @Nullable Delegation delegation) {
+            long nanos = System.nanoTime();
+            bytes[position++] = (byte) TraceFormat.tag(TraceFormat.DELEGATION, Access.NONE);
+            writeVarLong(threadId);
+            writeVarLong(nanos - lastNanos);
+            writeVarLong(count);
+            for (Delegation d = delegation; d != null; d = d.parent()) {
+                writeVarLong(d.threadId());
+            }
+            lastNanos = nanos;
+        }
+
+        private void writeDefinition(int kind, long id, int classId, @Nullable String name) {
+            byte[] utf8 = name == null ? null : name.getBytes(StandardCharsets.UTF_8);
+            ensureCapacity(MAX_RECORD_SIZE + (utf8 == null ? 0 : utf8.length));
+            bytes[position++] = (byte) TraceFormat.tag(kind, Access.NONE);
+            writeVarLong(id);
+            if (classId >= 0) {
+                writeVarLong(classId);
+            }
+            if (utf8 != null) {
+                position = TraceFormat.writeString(bytes, position, utf8);
+            }
+        }
+
+        private void writeVarLong(long value) {
+            position = TraceFormat.writeVarLong(bytes, position, value);
+        }
+    }
+
+    /** Copies full buffers into memory-mapped segment files. Only accessed by the writer thread. */
+    private static final class SegmentWriter implements Runnable {
+        private final Path directory;
+        private int segmentIndex;
+        private @Nullable FileChannel channel;
+        private @Nullable Arena arena;
+        private @Nullable MemorySegment segment;
+        private long position;
+
+        private SegmentWriter(Path directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Files.createDirectories(directory);
+                while (true) {
+                    byte[] buffer = fullBuffers.take();
+                    if (buffer == END_OF_TRACE) {
+                        break;
+                    }
+                    write(buffer);
+                    freeBuffers.offer(buffer);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException | UncheckedIOException e) {
+                LOGGER.log(Level.SEVERE, "Could not write trace to " + directory, e);
+            } finally {
+                writerStopped = true;
+                closeSegment();
+            }
+        }
+
+        private void write(byte[] buffer) throws IOException {
+            int length = (int) INT.get(buffer, 0);
+            if (segment == null || position + length > SEGMENT_SIZE) {
+                closeSegment();
+                openSegment();
+            }
+            MemorySegment.copy(buffer, 0, segment, ValueLayout.JAVA_BYTE, position, length);
+            position += length;
+        }
+
+        private void openSegment() throws IOException {
+            Path file = directory.resolve(TraceFormat.segmentFileName(segmentIndex++));
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            arena = Arena.ofConfined();
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE, arena);
+            segment.set(ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN), 0, TraceFormat.MAGIC);
+            position = TraceFormat.SEGMENT_HEADER_SIZE;
+        }
+
+        private void closeSegment() {
+            if (segment == null) {
+                return;
+            }
+            try {
+                segment.force();
+                arena.close();  // unmaps the segment, so that the file can be truncated to the used size.
+                channel.truncate(position);
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.SEVERE, "Could not close trace segment", e);
+            } finally {
+                segment = null;
+                arena = null;
+                channel = null;
+            }
+        }
+    }
+}
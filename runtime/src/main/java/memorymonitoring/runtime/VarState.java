@@ -0,0 +1,34 @@
+package memorymonitoring.runtime;
+
+import memorymonitoring.util.VectorClock;
+import org.jspecify.annotations.Nullable;
+
+/**
+ * FastTrack shadow state of a single variable (a field), or of a range of elements of an array that all have the same state.
+ * <p>
+ * The last write is always an epoch. Reads are kept as a single epoch as long as they are totally ordered,
+ * and only promoted to a vector clock once they become concurrent (read-shared).
+ * Instances are guarded by their own monitor, or by the monitor of the array range they belong to.
+ */
+final class VarState {
+
+    static final long NO_EPOCH = 0L;    // 0@0, happens before every vector clock.
+
+    long write = NO_EPOCH;
+    long read = NO_EPOCH;
+    @Nullable VectorClock readShared;
+
+    VarState copy() {
+        VarState copy = new VarState();
+        copy.write = write;
+        copy.read = read;
+        VectorClock readShared = this.readShared;
+        copy.readShared = readShared == null ? null : readShared.copy();
+        return copy;
+    }
+
+    /** Whether both states are the same epochs. Read-shared states are never considered the same. */
+    boolean isSameEpochs(VarState other) {
+        return write == other.write && read == other.read && readShared == null && other.readShared == null;
+    }
+}
@@ -0,0 +1,156 @@
+package memorymonitoring.runtime;
+
+import memorymonitoring.util.LongHashMap;
+import org.jspecify.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Predicate;
+
+/**
+ * Stack traces of the accesses that cause violations (or data races), so that a reported violation can be traced back to
+ * the code that caused it.
+ * <p>
+ * Capturing a full stack trace for every violation of an access in a loop would cost more than the program itself, so the
+ * stack is only walked (with {@link StackWalker}) for the first {@value #TRACES_PER_SITE} violations of each access site.
+ * Later violations of the site refer to the last trace that was captured for it. The frames and the traces are interned
+ * in shared tables, so that a trace is stored (and logged) only once, however often it occurs, and a violation only
+ * carries the id of its trace.
+ * <p>
+ * The site of a violation is the site that the current thread entered last if sites are profiled (see {@link SiteProfiler}),
+ * otherwise the frame of the instrumented code that called into the runtime, which is found by walking only the top of the
+ * stack. Either way the cost per violation is constant once the traces of a site have been captured.
+ */
+final class ViolationTraces {
+
+    // TODO make configurable (via commandline arg?)
+    private static final int TRACES_PER_SITE = 8;
+    private static final int MAX_DEPTH = 64;
+
+    // The package itself only, code in packages below it (e.g. tests) is not part of the runtime.
+    private static final String RUNTIME_PACKAGE = ViolationTraces.class.getPackageName();
+    private static final Predicate<StackWalker.StackFrame> IS_RUNTIME_FRAME = frame -> {
+        String className = frame.getClassName();
+        return className.length() > RUNTIME_PACKAGE.length() && className.lastIndexOf('.') == RUNTIME_PACKAGE.length()
+                && className.startsWith(RUNTIME_PACKAGE);
+    };
+    private static final StackWalker STACK_WALKER = StackWalker.getInstance();
+
+    /** A frame of a stack trace. */
+    private record Frame(String className, String methodName, @Nullable String fileName, int lineNumber, int bci) {
+
+        static Frame of(StackWalker.StackFrame frame) {
+            return new Frame(frame.getClassName(), frame.getMethodName(), frame.getFileName(), frame.getLineNumber(), frame.getByteCodeIndex());
+        }
+
+        @Override
+        public String toString() {
+            String location = fileName == null ? "Unknown Source" : lineNumber < 0 ? fileName : fileName + ":" + lineNumber;
+            return className + "." + methodName + "(" + location + ")";
+        }
+    }
+
+    /** The frame ids of a stack trace, compared by content so that equal traces are interned once. */
+    private record Trace(int[] frameIds) {
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Trace trace && Arrays.equals(frameIds, trace.frameIds);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(frameIds);
+        }
+    }
+
+    /** The traces captured for one site. */
+    private static final class SiteTraces {
+        private int captured;
+        private int lastTraceId;
+    }
+
+    // Guarded by the class lock.
+    private static final Map<Frame, Integer> frameIds = new HashMap<>();
+    private static final List<Frame> frames = new ArrayList<>();
+    private static final Map<Trace, Integer> traceIds = new HashMap<>();
+    private static final List<Trace> traces = new ArrayList<>();
+    private static final BitSet loggedTraces = new BitSet();
+    // Keyed by the site id, or by the negated frame id + 1 of the calling frame if the site is unknown.
+    private static final LongHashMap<SiteTraces> sites = new LongHashMap<>();
+
+    private ViolationTraces() {}
+
+    /**
+     * Capture the stack trace of a violation by the current thread, if the site of the violating access has not had
+     * enough traces captured yet.
+     * @return the id of the trace of the violation
+     */
+    static synchronized int capture() {
+        int siteId = SiteProfiler.currentSite();
+        long siteKey;
+        if (siteId != 0) {
+            siteKey = siteId;
+        } else {
+            Optional<StackWalker.StackFrame> caller = STACK_WALKER.walk(stack -> stack.dropWhile(IS_RUNTIME_FRAME).findFirst());
+            if (caller.isEmpty()) return captureTrace(); // the runtime was called from within itself, e.g. in a test.
+            siteKey = -(internFrame(Frame.of(caller.get())) + 1L);
+        }
+
+        SiteTraces siteTraces = sites.computeIfAbsent(siteKey, _ -> new SiteTraces());
+        if (siteTraces.captured < TRACES_PER_SITE) {
+            siteTraces.captured += 1;
+            siteTraces.lastTraceId = captureTrace();
+        }
+        return siteTraces.lastTraceId;
+    }
+
+    /**
+     * Describe a trace for a log message: all its frames the first time it is described, only its id afterwards.
+     * @param traceId an id returned by {@link #capture()}
+     */
+    static synchronized String describe(int traceId) {
+        if (loggedTraces.get(traceId)) {
+            return String.format("Stack trace #%d (logged before).", traceId);
+        }
+        loggedTraces.set(traceId);
+
+        StringBuilder description = new StringBuilder(String.format("Stack trace #%d:", traceId));
+        for (int frameId : traces.get(traceId).frameIds()) {
+            description.append(System.lineSeparator()).append("\tat ").append(frames.get(frameId));
+        }
+        return description.toString();
+    }
+
+    private static int captureTrace() {
+        List<StackWalker.StackFrame> stack = STACK_WALKER.walk(stackFrames -> stackFrames.dropWhile(IS_RUNTIME_FRAME).limit(MAX_DEPTH).toList());
+        int[] frameIds = new int[stack.size()];
+        for (int i = 0; i < frameIds.length; i++) {
+            frameIds[i] = internFrame(Frame.of(stack.get(i)));
+        }
+
+        Trace trace = new Trace(frameIds);
+        Integer traceId = traceIds.get(trace);
+        if (traceId == null) {
+            traceId = traces.size();
+            traces.add(trace);
+            traceIds.put(trace, traceId);
+        }
+        return traceId;
+    }
+
+    private static int internFrame(Frame frame) {
+        Integer frameId = frameIds.get(frame);
+        if (frameId == null) {
+            frameId = frames.size();
+            frames.add(frame);
+            frameIds.put(frame, frameId);
+        }
+        return frameId;
+    }
+}
@@ -0,0 +1,19 @@
+package memorymonitoring.runtime.annotation;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * The annotated field, or all instance fields of the annotated class, are never written after construction.
+ * <p>
+ * The agent does not monitor accesses to these fields (including reflective accesses), and does not grant permissions to
+ * them. The annotation is not checked.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.TYPE, ElementType.FIELD})
+public @interface Immutable {
+}
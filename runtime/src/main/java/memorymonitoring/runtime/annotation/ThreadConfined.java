@@ -0,0 +1,21 @@
+package memorymonitoring.runtime.annotation;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * The annotated instance field, or all instance fields of the annotated class, are only accessed by the thread that
+ * constructed the object.
+ * <p>
+ * Instead of checking the access level of every access, the agent only checks that the accessing thread owns the object.
+ * Other threads can still access the fields if they are explicitly granted a permission, e.g. when the object is handed off.
+ * Static fields are monitored as usual.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.TYPE, ElementType.FIELD})
+public @interface ThreadConfined {
+}
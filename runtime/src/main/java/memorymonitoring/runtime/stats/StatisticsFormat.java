@@ -0,0 +1,86 @@
+package memorymonitoring.runtime.stats;
+
+import java.util.List;
+
+/**
+ * Layout of the statistics file, to which the runtime publishes its counters while the program runs, so that they can be
+ * watched by a local tool (in the spirit of hsperfdata) without attaching to the program or enabling JMX.
+ * <p>
+ * The file has a fixed size and layout, and is memory-mapped by both the runtime and its readers, so that reading it copies
+ * nothing and costs the monitored program nothing. All values are longs in the native byte order (the file is only meant
+ * to be read on the same machine), at 8-byte aligned offsets:
+ * <pre>
+ * header:   MAGIC pid startTime(epoch ms) updateTime(epoch ms) sitesVersion siteCount (padded to HEADER_SIZE)
+ * counters: STRIPES stripes of COUNTER_NAMES.size() counters each (each stripe padded to whole cache lines)
+ * gauges:   GAUGE_NAMES.size() gauges
+ * sites:    MAX_SITES entries of: siteId executions violations descriptionLength description(UTF-8, padded to SITE_SIZE)
+ * </pre>
+ * The value of a counter is the sum over all stripes. A thread increments the counters of the stripe of its id, so threads
+ * on different stripes do not contend on the same cache line. Gauges and sites are written by a single background thread
+ * of the runtime, which also writes the update time. The sites are the hottest access sites if access sites are profiled;
+ * they are written between two increments of the sites version, so a reader retries while the version is odd or changed.
+ */
+public final class StatisticsFormat {
+
+    public static final long MAGIC = 0x4D4D535441545331L; // "MMSTATS1"
+
+    public static final int HEADER_SIZE = 64;
+    public static final int PID_OFFSET = 8;
+    public static final int START_TIME_OFFSET = 16;
+    public static final int UPDATE_TIME_OFFSET = 24;
+    public static final int SITES_VERSION_OFFSET = 32;
+    public static final int SITE_COUNT_OFFSET = 40;
+
+    public static final int FIELD_CHECKS = 0;
+    public static final int STATIC_FIELD_CHECKS = 1;
+    public static final int ARRAY_CHECKS = 2;
+    public static final int FIELD_VIOLATIONS = 3;
+    public static final int STATIC_FIELD_VIOLATIONS = 4;
+    public static final int ARRAY_VIOLATIONS = 5;
+    public static final int FIELD_GRANTS = 6;
+    public static final int ARRAY_GRANTS = 7;
+    public static final int CONFLICTING_GRANTS = 8;
+    public static final int DATA_RACES = 9;
+    public static final List<String> COUNTER_NAMES = List.of(
+            "field checks", "static field checks", "array checks",
+            "field violations", "static field violations", "array violations",
+            "field grants", "array grants", "conflicting grants", "data races");
+
+    public static final int OBJECTS_WITH_FIELD_PERMISSIONS = 0;
+    public static final int ARRAYS_WITH_PERMISSIONS = 1;
+    public static final int TRACKED_THREADS = 2;
+    public static final List<String> GAUGE_NAMES = List.of(
+            "objects with field permissions", "arrays with permissions", "threads with permissions");
+
+    public static final int STRIPES = 16;
+    private static final int CACHE_LINE_SIZE = 64;
+    public static final int STRIPE_SIZE = (COUNTER_NAMES.size() * Long.BYTES + CACHE_LINE_SIZE - 1) / CACHE_LINE_SIZE * CACHE_LINE_SIZE;
+    public static final int COUNTERS_OFFSET = HEADER_SIZE;
+    public static final int GAUGES_OFFSET = COUNTERS_OFFSET + STRIPES * STRIPE_SIZE;
+
+    public static final int MAX_SITES = 16;
+    public static final int SITE_SIZE = 256;
+    public static final int SITE_ID = 0;
+    public static final int SITE_EXECUTIONS = 8;
+    public static final int SITE_VIOLATIONS = 16;
+    public static final int SITE_DESCRIPTION_LENGTH = 24;
+    public static final int SITE_DESCRIPTION = 32;
+    public static final int MAX_DESCRIPTION_SIZE = SITE_SIZE - SITE_DESCRIPTION;
+    public static final int SITES_OFFSET = (GAUGES_OFFSET + GAUGE_NAMES.size() * Long.BYTES + CACHE_LINE_SIZE - 1) / CACHE_LINE_SIZE * CACHE_LINE_SIZE;
+
+    public static final int FILE_SIZE = SITES_OFFSET + MAX_SITES * SITE_SIZE;
+
+    private StatisticsFormat() {}
+
+    public static int counterOffset(int stripe, int counter) {
+        return COUNTERS_OFFSET + stripe * STRIPE_SIZE + counter * Long.BYTES;
+    }
+
+    public static int gaugeOffset(int gauge) {
+        return GAUGES_OFFSET + gauge * Long.BYTES;
+    }
+
+    public static int siteOffset(int site) {
+        return SITES_OFFSET + site * SITE_SIZE;
+    }
+}
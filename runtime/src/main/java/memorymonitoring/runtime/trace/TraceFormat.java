@@ -0,0 +1,193 @@
+package memorymonitoring.runtime.trace;
+
+import memorymonitoring.runtime.Access;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary format of recorded access traces.
+ * <p>
+ * A trace is a directory of segment files ({@code trace-000000.mmt}, {@code trace-000001.mmt}, ...). A segment file starts
+ * with the 8-byte {@link #MAGIC}, followed by chunks. A chunk starts with a header: the length of the chunk in bytes
+ * (int, including the header) and the base timestamp of the chunk (long, {@link System#nanoTime()}). A chunk length of 0,
+ * or the end of the file, marks the end of the segment. Multi-byte header values are big-endian.
+ * <p>
+ * The chunk body is a sequence of records, each starting with a one-byte tag holding the record kind and the access level
+ * (see {@link #tag(int, Access)}). Numbers are encoded as unsigned LEB128 varints; values that are encoded relative to the
+ * previous record in the same chunk are zig-zag encoded.
+ * <pre>
+ * FIELD_ACCESS, FIELD_GRANT, FIELD_DEFAULT_GRANT: tag threadId timeDelta siteId ownerDelta(zigzag) fieldId
+ * ARRAY_ACCESS, ARRAY_GRANT:                      tag threadId timeDelta siteId ownerDelta(zigzag) indexFrom length
+ * DELEGATION:                                     tag threadId timeDelta count delegatingThreadId...
+ * DEFINE_THREAD:                                  tag threadId name
+ * DEFINE_CLASS:                                   tag classId name
+ * DEFINE_OBJECT, DEFINE_CLASS_OBJECT:             tag objectId classId
+ * DEFINE_ARRAY:                                   tag objectId classId length
+ * DEFINE_FIELD:                                   tag fieldId classId name
+ * </pre>
+ * Strings are encoded as a varint byte length followed by UTF-8 bytes. The timestamp of an access or grant record is the
+ * base timestamp of the chunk plus the deltas of all preceding records in the chunk. Definitions always precede their first
+ * use, but chunks of different threads may be recorded out of order, so readers should collect the definitions of all
+ * segments first. Every id is defined once; a writer may drop the events of a chunk, but not its definitions.
+ * <p>
+ * A DELEGATION record holds the threads of which the permissions are delegated to the thread from then on, innermost
+ * first (see memorymonitoring.runtime.TaskPermissions), and is recorded whenever a task starts or ends. A count of 0 means
+ * that the thread only acts on its own behalf again. Like definitions, delegations are not dropped with the events of a
+ * chunk, but their time delta may be set to 0.
+ */
+public final class TraceFormat {
+
+    public static final long MAGIC = 0x4D4D545241434531L; // "MMTRACE1"
+    public static final int SEGMENT_HEADER_SIZE = Long.BYTES;
+    public static final int CHUNK_HEADER_SIZE = Integer.BYTES + Long.BYTES;
+    public static final String SEGMENT_FILE_PREFIX = "trace-";
+    public static final String SEGMENT_FILE_SUFFIX = ".mmt";
+
+    /** Site id of accesses and grants for which the call site is not known. */
+    public static final int UNKNOWN_SITE = 0;
+
+    public static final int FIELD_ACCESS = 0;
+    public static final int ARRAY_ACCESS = 1;
+    public static final int FIELD_GRANT = 2;
+    public static final int FIELD_DEFAULT_GRANT = 3;
+    public static final int ARRAY_GRANT = 4;
+    public static final int DEFINE_THREAD = 5;
+    public static final int DEFINE_CLASS = 6;
+    public static final int DEFINE_OBJECT = 7;
+    public static final int DEFINE_CLASS_OBJECT = 8;   // the owner of static fields
+    public static final int DEFINE_FIELD = 9;
+    public static final int DEFINE_ARRAY = 10;
+    public static final int DELEGATION = 11;
+
+    /** Whether the record kind is an access or a grant, as opposed to a definition or a delegation. */
+    public static boolean isEvent(int kind) {
+        return kind <= ARRAY_GRANT;
+    }
+
+    public static boolean isDefinition(int kind) {
+        return DEFINE_THREAD <= kind && kind <= DEFINE_ARRAY;
+    }
+
+    private static final Access[] ACCESSES = Access.values();
+
+    private TraceFormat() {}
+
+    public static String segmentFileName(int segmentIndex) {
+        return "%s%06d%s".formatted(SEGMENT_FILE_PREFIX, segmentIndex, SEGMENT_FILE_SUFFIX);
+    }
+
+    public static int tag(int kind, Access access) {
+        return (kind << 2) | access.ordinal();
+    }
+
+    public static int kind(int tag) {
+        return tag >>> 2;
+    }
+
+    public static Access access(int tag) {
+        return ACCESSES[tag & 0b11];
+    }
+
+    public static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    public static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Write an unsigned varint.
+     * @return the position after the varint
+     */
+    public static int writeVarLong(byte[] buffer, int position, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return position;
+    }
+
+    /**
+     * Write a string as varint length followed by UTF-8 bytes.
+     * @return the position after the string
+     */
+    public static int writeString(byte[] buffer, int position, byte[] utf8) {
+        position = writeVarLong(buffer, position, utf8.length);
+        System.arraycopy(utf8, 0, buffer, position, utf8.length);
+        return position + utf8.length;
+    }
+
+    /**
+     * Skip a record.
+     * @return the position after the record that starts at the given position
+     */
+    public static int skipRecord(byte[] buffer, int position) {
+        int kind = kind(buffer[position++] & 0xFF);
+        int varLongs = switch (kind) {
+            case FIELD_ACCESS, FIELD_GRANT, FIELD_DEFAULT_GRANT -> 5;
+            case ARRAY_ACCESS, ARRAY_GRANT -> 6;
+            case DEFINE_THREAD, DEFINE_CLASS -> 1;
+            case DEFINE_OBJECT, DEFINE_CLASS_OBJECT, DEFINE_FIELD -> 2;
+            case DEFINE_ARRAY -> 3;
+            case DELEGATION -> 2;
+            default -> throw new IllegalStateException("Unknown record kind: " + kind);
+        };
+        for (int i = 0; i < varLongs; i++) {
+            position = skipVarLong(buffer, position);
+        }
+        if (kind == DEFINE_THREAD || kind == DEFINE_CLASS || kind == DEFINE_FIELD) {
+            int length = (int) readVarLong(buffer, position);
+            position = skipVarLong(buffer, position) + length;
+        } else if (kind == DELEGATION) {
+            long count = readVarLong(buffer, position);
+            position = skipVarLong(buffer, position);
+            for (long i = 0; i < count; i++) {
+                position = skipVarLong(buffer, position);
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Skip an unsigned varint.
+     * @return the position after the varint
+     */
+    public static int skipVarLong(byte[] buffer, int position) {
+        while (buffer[position++] < 0);
+        return position;
+    }
+
+    public static long readVarLong(byte[] buffer, int position) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer[position++];
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    public static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    public static String readString(ByteBuffer buffer) {
+        int length = (int) readVarLong(buffer);
+        byte[] utf8 = new byte[length];
+        buffer.get(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+}
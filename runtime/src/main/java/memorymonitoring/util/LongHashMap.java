@@ -0,0 +1,149 @@
+package memorymonitoring.util;
+
+import org.jspecify.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.function.LongFunction;
+
+/**
+ * Open addressing hash map with primitive {@code long} keys, so that lookups do not box the key.
+ * Values cannot be null; a null value marks an empty slot.
+ */
+public final class LongHashMap<V> {
+
+    private static final int INITIAL_CAPACITY = 8;   // must be a power of two
+
+    private long[] keys;
+    private @Nullable Object[] values;
+    private int size;
+
+    public LongHashMap() {
+        this.keys = new long[INITIAL_CAPACITY];
+        this.values = new Object[INITIAL_CAPACITY];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public @Nullable V get(long key) {
+        int mask = keys.length - 1;
+        for (int slot = slot(key, mask); values[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return value(slot);
+            }
+        }
+        return null;
+    }
+
+    public @Nullable V put(long key, V value) {
+        assert value != null : "value cannot be null";
+
+        int mask = keys.length - 1;
+        int slot = slot(key, mask);
+        for (; values[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                V old = value(slot);
+                values[slot] = value;
+                return old;
+            }
+        }
+
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size > (keys.length >>> 1) + (keys.length >>> 2)) {
+            // keep load factor at most 3/4
+            resize(keys.length << 1);
+        }
+        return null;
+    }
+
+    public V computeIfAbsent(long key, LongFunction<? extends V> mappingFunction) {
+        V value = get(key);
+        if (value == null) {
+            value = mappingFunction.apply(key);
+            put(key, value);
+        }
+        return value;
+    }
+
+    public @Nullable V remove(long key) {
+        int mask = keys.length - 1;
+        for (int slot = slot(key, mask); values[slot] != null; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                V old = value(slot);
+                deleteSlot(slot, mask);
+                size -= 1;
+                return old;
+            }
+        }
+        return null;
+    }
+
+    public long[] keys() {
+        long[] result = new long[size];
+        int count = 0;
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (values[slot] != null) {
+                result[count++] = keys[slot];
+            }
+        }
+        return result;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    private void deleteSlot(int hole, int mask) {
+        // Backward shift deletion: move entries of the same probe sequence into the hole, so that lookups never need tombstones.
+        int slot = hole;
+        while (true) {
+            slot = (slot + 1) & mask;
+            if (values[slot] == null) {
+                values[hole] = null;
+                return;
+            }
+            int home = slot(keys[slot], mask);
+            // only move the entry if its home slot is not cyclically within (hole, slot]
+            if (hole <= slot ? (hole >= home || home > slot) : (hole >= home && home > slot)) {
+                keys[hole] = keys[slot];
+                values[hole] = values[slot];
+                hole = slot;
+            }
+        }
+    }
+
+    private void resize(int newCapacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[newCapacity];
+        values = new Object[newCapacity];
+        int mask = newCapacity - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null) {
+                int slot = slot(oldKeys[i], mask);
+                while (values[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private V value(int slot) {
+        return (V) values[slot];
+    }
+
+    private static int slot(long key, int mask) {
+        long hash = key * 0x9E3779B97F4A7C15L;  // Fibonacci hashing, spreads sequential thread ids.
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,111 @@
+package memorymonitoring.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Index of the holders of per-thread state (keyed by {@link Thread#threadId()}), per thread, so that the state of a thread
+ * can be removed from all its holders at once when the thread is gone, rather than when each holder is touched again.
+ * <p>
+ * A thread is gone when its {@link Thread} object is garbage collected, which happens soon after a thread that nothing
+ * refers to anymore terminates. The weak reference to the thread is then enqueued, and its holders are visited by the next
+ * call to {@link #reclaimGoneThreads(ObjLongConsumer)}. Thread ids are never reused, so state of a gone thread can never
+ * be confused with the state of a new thread.
+ * <p>
+ * Neither the threads nor the holders are kept alive by the index. References to holders that were garbage collected are
+ * pruned whenever the holders of a thread have doubled since they were last pruned, so the size of the index stays
+ * proportional to the live holders of the live threads.
+ * <p>
+ * Not thread-safe.
+ */
+public final class ThreadStateIndex<H> {
+
+    private static final int MIN_PRUNE_SIZE = 16;
+
+    private static final class ThreadEntry<H> extends WeakReference<Thread> {
+        private final long threadId;
+        private final List<WeakReference<H>> holders = new ArrayList<>();
+        private int prunedSize = MIN_PRUNE_SIZE;
+
+        private ThreadEntry(Thread thread, ReferenceQueue<Thread> referenceQueue) {
+            super(thread, referenceQueue);
+            this.threadId = thread.threadId();
+        }
+    }
+
+    private final ReferenceQueue<Thread> referenceQueue = new ReferenceQueue<>();
+    private final LongHashMap<ThreadEntry<H>> threads = new LongHashMap<>();
+
+    /**
+     * Record that a thread holds state in a holder.
+     * Should be called once per thread and holder, i.e. when the thread first obtains state in the holder.
+     */
+    public void add(Thread thread, H holder) {
+        add(entry(thread), holder);
+    }
+
+    /**
+     * Record that a thread, identified by its id, holds state in a holder, e.g. state that is replayed from a summary that
+     * only keeps the id of the thread.
+     * Should be called once per thread and holder, like {@link #add(Thread, Object)}.
+     * @return false if the thread is not in the index: it was never added or tracked, or it is gone
+     */
+    public boolean add(long threadId, H holder) {
+        ThreadEntry<H> entry = threads.get(threadId);
+        if (entry == null || entry.refersTo(null)) {
+            return false;
+        }
+        add(entry, holder);
+        return true;
+    }
+
+    /** Record a thread that does not hold state in any holder yet, so that its state can later be added by its id. */
+    public void track(Thread thread) {
+        entry(thread);
+    }
+
+    private ThreadEntry<H> entry(Thread thread) {
+        return threads.computeIfAbsent(thread.threadId(), _ -> new ThreadEntry<>(thread, referenceQueue));
+    }
+
+    private void add(ThreadEntry<H> entry, H holder) {
+        List<WeakReference<H>> holders = entry.holders;
+        if (holders.size() >= entry.prunedSize * 2) {
+            holders.removeIf(reference -> reference.refersTo(null));
+            entry.prunedSize = Math.max(holders.size(), MIN_PRUNE_SIZE);
+        }
+        holders.add(new WeakReference<>(holder));
+    }
+
+    /**
+     * Remove the state of the threads that are gone from their holders, and forget these threads.
+     * @param reclaim removes the state of a thread (the id) from a holder
+     * @return the number of threads of which the state was reclaimed
+     */
+    public int reclaimGoneThreads(ObjLongConsumer<H> reclaim) {
+        int reclaimed = 0;
+        Reference<? extends Thread> gone;
+        while ((gone = referenceQueue.poll()) != null) {
+            @SuppressWarnings("unchecked")
+            ThreadEntry<H> entry = (ThreadEntry<H>) gone;
+            for (WeakReference<H> reference : entry.holders) {
+                H holder = reference.get();
+                if (holder != null) {
+                    reclaim.accept(holder, entry.threadId);
+                }
+            }
+            threads.remove(entry.threadId);
+            reclaimed += 1;
+        }
+        return reclaimed;
+    }
+
+    /** The number of threads in the index, which includes gone threads that have not been reclaimed yet. */
+    public int threadCount() {
+        return threads.size();
+    }
+}
@@ -0,0 +1,87 @@
+package memorymonitoring.util;
+
+import java.util.Arrays;
+
+/**
+ * Vector clock indexed by dense thread indices, which grows on demand.
+ * <p>
+ * An epoch {@code c@t} (the clock {@code c} of a single thread {@code t}) is packed into a long, see {@link #epoch(int, int)}.
+ */
+public final class VectorClock {
+
+    private int[] clocks;
+
+    public VectorClock() {
+        this.clocks = new int[4];
+    }
+
+    private VectorClock(int[] clocks) {
+        this.clocks = clocks;
+    }
+
+    public static long epoch(int thread, int clock) {
+        return ((long) thread << 32) | (clock & 0xFFFFFFFFL);
+    }
+
+    public static int thread(long epoch) {
+        return (int) (epoch >>> 32);
+    }
+
+    public static int clock(long epoch) {
+        return (int) epoch;
+    }
+
+    public int get(int thread) {
+        return thread < clocks.length ? clocks[thread] : 0;
+    }
+
+    public void set(int thread, int clock) {
+        ensureCapacity(thread + 1);
+        clocks[thread] = clock;
+    }
+
+    public void increment(int thread) {
+        ensureCapacity(thread + 1);
+        clocks[thread] += 1;
+    }
+
+    /** Point-wise maximum: after this operation, both this clock and the other clock happen before (or are equal to) this clock. */
+    public void joinWith(VectorClock other) {
+        int[] otherClocks = other.clocks;
+        ensureCapacity(otherClocks.length);
+        for (int thread = 0; thread < otherClocks.length; thread++) {
+            clocks[thread] = Math.max(clocks[thread], otherClocks[thread]);
+        }
+    }
+
+    /** Whether the epoch happens before (or is equal to) this clock. */
+    public boolean covers(long epoch) {
+        return clock(epoch) <= get(thread(epoch));
+    }
+
+    /** Whether the other clock happens before (or is equal to) this clock. */
+    public boolean covers(VectorClock other) {
+        int[] otherClocks = other.clocks;
+        for (int thread = 0; thread < otherClocks.length; thread++) {
+            if (otherClocks[thread] > get(thread)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public VectorClock copy() {
+        return new VectorClock(clocks.clone());
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > clocks.length) {
+            clocks = Arrays.copyOf(clocks, Math.max(capacity, clocks.length << 1));
+        }
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(clocks);
+    }
+}
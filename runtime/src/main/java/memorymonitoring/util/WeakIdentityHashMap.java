@@ -1,71 +1,292 @@
 package memorymonitoring.util;
 
+import org.jspecify.annotations.Nullable;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
 import java.util.function.Function;
 
+/**
+ * Concurrent map which compares keys by identity, and which does not keep its keys alive.
+ * <p>
+ * The map is split up in segments, selected by the {@link System#identityHashCode(Object)} of the key. Each segment is an
+ * open addressing table (linear probing) of weak entries. Lookups do not lock and do not allocate: the slots of the table
+ * are read with acquire semantics, and keys are compared using {@link Reference#refersTo(Object)}. Updates lock the segment.
+ * Removed entries are replaced by a tombstone, so that concurrent lookups never miss an entry that moved; tombstones are
+ * dropped when the segment is rehashed.
+ * <p>
+ * Entries whose key was garbage collected are expunged by the updating operations ({@link #put}, {@link #computeIfAbsent},
+ * {@link #remove}) and by {@link #size}, so the cost of cleaning up is amortized over the updates.
+ * Until then, their values are kept alive.
+ */
 public final class WeakIdentityHashMap<K, V> {
 
-    private final HashMap<ByIdentityWeakReference<K>, V> map = new HashMap();
-    private final ReferenceQueue<ByIdentityWeakReference<K>> referenceQueue = new ReferenceQueue<>();
+    private static final int SEGMENT_SHIFT = 28;    // 16 segments, selected by the 4 highest bits of the hash.
+    private static final int INITIAL_CAPACITY = 8;
+
+    private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(Entry[].class);
+    private static final Entry<?, ?> TOMBSTONE = new Entry<>(null, 0, null, null);
+
+    private final Segment<K, V>[] segments;
+    private final ReferenceQueue<K> referenceQueue = new ReferenceQueue<>();
+
+    @SuppressWarnings("unchecked")
+    public WeakIdentityHashMap() {
+        segments = new Segment[1 << (Integer.SIZE - SEGMENT_SHIFT)];
+        for (int i = 0; i < segments.length; i++) {
+            segments[i] = new Segment<>();
+        }
+    }
+
+    private static final class Entry<K, V> extends WeakReference<K> {
+        private final int hash;
+        private volatile @Nullable V value;
 
-    private void cleanUp() {
-        Reference<?> ref; // is always ByIdentityWeakReference<K>
-        while ((ref = referenceQueue.poll()) != null) {
-            map.remove(ref);
+        private Entry(@Nullable K key, int hash, @Nullable V value, @Nullable ReferenceQueue<? super K> referenceQueue) {
+            super(key, referenceQueue);
+            this.hash = hash;
+            this.value = value;
         }
     }
 
-    public V put(K key, V value) {
-        cleanUp();
-        return map.put(new ByIdentityWeakReference<>(key), value);
+    private static final class Segment<K, V> {
+        // slots are null (never used), TOMBSTONE (removed), or an entry (which may have been cleared by the garbage collector).
+        private volatile @Nullable Entry<K, V>[] table = newTable(INITIAL_CAPACITY);
+        private int size;       // entries in the table, guarded by this
+        private int used;       // entries and tombstones in the table, guarded by this
+    }
+
+    public @Nullable V get(K key) {
+        int hash = hash(key);
+        @Nullable Entry<K, V>[] table = segmentFor(hash).table;
+        int mask = table.length - 1;
+        for (int index = hash & mask; ; index = (index + 1) & mask) {
+            Entry<K, V> entry = slot(table, index);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.hash == hash && entry.refersTo(key)) {
+                return entry.value;
+            }
+        }
     }
 
-    public V get(K key) {
-        cleanUp();
-        return map.get(new ByIdentityWeakReference<>(key));
+    public @Nullable V put(K key, V value) {
+        expungeStaleEntries();
+        int hash = hash(key);
+        Segment<K, V> segment = segmentFor(hash);
+        synchronized (segment) {
+            Entry<K, V> entry = find(segment.table, key, hash);
+            if (entry != null) {
+                V previous = entry.value;
+                entry.value = value;
+                return previous;
+            }
+            insert(segment, key, hash, value);
+            return null;
+        }
     }
 
+    /**
+     * Get the value of the key, or compute and insert it if the key is absent.
+     * The mapping function is called while the segment of the key is locked, so it must not update this map.
+     */
     public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
         V value = get(key);
-        if (value == null) {
+        if (value != null) {
+            return value;
+        }
+
+        expungeStaleEntries();
+        int hash = hash(key);
+        Segment<K, V> segment = segmentFor(hash);
+        synchronized (segment) {
+            Entry<K, V> entry = find(segment.table, key, hash);
+            if (entry != null && (value = entry.value) != null) {
+                return value;
+            }
             value = mappingFunction.apply(key);
-            put(key, value);
+            if (entry != null) {
+                entry.value = value;
+            } else {
+                insert(segment, key, hash, value);
+            }
+            return value;
         }
-        return value;
     }
 
-    private static final class ByIdentityWeakReference<T> extends WeakReference<T> {
+    public @Nullable V remove(K key) {
+        expungeStaleEntries();
+        int hash = hash(key);
+        Segment<K, V> segment = segmentFor(hash);
+        synchronized (segment) {
+            @Nullable Entry<K, V>[] table = segment.table;
+            int mask = table.length - 1;
+            for (int index = hash & mask; ; index = (index + 1) & mask) {
+                Entry<K, V> entry = slot(table, index);
+                if (entry == null) {
+                    return null;
+                }
+                if (entry.hash == hash && entry.refersTo(key)) {
+                    V value = entry.value;
+                    removeAt(segment, table, index);
+                    return value;
+                }
+            }
+        }
+    }
 
-        private final int hashCode;
+    /** The number of entries, excluding entries of which the key was garbage collected (as far as already known). */
+    public int size() {
+        expungeStaleEntries();
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
 
-        private ByIdentityWeakReference(T object) {
-            super(object);
-            this.hashCode = System.identityHashCode(object);
+    /**
+     * The keys that were not garbage collected. Like lookups, this does not lock: keys that are put or removed concurrently
+     * may or may not be included.
+     */
+    public List<K> keys() {
+        List<K> keys = new ArrayList<>();
+        for (Segment<K, V> segment : segments) {
+            @Nullable Entry<K, V>[] table = segment.table;
+            for (int index = 0; index < table.length; index++) {
+                Entry<K, V> entry = slot(table, index);
+                K key = entry == null || entry == TOMBSTONE ? null : entry.get();
+                if (key != null) {
+                    keys.add(key);
+                }
+            }
         }
+        return keys;
+    }
 
-        private ByIdentityWeakReference(T object, ReferenceQueue<? super T> referenceQueue) {
-            super(object, referenceQueue);
-            this.hashCode = System.identityHashCode(object);
+    private void expungeStaleEntries() {
+        Reference<? extends K> reference;
+        while ((reference = referenceQueue.poll()) != null) {
+            @SuppressWarnings("unchecked")
+            Entry<K, V> stale = (Entry<K, V>) reference;
+            Segment<K, V> segment = segmentFor(stale.hash);
+            synchronized (segment) {
+                @Nullable Entry<K, V>[] table = segment.table;
+                int mask = table.length - 1;
+                for (int index = stale.hash & mask; ; index = (index + 1) & mask) {
+                    Entry<K, V> entry = slot(table, index);
+                    if (entry == null) {
+                        break;  // already dropped by a rehash, or removed.
+                    }
+                    if (entry == stale) {
+                        removeAt(segment, table, index);
+                        break;
+                    }
+                }
+            }
         }
+    }
+
+    // ===== operations on a locked segment =====
 
-        @Override
-        public boolean equals(Object o) {
-            return (o == this) || (o instanceof ByIdentityWeakReference<?> that && this.get() == that.get());
+    private static <K, V> @Nullable Entry<K, V> find(@Nullable Entry<K, V>[] table, K key, int hash) {
+        int mask = table.length - 1;
+        for (int index = hash & mask; ; index = (index + 1) & mask) {
+            Entry<K, V> entry = slot(table, index);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.hash == hash && entry.refersTo(key)) {
+                return entry;
+            }
         }
+    }
 
-        @Override
-        public int hashCode() {
-            return hashCode;
+    private void insert(Segment<K, V> segment, K key, int hash, V value) {
+        if ((segment.used + 1) * 4 > segment.table.length * 3) {
+            rehash(segment);
         }
 
-        @Override
-        public String toString() {
-            return "ByIdentityWeakReference(" + get() + ")";
+        @Nullable Entry<K, V>[] table = segment.table;
+        int mask = table.length - 1;
+        int index = hash & mask;
+        Entry<K, V> entry;
+        while ((entry = slot(table, index)) != null && entry != TOMBSTONE) {
+            index = (index + 1) & mask;
+        }
+        if (entry == null) {
+            segment.used += 1;
         }
+        segment.size += 1;
+        SLOTS.setRelease(table, index, new Entry<>(key, hash, value, referenceQueue));
     }
 
+    private static <K, V> void removeAt(Segment<K, V> segment, @Nullable Entry<K, V>[] table, int index) {
+        Entry<K, V> entry = slot(table, index);
+        SLOTS.setRelease(table, index, TOMBSTONE);
+        entry.value = null;     // lookups that already found the entry observe the removal.
+        segment.size -= 1;
+    }
+
+    /** Copy the live entries to a new table, dropping tombstones and cleared entries. */
+    private static <K, V> void rehash(Segment<K, V> segment) {
+        @Nullable Entry<K, V>[] oldTable = segment.table;
+        int live = 0;
+        for (Entry<K, V> entry : oldTable) {
+            if (entry != null && entry != TOMBSTONE && !entry.refersTo(null)) {
+                live += 1;
+            }
+        }
+
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < (live + 1) * 2) {
+            capacity <<= 1;
+        }
+        @Nullable Entry<K, V>[] newTable = newTable(capacity);
+        int mask = capacity - 1;
+        for (Entry<K, V> entry : oldTable) {
+            if (entry != null && entry != TOMBSTONE && !entry.refersTo(null)) {
+                int index = entry.hash & mask;
+                while (newTable[index] != null) {
+                    index = (index + 1) & mask;
+                }
+                newTable[index] = entry;
+            }
+        }
+
+        // Lookups that still probe the old table see a consistent snapshot, because it is not modified after this point.
+        segment.table = newTable;
+        segment.size = live;
+        segment.used = live;
+    }
+
+    // ===== helpers =====
+
+    private static int hash(Object key) {
+        // Fibonacci hashing, so that both the highest bits (segment) and the lowest bits (slot) are well distributed.
+        return System.identityHashCode(Objects.requireNonNull(key)) * 0x9E3779B9;
+    }
+
+    private Segment<K, V> segmentFor(int hash) {
+        return segments[hash >>> SEGMENT_SHIFT];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> @Nullable Entry<K, V> slot(@Nullable Entry<K, V>[] table, int index) {
+        return (Entry<K, V>) SLOTS.getAcquire(table, index);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> @Nullable Entry<K, V>[] newTable(int capacity) {
+        return new Entry[capacity];
+    }
 }
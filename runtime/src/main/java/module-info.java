@@ -4,6 +4,9 @@ module memorymonitoring.runtime {
     requires org.jspecify;
 
     exports memorymonitoring.runtime;
+    exports memorymonitoring.runtime.annotation;
+    exports memorymonitoring.runtime.stats;
+    exports memorymonitoring.runtime.trace;
 
     exports memorymonitoring.util to memorymonitoring.runtime.test;
 }
\ No newline at end of file
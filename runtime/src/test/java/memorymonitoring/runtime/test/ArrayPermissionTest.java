@@ -0,0 +1,46 @@
+package memorymonitoring.runtime.test;
+
+import memorymonitoring.runtime.Access;
+import memorymonitoring.runtime.ArrayPermission;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public final class ArrayPermissionTest {
+
+    @Test
+    public void testOnlyOverlappingRangesConflict() {
+        ArrayPermission permission = new ArrayPermission(100);
+        assertNull(permission.set(1, 0, 50, Access.WRITE));
+        assertNull(permission.set(2, 50, 100, Access.WRITE));
+        assertEquals(Access.WRITE, permission.set(3, 40, 60, Access.READ));
+    }
+
+    @Test
+    public void testReadersOfARangeDoNotConflict() {
+        ArrayPermission permission = new ArrayPermission(10);
+        assertNull(permission.set(1, 0, 10, Access.READ));
+        assertNull(permission.set(2, 0, 10, Access.READ));
+        assertEquals(Access.READ, permission.set(3, 5, 6, Access.WRITE));
+    }
+
+    @Test
+    public void testGetIsTheWeakestAccessInTheRange() {
+        ArrayPermission permission = new ArrayPermission(10);
+        permission.set(1, 0, 10, Access.WRITE);
+        permission.set(1, 5, 6, Access.READ);
+        assertEquals(Access.WRITE, permission.get(1, 0, 5));
+        assertEquals(Access.READ, permission.get(1, 0, 10));
+        assertEquals(Access.NONE, permission.get(2, 0, 10));
+    }
+
+    @Test
+    public void testRevokedRangeDoesNotConflict() {
+        ArrayPermission permission = new ArrayPermission(10);
+        assertNull(permission.set(1, 0, 10, Access.WRITE));
+        assertNull(permission.set(1, 0, 5, Access.NONE));
+        assertNull(permission.set(2, 0, 5, Access.WRITE));
+        assertEquals(Access.WRITE, permission.set(2, 4, 6, Access.WRITE));
+    }
+}
@@ -0,0 +1,80 @@
+package memorymonitoring.runtime.test;
+
+import memorymonitoring.runtime.Access;
+import memorymonitoring.runtime.Permissions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The checks of bulk operations on arrays, like memorymonitoring.agent.ArrayUsageTransformer inserts them.
+ */
+public final class BulkArrayAccessTest {
+
+    @Test
+    public void testWholeArrayAccessChecksAllElements() {
+        int[] array = new int[4];
+        Permissions.setArrayPermission(array, 0, 3, Access.WRITE);
+        try (LogRecorder log = new LogRecorder(Permissions.class.getName())) {
+            Permissions.logArrayAccessWholeArray(array, Access.READ);
+            assertEquals(1, log.messages().size(), () -> "violations " + log.messages());
+            assertTrue(log.messages().getFirst().contains(".[0, 4) at level READ"), log.messages()::toString);
+
+            log.clear();
+            Permissions.setArrayPermissionWholeArray(array, Access.WRITE);
+            Permissions.logArrayAccessWholeArray(array, Access.WRITE);
+            assertEquals(List.of(), log.messages());
+        }
+    }
+
+    @Test
+    public void testNullAndEmptyArraysAreNotChecked() {
+        try (LogRecorder log = new LogRecorder(Permissions.class.getName())) {
+            Permissions.logArrayAccessWholeArray(null, Access.WRITE);
+            Permissions.logArrayAccessWholeArray(new int[0], Access.WRITE);
+            Permissions.logBulkArrayAccess(null, 0, 1, Access.WRITE);
+            assertEquals(List.of(), log.messages());
+        }
+    }
+
+    @Test
+    public void testRangeIsClampedToTheLength() throws InterruptedException {
+        int[] array = new int[4];
+        Permissions.setArrayPermissionWholeArray(array, Access.WRITE);
+        try (LogRecorder log = new LogRecorder(Permissions.class.getName())) {
+            // like Arrays.copyOfRange(array, 2, 100)
+            Permissions.logBulkArrayAccess(array, 2, 100, Access.READ);
+            assertEquals(List.of(), log.messages());
+
+            Thread other = Thread.ofPlatform().start(() -> Permissions.logBulkArrayAccess(array, 2, 100, Access.READ));
+            other.join();
+            assertEquals(1, log.messages().size(), () -> "violations " + log.messages());
+            assertTrue(log.messages().getFirst().contains(".[2, 4) at level READ"), log.messages()::toString);
+        }
+    }
+
+    @Test
+    public void testInvalidRangesAreNotChecked() {
+        int[] array = new int[4];
+        try (LogRecorder log = new LogRecorder(Permissions.class.getName())) {
+            // the bulk operations throw for these ranges, or access nothing.
+            Permissions.logBulkArrayAccess(array, -1, 2, Access.WRITE);
+            Permissions.logBulkArrayAccess(array, 3, 1, Access.WRITE);
+            Permissions.logBulkArrayAccess(array, 4, 8, Access.WRITE);
+            Permissions.logBulkArrayAccess(array, 2, 2, Access.WRITE);
+            assertEquals(List.of(), log.messages());
+        }
+    }
+
+    @Test
+    public void testOneCheckPerBulkAccess() {
+        long[] array = new long[1024];
+        try (LogRecorder log = new LogRecorder(Permissions.class.getName())) {
+            Permissions.logBulkArrayAccess(array, 0, array.length, Access.WRITE);
+            assertEquals(1, log.messages().size(), () -> "violations " + log.messages());
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package memorymonitoring.runtime.test;
+
+import memorymonitoring.runtime.Access;
+import memorymonitoring.runtime.FieldPermission;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public final class FieldPermissionTest {
+
+    @Test
+    public void testWriteConflictsWithOtherReadersAndWriters() {
+        FieldPermission readByOther = new FieldPermission();
+        assertNull(readByOther.set(1, Access.READ));
+        assertEquals(Access.READ, readByOther.set(2, Access.WRITE));
+
+        FieldPermission writtenByOther = new FieldPermission();
+        assertNull(writtenByOther.set(1, Access.WRITE));
+        assertEquals(Access.WRITE, writtenByOther.set(2, Access.WRITE));
+    }
+
+    @Test
+    public void testReadConflictsOnlyWithOtherWriters() {
+        FieldPermission permission = new FieldPermission();
+        assertNull(permission.set(1, Access.READ));
+        assertNull(permission.set(2, Access.READ));
+        assertNull(permission.set(3, Access.READ));
+
+        FieldPermission written = new FieldPermission();
+        assertNull(written.set(1, Access.WRITE));
+        assertEquals(Access.WRITE, written.set(2, Access.READ));
+    }
+
+    @Test
+    public void testOwnPermissionDoesNotConflict() {
+        FieldPermission permission = new FieldPermission();
+        assertNull(permission.set(1, Access.WRITE));
+        assertNull(permission.set(1, Access.READ));
+        assertNull(permission.set(1, Access.WRITE));
+    }
+
+    @Test
+    public void testRevokedPermissionDoesNotConflict() {
+        FieldPermission permission = new FieldPermission();
+        assertNull(permission.set(1, Access.WRITE));
+        assertNull(permission.set(1, Access.NONE));
+        assertNull(permission.set(2, Access.WRITE));
+        assertEquals(Access.NONE, permission.get(1));
+        assertEquals(Access.WRITE, permission.get(2));
+    }
+
+    @Test
+    public void testDefaultAppliesToThreadsWithoutPermission() {
+        FieldPermission permission = new FieldPermission();
+        assertNull(permission.get(1));
+        permission.setDefault(Access.READ);
+        // the default is not a permission of any thread, so it does not conflict.
+        assertNull(permission.set(2, Access.WRITE));
+        assertEquals(Access.READ, permission.get(1));
+        assertEquals(Access.WRITE, permission.get(2));
+    }
+}
@@ -0,0 +1,44 @@
+package memorymonitoring.runtime.test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/** Records the messages that the runtime logs at a level of at least WARNING, e.g. violations and conflicts. */
+final class LogRecorder extends Handler implements AutoCloseable {
+
+    private final Logger logger;
+    private final List<String> messages = new CopyOnWriteArrayList<>();
+
+    LogRecorder(String loggerName) {
+        this.logger = Logger.getLogger(loggerName);
+        setLevel(Level.WARNING);
+        logger.addHandler(this);
+    }
+
+    List<String> messages() {
+        return List.copyOf(messages);
+    }
+
+    void clear() {
+        messages.clear();
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (isLoggable(record)) {
+            messages.add(record.getMessage());
+        }
+    }
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public void close() {
+        logger.removeHandler(this);
+    }
+}
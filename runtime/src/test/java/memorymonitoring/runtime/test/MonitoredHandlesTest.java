@@ -0,0 +1,119 @@
+package memorymonitoring.runtime.test;
+
+import memorymonitoring.runtime.Access;
+import memorymonitoring.runtime.MonitoredHandles;
+import memorymonitoring.runtime.Permissions;
+import org.junit.jupiter.api.Test;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The handles are obtained and their accesses checked like in code instrumented by the agent, see
+ * memorymonitoring.agent.HandleUsageTransformer.
+ */
+public final class MonitoredHandlesTest {
+
+    static final class Box {
+        static int total;
+        int value;
+        final int id = 1;
+    }
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    @Test
+    public void testVarHandleAccessWithoutPermissionIsAViolation() throws ReflectiveOperationException, InterruptedException {
+        VarHandle value = MonitoredHandles.findVarHandle(LOOKUP, Box.class, "value", int.class);
+        Box box = new Box();
+        Permissions.setFieldPermission(box, Box.class, "value", Access.WRITE);
+
+        try (LogRecorder log = new LogRecorder(Permissions.class.getName())) {
+            MonitoredHandles.logVarHandleAccess(value, box, 0, Access.WRITE);
+            assertEquals(List.of(), log.messages());
+
+            Thread other = Thread.ofPlatform().start(() -> MonitoredHandles.logVarHandleAccess(value, box, 0, Access.READ));
+            other.join();
+            assertEquals(1, log.messages().size(), () -> "violations " + log.messages());
+        }
+    }
+
+    @Test
+    public void testStaticVarHandle() throws ReflectiveOperationException, InterruptedException {
+        VarHandle total = MonitoredHandles.findStaticVarHandle(LOOKUP, Box.class, "total", int.class);
+        try (LogRecorder log = new LogRecorder(Permissions.class.getName())) {
+            Thread other = Thread.ofPlatform().start(() -> MonitoredHandles.logVarHandleAccess(total, null, 0, Access.WRITE));
+            other.join();
+            assertEquals(1, log.messages().size(), () -> "violations " + log.messages());
+        }
+    }
+
+    @Test
+    public void testArrayElementVarHandleChecksTheIndex() throws InterruptedException {
+        VarHandle element = MonitoredHandles.arrayElementVarHandle(int[].class);
+        int[] array = new int[4];
+        Permissions.setArrayPermission(array, 0, 2, Access.WRITE);
+        try (LogRecorder log = new LogRecorder(Permissions.class.getName())) {
+            MonitoredHandles.logVarHandleAccess(element, array, 1, Access.WRITE);
+            assertEquals(List.of(), log.messages());
+
+            MonitoredHandles.logVarHandleAccess(element, array, 2, Access.READ);
+            assertEquals(1, log.messages().size(), () -> "violations " + log.messages());
+        }
+    }
+
+    @Test
+    public void testHandlesOfFinalAndUnmonitoredFieldsAreNotChecked() throws ReflectiveOperationException, InterruptedException {
+        VarHandle id = MonitoredHandles.findVarHandle(LOOKUP, Box.class, "id", int.class);
+        // created by code that is not instrumented.
+        VarHandle value = LOOKUP.findVarHandle(Box.class, "value", int.class);
+        Box box = new Box();
+        try (LogRecorder log = new LogRecorder(Permissions.class.getName())) {
+            Thread other = Thread.ofPlatform().start(() -> {
+                MonitoredHandles.logVarHandleAccess(id, box, 0, Access.READ);
+                MonitoredHandles.logVarHandleAccess(value, box, 0, Access.WRITE);
+                // the handle throws a NullPointerException.
+                MonitoredHandles.logVarHandleAccess(value, null, 0, Access.WRITE);
+            });
+            other.join();
+            assertEquals(List.of(), log.messages());
+        }
+    }
+
+    @Test
+    public void testGetterAndSetterCheckTheAccess() throws Throwable {
+        MethodHandle getter = MonitoredHandles.findGetter(LOOKUP, Box.class, "value", int.class);
+        MethodHandle setter = MonitoredHandles.findSetter(LOOKUP, Box.class, "value", int.class);
+        Box box = new Box();
+        Permissions.setFieldPermission(box, Box.class, "value", Access.READ);
+
+        try (LogRecorder log = new LogRecorder(Permissions.class.getName())) {
+            assertEquals(0, (int) getter.invokeExact(box));
+            assertEquals(List.of(), log.messages());
+
+            setter.invokeExact(box, 42);
+            assertEquals(42, box.value);
+            assertEquals(1, log.messages().size(), () -> "violations " + log.messages());
+        }
+    }
+
+    @Test
+    public void testStaticSetterChecksTheAccess() throws Throwable {
+        MethodHandle setter = MonitoredHandles.findStaticSetter(LOOKUP, Box.class, "total", int.class);
+        try (LogRecorder log = new LogRecorder(Permissions.class.getName())) {
+            Thread other = Thread.ofPlatform().start(() -> {
+                try {
+                    setter.invokeExact(1);
+                } catch (Throwable e) {
+                    throw new AssertionError(e);
+                }
+            });
+            other.join();
+            assertEquals(1, log.messages().size(), () -> "violations " + log.messages());
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package memorymonitoring.runtime.test;
+
+import memorymonitoring.runtime.Access;
+import memorymonitoring.runtime.Permissions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The permissions of multi-dimensional arrays, granted like memorymonitoring.agent.NewArrayTransformer does for
+ * {@code multianewarray}: the sub-arrays inherit the permission when they are loaded from the outer array.
+ */
+public final class MultiArrayPermissionTest {
+
+    @Test
+    public void testSubArrayIsGrantedWhenLoaded() {
+        int[][] grid = new int[3][4];
+        Permissions.setArrayPermissionWholeMultiArray(grid, 2, Access.WRITE);
+        Thread current = Thread.currentThread();
+        assertEquals(Access.WRITE, Permissions.getArrayPermission(current, grid, 0, 3));
+        assertEquals(Access.NONE, Permissions.getArrayPermission(current, grid[1], 0, 4));
+
+        try (LogRecorder log = new LogRecorder(Permissions.class.getName())) {
+            Permissions.logArrayAccess(grid, 1, Access.READ);
+            Permissions.logArrayAccess(grid[1], 2, Access.WRITE);
+            assertEquals(List.of(), log.messages());
+        }
+        assertEquals(Access.WRITE, Permissions.getArrayPermission(current, grid[1], 0, 4));
+        assertEquals(Access.NONE, Permissions.getArrayPermission(current, grid[2], 0, 4));
+    }
+
+    @Test
+    public void testNestedSubArraysInheritTheirPermissionInTurn() {
+        long[][][] cube = new long[2][2][2];
+        Permissions.setArrayPermissionWholeMultiArray(cube, 3, Access.READ);
+        try (LogRecorder log = new LogRecorder(Permissions.class.getName())) {
+            Permissions.logArrayAccess(cube, 1, Access.READ);
+            Permissions.logArrayAccess(cube[1], 0, Access.READ);
+            Permissions.logArrayAccess(cube[1][0], 1, Access.READ);
+            assertEquals(List.of(), log.messages());
+
+            Permissions.logArrayAccess(cube[1][0], 1, Access.WRITE);
+            assertEquals(1, log.messages().size(), () -> "violations " + log.messages());
+        }
+    }
+
+    @Test
+    public void testRangeAccessGrantsAllSubArraysInTheRange() {
+        double[][] grid = new double[4][2];
+        Permissions.setArrayPermissionWholeMultiArray(grid, 2, Access.WRITE);
+        // like System.arraycopy(grid, 1, other, 0, 3)
+        Permissions.logArrayAccess(grid, 1, 4, Access.READ);
+        Thread current = Thread.currentThread();
+        assertEquals(Access.NONE, Permissions.getArrayPermission(current, grid[0], 0, 2));
+        for (int i = 1; i < 4; i++) {
+            assertEquals(Access.WRITE, Permissions.getArrayPermission(current, grid[i], 0, 2));
+        }
+    }
+
+    @Test
+    public void testOverwrittenElementDoesNotInherit() {
+        int[][] grid = new int[2][2];
+        Permissions.setArrayPermissionWholeMultiArray(grid, 2, Access.WRITE);
+        int[] original = grid[0];
+        int[] replacement = new int[2];
+        // the check of the store comes before the store.
+        Permissions.logArrayAccess(grid, 0, Access.WRITE);
+        grid[0] = replacement;
+
+        Thread current = Thread.currentThread();
+        assertEquals(Access.WRITE, Permissions.getArrayPermission(current, original, 0, 2));
+        try (LogRecorder log = new LogRecorder(Permissions.class.getName())) {
+            Permissions.logArrayAccess(grid, 0, Access.READ);
+            assertEquals(List.of(), log.messages());
+        }
+        assertEquals(Access.NONE, Permissions.getArrayPermission(current, replacement, 0, 2));
+    }
+
+    @Test
+    public void testSubArraysAreGrantedToTheCreatingThread() throws InterruptedException {
+        int[][] grid = new int[2][2];
+        Permissions.setArrayPermissionWholeMultiArray(grid, 2, Access.WRITE);
+        try (LogRecorder log = new LogRecorder(Permissions.class.getName())) {
+            // loading the sub-array and writing to it are violations of the other thread.
+            Thread other = Thread.ofPlatform().start(() -> {
+                Permissions.logArrayAccess(grid, 0, Access.READ);
+                Permissions.logArrayAccess(grid[0], 0, Access.WRITE);
+            });
+            other.join();
+            assertEquals(2, log.messages().size(), () -> "violations " + log.messages());
+
+            log.clear();
+            Permissions.logArrayAccess(grid[0], 0, Access.WRITE);
+            assertEquals(List.of(), log.messages());
+        }
+    }
+
+    @Test
+    public void testMissingSubArraysAreSkipped() {
+        int[][] rows = new int[2][];
+        Permissions.setArrayPermissionWholeMultiArray(rows, 2, Access.WRITE);
+        try (LogRecorder log = new LogRecorder(Permissions.class.getName())) {
+            Permissions.logArrayAccess(rows, 0, Access.READ);
+            assertEquals(List.of(), log.messages());
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package memorymonitoring.runtime.test;
+
+import memorymonitoring.runtime.Access;
+import memorymonitoring.runtime.Permissions;
+import memorymonitoring.runtime.ShadowPermissions;
+import memorymonitoring.runtime.stats.StatisticsFormat;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static memorymonitoring.runtime.test.Threads.awaitCollected;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Grants from the threads of pools that come and go, to long-lived objects and arrays. Runs with array permissions kept
+ * off-heap and with the statistics published to a file (the options memorymonitoring.arrays=offheap and
+ * memorymonitoring.statistics=&lt;file&gt;, see the configuration of surefire), so that both the objects and the arrays
+ * start out with the inline state of their owner, and the number of threads with permissions can be read back.
+ */
+public final class PermissionsSoakTest {
+
+    private static final int ROUNDS = 20;
+    private static final int POOL_SIZE = 4;
+    private static final int ARRAY_LENGTH = 16;
+
+    /** Like a class instrumented by the agent, see memorymonitoring.agent.ShadowFields. */
+    static final class Point {
+        static {
+            ShadowPermissions.register(MethodHandles.lookup(), 0, "x", "y");
+        }
+
+        @SuppressWarnings("unused")
+        private ShadowPermissions $permissions;
+        int x, y;
+
+        Point() {
+            $permissions = ShadowPermissions.ownedByCurrentThread(2, 0b11);
+        }
+    }
+
+    private record Owned(Point point, int[] array) {}
+
+    @Test
+    public void testPermissionsOfPoolThreadsAreReclaimed() throws Exception {
+        List<Owned> previousRound = List.of();
+        try (LogRecorder log = new LogRecorder(Permissions.class.getName())) {
+            for (int round = 0; round < ROUNDS; round++) {
+                List<WeakReference<Thread>> poolThreads = new ArrayList<>();
+                ExecutorService pool = Executors.newFixedThreadPool(POOL_SIZE, task -> {
+                    Thread thread = Thread.ofPlatform().unstarted(task);
+                    poolThreads.add(new WeakReference<>(thread));
+                    return thread;
+                });
+
+                // The threads of the previous pool are gone, so their permissions are free to be claimed.
+                List<Owned> claimed = previousRound;
+                invokeAll(pool, index -> {
+                    Owned owned = claimed.get(index);
+                    Permissions.setFieldPermission(owned.point(), Point.class, "x", Access.WRITE);
+                    Permissions.setFieldPermission(owned.point(), Point.class, "y", Access.WRITE);
+                    Permissions.setArrayPermission(owned.array(), 0, ARRAY_LENGTH, Access.WRITE);
+                    return owned;
+                }, claimed.size());
+
+                // Every thread becomes the owner of the inline state of an object and an array, and then shares it with
+                // readers, which replays the owner into the permissions of each field and array.
+                List<Owned> created = invokeAll(pool, _ -> {
+                    Owned owned = new Owned(new Point(), new int[ARRAY_LENGTH]);
+                    Permissions.setArrayPermissionWholeArray(owned.array(), Access.WRITE);
+                    Permissions.setFieldPermission(owned.point(), Point.class, "x", Access.READ);
+                    Permissions.setArrayPermission(owned.array(), 0, ARRAY_LENGTH, Access.READ);
+                    return owned;
+                }, POOL_SIZE);
+                invokeAll(pool, index -> {
+                    Owned owned = created.get(index);
+                    Permissions.setFieldPermission(owned.point(), Point.class, "x", Access.READ);
+                    Permissions.setArrayPermission(owned.array(), ARRAY_LENGTH / 2, ARRAY_LENGTH, Access.READ);
+                    return owned;
+                }, POOL_SIZE);
+
+                pool.shutdown();
+                assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+                pool = null;
+                for (WeakReference<Thread> thread : poolThreads) {
+                    awaitCollected(thread);
+                }
+                previousRound = created;
+            }
+            List<String> conflicts = log.messages();
+            assertTrue(conflicts.isEmpty(), () -> conflicts.size() + " conflicts with terminated threads, the first: " + conflicts.getFirst());
+        }
+
+        // reclaims the permissions of the threads of the last pool too.
+        Permissions.setArrayPermissionWholeArray(new int[1], Access.WRITE);
+        long trackedThreads = publishedGauge(StatisticsFormat.TRACKED_THREADS);
+        assertTrue(trackedThreads <= POOL_SIZE, () -> trackedThreads + " threads are tracked after " + ROUNDS * POOL_SIZE + " pool threads terminated");
+    }
+
+    private interface Task {
+        Owned run(int index);
+    }
+
+    private static List<Owned> invokeAll(ExecutorService pool, Task task, int count) throws InterruptedException, ExecutionException {
+        List<Future<Owned>> futures = new ArrayList<>();
+        for (int index = 0; index < count; index++) {
+            int taskIndex = index;
+            futures.add(pool.submit(() -> task.run(taskIndex)));
+        }
+        List<Owned> results = new ArrayList<>();
+        for (Future<Owned> future : futures) {
+            results.add(future.get());
+        }
+        return results;
+    }
+
+    /** The value of a gauge, as published after this call. */
+    private static long publishedGauge(int gauge) throws IOException, InterruptedException {
+        Path file = Path.of(System.getProperty("memorymonitoring.statistics"));
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer statistics = channel.map(FileChannel.MapMode.READ_ONLY, 0, StatisticsFormat.FILE_SIZE).order(ByteOrder.nativeOrder());
+            long since = System.currentTimeMillis();
+            for (int attempt = 0; attempt < 100 && statistics.getLong(StatisticsFormat.UPDATE_TIME_OFFSET) <= since; attempt++) {
+                Thread.sleep(50);
+            }
+            assertTrue(statistics.getLong(StatisticsFormat.UPDATE_TIME_OFFSET) > since, "statistics were not published");
+            return statistics.getLong(StatisticsFormat.gaugeOffset(gauge));
+        }
+    }
+}
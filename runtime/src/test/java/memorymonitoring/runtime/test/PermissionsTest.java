@@ -0,0 +1,145 @@
+package memorymonitoring.runtime.test;
+
+import memorymonitoring.runtime.Access;
+import memorymonitoring.runtime.Permissions;
+import org.junit.jupiter.api.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.List;
+
+import static memorymonitoring.runtime.test.Threads.awaitCollected;
+import static memorymonitoring.runtime.test.Threads.runAndForget;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public final class PermissionsTest {
+
+    // Not instrumented, so its permissions are not stored in shadow permissions.
+    static final class Box {
+        int value;
+    }
+
+    @Test
+    public void testGrantConflictingWithLiveThreadIsReported() throws InterruptedException {
+        Box box = new Box();
+        Permissions.setFieldPermission(box, Box.class, "value", Access.WRITE);
+        try (LogRecorder log = new LogRecorder(Permissions.class.getName())) {
+            Thread other = Thread.ofPlatform().start(() -> Permissions.setFieldPermission(box, Box.class, "value", Access.READ));
+            other.join();
+            assertEquals(1, log.messages().size(), () -> "conflicts " + log.messages());
+            assertTrue(log.messages().getFirst().contains("Another thread already has WRITE permission"), log.messages()::toString);
+        }
+    }
+
+    @Test
+    public void testSharedReadsDoNotConflict() throws InterruptedException {
+        Box box = new Box();
+        Permissions.setFieldPermission(box, Box.class, "value", Access.READ);
+        try (LogRecorder log = new LogRecorder(Permissions.class.getName())) {
+            Thread other = Thread.ofPlatform().start(() -> Permissions.setFieldPermission(box, Box.class, "value", Access.READ));
+            other.join();
+            assertEquals(List.of(), log.messages());
+        }
+    }
+
+    @Test
+    public void testGrantAfterHolderIsGoneDoesNotConflict() throws InterruptedException {
+        Box box = new Box();
+        int[] array = new int[10];
+        WeakReference<Thread> holder = runAndForget(() -> {
+            Permissions.setFieldPermission(box, Box.class, "value", Access.WRITE);
+            Permissions.setArrayPermission(array, 0, 10, Access.WRITE);
+        });
+        awaitCollected(holder);
+
+        try (LogRecorder log = new LogRecorder(Permissions.class.getName())) {
+            Permissions.setFieldPermission(box, Box.class, "value", Access.WRITE);
+            Permissions.setArrayPermission(array, 0, 10, Access.WRITE);
+            assertEquals(List.of(), log.messages());
+        }
+    }
+
+    @Test
+    public void testArrayGrantConflictsOnlyWithOverlappingRanges() throws InterruptedException {
+        int[] array = new int[10];
+        Permissions.setArrayPermission(array, 0, 5, Access.WRITE);
+        try (LogRecorder log = new LogRecorder(Permissions.class.getName())) {
+            Thread other = Thread.ofPlatform().start(() -> {
+                Permissions.setArrayPermission(array, 5, 10, Access.WRITE);
+                Permissions.setArrayPermission(array, 4, 5, Access.READ);
+            });
+            other.join();
+            assertEquals(1, log.messages().size(), () -> "conflicts " + log.messages());
+        }
+    }
+
+    @Test
+    public void testPartitionsAreOwnedByTheirWorkers() throws InterruptedException {
+        int[] array = new int[8];
+        Permissions.setArrayPermissionWholeArray(array, Access.WRITE);
+        try (LogRecorder log = new LogRecorder(Permissions.class.getName())) {
+            Thread left = Thread.ofPlatform().unstarted(() -> Permissions.logArrayAccess(array, 0, 4, Access.WRITE));
+            Thread right = Thread.ofPlatform().unstarted(() -> {
+                Permissions.logArrayAccess(array, 4, 8, Access.WRITE);
+                Permissions.logArrayAccess(array, 3, Access.READ);
+            });
+            Permissions.partitionArray(array, new int[] {0, 4, 8}, new Thread[] {left, right});
+            left.start();
+            right.start();
+            left.join();
+            right.join();
+            // the right worker read an element of the left partition.
+            assertEquals(1, log.messages().size(), () -> "violations " + log.messages());
+            assertTrue(log.messages().getFirst().contains(".[3, 4) at level READ"), log.messages()::toString);
+
+            // the current thread handed over its permission.
+            log.clear();
+            Permissions.logArrayAccess(array, 0, Access.READ);
+            assertEquals(1, log.messages().size(), () -> "violations " + log.messages());
+        }
+    }
+
+    @Test
+    public void testPartitionClaimedByOtherThreadIsAConflict() throws InterruptedException {
+        int[] array = new int[8];
+        Thread reader = Thread.ofPlatform().start(() -> Permissions.setArrayPermission(array, 6, 7, Access.READ));
+        reader.join();
+        Thread worker = Thread.ofPlatform().unstarted(() -> {});
+        try (LogRecorder log = new LogRecorder(Permissions.class.getName())) {
+            Permissions.partitionArray(array, new int[] {0, 4, 8}, new Thread[] {Thread.currentThread(), worker});
+            assertEquals(1, log.messages().size(), () -> "conflicts " + log.messages());
+            assertTrue(log.messages().getFirst().contains("Another thread already has READ permission"), log.messages()::toString);
+        }
+        // keep the reader alive until here, so that its permission is not reclaimed.
+        assertEquals(Access.READ, Permissions.getArrayPermission(reader, array, 6, 7));
+    }
+
+    @Test
+    public void testInvalidPartitionBoundariesAreRejected() {
+        int[] array = new int[8];
+        Thread[] threads = {Thread.currentThread(), Thread.currentThread()};
+        assertThrows(IllegalArgumentException.class, () -> Permissions.partitionArray(array, new int[] {0, 8}, threads));
+        assertThrows(IllegalArgumentException.class, () -> Permissions.partitionArray(array, new int[] {0, 6, 4}, threads));
+        assertThrows(IllegalArgumentException.class, () -> Permissions.partitionArray(array, new int[] {-1, 4, 8}, threads));
+        assertThrows(IllegalArgumentException.class, () -> Permissions.partitionArray(array, new int[] {0, 4, 9}, threads));
+    }
+
+    @Test
+    public void testMergeRevokesThePartitions() {
+        int[] array = new int[8];
+        Thread left = Thread.ofPlatform().unstarted(() -> {});
+        Thread right = Thread.ofPlatform().unstarted(() -> {});
+        Permissions.partitionArray(array, new int[] {0, 4, 8}, new Thread[] {left, right});
+        assertEquals(Access.WRITE, Permissions.getArrayPermission(right, array, 4, 8));
+
+        try (LogRecorder log = new LogRecorder(Permissions.class.getName())) {
+            Permissions.mergeArray(array);
+            Permissions.logArrayAccess(array, 0, 8, Access.WRITE);
+            assertEquals(List.of(), log.messages());
+        }
+        assertEquals(Access.WRITE, Permissions.getArrayPermission(Thread.currentThread(), array, 0, 8));
+        assertEquals(Access.NONE, Permissions.getArrayPermission(left, array, 0, 4));
+        assertEquals(Access.NONE, Permissions.getArrayPermission(right, array, 4, 8));
+    }
+}
@@ -0,0 +1,188 @@
+package memorymonitoring.runtime.test;
+
+import memorymonitoring.runtime.Access;
+import memorymonitoring.runtime.Permissions;
+import memorymonitoring.runtime.RaceDetector;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs with the option memorymonitoring.mode=races, see the configuration of surefire. The synchronization hooks are called
+ * like the agent inserts them (see memorymonitoring.agent.SynchronizationTransformer): threads that are started or joined
+ * without them are unordered for the race detector, whatever the actual order of their accesses.
+ */
+public final class RaceDetectorTest {
+
+    static final class Box {
+        int value;
+        volatile boolean published;
+    }
+
+    @Test
+    public void testUnorderedWritesRace() throws InterruptedException {
+        Box box = new Box();
+        try (LogRecorder log = new LogRecorder(RaceDetector.class.getName())) {
+            write(box);
+            Thread other = Thread.ofPlatform().start(() -> write(box));
+            other.join();
+            assertEquals(1, log.messages().size(), () -> "races " + log.messages());
+            assertTrue(log.messages().getFirst().contains("Write is concurrent with a previous write."), log.messages()::toString);
+        }
+    }
+
+    @Test
+    public void testUnorderedReadsDoNotRace() throws InterruptedException {
+        Box box = new Box();
+        try (LogRecorder log = new LogRecorder(RaceDetector.class.getName())) {
+            read(box);
+            Thread other = Thread.ofPlatform().start(() -> read(box));
+            other.join();
+            assertEquals(List.of(), log.messages());
+        }
+    }
+
+    @Test
+    public void testAccessesOrderedByLockDoNotRace() throws InterruptedException {
+        Box box = new Box();
+        Object lock = new Object();
+        try (LogRecorder log = new LogRecorder(RaceDetector.class.getName())) {
+            RaceDetector.acquire(lock);
+            write(box);
+            RaceDetector.release(lock);
+            Thread other = Thread.ofPlatform().start(() -> {
+                RaceDetector.acquire(lock);
+                write(box);
+                RaceDetector.release(lock);
+            });
+            other.join();
+            assertEquals(List.of(), log.messages());
+        }
+    }
+
+    @Test
+    public void testAccessesOrderedByStartAndJoinDoNotRace() throws InterruptedException {
+        Box box = new Box();
+        try (LogRecorder log = new LogRecorder(RaceDetector.class.getName())) {
+            write(box);
+            Thread other = Thread.ofPlatform().unstarted(() -> write(box));
+            RaceDetector.threadStart(other);
+            other.start();
+            other.join();
+            RaceDetector.threadJoin(other);
+            read(box);
+            assertEquals(List.of(), log.messages());
+        }
+    }
+
+    @Test
+    public void testAccessesOrderedByStartedTaskDoNotRace() throws InterruptedException {
+        Box box = new Box();
+        try (LogRecorder log = new LogRecorder(RaceDetector.class.getName())) {
+            write(box);
+            Thread other = Thread.ofVirtual().start(RaceDetector.threadStart(() -> write(box)));
+            other.join();
+            RaceDetector.threadJoin(other);
+            write(box);
+            assertEquals(List.of(), log.messages());
+        }
+    }
+
+    @Test
+    public void testAccessesOrderedByVolatileFieldDoNotRace() throws InterruptedException {
+        Box box = new Box();
+        try (LogRecorder log = new LogRecorder(RaceDetector.class.getName())) {
+            write(box);
+            Permissions.logFieldAccess(box, Box.class, "published", Access.WRITE);
+            Thread other = Thread.ofPlatform().start(() -> {
+                Permissions.logFieldAccess(box, Box.class, "published", Access.READ);
+                read(box);
+            });
+            other.join();
+            assertEquals(List.of(), log.messages());
+        }
+    }
+
+    @Test
+    public void testReadThenUnorderedWriteRaces() throws InterruptedException {
+        Box box = new Box();
+        try (LogRecorder log = new LogRecorder(RaceDetector.class.getName())) {
+            read(box);
+            Thread other = Thread.ofPlatform().start(() -> write(box));
+            other.join();
+            assertEquals(1, log.messages().size(), () -> "races " + log.messages());
+            assertTrue(log.messages().getFirst().contains("Write is concurrent with a previous read."), log.messages()::toString);
+        }
+    }
+
+    @Test
+    public void testRangeRaceIsReportedOnceAndUpdatesTheWholeRange() throws InterruptedException {
+        int[] array = new int[8];
+        try (LogRecorder log = new LogRecorder(RaceDetector.class.getName())) {
+            Permissions.logArrayAccess(array, 0, 8, Access.WRITE);
+            Thread other = Thread.ofPlatform().start(() -> {
+                Permissions.logArrayAccess(array, 0, 8, Access.WRITE);
+                // ordered after its own write of the element, not after the first one.
+                Permissions.logArrayAccess(array, 5, Access.READ);
+            });
+            other.join();
+            assertEquals(1, log.messages().size(), () -> "races " + log.messages());
+            assertTrue(log.messages().getFirst().contains("[0]"), log.messages()::toString);
+        }
+    }
+
+    @Test
+    public void testDisjointRangesDoNotRace() throws InterruptedException {
+        int[] array = new int[8];
+        try (LogRecorder log = new LogRecorder(RaceDetector.class.getName())) {
+            Permissions.logArrayAccess(array, 0, 4, Access.WRITE);
+            Thread other = Thread.ofPlatform().start(() -> Permissions.logArrayAccess(array, 4, 8, Access.WRITE));
+            other.join();
+            assertEquals(List.of(), log.messages());
+
+            Permissions.logArrayAccess(array, 2, 6, Access.READ);
+            assertEquals(1, log.messages().size(), () -> "races " + log.messages());
+            assertTrue(log.messages().getFirst().contains("[4]"), log.messages()::toString);
+            assertTrue(log.messages().getFirst().contains("Read is concurrent with a previous write."), log.messages()::toString);
+        }
+    }
+
+    @Test
+    public void testConcurrentAccessesToOwnElementsDoNotRace() throws InterruptedException {
+        int threads = 4;
+        int[] array = new int[1000];
+        try (LogRecorder log = new LogRecorder(RaceDetector.class.getName())) {
+            List<Thread> workers = new ArrayList<>();
+            for (int thread = 0; thread < threads; thread++) {
+                int first = thread;
+                workers.add(Thread.ofPlatform().start(() -> {
+                    for (int round = 0; round < 100; round++) {
+                        for (int index = first; index < array.length; index += threads) {
+                            Permissions.logArrayAccess(array, index, round % 2 == 0 ? Access.WRITE : Access.READ);
+                        }
+                    }
+                }));
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            assertEquals(List.of(), log.messages());
+
+            // the elements of all threads are concurrent with the main thread.
+            Permissions.logArrayAccess(array, 0, array.length, Access.WRITE);
+            assertEquals(1, log.messages().size(), () -> "races " + log.messages());
+        }
+    }
+
+    private static void read(Box box) {
+        Permissions.logFieldAccess(box, Box.class, "value", Access.READ);
+    }
+
+    private static void write(Box box) {
+        Permissions.logFieldAccess(box, Box.class, "value", Access.WRITE);
+    }
+}
@@ -0,0 +1,275 @@
+package memorymonitoring.runtime.test;
+
+import memorymonitoring.runtime.Access;
+import memorymonitoring.runtime.Permissions;
+import memorymonitoring.runtime.ShadowPermissions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static memorymonitoring.runtime.test.Threads.awaitCollected;
+import static memorymonitoring.runtime.test.Threads.runAndForget;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public final class ShadowPermissionsTest {
+
+    /** Like a class instrumented by the agent, see memorymonitoring.agent.ShadowFields. */
+    static final class Point {
+        static {
+            ShadowPermissions.register(MethodHandles.lookup(), 0, "x", "y");
+        }
+
+        @SuppressWarnings("unused")
+        private ShadowPermissions $permissions;
+        int x, y;
+
+        Point() {
+            $permissions = ShadowPermissions.ownedByCurrentThread(2, 0b11);
+        }
+    }
+
+    /** Like a class annotated as ThreadConfined, see memorymonitoring.runtime.annotation.ThreadConfined. */
+    static final class Counter {
+        static {
+            ShadowPermissions.register(MethodHandles.lookup(), 0b1, "count");
+        }
+
+        @SuppressWarnings("unused")
+        private ShadowPermissions $permissions;
+        int count;
+
+        Counter() {
+            $permissions = ShadowPermissions.ownedByCurrentThread(1, 0);
+        }
+    }
+
+    /** Like an instrumented class that calls super.clone(), see memorymonitoring.agent.InitializerTransformer. */
+    static final class Pair implements Cloneable {
+        static {
+            ShadowPermissions.register(MethodHandles.lookup(), 0, "first", "second");
+        }
+
+        @SuppressWarnings("unused")
+        private ShadowPermissions $permissions;
+        int first, second;
+
+        Pair() {
+            $permissions = ShadowPermissions.ownedByCurrentThread(2, 0b11);
+        }
+
+        @Override
+        public Pair clone() {
+            try {
+                Object clone = super.clone();
+                ShadowPermissions.cloned(clone, this);
+                return (Pair) clone;
+            } catch (CloneNotSupportedException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    /** A class with as many fields as shadow permissions can hold, of which the constructor grants all but the last. */
+    static final class Wide {
+        static final String[] FIELD_NAMES = IntStream.range(0, ShadowPermissions.MAX_FIELDS).mapToObj(i -> "f" + i).toArray(String[]::new);
+
+        static {
+            ShadowPermissions.register(MethodHandles.lookup(), 0, FIELD_NAMES);
+        }
+
+        @SuppressWarnings("unused")
+        private ShadowPermissions $permissions;
+
+        Wide() {
+            $permissions = ShadowPermissions.ownedByCurrentThread(FIELD_NAMES.length, -1 >>> 1);
+        }
+    }
+
+    @Test
+    public void testConstructorGrantsTheFieldsOfTheMaskAtOnce() throws InterruptedException {
+        Wide wide = new Wide();
+        Thread current = Thread.currentThread();
+        for (int i = 0; i < ShadowPermissions.MAX_FIELDS - 1; i++) {
+            assertEquals(Access.WRITE, Permissions.getFieldPermission(current, wide, Wide.class, Wide.FIELD_NAMES[i]));
+        }
+        String last = Wide.FIELD_NAMES[ShadowPermissions.MAX_FIELDS - 1];
+        assertEquals(Access.NONE, Permissions.getFieldPermission(current, wide, Wide.class, last));
+
+        // the field outside of the mask is free for other threads.
+        try (LogRecorder log = new LogRecorder(Permissions.class.getName())) {
+            Thread other = Thread.ofPlatform().start(() -> Permissions.setFieldPermission(wide, Wide.class, last, Access.WRITE));
+            other.join();
+            assertEquals(List.of(), log.messages());
+        }
+    }
+
+    @Test
+    public void testDefaultPermissionAppliesToOtherThreadsThanTheOwner() throws InterruptedException {
+        Point point = new Point();
+        Permissions.setFieldDefaultPermission(point, Point.class, "x", Access.READ);
+        Thread current = Thread.currentThread();
+        assertEquals(Access.WRITE, Permissions.getFieldPermission(current, point, Point.class, "x"));
+
+        Access[] otherAccess = new Access[1];
+        Thread other = Thread.ofPlatform().start(() -> otherAccess[0] = Permissions.getFieldPermission(Thread.currentThread(), point, Point.class, "x"));
+        other.join();
+        assertEquals(Access.READ, otherAccess[0]);
+    }
+
+    @Test
+    public void testOwnerCoversTheGrantedFieldsOnly() throws InterruptedException {
+        ShadowPermissions shadow = ShadowPermissions.ownedByCurrentThread(2, 0b01);
+        assertTrue(ShadowPermissions.isOwner(shadow));
+        assertTrue(ShadowPermissions.ownerCovers(shadow, 0, Access.WRITE));
+        assertTrue(ShadowPermissions.ownerCovers(shadow, 0, Access.READ));
+        assertFalse(ShadowPermissions.ownerCovers(shadow, 1, Access.READ));
+        assertFalse(ShadowPermissions.ownerCovers(null, 0, Access.READ));
+        assertFalse(ShadowPermissions.isOwner(null));
+
+        boolean[] otherCovers = new boolean[2];
+        Thread other = Thread.ofPlatform().start(() -> {
+            otherCovers[0] = ShadowPermissions.isOwner(shadow);
+            otherCovers[1] = ShadowPermissions.ownerCovers(shadow, 0, Access.READ);
+        });
+        other.join();
+        assertFalse(otherCovers[0]);
+        assertFalse(otherCovers[1]);
+    }
+
+    @Test
+    public void testGrantToOwnerOnlyChangesThatField() {
+        Point point = new Point();
+        Permissions.setFieldPermission(point, Point.class, "x", Access.READ);
+        assertEquals(Access.READ, Permissions.getFieldPermission(Thread.currentThread(), point, Point.class, "x"));
+        assertEquals(Access.WRITE, Permissions.getFieldPermission(Thread.currentThread(), point, Point.class, "y"));
+
+        Permissions.setFieldPermission(point, Point.class, "x", Access.WRITE);
+        assertEquals(Access.WRITE, Permissions.getFieldPermission(Thread.currentThread(), point, Point.class, "x"));
+    }
+
+    @Test
+    public void testAccessByOtherThreadIsAViolation() throws InterruptedException {
+        Point point = new Point();
+        try (LogRecorder log = new LogRecorder(Permissions.class.getName())) {
+            Thread other = Thread.ofPlatform().start(() -> Permissions.logFieldAccess(point, Point.class, "x", Access.READ));
+            other.join();
+            assertEquals(1, log.messages().size(), () -> "violations " + log.messages());
+        }
+        try (LogRecorder log = new LogRecorder(Permissions.class.getName())) {
+            Permissions.logFieldAccess(point, Point.class, "x", Access.WRITE);
+            assertEquals(List.of(), log.messages());
+        }
+    }
+
+    @Test
+    public void testOwnerOfThreadConfinedFieldHasWritePermission() throws InterruptedException {
+        Counter counter = new Counter();
+        assertEquals(Access.WRITE, Permissions.getFieldPermission(Thread.currentThread(), counter, Counter.class, "count"));
+        try (LogRecorder log = new LogRecorder(Permissions.class.getName())) {
+            Permissions.logFieldAccess(counter, Counter.class, "count", Access.WRITE);
+            assertEquals(List.of(), log.messages());
+
+            Thread other = Thread.ofPlatform().start(() -> Permissions.logFieldAccess(counter, Counter.class, "count", Access.READ));
+            other.join();
+            assertEquals(1, log.messages().size(), () -> "violations " + log.messages());
+        }
+    }
+
+    @Test
+    public void testConstructingThreadOwnsAllFields() {
+        Point point = new Point();
+        Thread current = Thread.currentThread();
+        assertEquals(Access.WRITE, Permissions.getFieldPermission(current, point, Point.class, "x"));
+        assertEquals(Access.WRITE, Permissions.getFieldPermission(current, point, Point.class, "y"));
+    }
+
+    @Test
+    public void testGrantToOtherThreadConflictsWithLiveOwner() throws InterruptedException {
+        Point point = new Point();
+        try (LogRecorder log = new LogRecorder(Permissions.class.getName())) {
+            Thread other = Thread.ofPlatform().start(() -> Permissions.setFieldPermission(point, Point.class, "x", Access.WRITE));
+            other.join();
+            assertEquals(1, log.messages().size(), () -> "conflicts " + log.messages());
+        }
+        // the other field is still only in the summary.
+        assertEquals(Access.WRITE, Permissions.getFieldPermission(Thread.currentThread(), point, Point.class, "y"));
+    }
+
+    @Test
+    public void testSummaryOfGoneOwnerIsDropped() throws InterruptedException {
+        Point[] constructed = new Point[1];
+        WeakReference<Thread> owner = runAndForget(() -> constructed[0] = new Point());
+        awaitCollected(owner);
+
+        try (LogRecorder log = new LogRecorder(Permissions.class.getName())) {
+            Permissions.setFieldPermission(constructed[0], Point.class, "x", Access.WRITE);
+            Permissions.setFieldPermission(constructed[0], Point.class, "y", Access.WRITE);
+            assertEquals(List.of(), log.messages());
+        }
+    }
+
+    @Test
+    public void testSplitPermissionOfOwnerIsReclaimedWhenGone() throws InterruptedException {
+        Point[] constructed = new Point[1];
+        // the permission of the owner to x is split off from the summary while the owner is alive.
+        WeakReference<Thread> owner = runAndForget(() -> {
+            constructed[0] = new Point();
+            Permissions.setFieldPermission(constructed[0], Point.class, "x", Access.READ);
+        });
+        awaitCollected(owner);
+
+        try (LogRecorder log = new LogRecorder(Permissions.class.getName())) {
+            Permissions.setFieldPermission(constructed[0], Point.class, "x", Access.WRITE);
+            assertEquals(List.of(), log.messages());
+        }
+        assertEquals(Access.WRITE, Permissions.getFieldPermission(Thread.currentThread(), constructed[0], Point.class, "x"));
+    }
+
+    @Test
+    public void testCloneDoesNotSharePermissionsWithTheOriginal() throws InterruptedException {
+        Pair original = new Pair();
+        Pair clone = original.clone();
+        Thread current = Thread.currentThread();
+        assertEquals(Access.NONE, Permissions.getFieldPermission(current, clone, Pair.class, "first"));
+
+        Permissions.setFieldPermission(clone, Pair.class, "first", Access.READ);
+        assertEquals(Access.READ, Permissions.getFieldPermission(current, clone, Pair.class, "first"));
+        assertEquals(Access.WRITE, Permissions.getFieldPermission(current, original, Pair.class, "first"));
+
+        // the clone is not owned by the thread that owns the original.
+        try (LogRecorder log = new LogRecorder(Permissions.class.getName())) {
+            Thread other = Thread.ofPlatform().start(() -> Permissions.setFieldPermission(clone, Pair.class, "second", Access.WRITE));
+            other.join();
+            assertEquals(List.of(), log.messages());
+        }
+        assertEquals(Access.WRITE, Permissions.getFieldPermission(current, original, Pair.class, "second"));
+
+        // like a super.clone() further down the class hierarchy: the permissions of the clone are not reset again.
+        ShadowPermissions.cloned(clone, original);
+        assertEquals(Access.READ, Permissions.getFieldPermission(current, clone, Pair.class, "first"));
+    }
+
+    @Test
+    public void testLayoutDoesNotKeepTheClassReachable() throws Exception {
+        awaitCollected(defineHiddenPoint());
+    }
+
+    // A copy of Point that can be unloaded, of which an instance is checked against its registered layout.
+    private static WeakReference<Class<?>> defineHiddenPoint() throws IOException, ReflectiveOperationException {
+        byte[] classFile;
+        try (InputStream in = Point.class.getResourceAsStream(Point.class.getName().substring(Point.class.getPackageName().length() + 1) + ".class")) {
+            classFile = in.readAllBytes();
+        }
+        Class<?> hiddenPoint = MethodHandles.lookup().defineHiddenClass(classFile, true).lookupClass();
+        Object point = hiddenPoint.getDeclaredConstructor().newInstance();
+        assertEquals(Access.WRITE, Permissions.getFieldPermission(Thread.currentThread(), point, hiddenPoint, "x"));
+        return new WeakReference<>(hiddenPoint);
+    }
+}
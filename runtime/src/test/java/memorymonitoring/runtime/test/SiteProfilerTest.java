@@ -0,0 +1,36 @@
+package memorymonitoring.runtime.test;
+
+import memorymonitoring.runtime.SiteProfiler;
+import org.junit.jupiter.api.Test;
+
+import java.lang.invoke.MethodHandles;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** The sites are registered like the agent describes them, by the bootstrap method of their dynamic constant. */
+public final class SiteProfilerTest {
+
+    @Test
+    public void testSiteCanBeResolvedMoreThanOnce() {
+        int siteId = 10_001;
+        assertEquals(siteId, site(siteId, 3));
+        assertEquals(siteId, site(siteId, 3));
+        assertTrue(SiteProfiler.siteDescription(siteId).contains("bci 3"), SiteProfiler.siteDescription(siteId));
+    }
+
+    @Test
+    public void testSiteIdOfAnotherSiteIsRejected() {
+        int siteId = 10_002;
+        site(siteId, 3);
+        // e.g. the same id in two artifacts that were instrumented separately.
+        IllegalStateException e = assertThrows(IllegalStateException.class, () -> site(siteId, 7));
+        assertTrue(e.getMessage().contains("Site id " + siteId + " is used by two sites"), e.getMessage());
+        assertTrue(SiteProfiler.siteDescription(siteId).contains("bci 3"), SiteProfiler.siteDescription(siteId));
+    }
+
+    private static int site(int siteId, int bci) {
+        return SiteProfiler.site(MethodHandles.lookup(), "site", int.class, siteId, "access", "()V", bci, 42, "getfield");
+    }
+}
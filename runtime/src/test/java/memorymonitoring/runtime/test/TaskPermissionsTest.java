@@ -0,0 +1,136 @@
+package memorymonitoring.runtime.test;
+
+import memorymonitoring.runtime.Access;
+import memorymonitoring.runtime.Permissions;
+import memorymonitoring.runtime.TaskPermissions;
+import org.junit.jupiter.api.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static memorymonitoring.runtime.test.Threads.awaitCollected;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public final class TaskPermissionsTest {
+
+    // Not instrumented, so its permissions are not stored in shadow permissions.
+    static final class Box {
+        int value;
+    }
+
+    /**
+     * A pool with one thread, which is blocked until the given latch is counted down, and room for two queued tasks.
+     * Tasks that do not fit are discarded.
+     */
+    private static ThreadPoolExecutor blockedPool(CountDownLatch unblock) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<>(2), new ThreadPoolExecutor.DiscardPolicy());
+        pool.execute(() -> {
+            try {
+                unblock.await();
+            } catch (InterruptedException _) {
+                // exit.
+            }
+        });
+        return pool;
+    }
+
+    @Test
+    public void testExecutedTaskUsesThePermissionsOfTheSubmitter() throws InterruptedException {
+        Box box = new Box();
+        Permissions.setFieldPermission(box, Box.class, "value", Access.WRITE);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<>(1));
+        try (LogRecorder log = new LogRecorder(Permissions.class.getName())) {
+            TaskPermissions.execute(pool, () -> Permissions.logFieldAccess(box, Box.class, "value", Access.WRITE));
+            pool.shutdown();
+            assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+            assertEquals(List.of(), log.messages());
+        }
+    }
+
+    @Test
+    public void testRejectedTaskIsNotKept() throws InterruptedException {
+        Executor rejecting = _ -> {
+            throw new RejectedExecutionException();
+        };
+        awaitCollected(executeAndForget(rejecting));
+    }
+
+    @Test
+    public void testDiscardedTaskIsNotKept() throws InterruptedException {
+        CountDownLatch unblock = new CountDownLatch(1);
+        ThreadPoolExecutor pool = blockedPool(unblock);
+        try {
+            TaskPermissions.execute(pool, new AtomicInteger()::incrementAndGet);
+            TaskPermissions.execute(pool, new AtomicInteger()::incrementAndGet);
+            // the queue is full.
+            awaitCollected(executeAndForget(pool));
+        } finally {
+            unblock.countDown();
+            pool.shutdown();
+        }
+    }
+
+    private static WeakReference<Runnable> executeAndForget(Executor executor) {
+        // a new instance, unlike a lambda that captures nothing.
+        Runnable task = new AtomicInteger()::incrementAndGet;
+        try {
+            TaskPermissions.execute(executor, task);
+        } catch (RejectedExecutionException _) {
+            // not kept by the executor either.
+        }
+        return new WeakReference<>(task);
+    }
+
+    @Test
+    public void testTaskExecutedTwiceIsRemovedTwice() throws InterruptedException {
+        CountDownLatch unblock = new CountDownLatch(1);
+        ThreadPoolExecutor pool = blockedPool(unblock);
+        AtomicInteger runs = new AtomicInteger();
+        Runnable task = runs::incrementAndGet;
+        try {
+            TaskPermissions.execute(pool, task);
+            TaskPermissions.execute(pool, task);
+            assertTrue(TaskPermissions.remove(pool, task));
+            assertTrue(TaskPermissions.remove(pool, task));
+            assertFalse(TaskPermissions.remove(pool, task));
+        } finally {
+            unblock.countDown();
+            pool.shutdown();
+        }
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(0, runs.get());
+    }
+
+    @Test
+    public void testQueuedTasksAreHandedBackUnwrapped() {
+        CountDownLatch unblock = new CountDownLatch(1);
+        ThreadPoolExecutor pool = blockedPool(unblock);
+        Runnable task = new AtomicInteger()::incrementAndGet;
+        TaskPermissions.execute(pool, task);
+        List<Runnable> queued = TaskPermissions.undelegate(pool.shutdownNow());
+        assertEquals(1, queued.size());
+        assertSame(task, queued.getFirst());
+        assertFalse(TaskPermissions.remove(pool, task));
+    }
+
+    @Test
+    public void testNullTaskIsRejectedByTheExecutor() {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<>(1));
+        try {
+            assertThrows(NullPointerException.class, () -> TaskPermissions.execute(pool, null));
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
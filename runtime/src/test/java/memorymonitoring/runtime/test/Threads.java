@@ -0,0 +1,30 @@
+package memorymonitoring.runtime.test;
+
+import java.lang.ref.WeakReference;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/** Threads that run a task and are gone afterwards, for tests of how the permissions of terminated threads are reclaimed. */
+final class Threads {
+
+    private Threads() {}
+
+    /** Run a task in a new thread, and wait until it terminated. */
+    static WeakReference<Thread> runAndForget(Runnable task) throws InterruptedException {
+        Thread thread = Thread.ofPlatform().start(task);
+        thread.join();
+        return new WeakReference<>(thread);
+    }
+
+    /**
+     * Wait until a terminated thread was garbage collected, which is when the runtime notices that it is gone. Also used
+     * for other objects that the runtime must not keep alive.
+     */
+    static void awaitCollected(WeakReference<?> reference) throws InterruptedException {
+        for (int attempt = 0; attempt < 50 && !reference.refersTo(null); attempt++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertTrue(reference.refersTo(null), "object was not collected");
+    }
+}
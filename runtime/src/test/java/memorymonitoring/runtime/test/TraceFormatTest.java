@@ -0,0 +1,135 @@
+package memorymonitoring.runtime.test;
+
+import memorymonitoring.runtime.Access;
+import memorymonitoring.runtime.trace.TraceFormat;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public final class TraceFormatTest {
+
+    @Test
+    public void testVarLongRoundTrip() {
+        long[] values = {0, 1, 0x7F, 0x80, 0x3FFF, 0x4000, Integer.MAX_VALUE, Long.MAX_VALUE, -1};
+        byte[] buffer = new byte[values.length * 10];
+        int position = 0;
+        for (long value : values) {
+            int end = TraceFormat.writeVarLong(buffer, position, value);
+            assertEquals(end, TraceFormat.skipVarLong(buffer, position));
+            position = end;
+        }
+
+        ByteBuffer encoded = ByteBuffer.wrap(buffer, 0, position);
+        position = 0;
+        for (long value : values) {
+            assertEquals(value, TraceFormat.readVarLong(buffer, position));
+            assertEquals(value, TraceFormat.readVarLong(encoded));
+            position = TraceFormat.skipVarLong(buffer, position);
+        }
+        assertFalse(encoded.hasRemaining());
+    }
+
+    @Test
+    public void testSmallValuesTakeOneByte() {
+        byte[] buffer = new byte[10];
+        assertEquals(1, TraceFormat.writeVarLong(buffer, 0, 0x7F));
+        assertEquals(2, TraceFormat.writeVarLong(buffer, 0, 0x80));
+        assertEquals(10, TraceFormat.writeVarLong(buffer, 0, -1));
+        // deltas are zig-zag encoded, so that small negative deltas stay small too.
+        assertEquals(1, TraceFormat.writeVarLong(buffer, 0, TraceFormat.zigZag(-1)));
+    }
+
+    @Test
+    public void testZigZagRoundTrip() {
+        for (long value : new long[] {0, 1, -1, 63, -64, Long.MAX_VALUE, Long.MIN_VALUE}) {
+            assertEquals(value, TraceFormat.unZigZag(TraceFormat.zigZag(value)));
+        }
+        assertEquals(1, TraceFormat.zigZag(-1));
+        assertEquals(2, TraceFormat.zigZag(1));
+    }
+
+    @Test
+    public void testTagHoldsKindAndAccess() {
+        for (int kind = TraceFormat.FIELD_ACCESS; kind <= TraceFormat.DELEGATION; kind++) {
+            for (Access access : Access.values()) {
+                int tag = TraceFormat.tag(kind, access);
+                assertTrue(tag <= 0xFF, () -> "tag " + tag);
+                assertEquals(kind, TraceFormat.kind(tag));
+                assertEquals(access, TraceFormat.access(tag));
+            }
+        }
+    }
+
+    @Test
+    public void testStringRoundTrip() {
+        byte[] utf8 = "Größe".getBytes(StandardCharsets.UTF_8);
+        byte[] buffer = new byte[1 + utf8.length];
+        assertEquals(buffer.length, TraceFormat.writeString(buffer, 0, utf8));
+        assertEquals("Größe", TraceFormat.readString(ByteBuffer.wrap(buffer)));
+    }
+
+    @Test
+    public void testSkipRecord() {
+        byte[] buffer = new byte[256];
+        int[] ends = new int[5];
+        int position = 0;
+
+        // FIELD_ACCESS: threadId timeDelta siteId ownerDelta fieldId
+        position = TraceFormat.writeVarLong(buffer, position, TraceFormat.tag(TraceFormat.FIELD_ACCESS, Access.WRITE));
+        for (long value : new long[] {3, 1000, 42, TraceFormat.zigZag(-5), 7}) {
+            position = TraceFormat.writeVarLong(buffer, position, value);
+        }
+        ends[0] = position;
+
+        // ARRAY_GRANT: threadId timeDelta siteId ownerDelta indexFrom length
+        buffer[position++] = (byte) TraceFormat.tag(TraceFormat.ARRAY_GRANT, Access.READ);
+        for (long value : new long[] {3, 0, TraceFormat.UNKNOWN_SITE, TraceFormat.zigZag(200), 128, 1 << 20}) {
+            position = TraceFormat.writeVarLong(buffer, position, value);
+        }
+        ends[1] = position;
+
+        // DEFINE_FIELD: fieldId classId name
+        buffer[position++] = (byte) TraceFormat.tag(TraceFormat.DEFINE_FIELD, Access.NONE);
+        position = TraceFormat.writeVarLong(buffer, position, 7);
+        position = TraceFormat.writeVarLong(buffer, position, 2);
+        position = TraceFormat.writeString(buffer, position, "value".getBytes(StandardCharsets.UTF_8));
+        ends[2] = position;
+
+        // DEFINE_ARRAY: objectId classId length
+        buffer[position++] = (byte) TraceFormat.tag(TraceFormat.DEFINE_ARRAY, Access.NONE);
+        for (long value : new long[] {300, 4, 1 << 20}) {
+            position = TraceFormat.writeVarLong(buffer, position, value);
+        }
+        ends[3] = position;
+
+        // DELEGATION: threadId timeDelta count delegatingThreadId...
+        buffer[position++] = (byte) TraceFormat.tag(TraceFormat.DELEGATION, Access.NONE);
+        for (long value : new long[] {5, 10, 2, 3, 1}) {
+            position = TraceFormat.writeVarLong(buffer, position, value);
+        }
+        ends[4] = position;
+
+        position = 0;
+        for (int end : ends) {
+            position = TraceFormat.skipRecord(buffer, position);
+            assertEquals(end, position);
+        }
+    }
+
+    @Test
+    public void testRecordKinds() {
+        assertTrue(TraceFormat.isEvent(TraceFormat.FIELD_ACCESS));
+        assertTrue(TraceFormat.isEvent(TraceFormat.ARRAY_GRANT));
+        assertFalse(TraceFormat.isEvent(TraceFormat.DEFINE_THREAD));
+        assertFalse(TraceFormat.isEvent(TraceFormat.DELEGATION));
+        assertTrue(TraceFormat.isDefinition(TraceFormat.DEFINE_THREAD));
+        assertTrue(TraceFormat.isDefinition(TraceFormat.DEFINE_ARRAY));
+        assertFalse(TraceFormat.isDefinition(TraceFormat.DELEGATION));
+        assertEquals("trace-000012.mmt", TraceFormat.segmentFileName(12));
+    }
+}
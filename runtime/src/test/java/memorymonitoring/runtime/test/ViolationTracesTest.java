@@ -0,0 +1,72 @@
+package memorymonitoring.runtime.test;
+
+import memorymonitoring.runtime.Access;
+import memorymonitoring.runtime.Permissions;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public final class ViolationTracesTest {
+
+    private static final Pattern TRACE = Pattern.compile("Stack trace #(\\d+)(:| \\(logged before\\)\\.)");
+
+    static final class Box {
+        int value;
+    }
+
+    @Test
+    public void testTraceIsLoggedOnceAndReferredToAfterwards() {
+        Box box = new Box();
+        try (LogRecorder log = new LogRecorder(Permissions.class.getName())) {
+            for (int i = 0; i < 20; i++) {
+                violate(box);
+            }
+            List<String> messages = log.messages();
+            assertEquals(20, messages.size());
+
+            Matcher first = trace(messages.getFirst());
+            assertEquals(":", first.group(2));
+            assertTrue(messages.getFirst().contains("\tat " + ViolationTracesTest.class.getName() + ".violate(ViolationTracesTest.java:"), messages.getFirst());
+            for (String message : messages.subList(1, messages.size())) {
+                Matcher later = trace(message);
+                assertEquals(first.group(1), later.group(1));
+                assertEquals(" (logged before).", later.group(2));
+                assertFalse(message.contains("\tat "), message);
+            }
+        }
+    }
+
+    @Test
+    public void testTracesOfOtherSitesAreLoggedInFull() {
+        Box box = new Box();
+        try (LogRecorder log = new LogRecorder(Permissions.class.getName())) {
+            violate(box);
+            Permissions.logFieldAccess(box, Box.class, "value", Access.READ);
+            List<String> messages = log.messages();
+            assertEquals(2, messages.size());
+
+            Matcher one = trace(messages.get(0));
+            Matcher other = trace(messages.get(1));
+            assertNotEquals(one.group(1), other.group(1));
+            assertEquals(":", other.group(2));
+            assertTrue(messages.get(1).contains("\tat " + ViolationTracesTest.class.getName() + ".testTracesOfOtherSitesAreLoggedInFull("), messages.get(1));
+        }
+    }
+
+    private static void violate(Box box) {
+        Permissions.logFieldAccess(box, Box.class, "value", Access.WRITE);
+    }
+
+    private static Matcher trace(String message) {
+        Matcher matcher = TRACE.matcher(message);
+        assertTrue(matcher.find(), message);
+        return matcher;
+    }
+}
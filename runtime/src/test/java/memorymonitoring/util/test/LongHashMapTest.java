@@ -0,0 +1,44 @@
+package memorymonitoring.util.test;
+
+import memorymonitoring.util.LongHashMap;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public final class LongHashMapTest {
+
+    @Test
+    public void testPutGetRemove() {
+        LongHashMap<String> map = new LongHashMap<>();
+
+        for (long key = 1; key <= 1000; key++) {
+            assertNull(map.put(key, "v" + key));
+        }
+        assertEquals(1000, map.size());
+        assertEquals("v1", map.get(1));
+        assertEquals("v1000", map.get(1000));
+        assertNull(map.get(1001));
+
+        for (long key = 1; key <= 1000; key += 2) {
+            assertEquals("v" + key, map.remove(key));
+        }
+        assertEquals(500, map.size());
+        for (long key = 1; key <= 1000; key++) {
+            assertEquals(key % 2 == 0 ? "v" + key : null, map.get(key));
+        }
+
+        assertEquals("v2", map.put(2, "two"));
+        assertEquals("two", map.get(2));
+        assertEquals("x", map.computeIfAbsent(-7L, _ -> "x"));
+        assertEquals("x", map.computeIfAbsent(-7L, _ -> "y"));
+
+        long[] keys = map.keys();
+        Arrays.sort(keys);
+        assertEquals(501, keys.length);
+        assertEquals(-7L, keys[0]);
+        assertEquals(1000L, keys[500]);
+    }
+}
@@ -0,0 +1,133 @@
+package memorymonitoring.util.test;
+
+import memorymonitoring.util.LongHashMap;
+import memorymonitoring.util.ThreadStateIndex;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public final class ThreadStateIndexTest {
+
+    @Test
+    public void testStateOfLiveThreadsIsKept() throws InterruptedException {
+        ThreadStateIndex<LongHashMap<String>> index = new ThreadStateIndex<>();
+        LongHashMap<String> holder = new LongHashMap<>();
+        Thread current = Thread.currentThread();
+        holder.put(current.threadId(), "state");
+        index.add(current, holder);
+
+        System.gc();
+        Thread.sleep(10);
+        assertEquals(0, index.reclaimGoneThreads((state, threadId) -> state.remove(threadId)));
+        assertEquals("state", holder.get(current.threadId()));
+        assertEquals(1, index.threadCount());
+    }
+
+    // Soak test: a long-lived holder is used by many short-lived threads, like a long-lived object used by a churning thread pool.
+    @Test
+    public void testStateOfGoneThreadsIsReclaimed() throws InterruptedException {
+        ThreadStateIndex<LongHashMap<String>> index = new ThreadStateIndex<>();
+        LongHashMap<String> longLived = new LongHashMap<>();
+        int maxSize = 0;
+
+        for (int round = 0; round < 100; round++) {
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < 50; t++) {
+                threads.add(Thread.ofPlatform().start(() -> {
+                    Thread thread = Thread.currentThread();
+                    synchronized (index) {
+                        longLived.put(thread.threadId(), thread.getName());
+                        index.add(thread, longLived);
+                        // short-lived holders, which are collected before the thread is gone.
+                        for (int i = 0; i < 100; i++) {
+                            LongHashMap<String> shortLived = new LongHashMap<>();
+                            shortLived.put(thread.threadId(), thread.getName());
+                            index.add(thread, shortLived);
+                        }
+                    }
+                }));
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            threads.clear();
+
+            if (round % 10 == 0) {
+                System.gc();
+            }
+            synchronized (index) {
+                index.reclaimGoneThreads((state, threadId) -> state.remove(threadId));
+                maxSize = Math.max(maxSize, longLived.size());
+            }
+        }
+
+        for (int attempt = 0; attempt < 50 && !longLived.isEmpty(); attempt++) {
+            System.gc();
+            Thread.sleep(10);
+            synchronized (index) {
+                index.reclaimGoneThreads((state, threadId) -> state.remove(threadId));
+            }
+        }
+        assertEquals(0, longLived.size());
+        assertEquals(0, index.threadCount());
+        // the state of 5000 threads was never kept at once.
+        assertTrue(maxSize < 5000, "max size " + maxSize);
+    }
+
+    @Test
+    public void testStateCanBeAddedByIdOfTrackedThreads() throws InterruptedException {
+        ThreadStateIndex<LongHashMap<String>> index = new ThreadStateIndex<>();
+        LongHashMap<String> holder = new LongHashMap<>();
+        Thread current = Thread.currentThread();
+        assertFalse(index.add(current.threadId(), holder));
+
+        index.track(current);
+        assertTrue(index.add(current.threadId(), holder));
+        holder.put(current.threadId(), "state");
+
+        Thread gone = Thread.ofPlatform().start(() -> {});
+        gone.join();
+        long goneId = gone.threadId();
+        index.track(gone);
+        gone = null;
+        for (int attempt = 0; attempt < 50 && index.threadCount() > 1; attempt++) {
+            System.gc();
+            Thread.sleep(10);
+            index.reclaimGoneThreads((state, threadId) -> state.remove(threadId));
+        }
+        assertFalse(index.add(goneId, holder));
+        assertEquals(1, index.threadCount());
+        assertEquals("state", holder.get(current.threadId()));
+    }
+
+    @Test
+    public void testCollectedHoldersAreNotReclaimed() throws InterruptedException {
+        ThreadStateIndex<long[]> index = new ThreadStateIndex<>();
+        long[] survivor = new long[1];
+        Thread gone = Thread.ofPlatform().unstarted(() -> {});
+        index.add(gone, survivor);
+        for (int i = 0; i < 100_000; i++) {
+            index.add(gone, new long[16]);
+        }
+        gone = null;
+
+        int[] reclaimed = new int[2];   // holders, elements
+        for (int attempt = 0; attempt < 50 && reclaimed[0] == 0; attempt++) {
+            System.gc();
+            Thread.sleep(10);
+            index.reclaimGoneThreads((holder, _) -> {
+                reclaimed[0] += 1;
+                reclaimed[1] += holder.length;
+            });
+        }
+        // only the survivor was still held by the gone thread.
+        assertEquals(1, reclaimed[0]);
+        assertEquals(survivor.length, reclaimed[1]);
+        assertEquals(0, index.threadCount());
+    }
+}
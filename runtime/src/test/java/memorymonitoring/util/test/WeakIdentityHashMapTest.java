@@ -0,0 +1,132 @@
+package memorymonitoring.util.test;
+
+import memorymonitoring.util.WeakIdentityHashMap;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public final class WeakIdentityHashMapTest {
+
+    @Test
+    public void testPutGetRemove() {
+        WeakIdentityHashMap<Object, String> map = new WeakIdentityHashMap<>();
+
+        List<Object> keys = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            Object key = new Object();
+            keys.add(key);
+            assertNull(map.put(key, "v" + i));
+        }
+        assertEquals(1000, map.size());
+        assertEquals("v0", map.get(keys.get(0)));
+        assertEquals("v999", map.get(keys.get(999)));
+        assertNull(map.get(new Object()));
+
+        for (int i = 0; i < 1000; i += 2) {
+            assertEquals("v" + i, map.remove(keys.get(i)));
+        }
+        assertEquals(500, map.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i % 2 == 1 ? "v" + i : null, map.get(keys.get(i)));
+        }
+
+        assertEquals("v1", map.put(keys.get(1), "one"));
+        assertEquals("one", map.get(keys.get(1)));
+        assertEquals("x", map.computeIfAbsent(keys.get(0), _ -> "x"));
+        assertEquals("x", map.computeIfAbsent(keys.get(0), _ -> "y"));
+    }
+
+    @Test
+    public void testKeysAreComparedByIdentity() {
+        WeakIdentityHashMap<String, Integer> map = new WeakIdentityHashMap<>();
+        String one = new String("key");
+        String two = new String("key");
+
+        map.put(one, 1);
+        map.put(two, 2);
+        assertEquals(1, map.get(one));
+        assertEquals(2, map.get(two));
+        assertEquals(2, map.size());
+    }
+
+    @Test
+    public void testKeys() {
+        WeakIdentityHashMap<Object, String> map = new WeakIdentityHashMap<>();
+        List<Object> keys = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Object key = new Object();
+            keys.add(key);
+            map.put(key, "value");
+        }
+        for (int i = 0; i < 100; i += 2) {
+            map.remove(keys.get(i));
+        }
+
+        List<Object> remaining = map.keys();
+        assertEquals(50, remaining.size());
+        for (int i = 1; i < 100; i += 2) {
+            Object key = keys.get(i);
+            assertTrue(remaining.stream().anyMatch(k -> k == key));
+        }
+    }
+
+    @Test
+    public void testEntriesOfCollectedKeysAreExpunged() throws InterruptedException {
+        WeakIdentityHashMap<Object, long[]> map = new WeakIdentityHashMap<>();
+        Object survivor = new Object();
+        map.put(survivor, new long[1]);
+        for (int i = 0; i < 10_000; i++) {
+            map.put(new Object(), new long[16]);
+        }
+
+        for (int attempt = 0; attempt < 50 && map.size() > 1; attempt++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(1, map.size());
+        assertEquals(1, map.get(survivor).length);
+    }
+
+    @Test
+    public void testConcurrentComputeIfAbsent() throws InterruptedException {
+        WeakIdentityHashMap<Object, Object> map = new WeakIdentityHashMap<>();
+        Object[] keys = new Object[1000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new Object();
+        }
+
+        AtomicInteger computations = new AtomicInteger();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            threads.add(Thread.ofPlatform().start(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                for (Object key : keys) {
+                    map.computeIfAbsent(key, _ -> {
+                        computations.incrementAndGet();
+                        return new Object();
+                    });
+                }
+            }));
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // every value was computed exactly once.
+        assertEquals(keys.length, computations.get());
+        assertEquals(keys.length, map.size());
+    }
+}
@@ -1,7 +1,9 @@
 module memorymonitoring.runtime.test {
 
+    requires java.logging;
     requires memorymonitoring.runtime;
     requires org.junit.jupiter.api;
 
+    exports memorymonitoring.runtime.test to org.junit.platform.commons;
     exports memorymonitoring.util.test to org.junit.platform.commons;
-}
\ No newline at end of file
+}